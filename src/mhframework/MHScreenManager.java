@@ -153,9 +153,14 @@ public final class MHScreenManager
 	/****************************************************************
 	 * Tells the current screen to update its data.  If the current
 	 * screen has finished executing, change to a different screen.
+	 *
+	 * <p>The shared tile animation clocks are advanced here, once
+	 * per update, no matter how many tile maps the screen shows.
 	 */
     public void advance()
     {
+        MHDataModel.getTileSetManager().advanceAnimations();
+
         getScreen().advance();
 
         if (getScreen().isFinished())
@@ -0,0 +1,471 @@
+package mhframework.ai.path;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import mhframework.tilemap.MHHeapMapStorage;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapStorage;
+import mhframework.tilemap.MHTileMap;
+
+
+/********************************************************************
+ * Maps and queries for measuring path finders.
+ *
+ * <p>The generated maps have only walkability; no tiles are placed,
+ * so they can be made as large as needed without loading a tile
+ * set.  The same seed always makes the same map.  The kinds of map
+ * stress searches in different ways:
+ *
+ * <ul>
+ * <li><tt>MAZE</tt>: one-cell corridors, so paths wind a long way
+ *     from the straight line.</li>
+ * <li><tt>OPEN</tt>: open ground with scattered rocks, so the
+ *     straight line is nearly always close.</li>
+ * <li><tt>CAVE</tt>: smoothed random caverns with ragged walls.</li>
+ * <li><tt>ROOMS</tt>: rooms joined by corridors, like a
+ *     dungeon.</li>
+ * </ul>
+ *
+ * <p>Recorded maps and queries can be loaded in the format of the
+ * widely used grid path-finding benchmark sets (<tt>.map</tt> and
+ * <tt>.scen</tt> files), or as plain text files of queries with one
+ * query per line:
+ * <pre>
+ *     # startRow startColumn goalRow goalColumn
+ *     12 40 87 3
+ * </pre>
+ */
+public final class MHBenchmarkMaps
+{
+    /** Kinds of generated map. */
+    public static final int MAZE = 0, OPEN = 1, CAVE = 2, ROOMS = 3;
+
+    /** Names of the kinds of generated map. */
+    public static final String[] KIND_NAMES = { "maze", "open", "cave", "rooms" };
+
+
+    private MHBenchmarkMaps()
+    {
+    }
+
+
+    /****************************************************************
+     * Generates a map.
+     *
+     * @param kind    <tt>MAZE</tt>, <tt>OPEN</tt>, <tt>CAVE</tt> or
+     *                <tt>ROOMS</tt>.
+     * @param size    The width and height in cells.
+     * @param seed    The seed for the random choices.
+     *
+     * @return The map, or null if the kind is unknown.
+     */
+    public static MHTileMap generate(final int kind, final int size, final long seed)
+    {
+        final Random random = new Random(seed);
+        final boolean[] walkable;
+
+        switch (kind)
+        {
+            case MAZE:
+                walkable = generateMaze(size, random);
+                break;
+            case OPEN:
+                walkable = generateOpen(size, random);
+                break;
+            case CAVE:
+                walkable = generateCave(size, random);
+                break;
+            case ROOMS:
+                walkable = generateRooms(size, random);
+                break;
+            default:
+                System.err.println("ERROR:  Unknown kind of benchmark map:  " + kind);
+                return null;
+        }
+
+        return createMap(walkable, size, size);
+    }
+
+
+    /****************************************************************
+     * Creates a map from an array of walkability in row-major
+     * order.  Every walkable cell costs
+     * <tt>MHMap.DEFAULT_MOVEMENT_COST</tt> to enter.
+     */
+    public static MHTileMap createMap(final boolean[] walkable, final int height, final int width)
+    {
+        final MHMapStorage storage = new MHHeapMapStorage(height, width);
+
+        for (int i = 0; i < height * width; i++)
+            storage.setPassability(i, walkable[i], walkable[i],
+                            walkable[i] ? MHMap.DEFAULT_MOVEMENT_COST : MHMap.IMPASSABLE);
+
+        return new MHTileMap(new MHMap(storage, null));
+    }
+
+
+    /****************************************************************
+     * Loads a map in the benchmark set format: a header giving the
+     * height and width, a line reading "map", and then one line of
+     * characters per row.  '.', 'G' and 'S' can be walked on;
+     * anything else is blocked.
+     *
+     * @return The map, or null if the file can't be read.
+     */
+    public static MHTileMap loadMap(final String filename)
+    {
+        BufferedReader in = null;
+
+        try
+        {
+            in = new BufferedReader(new FileReader(filename));
+
+            int height = -1, width = -1;
+            String line;
+            while ((line = in.readLine()) != null && !line.trim().equals("map"))
+            {
+                final String[] words = line.trim().split("\\s+");
+                if (words.length == 2 && words[0].equals("height"))
+                    height = Integer.parseInt(words[1]);
+                else if (words.length == 2 && words[0].equals("width"))
+                    width = Integer.parseInt(words[1]);
+            }
+
+            if (line == null || height <= 0 || width <= 0)
+            {
+                System.err.println("ERROR:  Not a benchmark map file:  " + filename);
+                return null;
+            }
+
+            final boolean[] walkable = new boolean[height * width];
+            for (int row = 0; row < height && (line = in.readLine()) != null; row++)
+            {
+                for (int column = 0; column < width && column < line.length(); column++)
+                {
+                    final char c = line.charAt(column);
+                    walkable[row * width + column] = (c == '.' || c == 'G' || c == 'S');
+                }
+            }
+
+            return createMap(walkable, height, width);
+        }
+        catch (final IOException e)
+        {
+            System.err.println("ERROR:  Could not read map file " + filename + ":  " + e.getMessage());
+            return null;
+        }
+        catch (final NumberFormatException e)
+        {
+            System.err.println("ERROR:  Bad map size in " + filename + ":  " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+
+    /****************************************************************
+     * Loads a set of recorded queries, either a benchmark set
+     * <tt>.scen</tt> file or a plain text file with four numbers
+     * per line.  Lines that can't be read are skipped.
+     *
+     * @return The queries, each as { startRow, startColumn, goalRow,
+     *         goalColumn }, or null if the file can't be read.
+     */
+    public static ArrayList<int[]> loadQueries(final String filename)
+    {
+        final ArrayList<int[]> queries = new ArrayList<int[]>();
+        BufferedReader in = null;
+
+        try
+        {
+            in = new BufferedReader(new FileReader(filename));
+
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#") || line.startsWith("version"))
+                    continue;
+
+                final String[] words = line.split("\\s+");
+                try
+                {
+                    if (words.length >= 8)
+                    {
+                        // bucket, map, width, height, start x, start
+                        // y, goal x, goal y, optimal length
+                        queries.add(new int[] { Integer.parseInt(words[5]), Integer.parseInt(words[4]),
+                                                Integer.parseInt(words[7]), Integer.parseInt(words[6]) });
+                    }
+                    else if (words.length == 4)
+                    {
+                        queries.add(new int[] { Integer.parseInt(words[0]), Integer.parseInt(words[1]),
+                                                Integer.parseInt(words[2]), Integer.parseInt(words[3]) });
+                    }
+                }
+                catch (final NumberFormatException e)
+                {
+                    // Not a query.
+                }
+            }
+
+            return queries;
+        }
+        catch (final IOException e)
+        {
+            System.err.println("ERROR:  Could not read query file " + filename + ":  " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+
+    /****************************************************************
+     * Chooses random queries between walkable cells.  Either end may
+     * be unreachable from the other.
+     *
+     * @return The queries, each as { startRow, startColumn, goalRow,
+     *         goalColumn }.
+     */
+    public static ArrayList<int[]> randomQueries(final MHTileMap map, final int count, final long seed)
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+        final int size = width * data.getHeight();
+        final Random random = new Random(seed);
+        final ArrayList<int[]> queries = new ArrayList<int[]>(count);
+
+        // Give up on maps with hardly anywhere to stand.
+        for (int tries = 0; queries.size() < count && tries < count * 1000; tries++)
+        {
+            final int start = random.nextInt(size);
+            final int goal = random.nextInt(size);
+
+            if (start != goal && data.isWalkable(start) && data.isWalkable(goal))
+                queries.add(new int[] { start / width, start % width, goal / width, goal % width });
+        }
+
+        return queries;
+    }
+
+
+    /****************************************************************
+     * Carves a maze of one-cell corridors with a depth-first walk
+     * over the odd cells.
+     */
+    private static boolean[] generateMaze(final int size, final Random random)
+    {
+        final boolean[] walkable = new boolean[size * size];
+        final int rooms = (size - 1) / 2;
+        if (rooms < 1)
+            return walkable;
+
+        final int[] stack = new int[rooms * rooms];
+        final int[] choices = new int[4];
+        int top = 0;
+
+        stack[top++] = 0;
+        walkable[size + 1] = true;
+
+        while (top > 0)
+        {
+            final int room = stack[top - 1];
+            final int r = room / rooms, c = room % rooms;
+
+            // Unvisited rooms next to this one, as 0 to 3 for north,
+            // east, south and west.
+            int numChoices = 0;
+            if (r > 0 && !walkable[(2 * r - 1) * size + 2 * c + 1])
+                choices[numChoices++] = 0;
+            if (c < rooms - 1 && !walkable[(2 * r + 1) * size + 2 * c + 3])
+                choices[numChoices++] = 1;
+            if (r < rooms - 1 && !walkable[(2 * r + 3) * size + 2 * c + 1])
+                choices[numChoices++] = 2;
+            if (c > 0 && !walkable[(2 * r + 1) * size + 2 * c - 1])
+                choices[numChoices++] = 3;
+
+            if (numChoices == 0)
+            {
+                top--;
+                continue;
+            }
+
+            final int choice = choices[random.nextInt(numChoices)];
+            final int nr = r + ((choice == 0) ? -1 : (choice == 2) ? 1 : 0);
+            final int nc = c + ((choice == 3) ? -1 : (choice == 1) ? 1 : 0);
+
+            walkable[(r + nr + 1) * size + c + nc + 1] = true;
+            walkable[(2 * nr + 1) * size + 2 * nc + 1] = true;
+            stack[top++] = nr * rooms + nc;
+        }
+
+        return walkable;
+    }
+
+
+    /****************************************************************
+     * Scatters rocks of up to three cells across on open ground, so
+     * that about a tenth of the map is blocked.
+     */
+    private static boolean[] generateOpen(final int size, final Random random)
+    {
+        final boolean[] walkable = new boolean[size * size];
+        Arrays.fill(walkable, true);
+
+        final int rocks = size * size / 40;
+        for (int i = 0; i < rocks; i++)
+        {
+            final int row = random.nextInt(size);
+            final int column = random.nextInt(size);
+            final int height = 1 + random.nextInt(3);
+            final int width = 1 + random.nextInt(3);
+
+            for (int r = row; r < row + height && r < size; r++)
+            {
+                for (int c = column; c < column + width && c < size; c++)
+                    walkable[r * size + c] = false;
+            }
+        }
+
+        return walkable;
+    }
+
+
+    /****************************************************************
+     * Fills the map at random and smooths it with a cellular
+     * automaton: a cell becomes rock if five or more of the nine
+     * cells around and including it are rock.
+     */
+    private static boolean[] generateCave(final int size, final Random random)
+    {
+        boolean[] walkable = new boolean[size * size];
+        boolean[] next = new boolean[size * size];
+
+        for (int i = 0; i < walkable.length; i++)
+            walkable[i] = random.nextInt(100) >= 45;
+
+        for (int pass = 0; pass < 5; pass++)
+        {
+            for (int row = 0; row < size; row++)
+            {
+                for (int column = 0; column < size; column++)
+                {
+                    int rock = 0;
+                    for (int r = row - 1; r <= row + 1; r++)
+                    {
+                        for (int c = column - 1; c <= column + 1; c++)
+                        {
+                            if (r < 0 || c < 0 || r >= size || c >= size || !walkable[r * size + c])
+                                rock++;
+                        }
+                    }
+
+                    next[row * size + column] = rock < 5;
+                }
+            }
+
+            final boolean[] swap = walkable;
+            walkable = next;
+            next = swap;
+        }
+
+        return walkable;
+    }
+
+
+    /****************************************************************
+     * Places rooms that don't overlap and joins each to the one
+     * placed before it with an L-shaped corridor.
+     */
+    private static boolean[] generateRooms(final int size, final Random random)
+    {
+        final boolean[] walkable = new boolean[size * size];
+        final ArrayList<int[]> rooms = new ArrayList<int[]>();
+        final int maxSide = Math.max(4, size / 8);
+
+        for (int tries = 0; tries < size * 4; tries++)
+        {
+            final int height = 3 + random.nextInt(maxSide - 2);
+            final int width = 3 + random.nextInt(maxSide - 2);
+            if (height + 2 >= size || width + 2 >= size)
+                continue;
+
+            final int row = 1 + random.nextInt(size - height - 1);
+            final int column = 1 + random.nextInt(size - width - 1);
+
+            // Keep a wall between rooms.
+            boolean clear = true;
+            for (int i = 0; i < rooms.size() && clear; i++)
+            {
+                final int[] other = rooms.get(i);
+                clear = row > other[0] + other[2] || row + height < other[0]
+                     || column > other[1] + other[3] || column + width < other[1];
+            }
+
+            if (!clear)
+                continue;
+
+            for (int r = row; r < row + height; r++)
+            {
+                for (int c = column; c < column + width; c++)
+                    walkable[r * size + c] = true;
+            }
+
+            if (rooms.size() > 0)
+            {
+                final int[] previous = rooms.get(rooms.size() - 1);
+                carveCorridor(walkable, size, row + height / 2, column + width / 2,
+                                previous[0] + previous[2] / 2, previous[1] + previous[3] / 2,
+                                random.nextBoolean());
+            }
+
+            rooms.add(new int[] { row, column, height, width });
+        }
+
+        return walkable;
+    }
+
+
+    private static void carveCorridor(final boolean[] walkable, final int size,
+            final int fromRow, final int fromColumn, final int toRow, final int toColumn,
+            final boolean rowsFirst)
+    {
+        final int turnRow = rowsFirst ? toRow : fromRow;
+        final int turnColumn = rowsFirst ? fromColumn : toColumn;
+
+        for (int r = Math.min(fromRow, turnRow); r <= Math.max(fromRow, turnRow); r++)
+            walkable[r * size + fromColumn] = true;
+        for (int c = Math.min(fromColumn, turnColumn); c <= Math.max(fromColumn, turnColumn); c++)
+            walkable[fromRow * size + c] = true;
+        for (int r = Math.min(turnRow, toRow); r <= Math.max(turnRow, toRow); r++)
+            walkable[r * size + toColumn] = true;
+        for (int c = Math.min(turnColumn, toColumn); c <= Math.max(turnColumn, toColumn); c++)
+            walkable[toRow * size + c] = true;
+    }
+
+
+    private static void close(final BufferedReader in)
+    {
+        if (in == null)
+            return;
+
+        try
+        {
+            in.close();
+        }
+        catch (final IOException e)
+        {
+            // Nothing more can be done.
+        }
+    }
+}
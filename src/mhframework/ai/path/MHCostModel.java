@@ -0,0 +1,38 @@
+package mhframework.ai.path;
+
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Gives the cost of each step an A* search considers, so that units
+ * can prefer roads, avoid swamps, or pay more for diagonal steps.
+ * Cells that can't be walked on are never considered, whatever their
+ * cost.  <tt>MHCostModels</tt> has the usual models.
+ */
+public interface MHCostModel
+{
+    /****************************************************************
+     * Returns the cost of stepping from one cell into a neighbor.
+     *
+     * @param map         The map being searched.
+     * @param fromRow     The row of the cell stepped from.
+     * @param fromColumn  The column of the cell stepped from.
+     * @param toRow       The row of the cell stepped into.
+     * @param toColumn    The column of the cell stepped into.
+     * @param direction   The direction of the step.
+     *
+     * @return The cost of the step, or a negative number if the
+     *         step can't be taken.
+     */
+    public double getStepCost(MHTileMap map, int fromRow, int fromColumn,
+            int toRow, int toColumn, MHTileMapDirection direction);
+
+
+    /****************************************************************
+     * Returns the least any step can cost.  Heuristics count steps,
+     * and are multiplied by this to give costs.  It must be greater
+     * than zero.
+     */
+    public double getMinimumCost();
+}
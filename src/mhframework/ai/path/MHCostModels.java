@@ -0,0 +1,74 @@
+package mhframework.ai.path;
+
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * The usual cost models for A* searches.  For costs that depend on
+ * what is in each cell, such as roads and swamps, see
+ * <tt>MHTerrainCostModel</tt>.
+ */
+public final class MHCostModels
+{
+    /** Every step costs 1.  This is what searches have always
+     * used. */
+    public static final MHCostModel UNIFORM = new MHCostModel()
+    {
+        public double getStepCost(final MHTileMap map, final int fromRow, final int fromColumn,
+                final int toRow, final int toColumn, final MHTileMapDirection direction)
+        {
+            return 1.0;
+        }
+
+
+        public double getMinimumCost()
+        {
+            return 1.0;
+        }
+    };
+
+    /** Straight steps cost 1 and diagonal steps the square root of
+     * two, so paths look natural on a square grid.  Use with
+     * <tt>MHHeuristics.OCTILE</tt>. */
+    public static final MHCostModel OCTILE = new MHCostModel()
+    {
+        public double getStepCost(final MHTileMap map, final int fromRow, final int fromColumn,
+                final int toRow, final int toColumn, final MHTileMapDirection direction)
+        {
+            return (fromRow != toRow && fromColumn != toColumn) ? SQRT2 : 1.0;
+        }
+
+
+        public double getMinimumCost()
+        {
+            return 1.0;
+        }
+    };
+
+    /** Each step costs the movement cost of the cell stepped into,
+     * as kept by the map. */
+    public static final MHCostModel MOVEMENT_COST = new MHCostModel()
+    {
+        public double getStepCost(final MHTileMap map, final int fromRow, final int fromColumn,
+                final int toRow, final int toColumn, final MHTileMapDirection direction)
+        {
+            final int cost = map.getMapData().getMovementCost(toRow, toColumn);
+            return (cost == MHMap.IMPASSABLE) ? -1.0 : cost;
+        }
+
+
+        public double getMinimumCost()
+        {
+            return 1.0;
+        }
+    };
+
+    private static final double SQRT2 = Math.sqrt(2.0);
+
+
+    private MHCostModels()
+    {
+    }
+}
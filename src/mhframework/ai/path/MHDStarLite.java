@@ -0,0 +1,660 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHMapChangeEvent;
+import mhframework.tilemap.MHMapChangeListener;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * A path for one unit that is repaired, rather than searched for
+ * again, when the map changes or the unit moves (D* Lite).
+ *
+ * <p>The search runs backward from the goal and keeps its costs
+ * between moves.  When a door closes or opens, only the cells whose
+ * cost to the goal actually changed are searched again, and usually
+ * only those near the unit's way.  As the unit walks along the path,
+ * little or nothing has to be searched.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHDStarLite planner = new MHDStarLite(map);
+ *     planner.setGoal(unitLocation, target);
+ *
+ *     // Each time the unit is ready to step:
+ *     if (planner.getNextStep(next))
+ *     {
+ *         moveUnitTo(next);
+ *         planner.moveTo(next);
+ *     }
+ * </pre>
+ *
+ * <p>The planner listens for changes to the walkability and movement
+ * costs of the map.  Costs that change for other reasons, such as a
+ * terrain cost model being repriced or a unit standing in a
+ * corridor, must be reported with <tt>update()</tt>.  Changes are
+ * saved up and repaired the next time the path is asked for.
+ *
+ * <p>Each planner keeps arrays the size of the map, about 36 bytes
+ * per cell, so give a planner to each unit that is moving rather
+ * than to every unit, and reuse them with <tt>setGoal()</tt>.  The
+ * heuristic must never overestimate, or repairs may leave a path
+ * that isn't the cheapest.
+ */
+public class MHDStarLite implements MHMapChangeListener
+{
+    /** The opposite of each direction.  The directions are laid out
+     * as a 3 by 3 square, so each one's opposite is across the
+     * middle. */
+    private static final MHTileMapDirection[] OPPOSITES = new MHTileMapDirection[9];
+    static
+    {
+        final MHTileMapDirection[] all = MHTileMapDirection.values();
+        for (int i = 0; i < all.length; i++)
+            OPPOSITES[i] = all[all.length - 1 - i];
+    }
+
+    /** The map being searched. */
+    private final MHTileMap map;
+
+    /** The directions in which the unit can step. */
+    private final MHTileMapDirection[] directions;
+
+    /** Estimates the cost between cells. */
+    private final MHHeuristic heuristic;
+
+    /** Gives the cost of each step. */
+    private final MHCostModel costModel;
+
+    /** The heuristic's estimates are multiplied by this. */
+    private final double scale;
+
+    /** Cost of the cheapest known path from each cell to the goal. */
+    private final double[] costs;
+
+    /** Cost to the goal from each cell, looking one step ahead. */
+    private final double[] lookAhead;
+
+    /** Cells stamped with the current search number have valid
+     * costs. */
+    private final int[] stamps;
+    private int stamp = 0;
+
+    /** Cells whose two costs disagree. */
+    private final MHIndexedHeap open;
+
+    /** Cell indices of the goal and of the unit, or -1 if there is no
+     * goal. */
+    private int goal = -1, start;
+
+    /** Where the unit was when the costs were last repaired. */
+    private int lastStart;
+
+    /** Added to the keys of cells put in the open list after the
+     * unit has moved, instead of changing every key already there. */
+    private double keyModifier;
+
+    /** Rectangles of cells changed since the last repair, four
+     * numbers each:  first row, first column, last row and last
+     * column.  Kept apart rather than merged, so that doors opening
+     * at opposite ends of the map don't make the whole map be looked
+     * at again. */
+    private int[] changes = new int[16];
+    private int numChanges;
+
+    /** Number of cells expanded since the goal was set. */
+    private int expanded;
+
+    /** Scratch addresses for stepping to neighbors. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+    private final MHMapCellAddress second = new MHMapCellAddress();
+
+
+    /****************************************************************
+     * Constructor.  Plans for units on a square grid that can step
+     * in any direction the map allows, every step costing 1.
+     *
+     * @param map  The map to be searched.
+     */
+    public MHDStarLite(final MHTileMap map)
+    {
+        this(map, map.getDirections(), MHHeuristics.CHEBYSHEV, MHCostModels.UNIFORM);
+    }
+
+
+    /****************************************************************
+     * Constructor.  Starts listening for changes to the map.
+     *
+     * @param map         The map to be searched.
+     * @param directions  The directions in which the unit can step.
+     * @param heuristic   Estimates the cost between cells.  It must
+     *                    never overestimate.
+     * @param costModel   The cost of each step.
+     */
+    public MHDStarLite(final MHTileMap map, final MHTileMapDirection[] directions,
+            final MHHeuristic heuristic, final MHCostModel costModel)
+    {
+        this.map = map;
+        this.directions = directions;
+        this.heuristic = heuristic;
+        this.costModel = costModel;
+        scale = costModel.getMinimumCost();
+
+        final MHMap data = map.getMapData();
+        final int size = data.getWidth() * data.getHeight();
+        costs = new double[size];
+        lookAhead = new double[size];
+        stamps = new int[size];
+        open = new MHIndexedHeap(size);
+
+        data.addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * planner is no longer needed.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Plans a path to a new goal from scratch.
+     *
+     * @param unit  Where the unit is.
+     * @param goal  The goal.
+     *
+     * @return True if the goal can be reached.
+     */
+    public synchronized boolean setGoal(final MHMapCellAddress unit, final MHMapCellAddress goal)
+    {
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(unit.row, unit.column) || !data.isValidCell(goal.row, goal.column))
+        {
+            this.goal = -1;
+            return false;
+        }
+
+        stamp++;
+        if (stamp == 0)
+        {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+
+        open.clear();
+        this.goal = data.getCellIndex(goal.row, goal.column);
+        start = data.getCellIndex(unit.row, unit.column);
+        lastStart = start;
+        keyModifier = 0.0;
+        numChanges = 0;
+        expanded = 0;
+
+        setLookAhead(this.goal, 0.0);
+        open.add(this.goal, getKey(this.goal));
+
+        repair();
+        return getCost(start) < Double.POSITIVE_INFINITY;
+    }
+
+
+    /****************************************************************
+     * Tells the planner where the unit is now, usually the step it
+     * was given by <tt>getNextStep()</tt>.  Nothing is searched
+     * unless the map has changed.
+     */
+    public synchronized void moveTo(final MHMapCellAddress unit)
+    {
+        final MHMap data = map.getMapData();
+        if (data.isValidCell(unit.row, unit.column))
+            start = data.getCellIndex(unit.row, unit.column);
+    }
+
+
+    /****************************************************************
+     * Finds the cell the unit should step to next.
+     *
+     * @param out  Receives the next cell.
+     *
+     * @return False if the unit is at the goal or the goal can't be
+     *         reached.
+     */
+    public synchronized boolean getNextStep(final MHMapCellAddress out)
+    {
+        if (goal < 0 || start == goal)
+            return false;
+
+        repair();
+
+        final int next = getBestStep(start);
+        if (next < 0)
+            return false;
+
+        final int width = map.getMapData().getWidth();
+        out.row = next / width;
+        out.column = next % width;
+        return true;
+    }
+
+
+    /****************************************************************
+     * Returns the whole path from the unit to the goal, from the
+     * cell after the unit's to the goal, or null if the goal can't
+     * be reached.  The nodes are linked and costed the way
+     * <tt>MHNode.buildPath()</tt> links them.
+     */
+    public synchronized MHNodePath getPath()
+    {
+        if (goal < 0)
+            return null;
+
+        repair();
+
+        final int width = map.getMapData().getWidth();
+        final MHNodePath path = new MHNodePath();
+        MHNode parent = new MHNode(new MHMapCellAddress(start / width, start % width));
+        double cost = 0.0;
+
+        // Each step is cheaper to the goal than the last, so the walk
+        // can't be longer than the map, but don't trust that to
+        // floating point.
+        int cell = start;
+        for (int steps = 0; cell != goal; steps++)
+        {
+            final int next = getBestStep(cell);
+            if (next < 0 || steps >= costs.length)
+                return null;
+
+            cost += getStepCost(cell, next, null);
+            cell = next;
+
+            final MHNode node = new MHNode(new MHMapCellAddress(cell / width, cell % width));
+            node.setCostFromStart(cost);
+            node.setParent(parent);
+            path.add(node);
+            parent = node;
+        }
+
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns the cost of the cheapest path from the unit to the
+     * goal, or infinity if there is none.
+     */
+    public synchronized double getCost()
+    {
+        if (goal < 0)
+            return Double.POSITIVE_INFINITY;
+
+        repair();
+        return getCost(start);
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells expanded since the goal was set,
+     * by the first search and every repair since.
+     */
+    public synchronized int getExpandedCount()
+    {
+        return expanded;
+    }
+
+
+    /****************************************************************
+     * Reports that the cost of stepping onto the cells in a
+     * rectangle may have changed.  The path is repaired the next
+     * time it is asked for.
+     */
+    public synchronized void update(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        if (numChanges + 4 > changes.length)
+            changes = Arrays.copyOf(changes, changes.length * 2);
+
+        changes[numChanges++] = minRow;
+        changes[numChanges++] = minColumn;
+        changes[numChanges++] = maxRow;
+        changes[numChanges++] = maxColumn;
+    }
+
+
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (event.isWalkabilityChanged() || event.isMovementCostChanged())
+            update(event.getMinPassabilityRow(), event.getMinPassabilityColumn(),
+                            event.getMaxPassabilityRow(), event.getMaxPassabilityColumn());
+    }
+
+
+    /****************************************************************
+     * Brings the costs up to date with the changed cells and the
+     * unit's location.
+     */
+    private void repair()
+    {
+        // The keys already in the open list were made for where the
+        // unit was.  Rather than redo them all, keys made from now on
+        // are raised by as much as the unit's move could have lowered
+        // them.
+        if (start != lastStart)
+        {
+            keyModifier += estimate(lastStart, start);
+            lastStart = start;
+        }
+
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+
+        for (int c = 0; c < numChanges; c += 4)
+        {
+            final int row0 = Math.max(0, changes[c]), column0 = Math.max(0, changes[c + 1]);
+            final int row1 = Math.min(data.getHeight() - 1, changes[c + 2]);
+            final int column1 = Math.min(width - 1, changes[c + 3]);
+
+            // A changed cell changes the cost of stepping onto it,
+            // so its neighbors need their costs worked out again.
+            for (int row = row0; row <= row1; row++)
+            {
+                for (int column = column0; column <= column1; column++)
+                {
+                    final int cell = row * width + column;
+                    recompute(cell);
+
+                    for (int d = 0; d < directions.length; d++)
+                    {
+                        map.tileWalk(row, column, directions[d], neighbor);
+                        if (data.isValidCell(neighbor.row, neighbor.column))
+                        {
+                            final int next = neighbor.row * width + neighbor.column;
+                            if (next != cell)
+                                recompute(next);
+                        }
+                    }
+                }
+            }
+        }
+
+        numChanges = 0;
+
+        search();
+    }
+
+
+    /****************************************************************
+     * Expands cells until the unit's cost is settled.
+     */
+    private void search()
+    {
+        final int width = map.getMapData().getWidth();
+
+        while (!open.isEmpty() && (open.getKey(open.peek()) < getKey(start)
+                        || getLookAhead(start) != getCost(start)))
+        {
+            final int cell = open.peek();
+            final double oldKey = open.getKey(cell);
+            final double newKey = getKey(cell);
+
+            if (oldKey < newKey)
+            {
+                open.add(cell, newKey);
+                continue;
+            }
+
+            open.removeFirst();
+            expanded++;
+
+            final int row = cell / width, column = cell % width;
+            final double oldCost = getCost(cell);
+
+            if (oldCost > getLookAhead(cell))
+            {
+                // The cell got cheaper, which can only make its
+                // neighbors cheaper.
+                setCost(cell, getLookAhead(cell));
+
+                for (int d = 0; d < directions.length; d++)
+                {
+                    final int previous = stepFrom(row, column, directions[d], cell);
+                    if (previous < 0 || previous == goal)
+                        continue;
+
+                    final double step = getStepCost(previous, cell, OPPOSITES[directions[d].ordinal()]);
+                    if (step + costs[cell] < getLookAhead(previous))
+                    {
+                        setLookAhead(previous, step + costs[cell]);
+                        queue(previous);
+                    }
+                }
+            }
+            else
+            {
+                // The cell got dearer.  Neighbors that were counting
+                // on it, and the cell itself, look again.
+                setCost(cell, Double.POSITIVE_INFINITY);
+                recompute(cell);
+
+                for (int d = 0; d < directions.length; d++)
+                {
+                    final int previous = stepFrom(row, column, directions[d], cell);
+                    if (previous >= 0 && getLookAhead(previous)
+                                    == getStepCost(previous, cell, OPPOSITES[directions[d].ordinal()]) + oldCost)
+                        recompute(previous);
+                }
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Works out a cell's cost to the goal one step ahead from its
+     * neighbors' costs and puts it in the open list if that differs
+     * from its cost.
+     */
+    private void recompute(final int cell)
+    {
+        if (cell != goal)
+        {
+            final int next = getBestStep(cell);
+            setLookAhead(cell, (next < 0) ? Double.POSITIVE_INFINITY
+                                          : getStepCost(cell, next, null) + getCost(next));
+        }
+
+        queue(cell);
+    }
+
+
+    /****************************************************************
+     * Puts a cell in the open list if its costs differ, and takes it
+     * out if they don't.
+     */
+    private void queue(final int cell)
+    {
+        if (getCost(cell) != getLookAhead(cell))
+            open.add(cell, getKey(cell));
+        else
+            open.remove(cell);
+    }
+
+
+    /****************************************************************
+     * Returns the neighbor of a cell with the cheapest way to the
+     * goal, or -1 if none has one.
+     */
+    private int getBestStep(final int cell)
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+        final int row = cell / width, column = cell % width;
+
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+
+        for (int d = 0; d < directions.length; d++)
+        {
+            map.tileWalk(row, column, directions[d], neighbor);
+            if (!data.canWalkOn(neighbor.row, neighbor.column))
+                continue;
+
+            final int next = neighbor.row * width + neighbor.column;
+            if (next == cell)
+                continue;
+
+            final double step = costModel.getStepCost(map, row, column,
+                            neighbor.row, neighbor.column, directions[d]);
+            if (step < 0.0)
+                continue;
+
+            final double cost = step + getCost(next);
+            if (cost < bestCost)
+            {
+                best = next;
+                bestCost = cost;
+            }
+        }
+
+        return best;
+    }
+
+
+    /****************************************************************
+     * Returns the cell one step from a cell in a direction, or -1
+     * if that is off the map or the cell itself.
+     */
+    private int stepFrom(final int row, final int column, final MHTileMapDirection direction,
+            final int cell)
+    {
+        map.tileWalk(row, column, direction, neighbor);
+        if (!map.getMapData().isValidCell(neighbor.row, neighbor.column))
+            return -1;
+
+        final int previous = map.getMapData().getCellIndex(neighbor.row, neighbor.column);
+        return (previous == cell) ? -1 : previous;
+    }
+
+
+    /****************************************************************
+     * Returns the cost of stepping from one cell onto a neighbor, or
+     * infinity if the unit can't.
+     *
+     * @param hint  The direction most likely to lead from one cell
+     *              to the other.  The others are tried if it
+     *              doesn't.
+     */
+    private double getStepCost(final int from, final int to, final MHTileMapDirection hint)
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+        final int fromRow = from / width, fromColumn = from % width;
+        final int toRow = to / width, toColumn = to % width;
+
+        if (!data.canWalkOn(toRow, toColumn))
+            return Double.POSITIVE_INFINITY;
+
+        if (leadsTo(fromRow, fromColumn, hint, toRow, toColumn))
+            return getStepCost(fromRow, fromColumn, toRow, toColumn, hint);
+
+        for (int d = 0; d < directions.length; d++)
+        {
+            if (leadsTo(fromRow, fromColumn, directions[d], toRow, toColumn))
+                return getStepCost(fromRow, fromColumn, toRow, toColumn, directions[d]);
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+
+    private double getStepCost(final int fromRow, final int fromColumn,
+            final int toRow, final int toColumn, final MHTileMapDirection direction)
+    {
+        final double step = costModel.getStepCost(map, fromRow, fromColumn, toRow, toColumn, direction);
+        return (step < 0.0) ? Double.POSITIVE_INFINITY : step;
+    }
+
+
+    /****************************************************************
+     * Returns true if the unit can step in a direction and it leads
+     * from one cell to the other.
+     */
+    private boolean leadsTo(final int fromRow, final int fromColumn,
+            final MHTileMapDirection direction, final int toRow, final int toColumn)
+    {
+        boolean allowed = false;
+        for (int d = 0; d < directions.length && !allowed; d++)
+            allowed = (directions[d] == direction);
+
+        if (!allowed)
+            return false;
+
+        map.tileWalk(fromRow, fromColumn, direction, second);
+        return second.row == toRow && second.column == toColumn;
+    }
+
+
+    /****************************************************************
+     * Returns a cell's key in the open list:  the estimated cost of
+     * a path from the unit through the cell, with ties going to the
+     * cell nearest the goal.
+     */
+    private double getKey(final int cell)
+    {
+        final double cost = Math.min(getCost(cell), getLookAhead(cell));
+        return cost + estimate(start, cell) + keyModifier + cost * 1.0e-9;
+    }
+
+
+    private double estimate(final int from, final int to)
+    {
+        final int width = map.getMapData().getWidth();
+        return heuristic.estimate(map, from / width, from % width, to / width, to % width) * scale;
+    }
+
+
+    private double getCost(final int cell)
+    {
+        return (stamps[cell] == stamp) ? costs[cell] : Double.POSITIVE_INFINITY;
+    }
+
+
+    private double getLookAhead(final int cell)
+    {
+        return (stamps[cell] == stamp) ? lookAhead[cell] : Double.POSITIVE_INFINITY;
+    }
+
+
+    private void setCost(final int cell, final double cost)
+    {
+        touch(cell);
+        costs[cell] = cost;
+    }
+
+
+    private void setLookAhead(final int cell, final double cost)
+    {
+        touch(cell);
+        lookAhead[cell] = cost;
+    }
+
+
+    /****************************************************************
+     * Gives a cell valid costs if it hasn't been reached by the
+     * current search.
+     */
+    private void touch(final int cell)
+    {
+        if (stamps[cell] != stamp)
+        {
+            stamps[cell] = stamp;
+            costs[cell] = Double.POSITIVE_INFINITY;
+            lookAhead[cell] = Double.POSITIVE_INFINITY;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * The cheapest way to one goal from every cell of a map.
+ *
+ * <p>The field is built by a single search outward from the goal
+ * over the map's movement costs.  It records, for every cell, the
+ * total cost of reaching the goal from there and the next cell on
+ * the way.  Any number of units heading for the goal then just look
+ * up their next step, instead of each searching for a path.
+ *
+ * <p>When cells change, <tt>update()</tt> repairs the field around
+ * them:  cells whose way to the goal went through a changed cell are
+ * searched again from their neighbors, and cells that a newly opened
+ * cell gives a cheaper way are improved.  The rest of the field is
+ * left alone.
+ *
+ * <p>Units step onto a cell by paying its movement cost.  Cells with
+ * a cost of <tt>MHMap.IMPASSABLE</tt> can't be entered, so no unit
+ * can be standing in one, and they are left <tt>UNREACHABLE</tt>
+ * with no next step.
+ */
+public class MHFlowField
+{
+    /** Cost recorded for cells from which the goal can't be
+     * reached. */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /** The map the field covers. */
+    private final MHTileMap map;
+
+    /** The directions in which units can step. */
+    private final MHTileMapDirection[] directions;
+
+    /** Cell index of the goal. */
+    private final int goal;
+
+    /** Cost of reaching the goal from each cell. */
+    private final int[] costs;
+
+    /** The next cell on the way to the goal from each cell, or -1. */
+    private final int[] next;
+
+    /** Cells waiting to pass their cost on to their neighbors. */
+    private final MHIndexedHeap open;
+
+    /** Cells cleared by the current update.  Used as a queue. */
+    private int[] cleared = new int[64];
+
+    /** Cells stamped with the current update number have been
+     * cleared. */
+    private final int[] marks;
+    private int mark = 0;
+
+    /** Scratch address for stepping to neighbors. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+
+
+    /****************************************************************
+     * Constructor.  Builds the field for units that can step in any
+     * direction the map allows.
+     *
+     * @param map   The map the field covers.
+     * @param goal  The goal.
+     */
+    public MHFlowField(final MHTileMap map, final MHMapCellAddress goal)
+    {
+        this(map, goal, map.getDirections());
+    }
+
+
+    /****************************************************************
+     * Constructor.  Builds the field.
+     *
+     * @param map         The map the field covers.
+     * @param goal        The goal.
+     * @param directions  The directions in which units can step.
+     */
+    public MHFlowField(final MHTileMap map, final MHMapCellAddress goal,
+            final MHTileMapDirection[] directions)
+    {
+        this.map = map;
+        this.directions = directions;
+
+        final MHMap data = map.getMapData();
+        final int size = data.getWidth() * data.getHeight();
+
+        this.goal = data.getCellIndex(goal.row, goal.column);
+        costs = new int[size];
+        next = new int[size];
+        marks = new int[size];
+        open = new MHIndexedHeap(size);
+
+        Arrays.fill(costs, UNREACHABLE);
+        Arrays.fill(next, -1);
+
+        if (data.isValidCell(goal.row, goal.column))
+        {
+            costs[this.goal] = 0;
+            open.add(this.goal, 0);
+            spread();
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the goal's row.
+     */
+    public int getGoalRow()
+    {
+        return goal / map.getMapData().getWidth();
+    }
+
+
+    /****************************************************************
+     * Returns the goal's column.
+     */
+    public int getGoalColumn()
+    {
+        return goal % map.getMapData().getWidth();
+    }
+
+
+    /****************************************************************
+     * Returns the total movement cost of reaching the goal from a
+     * cell, or <tt>UNREACHABLE</tt>.
+     */
+    public int getCost(final int row, final int column)
+    {
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(row, column))
+            return UNREACHABLE;
+
+        return costs[data.getCellIndex(row, column)];
+    }
+
+
+    /****************************************************************
+     * Returns true if the goal can be reached from a cell.
+     */
+    public boolean canReachGoal(final int row, final int column)
+    {
+        return getCost(row, column) != UNREACHABLE;
+    }
+
+
+    /****************************************************************
+     * Looks up a unit's next step toward the goal.
+     *
+     * @param row     The row the unit is in.
+     * @param column  The column the unit is in.
+     * @param out     The address in which to store the next cell.
+     *
+     * @return False if the unit is at the goal or can't reach it,
+     *         in which case <i>out</i> is unchanged.
+     */
+    public boolean getNextStep(final int row, final int column, final MHMapCellAddress out)
+    {
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(row, column))
+            return false;
+
+        final int cell = next[data.getCellIndex(row, column)];
+        if (cell < 0)
+            return false;
+
+        out.row = cell / data.getWidth();
+        out.column = cell % data.getWidth();
+        return true;
+    }
+
+
+    /****************************************************************
+     * Repairs the field after the movement costs of the cells in a
+     * rectangle have changed.
+     */
+    public void update(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+
+        if (++mark == Integer.MAX_VALUE)
+        {
+            Arrays.fill(marks, 0);
+            mark = 1;
+        }
+
+        // Clear the changed cells, then every cell whose way to the
+        // goal led through a cleared cell.
+        int count = 0;
+        for (int row = Math.max(0, minRow); row <= Math.min(data.getHeight() - 1, maxRow); row++)
+        {
+            for (int column = Math.max(0, minColumn); column <= Math.min(width - 1, maxColumn); column++)
+                count = clear(data.getCellIndex(row, column), count);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            final int cell = cleared[i];
+            final int row = cell / width;
+            final int column = cell % width;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, column, directions[d], neighbor);
+
+                if (!data.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                final int from = data.getCellIndex(neighbor.row, neighbor.column);
+                if (next[from] == cell && marks[from] != mark)
+                    count = clear(from, count);
+            }
+        }
+
+        // Give each cleared cell the best cost its uncleared
+        // neighbors offer.  Cleared cells then pass their costs on,
+        // which also carries any cheaper ways opened by the change
+        // out into the rest of the field.
+        for (int i = 0; i < count; i++)
+        {
+            final int cell = cleared[i];
+
+            if (cell == goal)
+            {
+                costs[cell] = 0;
+                open.add(cell, 0);
+                continue;
+            }
+
+            // A cell that has been closed stays unreachable.
+            if (data.getMovementCost(cell) == MHMap.IMPASSABLE)
+                continue;
+
+            final int row = cell / width;
+            final int column = cell % width;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, column, directions[d], neighbor);
+
+                if (!data.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                final int to = data.getCellIndex(neighbor.row, neighbor.column);
+                if (to == cell || marks[to] == mark || costs[to] == UNREACHABLE)
+                    continue;
+
+                final int step = data.getMovementCost(to);
+                if (step != MHMap.IMPASSABLE && costs[to] + step < costs[cell])
+                {
+                    costs[cell] = costs[to] + step;
+                    next[cell] = to;
+                }
+            }
+
+            if (costs[cell] != UNREACHABLE)
+                open.add(cell, costs[cell]);
+        }
+
+        spread();
+    }
+
+
+    /****************************************************************
+     * Clears a cell's cost and adds it to the cleared cells.
+     *
+     * @return The new number of cleared cells.
+     */
+    private int clear(final int cell, final int count)
+    {
+        if (count == cleared.length)
+            cleared = Arrays.copyOf(cleared, count * 2);
+
+        cleared[count] = cell;
+        marks[cell] = mark;
+        costs[cell] = UNREACHABLE;
+        next[cell] = -1;
+
+        return count + 1;
+    }
+
+
+    /****************************************************************
+     * Passes costs outward from the cells in the open list until no
+     * cell can be improved.  A unit on a neighbor reaches the goal
+     * through a cell by paying the cell's movement cost plus the
+     * cell's own cost.
+     */
+    private void spread()
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+
+        while (!open.isEmpty())
+        {
+            final int cell = open.removeFirst();
+            final int step = data.getMovementCost(cell);
+
+            // Units can't step onto an impassable cell, so it leads
+            // nowhere.  The goal itself may be impassable.
+            if (step == MHMap.IMPASSABLE)
+                continue;
+
+            final int newCost = costs[cell] + step;
+            final int row = cell / width;
+            final int column = cell % width;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, column, directions[d], neighbor);
+
+                if (!data.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                final int from = data.getCellIndex(neighbor.row, neighbor.column);
+                if (from == cell || costs[from] <= newCost
+                                || data.getMovementCost(from) == MHMap.IMPASSABLE)
+                    continue;
+
+                costs[from] = newCost;
+                next[from] = cell;
+                open.add(from, newCost);
+            }
+        }
+    }
+}
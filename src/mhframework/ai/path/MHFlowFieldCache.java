@@ -0,0 +1,169 @@
+package mhframework.ai.path;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHMapChangeEvent;
+import mhframework.tilemap.MHMapChangeListener;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Keeps a flow field for each goal that units are being sent to, so
+ * that a crowd ordered to the same place shares one field instead of
+ * each unit searching for its own path.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHFlowField field = flowFields.getField(target);
+ *     for (MHActor unit : selectedUnits)
+ *         if (field.getNextStep(unitRow, unitColumn, step))
+ *             ... move the unit toward step ...
+ * </pre>
+ *
+ * <p>The field for the least recently used goal is forgotten when
+ * the cache is full.  When the walkability of cells changes, every
+ * cached field is repaired around them, on the thread that changed
+ * the map.
+ *
+ * <p>The cache's methods are synchronized.  Reading a field while
+ * the map is being changed on another thread may give a step from
+ * before or after the change.
+ */
+public class MHFlowFieldCache implements MHMapChangeListener
+{
+    /** The map the fields cover. */
+    private final MHTileMap map;
+
+    /** The directions in which units can step. */
+    private final MHTileMapDirection[] directions;
+
+    /** The greatest number of fields kept. */
+    private final int capacity;
+
+    /** Fields by goal cell index, from least to most recently used. */
+    private final LinkedHashMap<Integer, MHFlowField> fields =
+        new LinkedHashMap<Integer, MHFlowField>(16, 0.75f, true);
+
+
+    /****************************************************************
+     * Constructor.  Fields are built for units that can step in any
+     * direction the map allows.
+     *
+     * @param map       The map the fields cover.
+     * @param capacity  The greatest number of fields to keep.  Each
+     *                  takes about 30 bytes per cell.
+     */
+    public MHFlowFieldCache(final MHTileMap map, final int capacity)
+    {
+        this(map, map.getDirections(), capacity);
+    }
+
+
+    /****************************************************************
+     * Constructor.  The cache starts listening for changes to the
+     * map.
+     *
+     * @param map         The map the fields cover.
+     * @param directions  The directions in which units can step.
+     * @param capacity    The greatest number of fields to keep.
+     */
+    public MHFlowFieldCache(final MHTileMap map, final MHTileMapDirection[] directions,
+            final int capacity)
+    {
+        this.map = map;
+        this.directions = directions;
+        this.capacity = Math.max(1, capacity);
+
+        map.getMapData().addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * cache is no longer needed.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Returns the flow field for a goal, building it if it isn't
+     * cached.
+     *
+     * @return The field, or null if the goal is off the map.
+     */
+    public synchronized MHFlowField getField(final MHMapCellAddress goal)
+    {
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(goal.row, goal.column))
+            return null;
+
+        final Integer key = data.getCellIndex(goal.row, goal.column);
+
+        MHFlowField field = fields.get(key);
+        if (field == null)
+        {
+            field = new MHFlowField(map, goal, directions);
+            fields.put(key, field);
+
+            if (fields.size() > capacity)
+            {
+                final Iterator<Integer> eldest = fields.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+
+        return field;
+    }
+
+
+    /****************************************************************
+     * Forgets the field for a goal, for example when no unit is
+     * heading there any more.
+     */
+    public synchronized void remove(final MHMapCellAddress goal)
+    {
+        final MHMap data = map.getMapData();
+        if (data.isValidCell(goal.row, goal.column))
+            fields.remove(data.getCellIndex(goal.row, goal.column));
+    }
+
+
+    /****************************************************************
+     * Forgets every field.
+     */
+    public synchronized void clear()
+    {
+        fields.clear();
+    }
+
+
+    /****************************************************************
+     * Returns the number of fields cached.
+     */
+    public synchronized int size()
+    {
+        return fields.size();
+    }
+
+
+    /****************************************************************
+     * Repairs every cached field around cells whose walkability or
+     * movement cost changed.
+     */
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (!event.isWalkabilityChanged() && !event.isMovementCostChanged())
+            return;
+
+        for (final MHFlowField field : fields.values())
+            field.update(event.getMinPassabilityRow(), event.getMinPassabilityColumn(),
+                            event.getMaxPassabilityRow(), event.getMaxPassabilityColumn());
+    }
+}
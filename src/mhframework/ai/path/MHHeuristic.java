@@ -0,0 +1,31 @@
+package mhframework.ai.path;
+
+import mhframework.tilemap.MHTileMap;
+
+
+/********************************************************************
+ * Estimates how far a cell is from the goal, to guide an A* search.
+ * The estimate is in steps of the cheapest kind the search's cost
+ * model allows; the search multiplies it by the model's
+ * <tt>getMinimumCost()</tt>.
+ *
+ * <p>An estimate that is never more than the true distance gives
+ * the shortest path.  The closer it comes to the true distance, the
+ * fewer cells the search expands.  <tt>MHHeuristics</tt> has the
+ * usual ones.
+ */
+public interface MHHeuristic
+{
+    /****************************************************************
+     * Estimates the distance from a cell to the goal.
+     *
+     * @param map         The map being searched.
+     * @param row         The row of the cell.
+     * @param column      The column of the cell.
+     * @param goalRow     The row of the goal.
+     * @param goalColumn  The column of the goal.
+     *
+     * @return The estimated number of cheapest steps.
+     */
+    public double estimate(MHTileMap map, int row, int column, int goalRow, int goalColumn);
+}
@@ -0,0 +1,110 @@
+package mhframework.ai.path;
+
+import mhframework.tilemap.MHHexMap;
+import mhframework.tilemap.MHTileMap;
+
+
+/********************************************************************
+ * The usual heuristics for A* searches.  Pick the one that matches
+ * how units move:
+ *
+ * <ul>
+ * <li><tt>MANHATTAN</tt> for four directions on a square grid.</li>
+ * <li><tt>CHEBYSHEV</tt> for eight directions when a diagonal step
+ *     costs the same as a straight one.</li>
+ * <li><tt>OCTILE</tt> for eight directions when a diagonal step
+ *     costs the square root of two, as in
+ *     <tt>MHCostModels.OCTILE</tt>.</li>
+ * <li><tt>EUCLIDEAN</tt> for movement on a square grid in any
+ *     directions, as long as a diagonal step costs at least the
+ *     square root of two.  It is looser than the others.</li>
+ * <li><tt>HEX</tt> for <tt>MHHexMap</tt>s.</li>
+ * </ul>
+ *
+ * <p><tt>MAP</tt> uses the map's own <tt>getDistance()</tt>, which is
+ * what searches have always used.  For a square grid that is the
+ * Manhattan distance, which is too high for eight directions, so the
+ * paths found are quick to find but not always the shortest.
+ *
+ * <p>For maps with walls that force long detours,
+ * <tt>MHLandmarkHeuristic</tt> estimates far more closely than any of
+ * these.
+ */
+public final class MHHeuristics
+{
+    /** The map's <tt>getDistance()</tt>. */
+    public static final MHHeuristic MAP = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            return map.getDistance(row, column, goalRow, goalColumn);
+        }
+    };
+
+    /** Rows plus columns. */
+    public static final MHHeuristic MANHATTAN = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            return Math.abs(goalRow - row) + Math.abs(goalColumn - column);
+        }
+    };
+
+    /** The greater of rows and columns. */
+    public static final MHHeuristic CHEBYSHEV = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            return Math.max(Math.abs(goalRow - row), Math.abs(goalColumn - column));
+        }
+    };
+
+    /** Diagonal steps as far as they go, then straight ones. */
+    public static final MHHeuristic OCTILE = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            final int dr = Math.abs(goalRow - row);
+            final int dc = Math.abs(goalColumn - column);
+
+            return Math.max(dr, dc) + (SQRT2 - 1.0) * Math.min(dr, dc);
+        }
+    };
+
+    /** Straight-line distance. */
+    public static final MHHeuristic EUCLIDEAN = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            final int dr = goalRow - row;
+            final int dc = goalColumn - column;
+
+            return Math.sqrt(dr * dr + dc * dc);
+        }
+    };
+
+    /** Steps between hexagons laid out as in <tt>MHHexMap</tt>. */
+    public static final MHHeuristic HEX = new MHHeuristic()
+    {
+        public double estimate(final MHTileMap map, final int row, final int column,
+                final int goalRow, final int goalColumn)
+        {
+            final int dq = MHHexMap.getAxialQ(row, column) - MHHexMap.getAxialQ(goalRow, goalColumn);
+            final int dr = row - goalRow;
+
+            return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+        }
+    };
+
+    private static final double SQRT2 = Math.sqrt(2.0);
+
+
+    private MHHeuristics()
+    {
+    }
+}
@@ -0,0 +1,1160 @@
+package mhframework.ai.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import mhframework.tilemap.MHConnectivityMap;
+import mhframework.tilemap.MHHexMap;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHMapChangeEvent;
+import mhframework.tilemap.MHMapChangeListener;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Hierarchical path finding (HPA*) for large maps.
+ *
+ * <p>The map is divided into square clusters of cells.  Wherever
+ * units can step from one cluster into the next, the crossing is
+ * marked by an entrance:  a pair of cells, one on each side, chosen
+ * from the middle of each run of open border.  The entrance cells
+ * are the nodes of an abstract graph.  Each node is joined to the
+ * node across its entrance by a single step, and to the other nodes
+ * of its cluster by the length of the shortest path between them
+ * within the cluster.
+ *
+ * <p>A search first joins the start and goal to the nodes of their
+ * clusters, then searches the small abstract graph, and finally
+ * fills in the cells between the nodes it passed through with short
+ * searches inside single clusters.  Long paths are found far faster
+ * than by searching every cell.
+ *
+ * <p>The price is paths that aren't always the shortest, since they
+ * must cross from cluster to cluster at the entrances.  The filled-in
+ * path is smoothed by searching each cluster-sized stretch of it
+ * again and straightening the bends the entrances put in.  Measured
+ * with <tt>MHPathBenchmark</tt> on 64 x 64 to 1024 x 1024 maps, the
+ * smoothed paths through mazes are the shortest.  In open, cave and
+ * room maps they average about 1% longer than the shortest and are
+ * at worst 6% to 10% longer, except for short paths on small maps,
+ * which may be up to a third longer:  a handful of steps.  Without
+ * smoothing (see <tt>setSmoothing()</tt>) paths average 2% to 8%
+ * longer, and short ones may be twice as long.
+ *
+ * <p>Units that don't need their whole path at once can ask for the
+ * waypoints only, with <tt>findWaypoints()</tt>, and fill in each leg
+ * with <tt>refine()</tt> as they go.  Legs found this way are not
+ * smoothed.
+ *
+ * <p>When the walkability of cells changes, only the clusters around
+ * them are rebuilt, just before the next search.
+ *
+ * <p>The path finder's methods are synchronized, so units on several
+ * threads may share one.
+ */
+public class MHHierarchicalPathFinder implements MHMapChangeListener
+{
+    /** The default width and height of a cluster in cells. */
+    public static final int DEFAULT_CLUSTER_SIZE = 16;
+
+    /** The map being searched. */
+    private final MHTileMap map;
+
+    /** The directions in which units can step. */
+    private final MHTileMapDirection[] directions;
+
+    /** Estimates the steps remaining to the goal in the abstract
+     * search, never too high. */
+    private final MHHeuristic heuristic;
+
+    /** Width and height of a cluster in cells. */
+    private final int clusterSize;
+
+    /** Number of clusters down and across the map. */
+    private final int clusterRows, clusterColumns;
+
+    /** Nodes of the abstract graph in each cluster. */
+    private final ArrayList<ArrayList<MHAbstractNode>> clusterNodes;
+
+    /** Nodes by cell index. */
+    private final HashMap<Integer, MHAbstractNode> nodesByCell =
+        new HashMap<Integer, MHAbstractNode>();
+
+    /** Nodes by ID.  Unused IDs hold null. */
+    private final ArrayList<MHAbstractNode> nodes = new ArrayList<MHAbstractNode>();
+
+    /** IDs that are free to be reused. */
+    private final ArrayList<Integer> freeIDs = new ArrayList<Integer>();
+
+    /** Set bits mark clusters to be rebuilt before the next search. */
+    private final BitSet dirty = new BitSet();
+
+    /** Abstract search state, indexed by node ID. */
+    private double[] costs = new double[0];
+    private int[] parents = new int[0];
+    private int[] stamps = new int[0];
+    private int stamp = 0;
+    private final MHIndexedHeap open = new MHIndexedHeap(0);
+
+    /** Search state within one cluster, indexed by the position of
+     * a cell in the cluster. */
+    private final double[] localCosts;
+    private final int[] localParents;
+    private final int[] localStamps;
+    private int localStamp = 0;
+    private final int[] localQueue;
+
+    /** Cells the local search has yet to reach. */
+    private final boolean[] localTargets;
+
+    /** Bounds of the cluster the local search is confined to. */
+    private int localRow, localColumn, localRows, localColumns;
+
+    /** Costs from the nodes of the goal's cluster to the goal, by
+     * node ID, or -1. */
+    private double[] goalCosts = new double[0];
+
+    /** The start of the leg last searched. */
+    private int legStart;
+
+    /** Cells of the path being built, starting with the cell it
+     * starts from. */
+    private int[] pathCells = new int[64];
+    private int pathLength;
+
+    /** True to shorten paths after filling them in. */
+    private boolean smoothing = true;
+
+    /** Waypoints of the last abstract path found. */
+    private int[] waypoints = new int[16];
+    private int numWaypoints;
+
+    /** Scratch objects. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+
+
+    /****************************************************************
+     * Constructor.  Builds the abstract graph for units that can
+     * step in any direction the map allows, using the default
+     * cluster size.
+     *
+     * @param map  The map to be searched.
+     */
+    public MHHierarchicalPathFinder(final MHTileMap map)
+    {
+        this(map, map.getDirections(), DEFAULT_CLUSTER_SIZE);
+    }
+
+
+    /****************************************************************
+     * Constructor.  Builds the abstract graph and starts listening
+     * for changes to the map.
+     *
+     * @param map          The map to be searched.
+     * @param directions   The directions in which units can step.
+     * @param clusterSize  The width and height of a cluster in
+     *                     cells.  At least 4.
+     */
+    public MHHierarchicalPathFinder(final MHTileMap map,
+            final MHTileMapDirection[] directions, final int clusterSize)
+    {
+        this.map = map;
+        this.directions = directions;
+        this.clusterSize = Math.max(4, clusterSize);
+        heuristic = chooseHeuristic(map, directions);
+
+        final MHMap data = map.getMapData();
+        clusterRows = (data.getHeight() + this.clusterSize - 1) / this.clusterSize;
+        clusterColumns = (data.getWidth() + this.clusterSize - 1) / this.clusterSize;
+
+        final int numClusters = clusterRows * clusterColumns;
+        clusterNodes = new ArrayList<ArrayList<MHAbstractNode>>(numClusters);
+        for (int i = 0; i < numClusters; i++)
+            clusterNodes.add(new ArrayList<MHAbstractNode>());
+
+        final int cells = this.clusterSize * this.clusterSize;
+        localCosts = new double[cells];
+        localParents = new int[cells];
+        localStamps = new int[cells];
+        localQueue = new int[cells];
+        localTargets = new boolean[cells];
+
+        dirty.set(0, numClusters);
+        rebuild();
+
+        data.addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * path finder is no longer needed.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Finds a path between two cells.
+     *
+     * @param start  The starting location.
+     * @param goal   The goal.
+     *
+     * @return A path from the cell after the start to the goal, as
+     *         returned by <tt>MHPathFinder.aStarSearch()</tt>, or
+     *         null if there is none.
+     */
+    public synchronized MHNodePath findPath(final MHMapCellAddress start,
+            final MHMapCellAddress goal)
+    {
+        if (findWaypoints(start, goal) < 0)
+            return null;
+
+        pathCells[0] = waypoints[0];
+        pathLength = 1;
+
+        for (int w = 1; w < numWaypoints; w++)
+        {
+            if (!appendLeg(waypoints[w - 1], waypoints[w]))
+                return null;
+        }
+
+        if (smoothing)
+            smoothPath();
+
+        return toNodePath(start);
+    }
+
+
+    /****************************************************************
+     * Finds the waypoints of a path between two cells without
+     * filling in the cells between them.  The first waypoint is the
+     * start and the last is the goal.  Each waypoint can be reached
+     * from the one before it with <tt>refine()</tt>.
+     *
+     * @param start  The starting location.
+     * @param goal   The goal.
+     *
+     * @return The number of waypoints, or -1 if there is no path.
+     *         The waypoints are in <tt>getWaypoints()</tt>.
+     */
+    public synchronized int findWaypoints(final MHMapCellAddress start,
+            final MHMapCellAddress goal)
+    {
+        numWaypoints = 0;
+
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(start.row, start.column) || !data.isValidCell(goal.row, goal.column))
+            return -1;
+
+        final MHConnectivityMap regions = data.getConnectivityMap();
+        if (regions != null && regions.isUnreachable(start.row, start.column, goal.row, goal.column, directions))
+            return -1;
+
+        if (!dirty.isEmpty())
+            rebuild();
+
+        final int startCell = data.getCellIndex(start.row, start.column);
+        final int goalCell = data.getCellIndex(goal.row, goal.column);
+        final int startCluster = getCluster(startCell);
+        final int goalCluster = getCluster(goalCell);
+
+        prepareSearch();
+        final int goalID = nodes.size();
+
+        // Join the start to the nodes of its cluster.
+        localSearch(startCell, (startCluster == goalCluster) ? goalCell : -1, true);
+        final ArrayList<MHAbstractNode> startNodes = clusterNodes.get(startCluster);
+        for (int i = 0; i < startNodes.size(); i++)
+        {
+            final MHAbstractNode node = startNodes.get(i);
+            final double cost = getLocalCost(node.cell);
+            if (cost >= 0)
+                relax(node.id, -1, cost, node.cell, goalCell);
+        }
+
+        // The goal may be reachable without leaving the cluster.
+        if (startCluster == goalCluster)
+        {
+            final double cost = getLocalCost(goalCell);
+            if (cost >= 0)
+                relax(goalID, -1, cost, goalCell, goalCell);
+        }
+
+        // Join the nodes of the goal's cluster to the goal.
+        localSearch(goalCell, -1, true);
+        final ArrayList<MHAbstractNode> goalNodes = clusterNodes.get(goalCluster);
+        for (int i = 0; i < goalNodes.size(); i++)
+            goalCosts[goalNodes.get(i).id] = getLocalCost(goalNodes.get(i).cell);
+
+        while (!open.isEmpty())
+        {
+            final int best = open.removeFirst();
+
+            if (best == goalID)
+            {
+                buildWaypoints(startCell, goalCell, goalID);
+                return numWaypoints;
+            }
+
+            final MHAbstractNode node = nodes.get(best);
+
+            for (int e = 0; e < node.numEdges; e++)
+            {
+                final MHAbstractNode next = node.edges[e];
+                relax(next.id, best, costs[best] + node.costs[e], next.cell, goalCell);
+            }
+
+            if (node.cluster == goalCluster && goalCosts[best] >= 0)
+                relax(goalID, best, costs[best] + goalCosts[best], goalCell, goalCell);
+        }
+
+        open.clear();
+        return -1;
+    }
+
+
+    /****************************************************************
+     * Turns the shortening of paths found by <tt>findPath()</tt> on
+     * or off.  It is on by default.  Turning it off makes searches
+     * faster, most of all in mazes, but paths longer.
+     */
+    public synchronized void setSmoothing(final boolean smoothing)
+    {
+        this.smoothing = smoothing;
+    }
+
+
+    public synchronized boolean isSmoothing()
+    {
+        return smoothing;
+    }
+
+
+    /****************************************************************
+     * Returns the cell indices of the waypoints found by the last
+     * call to <tt>findWaypoints()</tt>.  The array is reused.
+     */
+    public synchronized int[] getWaypoints()
+    {
+        return waypoints;
+    }
+
+
+    /****************************************************************
+     * Finds the cells from one waypoint to the next.
+     *
+     * @param from  A waypoint.
+     * @param to    The next waypoint.
+     *
+     * @return The cells after <i>from</i> up to and including
+     *         <i>to</i>, or null if the map has changed so that
+     *         there is no longer a way between them.
+     */
+    public synchronized MHNodePath refine(final MHMapCellAddress from, final MHMapCellAddress to)
+    {
+        final MHMap data = map.getMapData();
+        final int fromCell = data.getCellIndex(from.row, from.column);
+        final int toCell = data.getCellIndex(to.row, to.column);
+
+        pathCells[0] = fromCell;
+        pathLength = 1;
+
+        return appendLeg(fromCell, toCell) ? toNodePath(from) : null;
+    }
+
+
+    /****************************************************************
+     * Searches for the cells from one waypoint to the next and adds
+     * them to the end of <tt>pathCells</tt>.
+     *
+     * @return False if there is no way between the waypoints.
+     */
+    private boolean appendLeg(final int from, final int to)
+    {
+        final int length = searchLeg(from, to);
+        if (length < 0)
+            return false;
+
+        if (pathCells.length < pathLength + length)
+            pathCells = Arrays.copyOf(pathCells, (pathLength + length) * 2);
+
+        // The leg can only be followed back from its end.
+        int i = pathLength + length;
+        for (int cell = to; cell != from; cell = previousCell(cell))
+            pathCells[--i] = cell;
+
+        pathLength += length;
+        return true;
+    }
+
+
+    /****************************************************************
+     * Shortens the path in <tt>pathCells</tt> where it strays.
+     *
+     * <p>Paths through the abstract graph pass through the entrance
+     * cells even where a straighter way crosses the border
+     * elsewhere, so they bend out of line near the borders.  Each
+     * stretch of the path that fits within a cluster-sized window is
+     * searched again within the window, and replaced if the search
+     * finds a shorter way.  The windows overlap by half, so a bend
+     * near the edge of one window is near the middle of the next.
+     */
+    private void smoothPath()
+    {
+        final int width = map.getMapData().getWidth();
+        int i = 0;
+
+        while (i < pathLength - 2)
+        {
+            // Take in cells until the window would be too big.
+            final int row = pathCells[i] / width, column = pathCells[i] % width;
+            int top = row, bottom = row, left = column, right = column;
+            int j = i;
+
+            while (j + 1 < pathLength)
+            {
+                final int r = pathCells[j + 1] / width, c = pathCells[j + 1] % width;
+                if (Math.max(bottom, r) - Math.min(top, r) >= clusterSize
+                                || Math.max(right, c) - Math.min(left, c) >= clusterSize)
+                    break;
+
+                top = Math.min(top, r);
+                bottom = Math.max(bottom, r);
+                left = Math.min(left, c);
+                right = Math.max(right, c);
+                j++;
+            }
+
+            if (j - i >= 2)
+            {
+                localRow = top;
+                localColumn = left;
+                localRows = bottom - top + 1;
+                localColumns = right - left + 1;
+
+                final int from = pathCells[i], to = pathCells[j];
+                localTargets[toLocal(to)] = true;
+                flood(from, 1);
+
+                final int local = toLocal(to);
+                final int steps = (int) localCosts[local];
+
+                if (localStamps[local] == localStamp && steps < j - i)
+                {
+                    // Close the gap, then write the shorter way in.
+                    System.arraycopy(pathCells, j, pathCells, i + steps, pathLength - j);
+                    pathLength -= (j - i) - steps;
+                    j = i + steps;
+
+                    legStart = from;
+                    int k = j;
+                    for (int cell = to; cell != from; cell = previousCell(cell))
+                        pathCells[k--] = cell;
+                }
+            }
+
+            i += Math.max(1, (j - i) / 2);
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the cells in <tt>pathCells</tt> after the first as a
+     * path, linked the way <tt>MHNode.buildPath()</tt> links them.
+     */
+    private MHNodePath toNodePath(final MHMapCellAddress start)
+    {
+        final int width = map.getMapData().getWidth();
+        final MHNodePath path = new MHNodePath();
+        MHNode parent = new MHNode(start);
+
+        for (int i = 1; i < pathLength; i++)
+        {
+            final MHNode node = new MHNode(new MHMapCellAddress(pathCells[i] / width,
+                            pathCells[i] % width));
+            node.setParent(parent);
+            node.setCostFromStart(i);
+            path.add(node);
+            parent = node;
+        }
+
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns the number of nodes in the abstract graph.
+     */
+    public synchronized int getNumNodes()
+    {
+        return nodesByCell.size();
+    }
+
+
+    /****************************************************************
+     * Marks the clusters around cells whose walkability changed to
+     * be rebuilt before the next search.
+     */
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (!event.isWalkabilityChanged())
+            return;
+
+        // A step can cross up to two rows, so a change near a
+        // cluster's edge can affect the next cluster's entrances.
+        final int r0 = Math.max(0, (event.getMinPassabilityRow() - 2) / clusterSize);
+        final int c0 = Math.max(0, (event.getMinPassabilityColumn() - 2) / clusterSize);
+        final int r1 = Math.min(clusterRows - 1, (event.getMaxPassabilityRow() + 2) / clusterSize);
+        final int c1 = Math.min(clusterColumns - 1, (event.getMaxPassabilityColumn() + 2) / clusterSize);
+
+        for (int r = r0; r <= r1; r++)
+            dirty.set(r * clusterColumns + c0, r * clusterColumns + c1 + 1);
+    }
+
+
+    /****************************************************************
+     * Rebuilds the dirty clusters and their neighbors.  Entrances
+     * are shared by two clusters, so the neighbors of a dirty
+     * cluster have to be rebuilt as well.
+     */
+    private void rebuild()
+    {
+        final BitSet rebuild = new BitSet();
+        for (int c = dirty.nextSetBit(0); c >= 0; c = dirty.nextSetBit(c + 1))
+        {
+            final int row = c / clusterColumns, column = c % clusterColumns;
+            for (int r = Math.max(0, row - 1); r <= Math.min(clusterRows - 1, row + 1); r++)
+                for (int k = Math.max(0, column - 1); k <= Math.min(clusterColumns - 1, column + 1); k++)
+                    rebuild.set(r * clusterColumns + k);
+        }
+        dirty.clear();
+
+        final HashMap<Integer, ArrayList<int[]>> entrances =
+            new HashMap<Integer, ArrayList<int[]>>();
+
+        // Find the new node cells of each cluster.
+        for (int c = rebuild.nextSetBit(0); c >= 0; c = rebuild.nextSetBit(c + 1))
+        {
+            final ArrayList<MHAbstractNode> old = clusterNodes.get(c);
+            final ArrayList<MHAbstractNode> fresh = new ArrayList<MHAbstractNode>();
+
+            final ArrayList<int[]> transitions = findEntrances(c);
+            entrances.put(c, transitions);
+
+            for (int i = 0; i < transitions.size(); i++)
+            {
+                final int cell = transitions.get(i)[0];
+                MHAbstractNode node = nodesByCell.get(cell);
+                if (node == null)
+                {
+                    node = new MHAbstractNode(cell, c, allocateID());
+                    nodes.set(node.id, node);
+                    nodesByCell.put(cell, node);
+                }
+
+                if (!fresh.contains(node))
+                    fresh.add(node);
+            }
+
+            for (int i = 0; i < old.size(); i++)
+            {
+                final MHAbstractNode node = old.get(i);
+                if (!fresh.contains(node))
+                {
+                    nodesByCell.remove(node.cell);
+                    nodes.set(node.id, null);
+                    freeIDs.add(node.id);
+                }
+            }
+
+            clusterNodes.set(c, fresh);
+        }
+
+        // Join the nodes across entrances and within clusters.
+        for (int c = rebuild.nextSetBit(0); c >= 0; c = rebuild.nextSetBit(c + 1))
+        {
+            final ArrayList<MHAbstractNode> list = clusterNodes.get(c);
+            for (int i = 0; i < list.size(); i++)
+                list.get(i).numEdges = 0;
+
+            final ArrayList<int[]> transitions = entrances.get(c);
+            for (int i = 0; i < transitions.size(); i++)
+            {
+                final int[] t = transitions.get(i);
+                nodesByCell.get(t[0]).addEdge(nodesByCell.get(t[1]), 1.0);
+            }
+
+            for (int i = 0; i < list.size(); i++)
+            {
+                final MHAbstractNode node = list.get(i);
+                localSearch(node.cell, -1, true);
+
+                for (int j = 0; j < list.size(); j++)
+                {
+                    final double cost = getLocalCost(list.get(j).cell);
+                    if (j != i && cost >= 0)
+                        node.addEdge(list.get(j), cost);
+                }
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Lists the entrances of a cluster as pairs of cells, the first
+     * in the cluster and the second in a neighboring cluster.
+     *
+     * <p>The entrances between two clusters are always worked out
+     * from the side of the cluster with the lower number, so that
+     * both clusters agree on them.
+     */
+    private ArrayList<int[]> findEntrances(final int cluster)
+    {
+        final ArrayList<int[]> transitions = new ArrayList<int[]>();
+
+        final int row = cluster / clusterColumns, column = cluster % clusterColumns;
+        for (int r = Math.max(0, row - 1); r <= Math.min(clusterRows - 1, row + 1); r++)
+        {
+            for (int k = Math.max(0, column - 1); k <= Math.min(clusterColumns - 1, column + 1); k++)
+            {
+                final int other = r * clusterColumns + k;
+                if (other == cluster)
+                    continue;
+
+                final int first = transitions.size();
+                addEntrances(Math.min(cluster, other), Math.max(cluster, other), transitions);
+
+                // Put this cluster's cell first.
+                if (other < cluster)
+                {
+                    for (int i = first; i < transitions.size(); i++)
+                    {
+                        final int[] t = transitions.get(i);
+                        final int swap = t[0];
+                        t[0] = t[1];
+                        t[1] = swap;
+                    }
+                }
+            }
+        }
+
+        return transitions;
+    }
+
+
+    /****************************************************************
+     * Adds the entrances from one cluster into another to a list.
+     * Every step from the first cluster into the second is a
+     * possible crossing.  Crossings are grouped into runs of
+     * neighboring border cells, and the middle crossing of each run
+     * becomes the entrance.
+     */
+    private void addEntrances(final int from, final int to, final ArrayList<int[]> transitions)
+    {
+        final MHMap data = map.getMapData();
+        final int clusterRow = from / clusterColumns, clusterColumn = from % clusterColumns;
+        int row0 = clusterRow * clusterSize;
+        int column0 = clusterColumn * clusterSize;
+        int row1 = Math.min(data.getHeight(), row0 + clusterSize);
+        int column1 = Math.min(data.getWidth(), column0 + clusterSize);
+
+        // Only cells within two rows or columns of the side facing
+        // the other cluster can step into it.
+        final int rowOffset = to / clusterColumns - clusterRow;
+        final int columnOffset = to % clusterColumns - clusterColumn;
+
+        if (rowOffset > 0)
+            row0 = Math.max(row0, row1 - 2);
+        else if (rowOffset < 0)
+            row1 = Math.min(row1, row0 + 2);
+
+        if (columnOffset > 0)
+            column0 = Math.max(column0, column1 - 2);
+        else if (columnOffset < 0)
+            column1 = Math.min(column1, column0 + 2);
+
+        int runStart = transitions.size();
+        int lastRow = -2, lastColumn = -2;
+
+        for (int row = row0; row < row1; row++)
+        {
+            for (int column = column0; column < column1; column++)
+            {
+                if (!data.canWalkOn(row, column))
+                    continue;
+
+                for (int d = 0; d < directions.length; d++)
+                {
+                    map.tileWalk(row, column, directions[d], neighbor);
+                    if (!data.canWalkOn(neighbor.row, neighbor.column))
+                        continue;
+
+                    final int cell = data.getCellIndex(neighbor.row, neighbor.column);
+                    if (getCluster(cell) != to)
+                        continue;
+
+                    // A crossing starts a new run unless it leaves
+                    // from next to the last one and arrives next to
+                    // one already in the run.  Otherwise the run
+                    // could join areas that don't meet inside the
+                    // other cluster, as in a maze.
+                    if (Math.abs(row - lastRow) + Math.abs(column - lastColumn) > 1
+                                    || !touchesRun(cell, runStart, transitions))
+                    {
+                        keepMiddle(runStart, transitions);
+                        runStart = transitions.size();
+                    }
+
+                    transitions.add(new int[] { data.getCellIndex(row, column), cell });
+                    lastRow = row;
+                    lastColumn = column;
+                }
+            }
+        }
+
+        keepMiddle(runStart, transitions);
+    }
+
+
+    /****************************************************************
+     * Returns true if a cell is one of, or shares a side with, the
+     * cells arrived at by the crossings from <i>first</i> to the end
+     * of a list.
+     */
+    private boolean touchesRun(final int cell, final int first, final ArrayList<int[]> transitions)
+    {
+        final int width = map.getMapData().getWidth();
+        final int row = cell / width, column = cell % width;
+
+        for (int i = first; i < transitions.size(); i++)
+        {
+            final int other = transitions.get(i)[1];
+            if (Math.abs(row - other / width) + Math.abs(column - other % width) <= 1)
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /****************************************************************
+     * Replaces the crossings from <i>first</i> to the end of a list
+     * with the one in the middle.
+     */
+    private void keepMiddle(final int first, final ArrayList<int[]> transitions)
+    {
+        final int n = transitions.size() - first;
+        if (n <= 1)
+            return;
+
+        final int[] middle = transitions.get(first + n / 2);
+        while (transitions.size() > first)
+            transitions.remove(transitions.size() - 1);
+
+        transitions.add(middle);
+    }
+
+
+    /****************************************************************
+     * Returns the number of the cluster containing a cell.
+     */
+    private int getCluster(final int cell)
+    {
+        final int width = map.getMapData().getWidth();
+        return (cell / width / clusterSize) * clusterColumns + (cell % width) / clusterSize;
+    }
+
+
+    /****************************************************************
+     * Returns an unused node ID.
+     */
+    private int allocateID()
+    {
+        if (!freeIDs.isEmpty())
+            return freeIDs.remove(freeIDs.size() - 1);
+
+        nodes.add(null);
+        return nodes.size() - 1;
+    }
+
+
+    /****************************************************************
+     * Makes sure the abstract search arrays cover every node, plus
+     * one for the goal, and starts a new search number.
+     */
+    private void prepareSearch()
+    {
+        final int size = nodes.size() + 1;
+        if (costs.length < size)
+        {
+            final int capacity = size * 2;
+            costs = new double[capacity];
+            parents = new int[capacity];
+            stamps = new int[capacity];
+            goalCosts = new double[capacity];
+            stamp = 0;
+        }
+
+        open.ensureCapacity(costs.length);
+        open.clear();
+        Arrays.fill(goalCosts, -1.0);
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+    }
+
+
+    /****************************************************************
+     * Records a cheaper way to reach an abstract node.
+     */
+    private void relax(final int id, final int parent, final double cost,
+            final int cell, final int goalCell)
+    {
+        if (stamps[id] == stamp && costs[id] <= cost)
+            return;
+
+        stamps[id] = stamp;
+        costs[id] = cost;
+        parents[id] = parent;
+
+        final int width = map.getMapData().getWidth();
+        open.add(id, cost + heuristic.estimate(map, cell / width, cell % width,
+                        goalCell / width, goalCell % width));
+    }
+
+
+    /****************************************************************
+     * Picks a heuristic that counts the fewest steps that could take
+     * a unit from one cell to another, so that the abstract search
+     * never passes over a shorter path for one that merely looks
+     * closer.  The map's own <tt>getDistance()</tt> won't do, since
+     * on a square grid it counts a diagonal step as two.
+     */
+    private static MHHeuristic chooseHeuristic(final MHTileMap map,
+            final MHTileMapDirection[] directions)
+    {
+        if (map instanceof MHHexMap)
+            return MHHeuristics.HEX;
+
+        // The most rows and columns a single step can cross.  Steps
+        // are taken from an even and an odd row, since staggered
+        // maps step differently from each.
+        final MHMapCellAddress to = new MHMapCellAddress();
+        int rows = 0, columns = 0;
+        boolean diagonal = false;
+
+        for (int row = 2; row <= 3; row++)
+        {
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, 2, directions[d], to);
+                final int dr = Math.abs(to.row - row);
+                final int dc = Math.abs(to.column - 2);
+
+                rows = Math.max(rows, dr);
+                columns = Math.max(columns, dc);
+                if (dr > 0 && dc > 0)
+                    diagonal = true;
+            }
+        }
+
+        if (rows <= 1 && columns <= 1)
+            return diagonal ? MHHeuristics.CHEBYSHEV : MHHeuristics.MANHATTAN;
+
+        final double stepRows = Math.max(1, rows);
+        final double stepColumns = Math.max(1, columns);
+        final boolean both = diagonal;
+
+        return new MHHeuristic()
+        {
+            public double estimate(final MHTileMap map, final int row, final int column,
+                    final int goalRow, final int goalColumn)
+            {
+                final double dr = Math.ceil(Math.abs(goalRow - row) / stepRows);
+                final double dc = Math.ceil(Math.abs(goalColumn - column) / stepColumns);
+
+                return both ? Math.max(dr, dc) : dr + dc;
+            }
+        };
+    }
+
+
+    /****************************************************************
+     * Lists the waypoints of the abstract path that reached the
+     * goal.
+     */
+    private void buildWaypoints(final int startCell, final int goalCell, final int goalID)
+    {
+        int n = 2;
+        for (int id = parents[goalID]; id >= 0; id = parents[id])
+            n++;
+
+        if (waypoints.length < n)
+            waypoints = new int[n * 2];
+
+        waypoints[0] = startCell;
+        waypoints[n - 1] = goalCell;
+
+        int i = n - 2;
+        for (int id = parents[goalID]; id >= 0; id = parents[id])
+            waypoints[i--] = nodes.get(id).cell;
+
+        numWaypoints = n;
+        open.clear();
+    }
+
+
+    /****************************************************************
+     * Finds the cells from one waypoint to the next.  Waypoints in
+     * different clusters are neighbors; otherwise the leg is
+     * searched within their cluster.
+     *
+     * @return The number of steps, or -1 if there is no way.  The
+     *         cells can be followed back from <i>to</i> with
+     *         <tt>previousCell()</tt>.
+     */
+    private int searchLeg(final int from, final int to)
+    {
+        if (from == to)
+            return 0;
+
+        if (getCluster(from) != getCluster(to))
+        {
+            // One step across an entrance.
+            setLocalBounds(getCluster(to));
+            final int local = toLocal(to);
+            localStamps[local] = ++localStamp;
+            if (localStamp == Integer.MAX_VALUE)
+            {
+                Arrays.fill(localStamps, 0);
+                localStamp = localStamps[local] = 1;
+            }
+            localCosts[local] = 1.0;
+            localParents[local] = -1;
+            legStart = from;
+            return 1;
+        }
+
+        localSearch(from, to, false);
+        legStart = from;
+
+        final double cost = getLocalCost(to);
+        return (cost < 0) ? -1 : (int) cost;
+    }
+
+
+    /****************************************************************
+     * Returns the cell before a cell on the leg last searched.
+     */
+    private int previousCell(final int cell)
+    {
+        final int parent = localParents[toLocal(cell)];
+        return (parent < 0) ? legStart : toCell(parent);
+    }
+
+
+    /****************************************************************
+     * Finds the shortest paths from a cell to the other cells of its
+     * cluster without leaving the cluster.
+     *
+     * @param from        The cell to search from.
+     * @param to          A cell that must be reached, or -1.
+     * @param reachNodes  True if every node of the cluster must be
+     *                    reached.
+     */
+    private void localSearch(final int from, final int to, final boolean reachNodes)
+    {
+        final int cluster = getCluster(from);
+        setLocalBounds(cluster);
+
+        // The search stops once it has reached every cell it was
+        // asked for, rather than flooding the whole cluster.
+        int remaining = 0;
+        if (to >= 0)
+        {
+            localTargets[toLocal(to)] = true;
+            remaining++;
+        }
+
+        if (reachNodes)
+        {
+            final ArrayList<MHAbstractNode> list = clusterNodes.get(cluster);
+            for (int i = 0; i < list.size(); i++)
+            {
+                final int local = toLocal(list.get(i).cell);
+                if (!localTargets[local])
+                {
+                    localTargets[local] = true;
+                    remaining++;
+                }
+            }
+        }
+
+        flood(from, remaining);
+    }
+
+
+    /****************************************************************
+     * Finds the shortest paths from a cell to the other cells within
+     * the local bounds, until the cells marked in
+     * <tt>localTargets</tt> have been reached.
+     *
+     * @param from       The cell to search from.
+     * @param remaining  The number of cells marked.
+     */
+    private void flood(final int from, int remaining)
+    {
+        final MHMap data = map.getMapData();
+
+        if (++localStamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(localStamps, 0);
+            localStamp = 1;
+        }
+
+        // Every step costs the same, so cells are reached in order of
+        // cost by a plain breadth-first search.
+        int head = 0, tail = 0;
+
+        final int start = toLocal(from);
+        localStamps[start] = localStamp;
+        localCosts[start] = 0.0;
+        localParents[start] = -1;
+        localQueue[tail++] = start;
+
+        while (head < tail && remaining > 0)
+        {
+            final int best = localQueue[head++];
+            if (localTargets[best])
+            {
+                localTargets[best] = false;
+                if (--remaining == 0)
+                    break;
+            }
+
+            final int row = localRow + best / localColumns;
+            final int column = localColumn + best % localColumns;
+            final double newCost = localCosts[best] + 1.0;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, column, directions[d], neighbor);
+
+                if (neighbor.row < localRow || neighbor.row >= localRow + localRows
+                                || neighbor.column < localColumn
+                                || neighbor.column >= localColumn + localColumns
+                                || !data.canWalkOn(neighbor.row, neighbor.column))
+                    continue;
+
+                final int next = (neighbor.row - localRow) * localColumns
+                                + (neighbor.column - localColumn);
+
+                if (localStamps[next] == localStamp)
+                    continue;
+
+                localStamps[next] = localStamp;
+                localCosts[next] = newCost;
+                localParents[next] = best;
+                localQueue[tail++] = next;
+            }
+        }
+
+        // Unmark the targets that weren't reached.
+        if (remaining > 0)
+            Arrays.fill(localTargets, false);
+    }
+
+
+    /****************************************************************
+     * Returns the cost of the last local search's path to a cell,
+     * or -1 if it wasn't reached.
+     */
+    private double getLocalCost(final int cell)
+    {
+        if (getCluster(cell) != (localRow / clusterSize) * clusterColumns + localColumn / clusterSize)
+            return -1.0;
+
+        final int local = toLocal(cell);
+        return (localStamps[local] == localStamp) ? localCosts[local] : -1.0;
+    }
+
+
+    /****************************************************************
+     * Confines local searches to a cluster.
+     */
+    private void setLocalBounds(final int cluster)
+    {
+        final MHMap data = map.getMapData();
+        localRow = (cluster / clusterColumns) * clusterSize;
+        localColumn = (cluster % clusterColumns) * clusterSize;
+        localRows = Math.min(clusterSize, data.getHeight() - localRow);
+        localColumns = Math.min(clusterSize, data.getWidth() - localColumn);
+    }
+
+
+    private int toLocal(final int cell)
+    {
+        final int width = map.getMapData().getWidth();
+        return (cell / width - localRow) * localColumns + (cell % width - localColumn);
+    }
+
+
+    private int toCell(final int local)
+    {
+        return map.getMapData().getCellIndex(localRow + local / localColumns,
+                        localColumn + local % localColumns);
+    }
+
+
+    /****************************************************************
+     * A node of the abstract graph:  one side of an entrance.
+     */
+    private static final class MHAbstractNode
+    {
+        final int cell, cluster, id;
+
+        /** Nodes reachable from this one, and the cost of reaching
+         * each. */
+        MHAbstractNode[] edges = new MHAbstractNode[4];
+        double[] costs = new double[4];
+        int numEdges;
+
+        MHAbstractNode(final int cell, final int cluster, final int id)
+        {
+            this.cell = cell;
+            this.cluster = cluster;
+            this.id = id;
+        }
+
+        void addEdge(final MHAbstractNode node, final double cost)
+        {
+            for (int i = 0; i < numEdges; i++)
+            {
+                if (edges[i] == node)
+                {
+                    costs[i] = Math.min(costs[i], cost);
+                    return;
+                }
+            }
+
+            if (numEdges == edges.length)
+            {
+                edges = Arrays.copyOf(edges, numEdges * 2);
+                costs = Arrays.copyOf(costs, numEdges * 2);
+            }
+
+            edges[numEdges] = node;
+            costs[numEdges] = cost;
+            numEdges++;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+
+
+/********************************************************************
+ * A binary min-heap of small integers, such as map cell indices,
+ * each with a key.  The heap knows where each item is stored, so
+ * finding an item and lowering its key take constant and
+ * logarithmic time instead of a search through the heap.
+ *
+ * <p>Items must be between 0 and the capacity.  No objects are
+ * created once the heap has been allocated.
+ */
+public class MHIndexedHeap
+{
+    /** Items in heap order. */
+    private int[] heap;
+
+    /** Position of each item in the heap, or -1. */
+    private int[] positions;
+
+    /** Key of each item in the heap. */
+    private double[] keys;
+
+    /** Number of items in the heap. */
+    private int size;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param capacity  One more than the largest item.
+     */
+    public MHIndexedHeap(final int capacity)
+    {
+        heap = new int[capacity];
+        positions = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+
+    /****************************************************************
+     * Makes room for items up to <i>capacity</i> - 1.  The heap is
+     * emptied if it has to grow.
+     */
+    public void ensureCapacity(final int capacity)
+    {
+        if (positions.length >= capacity)
+            return;
+
+        heap = new int[capacity];
+        positions = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(positions, -1);
+        size = 0;
+    }
+
+
+    /****************************************************************
+     * Returns the number of items in the heap.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    /****************************************************************
+     * Returns true if an item is in the heap.
+     */
+    public boolean contains(final int item)
+    {
+        return positions[item] >= 0;
+    }
+
+
+    /****************************************************************
+     * Returns the key of an item in the heap.
+     */
+    public double getKey(final int item)
+    {
+        return keys[item];
+    }
+
+
+    /****************************************************************
+     * Adds an item, or changes its key if it is already in the heap.
+     */
+    public void add(final int item, final double key)
+    {
+        int i = positions[item];
+
+        if (i < 0)
+        {
+            i = size++;
+            heap[i] = item;
+            positions[item] = i;
+            keys[item] = key;
+            siftUp(i);
+        }
+        else if (key < keys[item])
+        {
+            keys[item] = key;
+            siftUp(i);
+        }
+        else
+        {
+            keys[item] = key;
+            siftDown(i);
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the item with the lowest key without removing it.
+     */
+    public int peek()
+    {
+        return heap[0];
+    }
+
+
+    /****************************************************************
+     * Removes and returns the item with the lowest key.
+     */
+    public int removeFirst()
+    {
+        final int first = heap[0];
+        positions[first] = -1;
+
+        size--;
+        if (size > 0)
+        {
+            heap[0] = heap[size];
+            positions[heap[0]] = 0;
+            siftDown(0);
+        }
+
+        return first;
+    }
+
+
+    /****************************************************************
+     * Removes an item if it is in the heap.
+     */
+    public void remove(final int item)
+    {
+        final int i = positions[item];
+        if (i < 0)
+            return;
+
+        positions[item] = -1;
+
+        size--;
+        if (i < size)
+        {
+            // The last item fills the gap and may belong higher or
+            // lower.
+            final int last = heap[size];
+            heap[i] = last;
+            positions[last] = i;
+            siftDown(i);
+            siftUp(positions[last]);
+        }
+    }
+
+
+    /****************************************************************
+     * Removes every item.  This takes time in proportion to the
+     * number of items in the heap, not the capacity.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+            positions[heap[i]] = -1;
+
+        size = 0;
+    }
+
+
+    /****************************************************************
+     * Moves the item at a position up until its parent's key is no
+     * greater than its own.
+     */
+    private void siftUp(int i)
+    {
+        final int item = heap[i];
+        final double key = keys[item];
+
+        while (i > 0)
+        {
+            final int parent = (i - 1) >> 1;
+            if (keys[heap[parent]] <= key)
+                break;
+
+            heap[i] = heap[parent];
+            positions[heap[i]] = i;
+            i = parent;
+        }
+
+        heap[i] = item;
+        positions[item] = i;
+    }
+
+
+    /****************************************************************
+     * Moves the item at a position down until neither child has a
+     * lower key.
+     */
+    private void siftDown(int i)
+    {
+        final int item = heap[i];
+        final double key = keys[item];
+
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+
+            if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]])
+                child++;
+
+            if (key <= keys[heap[child]])
+                break;
+
+            heap[i] = heap[child];
+            positions[heap[i]] = i;
+            i = child;
+        }
+
+        heap[i] = item;
+        positions[item] = i;
+    }
+}
@@ -0,0 +1,302 @@
+package mhframework.ai.path;
+
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHMapChangeEvent;
+import mhframework.tilemap.MHMapChangeListener;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * The walkability of a map packed one bit per cell, for jump point
+ * search.  The grid listens for changes to the map and keeps its
+ * bits up to date.
+ *
+ * <p>For maps whose walls don't change, <tt>buildJumpTable()</tt>
+ * precomputes, for every cell and direction, how far a search can
+ * jump before it reaches a jump point or a wall (JPS+).  Searches
+ * then jump straight there instead of scanning the cells between.
+ * The table takes 32 bytes per cell and is thrown away when the
+ * walkability of any cell changes.
+ *
+ * <p>Jump point search only works on maps whose cells form a square
+ * grid, where the eight directions step to the eight surrounding
+ * cells.  <tt>isSquareGrid()</tt> tells whether the map is one.
+ */
+public class MHJumpPointGrid implements MHMapChangeListener
+{
+    /** Row and column steps of the eight directions, clockwise from
+     * north.  Straight directions are even and diagonals are odd. */
+    static final int[] ROW_STEPS    = { -1, -1, 0, 1, 1,  1,  0, -1 };
+    static final int[] COLUMN_STEPS = {  0,  1, 1, 1, 0, -1, -1, -1 };
+
+    /** The map the grid was built from. */
+    private final MHTileMap map;
+
+    /** Dimensions of the map. */
+    private final int height, width;
+
+    /** Number of longs in each row of bits. */
+    private final int rowWords;
+
+    /** Walkability bits, row by row. */
+    private final long[] bits;
+
+    /** True if the map's cells form a square grid. */
+    private final boolean squareGrid;
+
+    /** Jump distances by cell and direction, or null if the table
+     * hasn't been built.  A positive distance reaches a jump point;
+     * zero or a negative one is the number of free steps before a
+     * wall. */
+    private volatile int[] jumpTable;
+
+
+    /****************************************************************
+     * Constructor.  Reads the walkability of every cell and starts
+     * listening for changes to the map.
+     *
+     * @param map  The map to be searched.
+     */
+    public MHJumpPointGrid(final MHTileMap map)
+    {
+        this.map = map;
+
+        final MHMap data = map.getMapData();
+        height = data.getHeight();
+        width = data.getWidth();
+        rowWords = (width + 63) >> 6;
+        bits = new long[height * rowWords];
+
+        squareGrid = checkSquareGrid();
+        update(0, 0, height - 1, width - 1);
+
+        data.addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * grid is no longer needed.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Returns the map the grid was built from.
+     */
+    public MHTileMap getMap()
+    {
+        return map;
+    }
+
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    /****************************************************************
+     * Returns true if the map's cells form a square grid, so that
+     * jump point search can be used on it.
+     */
+    public boolean isSquareGrid()
+    {
+        return squareGrid;
+    }
+
+
+    /****************************************************************
+     * Returns true if a cell is on the map and can be walked on.
+     */
+    public boolean isWalkable(final int row, final int column)
+    {
+        if (row < 0 || column < 0 || row >= height || column >= width)
+            return false;
+
+        return (bits[row * rowWords + (column >> 6)] & (1L << column)) != 0;
+    }
+
+
+    /****************************************************************
+     * Precomputes the jump distances of every cell for JPS+.  Only
+     * worth doing for maps whose walls won't change, since the table
+     * is thrown away when they do.
+     */
+    public synchronized void buildJumpTable()
+    {
+        final int[] table = new int[height * width * 8];
+
+        // Straight directions first, since the diagonals depend on
+        // them.  Each direction is filled in starting from the far
+        // side, so the next cell's distance is always known.
+        for (int dir = 0; dir < 8; dir += 2)
+            fillDirection(table, dir);
+
+        for (int dir = 1; dir < 8; dir += 2)
+            fillDirection(table, dir);
+
+        jumpTable = table;
+    }
+
+
+    /****************************************************************
+     * Returns the precomputed jump distances, or null if the table
+     * hasn't been built or the map has changed since.
+     */
+    int[] getJumpTable()
+    {
+        return jumpTable;
+    }
+
+
+    /****************************************************************
+     * Updates the bits of cells whose walkability changed and throws
+     * away the jump table.
+     */
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (!event.isWalkabilityChanged())
+            return;
+
+        update(event.getMinPassabilityRow(), event.getMinPassabilityColumn(),
+                        event.getMaxPassabilityRow(), event.getMaxPassabilityColumn());
+
+        jumpTable = null;
+    }
+
+
+    /****************************************************************
+     * Returns true if a search moving in a direction through a cell
+     * must stop there, because a wall beside the cell makes one of
+     * the cells past it reachable only through this one.
+     */
+    boolean hasForcedNeighbor(final int row, final int column, final int dir)
+    {
+        final int dr = ROW_STEPS[dir], dc = COLUMN_STEPS[dir];
+
+        if (dc == 0)
+            return (!isWalkable(row, column - 1) && isWalkable(row + dr, column - 1))
+                || (!isWalkable(row, column + 1) && isWalkable(row + dr, column + 1));
+
+        if (dr == 0)
+            return (!isWalkable(row - 1, column) && isWalkable(row - 1, column + dc))
+                || (!isWalkable(row + 1, column) && isWalkable(row + 1, column + dc));
+
+        return (!isWalkable(row, column - dc) && isWalkable(row + dr, column - dc))
+            || (!isWalkable(row - dr, column) && isWalkable(row - dr, column + dc));
+    }
+
+
+    /****************************************************************
+     * Fills in the jump distances of one direction.
+     */
+    private void fillDirection(final int[] table, final int dir)
+    {
+        final int dr = ROW_STEPS[dir], dc = COLUMN_STEPS[dir];
+
+        // Visit cells so that the one a step away in the direction
+        // has already been filled in.
+        final int rowStart = (dr > 0) ? height - 1 : 0;
+        final int rowEnd = (dr > 0) ? -1 : height;
+        final int rowStep = (dr > 0) ? -1 : 1;
+        final int columnStart = (dc > 0) ? width - 1 : 0;
+        final int columnEnd = (dc > 0) ? -1 : width;
+        final int columnStep = (dc > 0) ? -1 : 1;
+
+        for (int row = rowStart; row != rowEnd; row += rowStep)
+        {
+            for (int column = columnStart; column != columnEnd; column += columnStep)
+            {
+                final int nextRow = row + dr, nextColumn = column + dc;
+                final int index = (row * width + column) * 8 + dir;
+
+                if (!isWalkable(nextRow, nextColumn))
+                {
+                    table[index] = 0;
+                    continue;
+                }
+
+                final int next = (nextRow * width + nextColumn) * 8;
+                boolean jumpPoint = hasForcedNeighbor(nextRow, nextColumn, dir);
+
+                // A diagonal jump stops where either of its straight
+                // parts would find a jump point.
+                if (!jumpPoint && (dir & 1) != 0)
+                    jumpPoint = table[next + ((dir + 7) & 7)] > 0
+                             || table[next + ((dir + 1) & 7)] > 0;
+
+                if (jumpPoint)
+                    table[index] = 1;
+                else if (table[next + dir] > 0)
+                    table[index] = table[next + dir] + 1;
+                else
+                    table[index] = table[next + dir] - 1;
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Reads the walkability of the cells in a rectangle.
+     */
+    private void update(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        final MHMap data = map.getMapData();
+
+        for (int row = Math.max(0, minRow); row <= Math.min(height - 1, maxRow); row++)
+        {
+            for (int column = Math.max(0, minColumn); column <= Math.min(width - 1, maxColumn); column++)
+            {
+                final int word = row * rowWords + (column >> 6);
+                if (data.canWalkOn(row, column))
+                    bits[word] |= 1L << column;
+                else
+                    bits[word] &= ~(1L << column);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Returns true if each of the eight directions steps to the
+     * matching surrounding cell.  Staggered and hexagonal layouts
+     * step differently, depending on the row.
+     */
+    private boolean checkSquareGrid()
+    {
+        final MHTileMapDirection[] directions = {
+            MHTileMapDirection.NORTH, MHTileMapDirection.NORTHEAST,
+            MHTileMapDirection.EAST, MHTileMapDirection.SOUTHEAST,
+            MHTileMapDirection.SOUTH, MHTileMapDirection.SOUTHWEST,
+            MHTileMapDirection.WEST, MHTileMapDirection.NORTHWEST
+        };
+
+        final MHMapCellAddress out = new MHMapCellAddress();
+
+        // Try an even and an odd row.
+        for (int row = 2; row <= 3; row++)
+        {
+            for (int dir = 0; dir < 8; dir++)
+            {
+                map.tileWalk(row, 2, directions[dir], out);
+                if (out.row != row + ROW_STEPS[dir] || out.column != 2 + COLUMN_STEPS[dir])
+                    return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,431 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHConnectivityMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+
+
+/********************************************************************
+ * Jump point search:  A* for square grids where every step costs
+ * the same, in any of the eight directions.
+ *
+ * <p>On open ground most of the paths A* considers are the same
+ * length, and it expands every cell along all of them.  Jump point
+ * search only stops at cells where a wall forces a turn, jumping
+ * over the cells between, so it expands far fewer cells and finds a
+ * path just as short.  With a grid's precomputed jump table (JPS+)
+ * it doesn't even scan the cells it jumps over.
+ *
+ * <p>Like <tt>MHPathSearch</tt>, a search object reuses its arrays
+ * from one search to the next and is not thread safe.
+ */
+public class MHJumpPointSearch
+{
+    private static final int[] ROW_STEPS = MHJumpPointGrid.ROW_STEPS;
+    private static final int[] COLUMN_STEPS = MHJumpPointGrid.COLUMN_STEPS;
+
+    /** Cost of the cheapest known path from the start to each
+     * cell. */
+    private double[] costs = new double[0];
+
+    /** The jump point before each jump point on its cheapest known
+     * path. */
+    private int[] parents = new int[0];
+
+    /** The direction in which each jump point was reached, or -1
+     * for the start. */
+    private byte[] arrivals = new byte[0];
+
+    /** Cells stamped with the current search number have been
+     * reached. */
+    private int[] opened = new int[0];
+
+    /** The current search number. */
+    private int stamp = 0;
+
+    /** Jump points waiting to be expanded, by estimated total
+     * cost. */
+    private final MHIndexedHeap open = new MHIndexedHeap(0);
+
+    /** Cells of the last path found, not counting the start. */
+    private int[] path = new int[64];
+
+    /** Number of cells in the last path found, or -1 if none was. */
+    private int pathLength = -1;
+
+    /** Number of jump points expanded by the last search. */
+    private int expanded;
+
+    /** The grid and goal of the current search. */
+    private MHJumpPointGrid grid;
+    private int goalRow, goalColumn;
+
+
+    /****************************************************************
+     * Searches a grid for a path between two cells.  Units may step
+     * in any of the eight directions, and every step costs 1.
+     *
+     * @param grid         The walkability of the map to be
+     *                     searched.
+     * @param startRow     The row of the start.
+     * @param startColumn  The column of the start.
+     * @param goalRow      The row of the goal.
+     * @param goalColumn   The column of the goal.
+     *
+     * @return The number of steps in the path found, or -1 if there
+     *         is none.  The cells are in <tt>getPath()</tt>.
+     */
+    public int search(final MHJumpPointGrid grid, final int startRow, final int startColumn,
+            final int goalRow, final int goalColumn)
+    {
+        pathLength = -1;
+        expanded = 0;
+
+        if (!grid.isSquareGrid())
+        {
+            System.err.println("ERROR:  Jump point search needs a map with square cells.");
+            return -1;
+        }
+
+        final int width = grid.getWidth();
+        final int height = grid.getHeight();
+
+        if (startRow < 0 || startColumn < 0 || startRow >= height || startColumn >= width
+                        || goalRow < 0 || goalColumn < 0 || goalRow >= height || goalColumn >= width)
+            return -1;
+
+        final MHTileMap map = grid.getMap();
+        final MHConnectivityMap regions = map.getMapData().getConnectivityMap();
+        if (regions != null && regions.isUnreachable(startRow, startColumn, goalRow, goalColumn,
+                        map.getDirections()))
+            return -1;
+
+        prepare(width * height);
+
+        this.grid = grid;
+        this.goalRow = goalRow;
+        this.goalColumn = goalColumn;
+
+        final int[] table = grid.getJumpTable();
+        final int start = startRow * width + startColumn;
+        final int goal = goalRow * width + goalColumn;
+
+        costs[start] = 0.0;
+        parents[start] = -1;
+        arrivals[start] = -1;
+        opened[start] = stamp;
+        open.add(start, getKey(0.0, getDistance(startRow, startColumn, goalRow, goalColumn)));
+
+        while (!open.isEmpty())
+        {
+            final int best = open.removeFirst();
+
+            if (best == goal)
+            {
+                buildPath(start, goal, width);
+                open.clear();
+                this.grid = null;
+                return pathLength;
+            }
+
+            expanded++;
+
+            final int row = best / width;
+            final int column = best % width;
+            final int arrival = arrivals[best];
+
+            for (int dir = 0; dir < 8; dir++)
+            {
+                if (isPruned(row, column, arrival, dir))
+                    continue;
+
+                final int next = (table != null)
+                    ? lookUpJump(table, row, column, dir)
+                    : jump(row, column, dir);
+
+                if (next < 0)
+                    continue;
+
+                final int nextRow = next / width;
+                final int nextColumn = next % width;
+                final double newCost = costs[best] + getDistance(row, column, nextRow, nextColumn);
+
+                if (opened[next] == stamp && costs[next] <= newCost)
+                    continue;
+
+                costs[next] = newCost;
+                parents[next] = best;
+                arrivals[next] = (byte) dir;
+                opened[next] = stamp;
+
+                open.add(next, getKey(newCost, getDistance(nextRow, nextColumn, goalRow, goalColumn)));
+            }
+        }
+
+        this.grid = null;
+        return -1;
+    }
+
+
+    /****************************************************************
+     * Searches a grid for a path between two cells and returns it
+     * as a list of nodes, the way <tt>MHPathFinder</tt> always has.
+     *
+     * @return A path from the cell after the start to the goal, or
+     *         null if there is none.
+     */
+    public MHNodePath findPath(final MHMapCellAddress start, final MHMapCellAddress goal,
+            final MHJumpPointGrid grid)
+    {
+        if (search(grid, start.row, start.column, goal.row, goal.column) < 0)
+            return null;
+
+        final int width = grid.getWidth();
+        final MHNodePath nodes = new MHNodePath();
+
+        MHNode parent = new MHNode(start);
+        for (int i = 0; i < pathLength; i++)
+        {
+            final MHNode node = new MHNode(new MHMapCellAddress(path[i] / width, path[i] % width));
+            node.setCostFromStart(i + 1);
+            node.setParent(parent);
+            nodes.add(node);
+            parent = node;
+        }
+
+        return nodes;
+    }
+
+
+    /****************************************************************
+     * Returns the cell indices of the last path found, from the
+     * cell after the start to the goal.  Only the first
+     * <tt>getPathLength()</tt> entries are valid, and the array is
+     * reused by the next search.
+     */
+    public int[] getPath()
+    {
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells in the last path found, or -1 if
+     * none was found.
+     */
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    /****************************************************************
+     * Returns the number of jump points the last search expanded.
+     */
+    public int getExpandedCount()
+    {
+        return expanded;
+    }
+
+
+    /****************************************************************
+     * Returns true if a search that reached a cell moving in one
+     * direction needn't look in another.  Moving straight, only
+     * the same direction and diagonals forced by a wall beside the
+     * cell are kept.  Moving diagonally, the same direction, its two
+     * straight parts and forced diagonals are kept.
+     */
+    private boolean isPruned(final int row, final int column, final int arrival, final int dir)
+    {
+        if (arrival < 0 || dir == arrival)
+            return false;
+
+        final int turn = (dir - arrival) & 7;
+
+        if ((arrival & 1) == 0)
+        {
+            // Straight:  only the diagonals either side of ahead,
+            // when the cell beside is a wall.
+            if (turn == 1)
+                return isOpen(row, column, (arrival + 2) & 7);
+            if (turn == 7)
+                return isOpen(row, column, (arrival + 6) & 7);
+            return true;
+        }
+
+        // Diagonal.
+        if (turn == 1 || turn == 7)
+            return false;
+        if (turn == 2)
+            return isOpen(row, column, (arrival + 3) & 7);
+        if (turn == 6)
+            return isOpen(row, column, (arrival + 5) & 7);
+        return true;
+    }
+
+
+    /****************************************************************
+     * Returns true if the cell a step away in a direction can be
+     * walked on.
+     */
+    private boolean isOpen(final int row, final int column, final int dir)
+    {
+        return grid.isWalkable(row + ROW_STEPS[dir], column + COLUMN_STEPS[dir]);
+    }
+
+
+    /****************************************************************
+     * Steps from a cell in a direction until reaching the goal, a
+     * jump point or a wall.
+     *
+     * @return The cell index of the goal or jump point, or -1 if a
+     *         wall was reached first.
+     */
+    private int jump(int row, int column, final int dir)
+    {
+        final int dr = ROW_STEPS[dir], dc = COLUMN_STEPS[dir];
+
+        while (true)
+        {
+            row += dr;
+            column += dc;
+
+            if (!grid.isWalkable(row, column))
+                return -1;
+
+            if ((row == goalRow && column == goalColumn)
+                            || grid.hasForcedNeighbor(row, column, dir))
+                return row * grid.getWidth() + column;
+
+            // A diagonal jump stops where either of its straight
+            // parts would find something.
+            if ((dir & 1) != 0 && (jump(row, column, (dir + 7) & 7) >= 0
+                            || jump(row, column, (dir + 1) & 7) >= 0))
+                return row * grid.getWidth() + column;
+        }
+    }
+
+
+    /****************************************************************
+     * Finds the same cell as <tt>jump()</tt> using the grid's jump
+     * table.  The table knows nothing of the goal, so a jump that
+     * passes the goal, or passes the row or column it is in, is cut
+     * short.
+     */
+    private int lookUpJump(final int[] table, final int row, final int column, final int dir)
+    {
+        final int width = grid.getWidth();
+        final int distance = table[(row * width + column) * 8 + dir];
+        final int free = Math.abs(distance);
+        final int dr = ROW_STEPS[dir], dc = COLUMN_STEPS[dir];
+
+        final int rowsToGoal = goalRow - row;
+        final int columnsToGoal = goalColumn - column;
+
+        if ((dir & 1) == 0)
+        {
+            // Straight:  stop at the goal if it is ahead in reach.
+            final int steps = (dr == 0) ? columnsToGoal * dc : rowsToGoal * dr;
+            final boolean inLine = (dr == 0) ? rowsToGoal == 0 : columnsToGoal == 0;
+
+            if (inLine && steps > 0 && steps <= free)
+                return goalRow * width + goalColumn;
+        }
+        else if (Integer.signum(rowsToGoal) == dr && Integer.signum(columnsToGoal) == dc)
+        {
+            // Diagonal:  stop level with the goal, from where a
+            // straight jump may reach it.
+            final int steps = Math.min(Math.abs(rowsToGoal), Math.abs(columnsToGoal));
+
+            if (steps <= free)
+                return (row + steps * dr) * width + column + steps * dc;
+        }
+
+        if (distance > 0)
+            return (row + distance * dr) * width + column + distance * dc;
+
+        return -1;
+    }
+
+
+    /****************************************************************
+     * Returns the number of steps between two cells if there were
+     * nothing in the way, diagonal steps costing the same as
+     * straight ones.
+     */
+    private static int getDistance(final int row0, final int column0,
+            final int row1, final int column1)
+    {
+        return Math.max(Math.abs(row1 - row0), Math.abs(column1 - column0));
+    }
+
+
+    /****************************************************************
+     * Returns the key of a jump point in the open list.  Many jump
+     * points tie on estimated total cost; the ties go to the one
+     * nearest the goal, which is usually on the way there.
+     */
+    private static double getKey(final double cost, final int remaining)
+    {
+        return cost + remaining + remaining * 1.0e-9;
+    }
+
+
+    /****************************************************************
+     * Makes sure the arrays cover every cell and starts a new search
+     * number.
+     */
+    private void prepare(final int size)
+    {
+        if (costs.length < size)
+        {
+            costs = new double[size];
+            parents = new int[size];
+            arrivals = new byte[size];
+            opened = new int[size];
+            stamp = 0;
+        }
+
+        open.ensureCapacity(size);
+        open.clear();
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(opened, 0);
+            stamp = 1;
+        }
+    }
+
+
+    /****************************************************************
+     * Follows the parents back from the goal, filling in the cells
+     * between jump points.
+     */
+    private void buildPath(final int start, final int goal, final int width)
+    {
+        int length = 0;
+        for (int cell = goal; cell != start; cell = parents[cell])
+        {
+            final int parent = parents[cell];
+            length += getDistance(parent / width, parent % width, cell / width, cell % width);
+        }
+
+        if (path.length < length)
+            path = new int[Integer.highestOneBit(length) * 2];
+
+        int i = length;
+        for (int cell = goal; cell != start; cell = parents[cell])
+        {
+            final int parent = parents[cell];
+            final int dr = Integer.signum(cell / width - parent / width);
+            final int dc = Integer.signum(cell % width - parent % width);
+            final int step = dr * width + dc;
+
+            for (int c = cell; c != parent; c -= step)
+                path[--i] = c;
+        }
+
+        pathLength = length;
+    }
+}
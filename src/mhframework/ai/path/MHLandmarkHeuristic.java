@@ -0,0 +1,236 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * A heuristic that knows about walls, using distances measured in
+ * advance from a few landmark cells (the ALT method).
+ *
+ * <p>If a landmark is a cost of 100 from the goal and 30 from a
+ * cell, then by the triangle inequality the cell is at least 70
+ * from the goal, however the walls run.  Taking the best such bound
+ * over all the landmarks usually estimates far more closely than a
+ * straight-line distance on maps with long walls, so searches expand
+ * fewer cells.
+ *
+ * <p>Landmarks are chosen spread out around the edges of the map,
+ * each as far as possible from the others.  Measuring takes one
+ * search of the whole map per landmark, and the distances take 4
+ * bytes per cell per landmark.
+ *
+ * <p>The distances hold only while the walls stay as they were.  If
+ * walls are removed, the estimates may be too high and paths may
+ * not be the shortest until <tt>rebuild()</tt> is called.
+ */
+public class MHLandmarkHeuristic implements MHHeuristic
+{
+    /** The map the distances were measured on. */
+    private final MHTileMap map;
+
+    /** How units move. */
+    private final MHTileMapDirection[] directions;
+    private final MHCostModel costModel;
+
+    /** A heuristic to fall back on when it estimates higher, or
+     * null. */
+    private final MHHeuristic base;
+
+    /** Cell indices of the landmarks. */
+    private final int[] landmarks;
+
+    /** Cost from each landmark to each cell, or infinity. */
+    private final float[][] distances;
+
+
+    /****************************************************************
+     * Constructor.  Measures the distances from the landmarks for
+     * units that step in any direction the map allows, every step
+     * costing 1.
+     *
+     * @param map        The map to be searched.
+     * @param landmarks  The number of landmarks.  Eight is plenty
+     *                   for most maps.
+     */
+    public MHLandmarkHeuristic(final MHTileMap map, final int landmarks)
+    {
+        this(map, map.getDirections(), MHCostModels.UNIFORM, landmarks, null);
+    }
+
+
+    /****************************************************************
+     * Constructor.  Measures the distances from the landmarks.  The
+     * searches using the heuristic must use the same directions and
+     * cost model.
+     *
+     * @param map         The map to be searched.
+     * @param directions  The directions in which units can step.
+     * @param costModel   The cost of each step.
+     * @param landmarks   The number of landmarks.
+     * @param base        A heuristic to use wherever it estimates
+     *                    higher than the landmarks, or null.
+     */
+    public MHLandmarkHeuristic(final MHTileMap map, final MHTileMapDirection[] directions,
+            final MHCostModel costModel, final int landmarks, final MHHeuristic base)
+    {
+        this.map = map;
+        this.directions = directions;
+        this.costModel = costModel;
+        this.base = base;
+        this.landmarks = new int[Math.max(1, landmarks)];
+
+        final MHMap data = map.getMapData();
+        distances = new float[this.landmarks.length][data.getWidth() * data.getHeight()];
+
+        rebuild();
+    }
+
+
+    /****************************************************************
+     * Chooses the landmarks again and measures their distances.
+     * Call after walls have changed.
+     */
+    public void rebuild()
+    {
+        final MHMap data = map.getMapData();
+        final int size = data.getWidth() * data.getHeight();
+
+        // The lowest distance from any landmark so far to each cell.
+        final float[] nearest = new float[size];
+
+        // Start from any walkable cell; the cell farthest from it is
+        // on the edge of the map.
+        int seed = -1;
+        for (int i = 0; i < size && seed < 0; i++)
+        {
+            if (data.isWalkable(i))
+                seed = i;
+        }
+
+        if (seed < 0)
+        {
+            for (int i = 0; i < landmarks.length; i++)
+                Arrays.fill(distances[i], Float.POSITIVE_INFINITY);
+            return;
+        }
+
+        measure(seed, nearest);
+
+        for (int l = 0; l < landmarks.length; l++)
+        {
+            // The next landmark is the reachable cell farthest from
+            // those chosen so far.
+            int farthest = seed;
+            for (int i = 0; i < size; i++)
+            {
+                if (nearest[i] != Float.POSITIVE_INFINITY && nearest[i] > nearest[farthest])
+                    farthest = i;
+            }
+
+            landmarks[l] = farthest;
+            measure(farthest, distances[l]);
+
+            if (l == 0)
+                System.arraycopy(distances[0], 0, nearest, 0, size);
+            else
+            {
+                for (int i = 0; i < size; i++)
+                    nearest[i] = Math.min(nearest[i], distances[l][i]);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the cell addresses of the landmarks.
+     */
+    public MHMapCellAddress[] getLandmarks()
+    {
+        final int width = map.getMapData().getWidth();
+        final MHMapCellAddress[] cells = new MHMapCellAddress[landmarks.length];
+
+        for (int i = 0; i < landmarks.length; i++)
+            cells[i] = new MHMapCellAddress(landmarks[i] / width, landmarks[i] % width);
+
+        return cells;
+    }
+
+
+    public double estimate(final MHTileMap map, final int row, final int column,
+            final int goalRow, final int goalColumn)
+    {
+        final MHMap data = map.getMapData();
+        final int cell = data.getCellIndex(row, column);
+        final int goal = data.getCellIndex(goalRow, goalColumn);
+
+        // No path from a landmark to a cell can be shorter than the
+        // landmark's distance to the goal less the cell's distance
+        // to the goal.  So the cell's distance to the goal is at
+        // least the difference.
+        double best = 0.0;
+        for (int i = 0; i < distances.length; i++)
+        {
+            final float toCell = distances[i][cell];
+            final float toGoal = distances[i][goal];
+
+            if (toCell != Float.POSITIVE_INFINITY && toGoal != Float.POSITIVE_INFINITY
+                            && toGoal - toCell > best)
+                best = toGoal - toCell;
+        }
+
+        best /= costModel.getMinimumCost();
+
+        if (base != null)
+            best = Math.max(best, base.estimate(map, row, column, goalRow, goalColumn));
+
+        return best;
+    }
+
+
+    /****************************************************************
+     * Measures the cost from a cell to every other cell.
+     */
+    private void measure(final int from, final float[] out)
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+        final MHIndexedHeap open = new MHIndexedHeap(out.length);
+        final MHMapCellAddress neighbor = new MHMapCellAddress();
+
+        Arrays.fill(out, Float.POSITIVE_INFINITY);
+        out[from] = 0.0f;
+        open.add(from, 0.0);
+
+        while (!open.isEmpty())
+        {
+            final double cost = open.getKey(open.peek());
+            final int cell = open.removeFirst();
+            final int row = cell / width;
+            final int column = cell % width;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                map.tileWalk(row, column, directions[d], neighbor);
+
+                if (!data.canWalkOn(neighbor.row, neighbor.column))
+                    continue;
+
+                final double step = costModel.getStepCost(map, row, column,
+                                neighbor.row, neighbor.column, directions[d]);
+                if (step < 0.0)
+                    continue;
+
+                final int next = data.getCellIndex(neighbor.row, neighbor.column);
+                if (cost + step < out[next])
+                {
+                    out[next] = (float) (cost + step);
+                    open.add(next, cost + step);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package mhframework.ai.path;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Measures the path finders against each other on the same maps and
+ * queries.  For each kind of search it reports:
+ *
+ * <ul>
+ * <li>the cells (or jump points) expanded per query,</li>
+ * <li>the time per query at the 50th, 90th and 99th percentiles and
+ *     the slowest,</li>
+ * <li>the bytes allocated per query, where the JVM can say,</li>
+ * <li>how many paths were the shortest, and how much longer than
+ *     the shortest the others were on average and at worst,</li>
+ * <li>the time taken and bytes allocated to prepare, for searches
+ *     that build something from the map first.</li>
+ * </ul>
+ *
+ * <p>D* Lite is measured planning each query from scratch; its
+ * repairs as units move and the map changes are not.
+ *
+ * <p>Every search lets units step in all eight directions at a cost
+ * of 1 per step, so the shortest paths are the same for all of them.
+ * Each search is run over some of the queries first so that the
+ * JIT compiler has done its work before timing starts.
+ *
+ * <p>Run it from the command line after any change to path finding:
+ * <pre>
+ *     java mhframework.ai.path.MHPathBenchmark
+ *         [-sizes 64,256,1024] [-kinds maze,open,cave,rooms]
+ *         [-queries 100] [-seed 1]
+ *         [-map recorded.map [-scen recorded.scen]]
+ * </pre>
+ * With <tt>-map</tt>, only the recorded map is measured, using the
+ * recorded queries if <tt>-scen</tt> is given and random ones if not.
+ * See <tt>MHBenchmarkMaps</tt> for the file formats.
+ */
+public class MHPathBenchmark
+{
+    /** Where the report goes. */
+    private final PrintStream out;
+
+    /** Number of queries each search is run over before timing. */
+    private int warmUp = 20;
+
+    /** Measures the shortest paths.  With every step costing 1, the
+     * greater of rows and columns never overestimates, so this finds
+     * the shortest. */
+    private final MHPathSearch reference = new MHPathSearch();
+
+    /** Reads the bytes allocated by a thread, or null if the JVM
+     * can't. */
+    private static final Method ALLOCATED_BYTES = findAllocatedBytes();
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param out  Where to print the report.
+     */
+    public MHPathBenchmark(final PrintStream out)
+    {
+        this.out = out;
+        reference.setHeuristic(MHHeuristics.CHEBYSHEV);
+    }
+
+
+    /****************************************************************
+     * Sets the number of queries each search is run over before it
+     * is timed.
+     */
+    public void setWarmUp(final int queries)
+    {
+        warmUp = Math.max(0, queries);
+    }
+
+
+    /****************************************************************
+     * Measures every kind of search on one map and prints a report.
+     *
+     * @param name     The name of the map, for the report.
+     * @param map      The map.
+     * @param queries  The queries, each as { startRow, startColumn,
+     *                 goalRow, goalColumn }.
+     */
+    public void run(final String name, final MHTileMap map, final ArrayList<int[]> queries)
+    {
+        final int numQueries = queries.size();
+
+        // The shortest path lengths, or -1 where there is no path.
+        final int[] shortest = new int[numQueries];
+        int reachable = 0;
+        for (int q = 0; q < numQueries; q++)
+        {
+            final int[] query = queries.get(q);
+            shortest[q] = reference.search(map, query[0], query[1], query[2], query[3], map.getDirections());
+            if (shortest[q] >= 0)
+                reachable++;
+        }
+
+        out.println();
+        out.println(name + ":  " + map.getMapData().getHeight() + " x " + map.getMapData().getWidth()
+                        + ", " + numQueries + " queries, " + reachable + " with paths");
+        out.println(pad("search", -16) + pad("expanded", 10) + pad("p50 us", 9) + pad("p90 us", 9)
+                        + pad("p99 us", 9) + pad("max us", 9) + pad("bytes", 10) + pad("shortest", 10)
+                        + pad("longer", 8) + pad("worst", 8) + pad("missed", 8) + pad("prep ms", 9)
+                        + pad("prep KB", 9));
+
+        final Engine[] engines = createEngines();
+        for (int e = 0; e < engines.length; e++)
+            measure(engines[e], map, queries, shortest);
+    }
+
+
+    /****************************************************************
+     * Measures one kind of search and prints a line of the report.
+     */
+    private void measure(final Engine engine, final MHTileMap map,
+            final ArrayList<int[]> queries, final int[] shortest)
+    {
+        final int numQueries = queries.size();
+
+        long allocated = getAllocatedBytes();
+        long time = System.nanoTime();
+        engine.prepare(map);
+        final long prepTime = System.nanoTime() - time;
+        final long prepAllocated = getAllocatedBytes() - allocated;
+
+        for (int q = 0; q < warmUp && q < numQueries; q++)
+        {
+            final int[] query = queries.get(q);
+            engine.search(query[0], query[1], query[2], query[3]);
+        }
+
+        final long[] times = new long[numQueries];
+        long expanded = 0;
+        int numShortest = 0, found = 0, missed = 0;
+        double extra = 0.0, worst = 1.0;
+
+        allocated = getAllocatedBytes();
+        for (int q = 0; q < numQueries; q++)
+        {
+            final int[] query = queries.get(q);
+
+            time = System.nanoTime();
+            final int length = engine.search(query[0], query[1], query[2], query[3]);
+            times[q] = System.nanoTime() - time;
+
+            expanded += engine.getExpandedCount();
+
+            if (shortest[q] < 0)
+                continue;
+
+            if (length < 0)
+            {
+                missed++;
+                continue;
+            }
+
+            found++;
+            final double ratio = (shortest[q] == 0) ? 1.0 : (double) length / shortest[q];
+            if (length <= shortest[q])
+                numShortest++;
+            extra += ratio - 1.0;
+            worst = Math.max(worst, ratio);
+        }
+        allocated = getAllocatedBytes() - allocated;
+
+        engine.dispose();
+
+        Arrays.sort(times);
+
+        out.println(pad(engine.name, -16)
+                        + pad(engine.countsExpansions() ? Long.toString(expanded / Math.max(1, numQueries)) : "-", 10)
+                        + pad(micros(percentile(times, 50)), 9)
+                        + pad(micros(percentile(times, 90)), 9)
+                        + pad(micros(percentile(times, 99)), 9)
+                        + pad(micros(percentile(times, 100)), 9)
+                        + pad((ALLOCATED_BYTES == null) ? "-" : Long.toString(allocated / Math.max(1, numQueries)), 10)
+                        + pad(numShortest + "/" + found, 10)
+                        + pad(percent(extra / Math.max(1, found)), 8)
+                        + pad(percent(worst - 1.0), 8)
+                        + pad(Integer.toString(missed), 8)
+                        + pad(Long.toString(prepTime / 1000000), 9)
+                        + pad((ALLOCATED_BYTES == null) ? "-" : Long.toString(prepAllocated / 1024), 9));
+    }
+
+
+    /****************************************************************
+     * Creates the searches to be measured.  Add new kinds of search
+     * here so that they are measured with the others.
+     */
+    private Engine[] createEngines()
+    {
+        return new Engine[]
+        {
+            new SearchEngine("A* map", null, null),
+            new SearchEngine("A* Chebyshev", MHHeuristics.CHEBYSHEV, null),
+            new SearchEngine("A* landmarks", null, null)
+            {
+                @Override
+                void prepare(final MHTileMap map)
+                {
+                    super.prepare(map);
+                    search.setHeuristic(new MHLandmarkHeuristic(map, map.getDirections(),
+                                    MHCostModels.UNIFORM, 8, MHHeuristics.CHEBYSHEV));
+                }
+            },
+            new Engine("D* Lite")
+            {
+                private MHDStarLite planner;
+                private final MHMapCellAddress start = new MHMapCellAddress();
+                private final MHMapCellAddress goal = new MHMapCellAddress();
+
+                @Override
+                void prepare(final MHTileMap map)
+                {
+                    planner = new MHDStarLite(map);
+                }
+
+                @Override
+                int search(final int startRow, final int startColumn, final int goalRow, final int goalColumn)
+                {
+                    start.row = startRow;
+                    start.column = startColumn;
+                    goal.row = goalRow;
+                    goal.column = goalColumn;
+
+                    return planner.setGoal(start, goal) ? (int) planner.getCost() : -1;
+                }
+
+                @Override
+                int getExpandedCount()
+                {
+                    return planner.getExpandedCount();
+                }
+
+                @Override
+                void dispose()
+                {
+                    planner.dispose();
+                }
+            },
+            new JumpEngine("Jump point", false),
+            new JumpEngine("Jump point+", true),
+            new Engine("Hierarchical")
+            {
+                private MHHierarchicalPathFinder finder;
+                private final MHMapCellAddress start = new MHMapCellAddress();
+                private final MHMapCellAddress goal = new MHMapCellAddress();
+
+                @Override
+                void prepare(final MHTileMap map)
+                {
+                    finder = new MHHierarchicalPathFinder(map);
+                }
+
+                @Override
+                int search(final int startRow, final int startColumn, final int goalRow, final int goalColumn)
+                {
+                    start.row = startRow;
+                    start.column = startColumn;
+                    goal.row = goalRow;
+                    goal.column = goalColumn;
+
+                    final MHNodePath path = finder.findPath(start, goal);
+                    return (path == null) ? -1 : path.size();
+                }
+
+                @Override
+                boolean countsExpansions()
+                {
+                    return false;
+                }
+
+                @Override
+                void dispose()
+                {
+                    finder.dispose();
+                }
+            }
+        };
+    }
+
+
+    /****************************************************************
+     * Runs the benchmark from the command line.
+     */
+    public static void main(final String[] args)
+    {
+        int[] sizes = { 64, 256, 1024 };
+        String[] kinds = MHBenchmarkMaps.KIND_NAMES;
+        int numQueries = 100;
+        long seed = 1;
+        String mapFile = null, queryFile = null;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i].equals("-sizes") && i + 1 < args.length)
+                {
+                    final String[] words = args[++i].split(",");
+                    sizes = new int[words.length];
+                    for (int s = 0; s < words.length; s++)
+                        sizes[s] = Integer.parseInt(words[s].trim());
+                }
+                else if (args[i].equals("-kinds") && i + 1 < args.length)
+                    kinds = args[++i].split(",");
+                else if (args[i].equals("-queries") && i + 1 < args.length)
+                    numQueries = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-seed") && i + 1 < args.length)
+                    seed = Long.parseLong(args[++i]);
+                else if (args[i].equals("-map") && i + 1 < args.length)
+                    mapFile = args[++i];
+                else if (args[i].equals("-scen") && i + 1 < args.length)
+                    queryFile = args[++i];
+                else
+                {
+                    System.err.println("ERROR:  Unknown argument:  " + args[i]);
+                    return;
+                }
+            }
+        }
+        catch (final NumberFormatException e)
+        {
+            System.err.println("ERROR:  Bad number:  " + e.getMessage());
+            return;
+        }
+
+        final MHPathBenchmark benchmark = new MHPathBenchmark(System.out);
+
+        if (ALLOCATED_BYTES == null)
+            System.out.println("This JVM can't count allocations; bytes are not reported.");
+
+        if (mapFile != null)
+        {
+            final MHTileMap map = MHBenchmarkMaps.loadMap(mapFile);
+            if (map == null)
+                return;
+
+            final ArrayList<int[]> queries = (queryFile != null) ? MHBenchmarkMaps.loadQueries(queryFile)
+                                                : MHBenchmarkMaps.randomQueries(map, numQueries, seed);
+            if (queries != null)
+                benchmark.run(mapFile, map, queries);
+
+            return;
+        }
+
+        for (int k = 0; k < kinds.length; k++)
+        {
+            final int kind = Arrays.asList(MHBenchmarkMaps.KIND_NAMES).indexOf(kinds[k].trim());
+            if (kind < 0)
+            {
+                System.err.println("ERROR:  Unknown kind of map:  " + kinds[k]);
+                continue;
+            }
+
+            for (int s = 0; s < sizes.length; s++)
+            {
+                final MHTileMap map = MHBenchmarkMaps.generate(kind, sizes[s], seed);
+                benchmark.run(MHBenchmarkMaps.KIND_NAMES[kind], map,
+                                MHBenchmarkMaps.randomQueries(map, numQueries, seed));
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the bytes allocated so far by the current thread, or 0
+     * if the JVM can't say.
+     */
+    private static long getAllocatedBytes()
+    {
+        if (ALLOCATED_BYTES == null)
+            return 0;
+
+        try
+        {
+            return ((Long) ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(),
+                            Long.valueOf(Thread.currentThread().getId()))).longValue();
+        }
+        catch (final Exception e)
+        {
+            return 0;
+        }
+    }
+
+
+    /****************************************************************
+     * Looks up the method for counting a thread's allocations, which
+     * only some JVMs have.
+     */
+    private static Method findAllocatedBytes()
+    {
+        try
+        {
+            final Method method = Class.forName("com.sun.management.ThreadMXBean")
+                            .getMethod("getThreadAllocatedBytes", long.class);
+
+            return (((Long) method.invoke(ManagementFactory.getThreadMXBean(),
+                            Long.valueOf(Thread.currentThread().getId()))).longValue() < 0) ? null : method;
+        }
+        catch (final Exception e)
+        {
+            return null;
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the value below which the given percentage of the
+     * sorted values fall.
+     */
+    private static long percentile(final long[] sorted, final int percent)
+    {
+        if (sorted.length == 0)
+            return 0;
+
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+
+    private static String micros(final long nanoseconds)
+    {
+        return Long.toString(nanoseconds / 1000);
+    }
+
+
+    private static String percent(final double fraction)
+    {
+        return String.format("%.1f%%", fraction * 100.0);
+    }
+
+
+    /****************************************************************
+     * Pads text to a width, on the left if the width is positive and
+     * on the right if it is negative.
+     */
+    private static String pad(final String text, final int width)
+    {
+        final StringBuilder padded = new StringBuilder();
+
+        if (width > 0)
+        {
+            for (int i = text.length(); i < width; i++)
+                padded.append(' ');
+        }
+
+        padded.append(text);
+
+        for (int i = text.length(); i < -width; i++)
+            padded.append(' ');
+
+        return padded.toString();
+    }
+
+
+    /****************************************************************
+     * A kind of search to be measured.  Every step in any of the
+     * eight directions must cost 1.
+     */
+    private abstract static class Engine
+    {
+        final String name;
+
+
+        Engine(final String name)
+        {
+            this.name = name;
+        }
+
+
+        /** Builds anything the search needs before searching the
+         * map. */
+        void prepare(final MHTileMap map)
+        {
+        }
+
+
+        /** Returns the number of steps in the path found, or -1. */
+        abstract int search(int startRow, int startColumn, int goalRow, int goalColumn);
+
+
+        /** Returns the number of cells the last search expanded. */
+        int getExpandedCount()
+        {
+            return 0;
+        }
+
+
+        boolean countsExpansions()
+        {
+            return true;
+        }
+
+
+        void dispose()
+        {
+        }
+    }
+
+
+    /****************************************************************
+     * A* with an <tt>MHPathSearch</tt>.
+     */
+    private static class SearchEngine extends Engine
+    {
+        final MHPathSearch search = new MHPathSearch();
+        private final MHHeuristic heuristic;
+        private MHTileMap map;
+        private MHTileMapDirection[] directions;
+
+
+        SearchEngine(final String name, final MHHeuristic heuristic, final MHCostModel costModel)
+        {
+            super(name);
+            this.heuristic = heuristic;
+
+            if (costModel != null)
+                search.setCostModel(costModel);
+        }
+
+
+        @Override
+        void prepare(final MHTileMap map)
+        {
+            this.map = map;
+            directions = map.getDirections();
+
+            if (heuristic != null)
+                search.setHeuristic(heuristic);
+        }
+
+
+        @Override
+        int search(final int startRow, final int startColumn, final int goalRow, final int goalColumn)
+        {
+            return search.search(map, startRow, startColumn, goalRow, goalColumn, directions);
+        }
+
+
+        @Override
+        int getExpandedCount()
+        {
+            return search.getExpandedCount();
+        }
+    }
+
+
+    /****************************************************************
+     * Jump point search, with or without the jump table.
+     */
+    private static class JumpEngine extends Engine
+    {
+        private final MHJumpPointSearch search = new MHJumpPointSearch();
+        private final boolean useTable;
+        private MHJumpPointGrid grid;
+
+
+        JumpEngine(final String name, final boolean useTable)
+        {
+            super(name);
+            this.useTable = useTable;
+        }
+
+
+        @Override
+        void prepare(final MHTileMap map)
+        {
+            grid = new MHJumpPointGrid(map);
+
+            if (useTable)
+                grid.buildJumpTable();
+        }
+
+
+        @Override
+        int search(final int startRow, final int startColumn, final int goalRow, final int goalColumn)
+        {
+            return search.search(grid, startRow, startColumn, goalRow, goalColumn);
+        }
+
+
+        @Override
+        int getExpandedCount()
+        {
+            return search.getExpandedCount();
+        }
+
+
+        @Override
+        void dispose()
+        {
+            grid.dispose();
+        }
+    }
+}
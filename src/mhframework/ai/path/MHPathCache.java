@@ -0,0 +1,504 @@
+package mhframework.ai.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHMapChangeEvent;
+import mhframework.tilemap.MHMapChangeListener;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Remembers the paths found on a map so that units asking for the
+ * same path, such as every unit sent from a barracks to a rally
+ * point, share one search.
+ *
+ * <p>Paths are looked up by start, goal and movement profile (the
+ * set of directions a unit can step in).  The least recently used
+ * path is forgotten when the cache is full.  Failed searches are
+ * remembered too, so units don't keep searching for a goal they
+ * can't reach.
+ *
+ * <p>The map is divided into square regions, and each path records
+ * the regions it crosses.  When the walkability of cells changes,
+ * the paths crossing their regions are forgotten, along with every
+ * failed search, since a new opening might connect them.  A path
+ * that doesn't cross a changed region is kept even though a cell
+ * opened elsewhere might now allow a shorter one.
+ *
+ * <p>With suffix reuse turned on, a unit that starts anywhere along
+ * a remembered path to the same goal is given the rest of that path
+ * without a search.
+ *
+ * <p>The cache's methods are synchronized, so units on several
+ * threads may share one.
+ */
+public class MHPathCache implements MHMapChangeListener
+{
+    /** Width and height of an invalidation region in cells. */
+    public static final int REGION_SIZE = 16;
+
+    /** The map whose paths are cached. */
+    private final MHTileMap map;
+
+    /** The greatest number of paths remembered. */
+    private final int capacity;
+
+    /** Paths by key, from least to most recently used. */
+    private final LinkedHashMap<MHPathKey, MHPathEntry> entries;
+
+    /** Paths by goal and profile, for suffix reuse. */
+    private final HashMap<MHPathKey, ArrayList<MHPathEntry>> byGoal =
+        new HashMap<MHPathKey, ArrayList<MHPathEntry>>();
+
+    /** Key used for lookups, so that lookups create no objects. */
+    private final MHPathKey probe = new MHPathKey();
+
+    /** Search used for paths that aren't cached. */
+    private final MHPathSearch search = new MHPathSearch();
+
+    /** True to reuse the ends of cached paths. */
+    private boolean suffixReuse = false;
+
+    /** Statistics. */
+    private long hits, suffixHits, misses, invalidations;
+
+
+    /****************************************************************
+     * Constructor.  The cache starts listening for changes to the
+     * map.
+     *
+     * @param map       The map whose paths are to be cached.
+     * @param capacity  The greatest number of paths to remember.
+     */
+    public MHPathCache(final MHTileMap map, final int capacity)
+    {
+        this.map = map;
+        this.capacity = capacity;
+
+        entries = new LinkedHashMap<MHPathKey, MHPathEntry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<MHPathKey, MHPathEntry> eldest)
+            {
+                if (size() <= MHPathCache.this.capacity)
+                    return false;
+
+                forgetGoal(eldest.getValue());
+                return true;
+            }
+        };
+
+        map.getMapData().addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * cache is no longer needed.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Finds a path stepping in any direction the map allows.
+     *
+     * @see #findPath(MHMapCellAddress, MHMapCellAddress, MHTileMapDirection[])
+     */
+    public MHNodePath findPath(final MHMapCellAddress start, final MHMapCellAddress goal)
+    {
+        return findPath(start, goal, map.getDirections());
+    }
+
+
+    /****************************************************************
+     * Finds a path from the cache, or searches for one and caches
+     * it.
+     *
+     * @param start       The starting location.
+     * @param goal        The goal.
+     * @param directions  The directions in which a unit can step.
+     *
+     * @return A path from the cell after the start to the goal, as
+     *         returned by <tt>MHPathFinder.aStarSearch()</tt>, or
+     *         null if there is none.
+     */
+    public synchronized MHNodePath findPath(final MHMapCellAddress start,
+            final MHMapCellAddress goal, final MHTileMapDirection[] directions)
+    {
+        final MHMap data = map.getMapData();
+        if (!data.isValidCell(start.row, start.column) || !data.isValidCell(goal.row, goal.column))
+            return null;
+
+        final int profile = getProfile(directions);
+        final int startIndex = data.getCellIndex(start.row, start.column);
+        final int goalIndex = data.getCellIndex(goal.row, goal.column);
+
+        probe.set(startIndex, goalIndex, profile);
+        MHPathEntry entry = entries.get(probe);
+
+        if (entry != null)
+        {
+            hits++;
+            return toNodePath(entry.cells, 0, start);
+        }
+
+        if (suffixReuse)
+        {
+            probe.set(-1, goalIndex, profile);
+            final ArrayList<MHPathEntry> list = byGoal.get(probe);
+
+            for (int i = 0; list != null && i < list.size(); i++)
+            {
+                final MHPathEntry source = list.get(i);
+                final int[] cells = source.cells;
+                for (int k = 0; cells != null && k < cells.length; k++)
+                {
+                    if (cells[k] == startIndex)
+                    {
+                        // Count the use against the path it came
+                        // from, so it isn't the next one evicted.
+                        entries.get(source.key);
+
+                        suffixHits++;
+                        return toNodePath(cells, k + 1, start);
+                    }
+                }
+            }
+        }
+
+        misses++;
+
+        final int length = search.search(map, start.row, start.column,
+                        goal.row, goal.column, directions);
+
+        entry = new MHPathEntry(new MHPathKey(startIndex, goalIndex, profile));
+        if (length >= 0)
+            entry.cells = Arrays.copyOf(search.getPath(), length);
+
+        entry.regions = findRegions(startIndex, entry.cells);
+        entries.put(entry.key, entry);
+        rememberGoal(entry);
+
+        return toNodePath(entry.cells, 0, start);
+    }
+
+
+    /****************************************************************
+     * Turns reuse of the ends of cached paths on or off.
+     */
+    public synchronized void setSuffixReuse(final boolean reuse)
+    {
+        suffixReuse = reuse;
+    }
+
+
+    public synchronized boolean isSuffixReuse()
+    {
+        return suffixReuse;
+    }
+
+
+    /****************************************************************
+     * Forgets every path.
+     */
+    public synchronized void clear()
+    {
+        invalidations += entries.size();
+        entries.clear();
+        byGoal.clear();
+    }
+
+
+    /****************************************************************
+     * Returns the number of paths remembered.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+
+    /****************************************************************
+     * Returns the number of requests answered with a cached path,
+     * not counting reused suffixes.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+
+    /****************************************************************
+     * Returns the number of requests answered with the end of a
+     * cached path.
+     */
+    public synchronized long getSuffixHits()
+    {
+        return suffixHits;
+    }
+
+
+    /****************************************************************
+     * Returns the number of requests that needed a search.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+
+    /****************************************************************
+     * Returns the number of paths forgotten because the map changed
+     * or the cache was cleared.  Paths pushed out by newer ones are
+     * not counted.
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+
+    /****************************************************************
+     * Returns the fraction of requests answered without a search.
+     */
+    public synchronized double getHitRate()
+    {
+        final long total = hits + suffixHits + misses;
+        return (total == 0) ? 0.0 : (double) (hits + suffixHits) / total;
+    }
+
+
+    /****************************************************************
+     * Sets the statistics back to zero.
+     */
+    public synchronized void resetStatistics()
+    {
+        hits = suffixHits = misses = invalidations = 0;
+    }
+
+
+    /****************************************************************
+     * Forgets the paths crossing cells whose walkability changed,
+     * and every failed search.
+     */
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (!event.isWalkabilityChanged())
+            return;
+
+        final int regionColumns = getRegionColumns();
+        final int minRow = event.getMinPassabilityRow() / REGION_SIZE;
+        final int minColumn = event.getMinPassabilityColumn() / REGION_SIZE;
+        final int maxRow = event.getMaxPassabilityRow() / REGION_SIZE;
+        final int maxColumn = event.getMaxPassabilityColumn() / REGION_SIZE;
+
+        final Iterator<MHPathEntry> i = entries.values().iterator();
+        while (i.hasNext())
+        {
+            final MHPathEntry entry = i.next();
+            boolean crosses = (entry.cells == null);
+
+            for (int r = 0; !crosses && r < entry.regions.length; r++)
+            {
+                final int row = entry.regions[r] / regionColumns;
+                final int column = entry.regions[r] % regionColumns;
+
+                crosses = (row >= minRow && row <= maxRow
+                                && column >= minColumn && column <= maxColumn);
+            }
+
+            if (crosses)
+            {
+                i.remove();
+                forgetGoal(entry);
+                invalidations++;
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Returns a number standing for a set of directions.
+     */
+    private static int getProfile(final MHTileMapDirection[] directions)
+    {
+        int profile = 0;
+        for (int i = 0; i < directions.length; i++)
+            profile |= 1 << directions[i].ordinal();
+
+        return profile;
+    }
+
+
+    /****************************************************************
+     * Returns the number of regions across the map.
+     */
+    private int getRegionColumns()
+    {
+        return (map.getMapData().getWidth() + REGION_SIZE - 1) / REGION_SIZE;
+    }
+
+
+    /****************************************************************
+     * Lists the regions a path crosses.
+     */
+    private int[] findRegions(final int start, final int[] cells)
+    {
+        final int width = map.getMapData().getWidth();
+        final int regionColumns = getRegionColumns();
+        final int length = (cells == null) ? 0 : cells.length;
+        final int[] regions = new int[length + 1];
+
+        for (int i = 0; i <= length; i++)
+        {
+            final int cell = (i == 0) ? start : cells[i - 1];
+            regions[i] = (cell / width / REGION_SIZE) * regionColumns
+                            + (cell % width) / REGION_SIZE;
+        }
+
+        // Sort and remove duplicates.
+        Arrays.sort(regions);
+        int n = 0;
+        for (int i = 0; i < regions.length; i++)
+            if (n == 0 || regions[n - 1] != regions[i])
+                regions[n++] = regions[i];
+
+        return Arrays.copyOf(regions, n);
+    }
+
+
+    /****************************************************************
+     * Adds an entry to the list of paths to its goal.
+     */
+    private void rememberGoal(final MHPathEntry entry)
+    {
+        if (entry.cells == null)
+            return;
+
+        final MHPathKey key = new MHPathKey(-1, entry.key.goal, entry.key.profile);
+        ArrayList<MHPathEntry> list = byGoal.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<MHPathEntry>();
+            byGoal.put(key, list);
+        }
+
+        list.add(entry);
+    }
+
+
+    /****************************************************************
+     * Removes an entry from the list of paths to its goal.
+     */
+    private void forgetGoal(final MHPathEntry entry)
+    {
+        if (entry.cells == null)
+            return;
+
+        probe.set(-1, entry.key.goal, entry.key.profile);
+        final ArrayList<MHPathEntry> list = byGoal.get(probe);
+        if (list == null)
+            return;
+
+        list.remove(entry);
+        if (list.isEmpty())
+            byGoal.remove(probe);
+    }
+
+
+    /****************************************************************
+     * Builds the path returned to callers from part of a cached
+     * path.
+     */
+    private MHNodePath toNodePath(final int[] cells, final int first,
+            final MHMapCellAddress start)
+    {
+        if (cells == null)
+            return null;
+
+        final int width = map.getMapData().getWidth();
+        final MHNodePath nodes = new MHNodePath();
+
+        MHNode parent = new MHNode(start);
+        for (int i = first; i < cells.length; i++)
+        {
+            final MHNode node = new MHNode(new MHMapCellAddress(cells[i] / width, cells[i] % width));
+            node.setCostFromStart(i - first + 1);
+            node.setParent(parent);
+            nodes.add(node);
+            parent = node;
+        }
+
+        return nodes;
+    }
+
+
+    /****************************************************************
+     * Identifies a cached path.
+     */
+    private static final class MHPathKey
+    {
+        int start, goal, profile;
+
+        MHPathKey()
+        {
+        }
+
+        MHPathKey(final int start, final int goal, final int profile)
+        {
+            set(start, goal, profile);
+        }
+
+        void set(final int start, final int goal, final int profile)
+        {
+            this.start = start;
+            this.goal = goal;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            final MHPathKey other = (MHPathKey) obj;
+            return start == other.start && goal == other.goal && profile == other.profile;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (start * 31 + goal) * 31 + profile;
+        }
+    }
+
+
+    /****************************************************************
+     * A cached path.
+     */
+    private static final class MHPathEntry
+    {
+        final MHPathKey key;
+
+        /** The cells after the start, or null if there is no path. */
+        int[] cells;
+
+        /** The regions the path crosses, sorted. */
+        int[] regions;
+
+        MHPathEntry(final MHPathKey key)
+        {
+            this.key = key;
+        }
+    }
+}
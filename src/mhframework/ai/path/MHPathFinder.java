@@ -8,10 +8,37 @@ import mhframework.tilemap.MHTileMapDirection;
  * Derived from pseudo-code in "The Basics of A* for Path Planning", Bryan
  * Stout In 'Game Programming Gems', Mike DeLoura (ed.) Charles River Media,
  * 2000, part 3.3, pp. 254-263
+ *
+ * The search itself is done by MHPathSearch, which uses an indexed binary
+ * heap and arrays indexed by cell instead of node lists.  On square grids,
+ * jumpPointSearch() uses MHJumpPointSearch instead.
  */
 
 public class MHPathFinder
 {
+    /**
+     * Each thread keeps its own search object, so that the search
+     * arrays are reused from one search to the next.
+     */
+    private static final ThreadLocal<MHPathSearch> SEARCHES = new ThreadLocal<MHPathSearch>()
+    {
+        @Override
+        protected MHPathSearch initialValue()
+        {
+            return new MHPathSearch();
+        }
+    };
+
+    private static final ThreadLocal<MHJumpPointSearch> JUMP_SEARCHES = new ThreadLocal<MHJumpPointSearch>()
+    {
+        @Override
+        protected MHJumpPointSearch initialValue()
+        {
+            return new MHJumpPointSearch();
+        }
+    };
+
+
     /**
      * Searches the given map for a path from the specified start to 
      * the specified goal by stepping only in the specified 
@@ -26,79 +53,39 @@ public class MHPathFinder
      */
     public static MHNodePath aStarSearch(final MHMapCellAddress startLoc, final MHMapCellAddress goalLoc, MHTileMap map, MHTileMapDirection[] directions)
     {
-        // DEBUG
-//        System.out.println("########################################");
-//        System.out.println("# A* search from " + startLoc + " to " + goalLoc);
-//        System.out.println("########################################");
-        double newCost;
-        MHNode bestNode, newNode;
-
-        final MHNode startNode = new MHNode(startLoc); // set start node
-        startNode.costToGoal(goalLoc);
-
-        // create the open queue and closed list
-        final MHOpenNodeList open = new MHOpenNodeList(startNode);
-        final MHClosedNodeList closed = new MHClosedNodeList();
+        return aStarSearch(startLoc, goalLoc, map, directions, MHHeuristics.MAP, MHCostModels.UNIFORM);
+    } // end of aStarSearch()
+    
 
-        // while some node still left to investigate
-        while (open.size() != 0)
-        { 
-            bestNode = open.removeFirst();
-            if (goalLoc.equals(bestNode)) // reached the goal
-            {
-                //DEBUG
-                //System.out.println("Goal reached: " + goalLoc);
-                return bestNode.buildPath(); // return a path to that goal
-            }
+    /**
+     * Searches the given map for a path from the specified start to 
+     * the specified goal by stepping only in the specified 
+     * directions, with steps priced by a cost model and the 
+     * remaining cost estimated by a heuristic.
+     * 
+     * @param startLoc The starting location.
+     * @param goalLoc The goal.
+     * @param map The map to be searched.
+     * @param directions An array of MHTileMapDirection values indicating which directions a unit can step.
+     * @param heuristic Estimates the cost remaining, for example MHHeuristics.OCTILE.
+     * @param costModel Prices each step, for example an MHTerrainCostModel.
+     * 
+     * @return An MHNodePath from the start to the goal, or null if no path found.
+     */
+    public static MHNodePath aStarSearch(final MHMapCellAddress startLoc, final MHMapCellAddress goalLoc, MHTileMap map, MHTileMapDirection[] directions, MHHeuristic heuristic, MHCostModel costModel)
+    {
+        final MHPathSearch search = SEARCHES.get();
+        search.setHeuristic(heuristic);
+        search.setCostModel(costModel);
 
-            for (int i = 0; i < directions.length; i++)
-            { 
-                // try every direction
-                newNode = bestNode.makeNeighbor(directions[i], map);
-                if (newNode != null)
-                {
-                    //DEBUG
-                    //System.out.print("\tnewNode = " + newNode);
-                    
-                    newCost = newNode.getCostFromStart();
-                    MHNode oldVer;
-                    // if this tile already has a cheaper open or closed node
-                    // then ignore the new node
-                    if ((oldVer = open.findNode(newNode)) != null && oldVer.getCostFromStart() <= newCost)
-                    {
-                        //DEBUG
-                        //System.out.println("...ignoring it 'cause there's already a cheaper open path.");
-                        continue;
-                    }
-                    else if ((oldVer = closed.findNode(newNode)) != null && oldVer.getCostFromStart() <= newCost)
-                    {
-                        //DEBUG
-                        //System.out.println("...ignoring it 'cause there's already a cheaper closed path.");
-                        continue;
-                    }
-                    else
-                    { 
-                        //DEBUG
-                        //System.out.println("Adding " + newNode + " to the list.");
-                        
-                        // store the new/improved node, removing the old one
-                        newNode.costToGoal(goalLoc);
-                        // delete the old details (if they exist)
-                        closed.delete(newNode); // may do nothing
-                        open.delete(newNode); // may do nothing
-                        open.add(newNode);
-                    }
-                }
-            } // end of for block
-            closed.add(bestNode);
-        }
-        return null; // no path found
+        return search.findPath(startLoc, goalLoc, map, directions);
     } // end of aStarSearch()
     
 
     /**
      * Searches the given map for a path from the specified start to 
-     * the specified goal by stepping in any direction.
+     * the specified goal by stepping in any direction the map
+     * allows.
      * 
      * @param startLoc The starting location.
      * @param goalLoc The goal.
@@ -108,7 +95,33 @@ public class MHPathFinder
      */
     public static MHNodePath aStarSearch(final MHMapCellAddress startLoc, final MHMapCellAddress goalLoc, MHTileMap map)
     {
-        final MHTileMapDirection[] directions = MHTileMapDirection.values();
+        final MHTileMapDirection[] directions = map.getDirections();
         return aStarSearch(startLoc, goalLoc, map, directions);
     } // end of aStarSearch()
+
+
+    /**
+     * Searches for a path from the specified start to the specified
+     * goal with jump point search, stepping in any of the eight
+     * directions.  On open ground this expands far fewer cells than
+     * aStarSearch(), and the path found is the shortest there is.
+     * If the grid was given a jump table with buildJumpTable(), the
+     * search uses it.
+     * 
+     * Maps whose cells don't form a square grid fall back to
+     * aStarSearch().
+     * 
+     * @param startLoc The starting location.
+     * @param goalLoc The goal.
+     * @param grid The walkability of the map to be searched.
+     * 
+     * @return An MHNodePath from the start to the goal, or null if no path found.
+     */
+    public static MHNodePath jumpPointSearch(final MHMapCellAddress startLoc, final MHMapCellAddress goalLoc, MHJumpPointGrid grid)
+    {
+        if (!grid.isSquareGrid())
+            return aStarSearch(startLoc, goalLoc, grid.getMap());
+
+        return JUMP_SEARCHES.get().findPath(startLoc, goalLoc, grid);
+    } // end of jumpPointSearch()
 }
@@ -0,0 +1,237 @@
+package mhframework.ai.path;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * A request for a path, handed back by <tt>MHPathService</tt>.
+ *
+ * <p>A game loop can poll <tt>isDone()</tt> each frame and pick up
+ * the path with <tt>getPath()</tt> once it is, without ever waiting.
+ * Other threads can wait for the path with <tt>get()</tt>, as with
+ * any <tt>Future</tt>.
+ */
+public class MHPathRequest implements Future<MHNodePath>, Comparable<MHPathRequest>
+{
+    private final MHMapCellAddress start, goal;
+    private final MHTileMapDirection[] directions;
+    private final int priority;
+
+    /** Order in which the request was made, to break priority
+     * ties. */
+    private final long sequence;
+
+    /** When the request was made and finished, in nanoseconds. */
+    private final long requestTime;
+    private long finishTime;
+
+    private MHNodePath path;
+    private boolean started, done, cancelled;
+
+
+    /****************************************************************
+     * Constructor.  Requests are made by <tt>MHPathService</tt>.
+     */
+    MHPathRequest(final MHMapCellAddress start, final MHMapCellAddress goal,
+            final MHTileMapDirection[] directions, final int priority, final long sequence)
+    {
+        this.start = start;
+        this.goal = goal;
+        this.directions = directions;
+        this.priority = priority;
+        this.sequence = sequence;
+
+        requestTime = System.nanoTime();
+    }
+
+
+    public MHMapCellAddress getStart()
+    {
+        return start;
+    }
+
+
+    public MHMapCellAddress getGoal()
+    {
+        return goal;
+    }
+
+
+    MHTileMapDirection[] getDirections()
+    {
+        return directions;
+    }
+
+
+    /****************************************************************
+     * Returns the request's priority.  Requests with higher
+     * priorities are searched first.
+     */
+    public int getPriority()
+    {
+        return priority;
+    }
+
+
+    /****************************************************************
+     * Returns the path found, or null if the search hasn't finished,
+     * was cancelled, or found no path.  Never waits.
+     */
+    public synchronized MHNodePath getPath()
+    {
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns true once the search has started.
+     */
+    public synchronized boolean isStarted()
+    {
+        return started;
+    }
+
+
+    /****************************************************************
+     * Returns true once the search has finished or been cancelled.
+     */
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+
+    /****************************************************************
+     * Cancels the request.  A search that is under way is abandoned
+     * at its next check.
+     *
+     * @param mayInterruptIfRunning  Ignored; searches are never
+     *                               interrupted.
+     *
+     * @return False if the search had already finished.
+     */
+    public synchronized boolean cancel(final boolean mayInterruptIfRunning)
+    {
+        if (done)
+            return false;
+
+        cancelled = true;
+        done = true;
+        finishTime = System.nanoTime();
+        notifyAll();
+
+        return true;
+    }
+
+
+    /****************************************************************
+     * Waits for the search to finish.
+     *
+     * @return The path found, or null if there is none.
+     *
+     * @throws CancellationException if the request was cancelled.
+     */
+    public synchronized MHNodePath get() throws InterruptedException
+    {
+        while (!done)
+            wait();
+
+        if (cancelled)
+            throw new CancellationException();
+
+        return path;
+    }
+
+
+    /****************************************************************
+     * Waits a limited time for the search to finish.
+     *
+     * @return The path found, or null if there is none.
+     *
+     * @throws CancellationException if the request was cancelled.
+     * @throws TimeoutException if the search didn't finish in time.
+     */
+    public synchronized MHNodePath get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, TimeoutException
+    {
+        final long end = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!done)
+        {
+            final long remaining = end - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        if (cancelled)
+            throw new CancellationException();
+
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns the time from the request to the end of its search in
+     * microseconds, or -1 if the search hasn't finished.
+     */
+    public synchronized long getLatency()
+    {
+        return done ? (finishTime - requestTime) / 1000 : -1;
+    }
+
+
+    /****************************************************************
+     * Orders requests by priority, highest first, and then in the
+     * order they were made.
+     */
+    public int compareTo(final MHPathRequest other)
+    {
+        if (priority != other.priority)
+            return (priority > other.priority) ? -1 : 1;
+
+        return (sequence < other.sequence) ? -1 : (sequence > other.sequence) ? 1 : 0;
+    }
+
+
+    /****************************************************************
+     * Marks the search as started.
+     *
+     * @return False if the request was cancelled before it started.
+     */
+    synchronized boolean begin()
+    {
+        if (cancelled)
+            return false;
+
+        started = true;
+        return true;
+    }
+
+
+    /****************************************************************
+     * Records the path found and wakes any threads waiting for it.
+     */
+    synchronized void finish(final MHNodePath path)
+    {
+        if (done)
+            return;
+
+        this.path = path;
+        done = true;
+        finishTime = System.nanoTime();
+        notifyAll();
+    }
+}
@@ -0,0 +1,376 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHConnectivityMap;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * The A* search behind <tt>MHPathFinder</tt>, written to be reused.
+ *
+ * <p>Cells are handled by their index in the map's grids rather than
+ * as node objects.  The open list is a binary heap that knows where
+ * each cell is stored, and the costs and parents are kept in
+ * arrays indexed by cell.  Rather than being cleared before
+ * each search, the arrays are stamped with a search number, so
+ * starting a search costs nothing however large the map.  A search
+ * creates no objects unless it is asked for an <tt>MHNodePath</tt>.
+ *
+ * <p>A search object is not thread safe.  Give each thread its own,
+ * as <tt>MHPathFinder</tt> does.
+ */
+public class MHPathSearch
+{
+    /** Returned by <tt>resume()</tt> while a search is unfinished. */
+    public static final int SEARCHING = -2;
+
+    /** Cost of the cheapest known path from the start to each
+     * cell. */
+    private double[] costs = new double[0];
+
+    /** The cell before each cell on its cheapest known path. */
+    private int[] parents = new int[0];
+
+    /** Cells stamped with the current search number have been
+     * reached, and their cost and parent are valid. */
+    private int[] opened = new int[0];
+
+    /** The current search number. */
+    private int stamp = 0;
+
+    /** Cells waiting to be expanded, by estimated total cost. */
+    private final MHIndexedHeap open = new MHIndexedHeap(0);
+
+    /** Cells of the last path found, not counting the start. */
+    private int[] path = new int[64];
+
+    /** Number of cells in the last path found, or -1 if none was. */
+    private int pathLength = -1;
+
+    /** Number of cells expanded by the last search. */
+    private int expanded;
+
+    /** Scratch address for stepping to neighbors. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+
+    /** The map being searched, or null if no search is under way. */
+    private MHTileMap map;
+
+    /** Estimates the cost remaining to the goal. */
+    private MHHeuristic heuristic = MHHeuristics.MAP;
+
+    /** Gives the cost of each step. */
+    private MHCostModel costModel = MHCostModels.UNIFORM;
+
+    /** The heuristic's estimates are multiplied by this. */
+    private double scale = 1.0;
+
+    /** The directions, start and goal of the search under way. */
+    private MHTileMapDirection[] directions;
+    private int start, goal, goalRow, goalColumn;
+
+
+    /****************************************************************
+     * Sets the heuristic used to estimate the cost remaining to the
+     * goal.  The default is <tt>MHHeuristics.MAP</tt>, the map's
+     * <tt>getDistance()</tt>.
+     */
+    public void setHeuristic(final MHHeuristic heuristic)
+    {
+        this.heuristic = (heuristic == null) ? MHHeuristics.MAP : heuristic;
+    }
+
+
+    public MHHeuristic getHeuristic()
+    {
+        return heuristic;
+    }
+
+
+    /****************************************************************
+     * Sets the cost model that prices each step.  The default is
+     * <tt>MHCostModels.UNIFORM</tt>, where every step costs 1.
+     */
+    public void setCostModel(final MHCostModel costModel)
+    {
+        this.costModel = (costModel == null) ? MHCostModels.UNIFORM : costModel;
+    }
+
+
+    public MHCostModel getCostModel()
+    {
+        return costModel;
+    }
+
+
+    /****************************************************************
+     * Searches a map for a path between two cells, stepping only in
+     * the given directions onto cells that can be walked on.  Steps
+     * are priced by the cost model and the cost remaining is
+     * estimated by the heuristic.  By default every step costs 1,
+     * and the map's <tt>getDistance()</tt> estimates the cost
+     * remaining.
+     *
+     * @param map          The map to be searched.
+     * @param startRow     The row of the start.
+     * @param startColumn  The column of the start.
+     * @param goalRow      The row of the goal.
+     * @param goalColumn   The column of the goal.
+     * @param directions   The directions in which a unit can step.
+     *
+     * @return The number of steps in the path found, or -1 if there
+     *         is none.  The cells are in <tt>getPath()</tt>.
+     */
+    public int search(final MHTileMap map, final int startRow, final int startColumn,
+            final int goalRow, final int goalColumn, final MHTileMapDirection[] directions)
+    {
+        begin(map, startRow, startColumn, goalRow, goalColumn, directions);
+        return resume(Integer.MAX_VALUE);
+    }
+
+
+    /****************************************************************
+     * Starts a search that can be carried out a little at a time
+     * with <tt>resume()</tt>, for example to spread a long search
+     * over several frames.  The map shouldn't change until the
+     * search is finished.
+     *
+     * @see #search(MHTileMap, int, int, int, int, MHTileMapDirection[])
+     */
+    public void begin(final MHTileMap map, final int startRow, final int startColumn,
+            final int goalRow, final int goalColumn, final MHTileMapDirection[] directions)
+    {
+        final MHMap data = map.getMapData();
+
+        pathLength = -1;
+        expanded = 0;
+        this.map = null;
+
+        if (!data.isValidCell(startRow, startColumn) || !data.isValidCell(goalRow, goalColumn))
+            return;
+
+        // Don't search the whole of the start's region for a goal
+        // that isn't in it.
+        final MHConnectivityMap regions = data.getConnectivityMap();
+        if (regions != null && regions.isUnreachable(startRow, startColumn, goalRow, goalColumn, directions))
+            return;
+
+        prepare(data.getWidth() * data.getHeight());
+
+        this.map = map;
+        this.directions = directions;
+        this.goalRow = goalRow;
+        this.goalColumn = goalColumn;
+        start = data.getCellIndex(startRow, startColumn);
+        goal = data.getCellIndex(goalRow, goalColumn);
+        scale = costModel.getMinimumCost();
+
+        costs[start] = 0.0;
+        parents[start] = -1;
+        opened[start] = stamp;
+        open.add(start, scale * heuristic.estimate(map, startRow, startColumn, goalRow, goalColumn));
+    }
+
+
+    /****************************************************************
+     * Carries on with the search started by <tt>begin()</tt>.
+     *
+     * @param maxExpansions  The most cells to expand before
+     *                       returning.
+     *
+     * @return <tt>SEARCHING</tt> if the search isn't finished,
+     *         otherwise the number of steps in the path found, or -1
+     *         if there is none.
+     */
+    public int resume(final int maxExpansions)
+    {
+        if (map == null)
+            return pathLength;
+
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+
+        for (int count = 0; count < maxExpansions; count++)
+        {
+            if (open.isEmpty())
+            {
+                map = null;
+                return -1;
+            }
+
+            final int best = open.removeFirst();
+
+            if (best == goal)
+            {
+                buildPath(start, goal);
+                open.clear();
+                map = null;
+                return pathLength;
+            }
+
+            expanded++;
+
+            final int row = best / width;
+            final int column = best % width;
+
+            for (int i = 0; i < directions.length; i++)
+            {
+                map.tileWalk(row, column, directions[i], neighbor);
+
+                if (!data.canWalkOn(neighbor.row, neighbor.column))
+                    continue;
+
+                final double step = costModel.getStepCost(map, row, column,
+                                neighbor.row, neighbor.column, directions[i]);
+                if (step < 0.0)
+                    continue;
+
+                final double newCost = costs[best] + step;
+                final int next = data.getCellIndex(neighbor.row, neighbor.column);
+
+                // Ignore the neighbor if it already has a path at
+                // least as cheap, whether it is still open or has
+                // been closed.  A closed cell reached more cheaply
+                // is opened again.
+                if (opened[next] == stamp && costs[next] <= newCost)
+                    continue;
+
+                costs[next] = newCost;
+                parents[next] = best;
+                opened[next] = stamp;
+
+                open.add(next, newCost + scale * heuristic.estimate(map,
+                                neighbor.row, neighbor.column, goalRow, goalColumn));
+            }
+        }
+
+        return SEARCHING;
+    }
+
+
+    /****************************************************************
+     * Returns true if a search started by <tt>begin()</tt> hasn't
+     * finished.
+     */
+    public boolean isSearching()
+    {
+        return map != null;
+    }
+
+
+    /****************************************************************
+     * Searches a map for a path between two cells and returns it as
+     * a list of nodes, the way <tt>MHPathFinder</tt> always has.
+     *
+     * @return A path from the cell after the start to the goal, or
+     *         null if there is none.
+     */
+    public MHNodePath findPath(final MHMapCellAddress start, final MHMapCellAddress goal,
+            final MHTileMap map, final MHTileMapDirection[] directions)
+    {
+        if (search(map, start.row, start.column, goal.row, goal.column, directions) < 0)
+            return null;
+
+        return toNodePath(start, map.getMapData().getWidth());
+    }
+
+
+    /****************************************************************
+     * Returns the last path found as a list of nodes.
+     */
+    MHNodePath toNodePath(final MHMapCellAddress start, final int width)
+    {
+        final MHNodePath nodes = new MHNodePath();
+
+        MHNode parent = new MHNode(start);
+        for (int i = 0; i < pathLength; i++)
+        {
+            final MHNode node = new MHNode(new MHMapCellAddress(path[i] / width, path[i] % width));
+            node.setCostFromStart(costs[path[i]]);
+            node.setParent(parent);
+            nodes.add(node);
+            parent = node;
+        }
+
+        return nodes;
+    }
+
+
+    /****************************************************************
+     * Returns the cell indices of the last path found, from the
+     * cell after the start to the goal.  Only the first
+     * <tt>getPathLength()</tt> entries are valid, and the array is
+     * reused by the next search.
+     */
+    public int[] getPath()
+    {
+        return path;
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells in the last path found, or -1 if
+     * none was found.
+     */
+    public int getPathLength()
+    {
+        return pathLength;
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells the last search expanded.
+     */
+    public int getExpandedCount()
+    {
+        return expanded;
+    }
+
+
+    /****************************************************************
+     * Makes sure the arrays cover every cell and starts a new search
+     * number.
+     */
+    private void prepare(final int size)
+    {
+        if (costs.length < size)
+        {
+            costs = new double[size];
+            parents = new int[size];
+            opened = new int[size];
+            stamp = 0;
+        }
+
+        open.ensureCapacity(size);
+        open.clear();
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(opened, 0);
+            stamp = 1;
+        }
+    }
+
+
+    /****************************************************************
+     * Follows the parents back from the goal to fill in the path.
+     */
+    private void buildPath(final int start, final int goal)
+    {
+        int length = 0;
+        for (int cell = goal; cell != start; cell = parents[cell])
+            length++;
+
+        if (path.length < length)
+            path = new int[Integer.highestOneBit(length) * 2];
+
+        int i = length;
+        for (int cell = goal; cell != start; cell = parents[cell])
+            path[--i] = cell;
+
+        pathLength = length;
+    }
+}
@@ -0,0 +1,356 @@
+package mhframework.ai.path;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import mhframework.tilemap.MHMapCellAddress;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+
+
+/********************************************************************
+ * Finds paths without holding up the game loop.  Callers make a
+ * request and get back an <tt>MHPathRequest</tt> that is filled in
+ * when the search is done.
+ *
+ * <p>Searches are carried out in one of two ways:
+ * <ul>
+ * <li>On a pool of worker threads, when the service is constructed
+ *     with a number of threads.</li>
+ * <li>On the game thread, a slice at a time, in <tt>advance()</tt>.
+ *     Each frame spends at most the time budget searching, so a long
+ *     search is spread over several frames instead of making one of
+ *     them late.</li>
+ * </ul>
+ *
+ * <p>Requests with higher priorities are searched first.  A search
+ * that has started finishes before another starts on the same
+ * thread, even if a more urgent request arrives meanwhile.  If the
+ * map changes while a sliced search is under way, the search carries
+ * on with the changed map.
+ *
+ * <p>Call <tt>advance()</tt> once per frame in either case; it also
+ * collects the throughput figures for the frame.
+ */
+public class MHPathService
+{
+    /** The default number of microseconds per frame spent searching
+     * on the game thread. */
+    public static final int DEFAULT_TIME_BUDGET = 2000;
+
+    /** Cells expanded between checks of the clock and of
+     * cancellation. */
+    private static final int SLICE = 64;
+
+    /** Each worker thread keeps its own search object. */
+    private static final ThreadLocal<MHPathSearch> SEARCHES = new ThreadLocal<MHPathSearch>()
+    {
+        @Override
+        protected MHPathSearch initialValue()
+        {
+            return new MHPathSearch();
+        }
+    };
+
+    /** The map to be searched. */
+    private final MHTileMap map;
+
+    /** Worker threads, or null to search on the game thread. */
+    private final ExecutorService pool;
+
+    /** Requests waiting to be searched, most urgent first. */
+    private final PriorityBlockingQueue<MHPathRequest> queue =
+        new PriorityBlockingQueue<MHPathRequest>();
+
+    /** Number of requests made so far. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Search used on the game thread, and the request it is working
+     * on. */
+    private final MHPathSearch slicedSearch = new MHPathSearch();
+    private MHPathRequest current;
+
+    /** Microseconds per frame spent searching on the game thread. */
+    private int timeBudget = DEFAULT_TIME_BUDGET;
+
+    /** Counts since the last frame. */
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong expanded = new AtomicLong();
+
+    /** Figures for the last frame. */
+    private int frameCompleted;
+    private long frameExpanded, frameTime;
+
+    /** Totals. */
+    private long totalCompleted, totalExpanded;
+
+
+    /****************************************************************
+     * Constructor.  Searches are carried out on the game thread in
+     * <tt>advance()</tt>.
+     *
+     * @param map  The map to be searched.
+     */
+    public MHPathService(final MHTileMap map)
+    {
+        this(map, 0);
+    }
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param map      The map to be searched.
+     * @param threads  The number of worker threads to search on, or
+     *                 0 to search on the game thread in
+     *                 <tt>advance()</tt>.
+     */
+    public MHPathService(final MHTileMap map, final int threads)
+    {
+        this.map = map;
+        pool = (threads > 0) ? Executors.newFixedThreadPool(threads) : null;
+    }
+
+
+    /****************************************************************
+     * Requests a path stepping in any direction the map allows, at
+     * priority 0.
+     */
+    public MHPathRequest request(final MHMapCellAddress start, final MHMapCellAddress goal)
+    {
+        return request(start, goal, map.getDirections(), 0);
+    }
+
+
+    /****************************************************************
+     * Requests a path.
+     *
+     * @param start       The starting location.
+     * @param goal        The goal.
+     * @param directions  The directions in which a unit can step.
+     * @param priority    Requests with higher priorities are searched
+     *                    first.
+     *
+     * @return A handle from which to get the path.
+     */
+    public MHPathRequest request(final MHMapCellAddress start, final MHMapCellAddress goal,
+            final MHTileMapDirection[] directions, final int priority)
+    {
+        final MHPathRequest request = new MHPathRequest(start, goal, directions,
+                        priority, sequence.getAndIncrement());
+        queue.add(request);
+
+        // Each task searches for whichever request is most urgent
+        // when a worker gets to it, not necessarily this one.
+        if (pool != null)
+        {
+            pool.execute(new Runnable()
+            {
+                public void run()
+                {
+                    final MHPathRequest next = queue.poll();
+                    if (next != null)
+                        searchOnWorker(next);
+                }
+            });
+        }
+
+        return request;
+    }
+
+
+    /****************************************************************
+     * Carries out sliced searches within the time budget, and
+     * collects the throughput figures for the frame.  Call once per
+     * frame.
+     */
+    public void advance()
+    {
+        final long begin = System.nanoTime();
+
+        if (pool == null)
+            searchSlices(begin + timeBudget * 1000L);
+
+        frameTime = (System.nanoTime() - begin) / 1000;
+        frameCompleted = completed.getAndSet(0);
+        frameExpanded = expanded.getAndSet(0);
+        totalCompleted += frameCompleted;
+        totalExpanded += frameExpanded;
+    }
+
+
+    /****************************************************************
+     * Sets the most microseconds per frame to spend searching on the
+     * game thread.
+     */
+    public void setTimeBudget(final int microseconds)
+    {
+        timeBudget = Math.max(0, microseconds);
+    }
+
+
+    public int getTimeBudget()
+    {
+        return timeBudget;
+    }
+
+
+    /****************************************************************
+     * Returns the number of requests waiting for their search to
+     * start.
+     */
+    public int getPendingCount()
+    {
+        return queue.size();
+    }
+
+
+    /****************************************************************
+     * Returns the number of searches finished during the last frame.
+     */
+    public int getFrameCompleted()
+    {
+        return frameCompleted;
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells expanded during the last frame.
+     */
+    public long getFrameExpanded()
+    {
+        return frameExpanded;
+    }
+
+
+    /****************************************************************
+     * Returns the microseconds the last <tt>advance()</tt> spent
+     * searching.
+     */
+    public long getFrameTime()
+    {
+        return frameTime;
+    }
+
+
+    public long getTotalCompleted()
+    {
+        return totalCompleted;
+    }
+
+
+    public long getTotalExpanded()
+    {
+        return totalExpanded;
+    }
+
+
+    /****************************************************************
+     * Cancels every request and stops the worker threads.
+     */
+    public void shutdown()
+    {
+        final ArrayList<MHPathRequest> pending = new ArrayList<MHPathRequest>();
+        queue.drainTo(pending);
+
+        for (int i = 0; i < pending.size(); i++)
+            pending.get(i).cancel(false);
+
+        if (current != null)
+        {
+            current.cancel(false);
+            current = null;
+        }
+
+        if (pool != null)
+            pool.shutdown();
+    }
+
+
+    /****************************************************************
+     * Searches on the game thread until the deadline, picking up
+     * where the last frame left off.
+     */
+    private void searchSlices(final long deadline)
+    {
+        do
+        {
+            if (current == null)
+            {
+                current = queue.poll();
+                if (current == null)
+                    return;
+
+                if (!current.begin())
+                {
+                    current = null;
+                    continue;
+                }
+
+                start(slicedSearch, current);
+            }
+
+            if (current.isCancelled())
+            {
+                current = null;
+                continue;
+            }
+
+            if (step(slicedSearch, current))
+                current = null;
+        }
+        while (System.nanoTime() < deadline);
+    }
+
+
+    /****************************************************************
+     * Carries out a whole search on a worker thread, checking for
+     * cancellation as it goes.
+     */
+    private void searchOnWorker(final MHPathRequest request)
+    {
+        if (!request.begin())
+            return;
+
+        final MHPathSearch search = SEARCHES.get();
+        start(search, request);
+
+        while (!step(search, request))
+        {
+            if (request.isCancelled())
+                return;
+        }
+    }
+
+
+    private void start(final MHPathSearch search, final MHPathRequest request)
+    {
+        final MHMapCellAddress start = request.getStart(), goal = request.getGoal();
+        search.begin(map, start.row, start.column, goal.row, goal.column, request.getDirections());
+    }
+
+
+    /****************************************************************
+     * Expands a slice of cells.
+     *
+     * @return True if the search finished.
+     */
+    private boolean step(final MHPathSearch search, final MHPathRequest request)
+    {
+        final int before = search.getExpandedCount();
+        final int result = search.resume(SLICE);
+        expanded.addAndGet(search.getExpandedCount() - before);
+
+        if (result == MHPathSearch.SEARCHING)
+            return false;
+
+        completed.incrementAndGet();
+        request.finish((result < 0) ? null
+                        : search.toNodePath(request.getStart(), map.getMapData().getWidth()));
+
+        return true;
+    }
+}
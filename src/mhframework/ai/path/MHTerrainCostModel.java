@@ -0,0 +1,178 @@
+package mhframework.ai.path;
+
+import java.util.Arrays;
+import mhframework.tilemap.MHMap;
+import mhframework.tilemap.MHMapCell;
+import mhframework.tilemap.MHTileMap;
+import mhframework.tilemap.MHTileMapDirection;
+import mhframework.tilemap.MHTileSetManager;
+
+
+/********************************************************************
+ * A cost model that prices each cell by the tiles in its layers.
+ *
+ * <p>Costs are assigned to tile IDs in particular layers.  A cell
+ * costs whatever the highest of its layers with a priced tile says,
+ * so a road on the floor detail layer overrides the grass on the
+ * floor beneath it.  A cell with no priced tile costs the default.
+ * A negative cost makes a tile impassable to units using the model,
+ * even if the map says the cell can be walked on.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHTerrainCostModel terrain = new MHTerrainCostModel();
+ *     terrain.setTileCost(MHMapCell.FLOOR_DETAIL_LAYER, ROAD_TILE, 0.5);
+ *     terrain.setTileCost(MHMapCell.FLOOR_LAYER, SWAMP_TILE, 4.0);
+ *     terrain.setDiagonalCost(Math.sqrt(2.0));
+ *
+ *     path = MHPathFinder.aStarSearch(start, goal, map, map.getDirections(),
+ *                                     MHHeuristics.OCTILE, terrain);
+ * </pre>
+ */
+public class MHTerrainCostModel implements MHCostModel
+{
+    /** Cost of each tile ID in each layer, or NaN if none has been
+     * set. */
+    private final double[][] tileCosts = new double[MHMapCell.NUM_LAYERS][];
+
+    /** Cost of cells with no priced tile. */
+    private double defaultCost = 1.0;
+
+    /** Multiplier for steps that change both row and column. */
+    private double diagonalCost = 1.0;
+
+
+    /****************************************************************
+     * Sets the cost of stepping into a cell showing a tile in a
+     * layer.
+     *
+     * @param layer   The layer, for example
+     *                <tt>MHMapCell.FLOOR_LAYER</tt>.
+     * @param tileID  The tile ID.
+     * @param cost    The cost, greater than zero, or a negative
+     *                number to make the tile impassable.
+     */
+    public void setTileCost(final int layer, final int tileID, final double cost)
+    {
+        if (cost == 0.0 || tileID < 0 || tileID == MHTileSetManager.NULL_TILE_ID)
+        {
+            System.err.println("ERROR:  Invalid tile cost:  layer " + layer
+                            + ", tile " + tileID + ", cost " + cost);
+            return;
+        }
+
+        double[] costs = tileCosts[layer];
+        if (costs == null || costs.length <= tileID)
+        {
+            final int oldLength = (costs == null) ? 0 : costs.length;
+            costs = (costs == null) ? new double[tileID + 1]
+                                    : Arrays.copyOf(costs, Math.max(tileID + 1, oldLength * 2));
+            Arrays.fill(costs, oldLength, costs.length, Double.NaN);
+            tileCosts[layer] = costs;
+        }
+
+        costs[tileID] = cost;
+    }
+
+
+    /****************************************************************
+     * Forgets the cost of a tile in a layer.
+     */
+    public void clearTileCost(final int layer, final int tileID)
+    {
+        final double[] costs = tileCosts[layer];
+        if (costs != null && tileID >= 0 && tileID < costs.length)
+            costs[tileID] = Double.NaN;
+    }
+
+
+    /****************************************************************
+     * Sets the cost of cells with no priced tile.
+     */
+    public void setDefaultCost(final double cost)
+    {
+        if (cost > 0.0)
+            defaultCost = cost;
+    }
+
+
+    public double getDefaultCost()
+    {
+        return defaultCost;
+    }
+
+
+    /****************************************************************
+     * Sets the multiplier for the cost of diagonal steps, for
+     * example the square root of two on a square grid.
+     */
+    public void setDiagonalCost(final double multiplier)
+    {
+        if (multiplier > 0.0)
+            diagonalCost = multiplier;
+    }
+
+
+    public double getDiagonalCost()
+    {
+        return diagonalCost;
+    }
+
+
+    /****************************************************************
+     * Returns the cost of stepping into a cell, before the diagonal
+     * multiplier, or a negative number if the cell is impassable.
+     */
+    public double getCellCost(final MHMap map, final int row, final int column)
+    {
+        for (int layer = MHMapCell.NUM_LAYERS - 1; layer >= 0; layer--)
+        {
+            final double[] costs = tileCosts[layer];
+            if (costs == null)
+                continue;
+
+            final int tileID = map.getTileID(row, column, layer);
+            if (tileID >= 0 && tileID < costs.length && !Double.isNaN(costs[tileID]))
+                return costs[tileID];
+        }
+
+        return defaultCost;
+    }
+
+
+    public double getStepCost(final MHTileMap map, final int fromRow, final int fromColumn,
+            final int toRow, final int toColumn, final MHTileMapDirection direction)
+    {
+        final double cost = getCellCost(map.getMapData(), toRow, toColumn);
+
+        if (cost > 0.0 && fromRow != toRow && fromColumn != toColumn)
+            return cost * diagonalCost;
+
+        return cost;
+    }
+
+
+    /****************************************************************
+     * Returns the lowest cost of any cell, times the diagonal
+     * multiplier if that is below 1.
+     */
+    public double getMinimumCost()
+    {
+        double min = defaultCost;
+
+        for (int layer = 0; layer < tileCosts.length; layer++)
+        {
+            final double[] costs = tileCosts[layer];
+            if (costs == null)
+                continue;
+
+            for (int i = 0; i < costs.length; i++)
+            {
+                if (costs[i] > 0.0 && costs[i] < min)
+                    min = costs[i];
+            }
+        }
+
+        return min * Math.min(1.0, diagonalCost);
+    }
+}
@@ -0,0 +1,237 @@
+package mhframework.media;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/********************************************************************
+ * Keeps pre-shrunk copies of images for drawing at reduced scales.
+ * Level 0 is the original image, level 1 is half size, level 2 is
+ * quarter size, and so on.  Each level is made by smoothly halving
+ * the level above it, once, the first time it is asked for.
+ * Drawing the right level at its natural size is much cheaper than
+ * having Java2D scale the original every frame, and it looks
+ * better too.
+ *
+ * <p>Entries are dropped automatically when their original image is
+ * no longer used anywhere else.
+ *
+ * <p>This class may be used from several threads at once.
+ */
+public final class MHMipmapCache
+{
+    /** The smallest level that will be made, 1/64 scale. */
+    public static final int MAX_LEVEL = 6;
+
+    /** Shrunken copies of each image, indexed by level. */
+    private static final Map<Image, Image[]> levels = new WeakHashMap<Image, Image[]>();
+
+    /** Average color of each image. */
+    private static final Map<Image, Integer> averages = new WeakHashMap<Image, Integer>();
+
+
+    private MHMipmapCache()
+    {
+    }
+
+
+    /****************************************************************
+     * Returns an image shrunk to the given level.
+     *
+     * @param image  The original image.
+     * @param level  The number of times the image is halved, from 0
+     *               to <tt>MAX_LEVEL</tt>.
+     *
+     * @return The shrunken image, or the original if it can't be
+     *         shrunk yet (for example, it hasn't finished loading).
+     */
+    public static Image getImage(final Image image, final int level)
+    {
+        if (level <= 0 || image == null)
+            return image;
+
+        final int n = Math.min(level, MAX_LEVEL);
+
+        synchronized (levels)
+        {
+            Image[] chain = levels.get(image);
+            if (chain == null)
+            {
+                chain = new Image[MAX_LEVEL + 1];
+                chain[0] = image;
+                levels.put(image, chain);
+            }
+
+            for (int i = 1; i <= n; i++)
+            {
+                if (chain[i] == null)
+                {
+                    chain[i] = halve(chain[i - 1]);
+                    if (chain[i] == null)
+                        return image;
+                }
+            }
+
+            return chain[n];
+        }
+    }
+
+
+    /****************************************************************
+     * Makes every level of an image up to the given one ahead of
+     * time, so that the first frame drawn at that level doesn't
+     * stall.
+     */
+    public static void prepare(final Image image, final int level)
+    {
+        getImage(image, level);
+    }
+
+
+    /****************************************************************
+     * Drops the shrunken copies and average color of an image.  Call
+     * this after drawing into an image that may have been shrunk, so
+     * that its levels are made again from the new contents.
+     */
+    public static void invalidate(final Image image)
+    {
+        synchronized (levels)
+        {
+            levels.remove(image);
+        }
+
+        synchronized (averages)
+        {
+            averages.remove(image);
+        }
+    }
+
+
+    /****************************************************************
+     * Returns the average color of the opaque parts of an image.
+     *
+     * @param image  The image.
+     *
+     * @return The average color as an RGB value, or 0 (black) if the
+     *         image is empty or hasn't finished loading.
+     */
+    public static int getAverageColor(final Image image)
+    {
+        if (image == null)
+            return 0;
+
+        synchronized (averages)
+        {
+            final Integer cached = averages.get(image);
+            if (cached != null)
+                return cached.intValue();
+        }
+
+        final BufferedImage pixels = toBufferedImage(image);
+        if (pixels == null)
+            return 0;
+
+        final int w = pixels.getWidth();
+        final int h = pixels.getHeight();
+        final int[] row = new int[w];
+        long r = 0, g = 0, b = 0, weight = 0;
+
+        for (int y = 0; y < h; y++)
+        {
+            pixels.getRGB(0, y, w, 1, row, 0, w);
+
+            for (int x = 0; x < w; x++)
+            {
+                final int argb = row[x];
+                final int a = argb >>> 24;
+
+                r += a * ((argb >> 16) & 0xFF);
+                g += a * ((argb >> 8) & 0xFF);
+                b += a * (argb & 0xFF);
+                weight += a;
+            }
+        }
+
+        int color = 0;
+        if (weight > 0)
+            color = (int) (r / weight) << 16 | (int) (g / weight) << 8 | (int) (b / weight);
+
+        synchronized (averages)
+        {
+            averages.put(image, Integer.valueOf(color));
+        }
+
+        return color;
+    }
+
+
+    /****************************************************************
+     * Empties the cache.
+     */
+    public static void clear()
+    {
+        synchronized (levels)
+        {
+            levels.clear();
+        }
+
+        synchronized (averages)
+        {
+            averages.clear();
+        }
+    }
+
+
+    /****************************************************************
+     * Returns a smoothly shrunken copy of an image at half size, or
+     * null if the image's size isn't known yet.
+     */
+    private static Image halve(final Image image)
+    {
+        final int w = image.getWidth(null);
+        final int h = image.getHeight(null);
+
+        if (w <= 0 || h <= 0)
+            return null;
+
+        final BufferedImage half = new BufferedImage(Math.max(1, w / 2),
+                Math.max(1, h / 2), BufferedImage.TYPE_INT_ARGB_PRE);
+        final Graphics2D g = half.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, half.getWidth(), half.getHeight(), null);
+        g.dispose();
+
+        return half;
+    }
+
+
+    /****************************************************************
+     * Returns the image as a BufferedImage, copying it if necessary,
+     * or null if its size isn't known yet.
+     */
+    private static BufferedImage toBufferedImage(final Image image)
+    {
+        if (image instanceof BufferedImage)
+            return (BufferedImage) image;
+
+        final int w = image.getWidth(null);
+        final int h = image.getHeight(null);
+
+        if (w <= 0 || h <= 0)
+            return null;
+
+        final BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+
+        return copy;
+    }
+}
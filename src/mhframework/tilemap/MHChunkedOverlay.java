@@ -0,0 +1,364 @@
+package mhframework.tilemap;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import mhframework.media.MHMipmapCache;
+
+
+/********************************************************************
+ * Base class for overlays that tint each cell of an isometric map,
+ * such as lighting and fog of war.
+ *
+ * <p>Rather than drawing every cell every frame, the map is divided
+ * into square chunks of cells and each chunk is baked into an image
+ * in world space.  A chunk is only baked again after it has been
+ * invalidated, and then only when it is next on screen, so an
+ * overlay that rarely changes costs one image draw per visible
+ * chunk.
+ *
+ * <p>The baked images don't depend on the scroll position, so one
+ * overlay may be drawn in several views of the same map, each view
+ * reusing the chunks baked for the others.  Zoomed-out views draw
+ * shrunken copies of the chunks kept by <tt>MHMipmapCache</tt>,
+ * which are made again only after a chunk has been baked again.
+ *
+ * <p>Subclasses supply the color of each cell, or override
+ * <tt>bakeCell()</tt> to draw something else, and call one of the
+ * <tt>invalidate</tt> methods whenever cells change.
+ */
+public abstract class MHChunkedOverlay
+{
+    /** Width and height of a chunk in cells. */
+    public static final int CHUNK_SIZE = 16;
+
+    /** The map the overlay is drawn over. */
+    protected final MHIsometricMap map;
+
+    /** Number of chunks down and across the map. */
+    private int chunkRows, chunkColumns;
+
+    /** Baked images of the chunks. */
+    private BufferedImage[] images;
+
+    /** World space bounds of the chunks. */
+    private int[] chunkX, chunkY, chunkWidth, chunkHeight;
+
+    /** Set bits mark chunks whose bounds have been calculated. */
+    private final BitSet measured = new BitSet();
+
+    /** Set bits mark chunks that must be baked again. */
+    private final BitSet dirty = new BitSet();
+
+    /** The tile width the chunk bounds were calculated for. */
+    private int builtTileWidth;
+
+    /** Outline of a single cell. */
+    private Polygon outline;
+
+    /** The color last used by <tt>bakeCell()</tt>. */
+    private int bakeColor;
+
+    /** Scratch point for plotting cells. */
+    private final Point plotPoint = new Point();
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param map  The map the overlay is drawn over.
+     */
+    protected MHChunkedOverlay(final MHIsometricMap map)
+    {
+        this.map = map;
+    }
+
+
+    /****************************************************************
+     * Returns the color with which to tint a map cell.  The default
+     * leaves every cell untouched.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     *
+     * @return The tint as an ARGB value.  A value with an alpha of
+     *         zero leaves the cell untouched.
+     */
+    protected int getCellColor(final int row, final int column)
+    {
+        return 0;
+    }
+
+
+    /****************************************************************
+     * Returns the distance in pixels above its base tile that a cell
+     * may draw.  The default is 0, for overlays that only cover base
+     * tiles.
+     */
+    protected int getCellOverhang()
+    {
+        return 0;
+    }
+
+
+    /****************************************************************
+     * Draws a single cell into a chunk image.  The default fills the
+     * cell's outline with the color from <tt>getCellColor()</tt>.
+     *
+     * @param g       The graphics object of the chunk image.  Its
+     *                composite starts out as
+     *                <tt>AlphaComposite.Src</tt>, which replaces
+     *                pixels rather than blending them.
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     * @param x       The x coordinate of the cell's base tile in
+     *                the chunk image.
+     * @param y       The y coordinate of the cell's base tile in
+     *                the chunk image.
+     */
+    protected void bakeCell(final Graphics2D g, final int row, final int column,
+            final int x, final int y)
+    {
+        final int color = getCellColor(row, column);
+        if ((color >>> 24) == 0)
+            return;
+
+        // Neighboring cells usually share a color.
+        if (color != bakeColor)
+        {
+            g.setColor(new Color(color, true));
+            bakeColor = color;
+        }
+
+        g.translate(x, y);
+        g.fillPolygon(outline);
+        g.translate(-x, -y);
+    }
+
+
+    /****************************************************************
+     * Marks the chunks containing a rectangle of cells as needing to
+     * be baked again.
+     *
+     * @param minRow     The first row of the rectangle.
+     * @param minColumn  The first column of the rectangle.
+     * @param maxRow     The last row of the rectangle.
+     * @param maxColumn  The last column of the rectangle.
+     */
+    public void invalidate(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        if (images == null)
+            return;
+
+        final int r0 = Math.max(0, minRow / CHUNK_SIZE);
+        final int c0 = Math.max(0, minColumn / CHUNK_SIZE);
+        final int r1 = Math.min(chunkRows - 1, maxRow / CHUNK_SIZE);
+        final int c1 = Math.min(chunkColumns - 1, maxColumn / CHUNK_SIZE);
+
+        for (int r = r0; r <= r1; r++)
+            dirty.set(r * chunkColumns + c0, r * chunkColumns + c1 + 1);
+    }
+
+
+    /****************************************************************
+     * Marks the chunk containing a cell as needing to be baked
+     * again.
+     */
+    public void invalidate(final int row, final int column)
+    {
+        invalidate(row, column, row, column);
+    }
+
+
+    /****************************************************************
+     * Marks every chunk as needing to be baked again.
+     */
+    public void invalidateAll()
+    {
+        if (images != null)
+            dirty.set(0, images.length);
+    }
+
+
+    /****************************************************************
+     * Draws the visible chunks of the overlay, baking any that have
+     * been invalidated.
+     *
+     * @param g  The graphics object on which we are rendering the
+     *           map.
+     */
+    public void render(final Graphics2D g)
+    {
+        render(g, map);
+    }
+
+
+    /****************************************************************
+     * Draws the chunks of the overlay that are visible in a view of
+     * the map, baking any that have been invalidated.
+     *
+     * @param g     The graphics object on which we are rendering the
+     *              map.
+     * @param view  The map the overlay was created for, or another
+     *              view of it with the same tile width.
+     */
+    public void render(final Graphics2D g, final MHIsometricMap view)
+    {
+        validateChunks();
+
+        final Point anchor = view.getScreenAnchor();
+        final int zoom = view.getZoomLevel();
+        final int screenX = (int) view.getScreenSpace().getX();
+        final int screenY = (int) view.getScreenSpace().getY();
+        final int left = anchor.x;
+        final int top = anchor.y;
+        final int right = left + ((int) view.getScreenSpace().getWidth() << zoom);
+        final int bottom = top + ((int) view.getScreenSpace().getHeight() << zoom);
+
+        for (int chunk = 0; chunk < images.length; chunk++)
+        {
+            if (!measured.get(chunk))
+                measureChunk(chunk);
+
+            // skip chunks that are off screen
+            if (chunkX[chunk] >= right || chunkY[chunk] >= bottom
+                    || chunkX[chunk] + chunkWidth[chunk] <= left
+                    || chunkY[chunk] + chunkHeight[chunk] <= top)
+                continue;
+
+            if (images[chunk] == null || dirty.get(chunk))
+                bakeChunk(chunk);
+
+            if (zoom == 0)
+                g.drawImage(images[chunk], chunkX[chunk] - left + screenX,
+                        chunkY[chunk] - top + screenY, null);
+            else
+                g.drawImage(MHMipmapCache.getImage(images[chunk], zoom),
+                        ((chunkX[chunk] - left) >> zoom) + screenX,
+                        ((chunkY[chunk] - top) >> zoom) + screenY, null);
+        }
+    }
+
+
+    /****************************************************************
+     * Allocates the chunk arrays, or reallocates them if the map's
+     * size or tile width has changed.
+     */
+    private void validateChunks()
+    {
+        final int rows = (map.getMapData().getHeight() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int columns = (map.getMapData().getWidth() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        if (images != null && rows == chunkRows && columns == chunkColumns
+                && builtTileWidth == map.getTileWidth())
+            return;
+
+        chunkRows = rows;
+        chunkColumns = columns;
+        builtTileWidth = map.getTileWidth();
+        outline = map.getTileOutline();
+
+        final int n = rows * columns;
+        images = new BufferedImage[n];
+        chunkX = new int[n];
+        chunkY = new int[n];
+        chunkWidth = new int[n];
+        chunkHeight = new int[n];
+        measured.clear();
+        dirty.clear();
+    }
+
+
+    /****************************************************************
+     * Calculates the world space bounds of a chunk.
+     */
+    private void measureChunk(final int chunk)
+    {
+        final int firstRow = (chunk / chunkColumns) * CHUNK_SIZE;
+        final int firstColumn = (chunk % chunkColumns) * CHUNK_SIZE;
+        final int lastRow = Math.min(map.getMapData().getHeight(), firstRow + CHUNK_SIZE) - 1;
+        final int lastColumn = Math.min(map.getMapData().getWidth(), firstColumn + CHUNK_SIZE) - 1;
+        final int tileWidth = map.getTileWidth();
+        final int tileHeight = map.getTileHeight();
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            for (int column = firstColumn; column <= lastColumn; column++)
+            {
+                map.plotTile(row, column, plotPoint);
+                minX = Math.min(minX, plotPoint.x);
+                minY = Math.min(minY, plotPoint.y - getCellOverhang());
+                maxX = Math.max(maxX, plotPoint.x + tileWidth);
+                maxY = Math.max(maxY, plotPoint.y + tileHeight);
+            }
+        }
+
+        chunkX[chunk] = minX;
+        chunkY[chunk] = minY;
+        chunkWidth[chunk] = maxX - minX;
+        chunkHeight[chunk] = maxY - minY;
+        measured.set(chunk);
+    }
+
+
+    /****************************************************************
+     * Draws the cells of a chunk into its image.
+     */
+    private void bakeChunk(final int chunk)
+    {
+        BufferedImage image = images[chunk];
+        if (image == null)
+        {
+            image = new BufferedImage(chunkWidth[chunk], chunkHeight[chunk],
+                    BufferedImage.TYPE_INT_ARGB);
+            images[chunk] = image;
+        }
+
+        final int firstRow = (chunk / chunkColumns) * CHUNK_SIZE;
+        final int firstColumn = (chunk % chunkColumns) * CHUNK_SIZE;
+        final int lastRow = Math.min(map.getMapData().getHeight(), firstRow + CHUNK_SIZE) - 1;
+        final int lastColumn = Math.min(map.getMapData().getWidth(), firstColumn + CHUNK_SIZE) - 1;
+
+        final Graphics2D g = image.createGraphics();
+        try
+        {
+            // Clear whatever was baked before.
+            final Composite c = g.getComposite();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.setComposite(AlphaComposite.Src);
+
+            bakeColor = 0;
+
+            for (int row = firstRow; row <= lastRow; row++)
+            {
+                for (int column = firstColumn; column <= lastColumn; column++)
+                {
+                    map.plotTile(row, column, plotPoint);
+                    bakeCell(g, row, column, plotPoint.x - chunkX[chunk],
+                            plotPoint.y - chunkY[chunk]);
+                }
+            }
+
+            g.setComposite(c);
+        }
+        finally
+        {
+            g.dispose();
+        }
+
+        // Shrunken copies made for zoomed-out views are out of date.
+        MHMipmapCache.invalidate(image);
+
+        dirty.clear(chunk);
+    }
+}
@@ -0,0 +1,624 @@
+package mhframework.tilemap;
+
+import java.util.Arrays;
+
+
+/********************************************************************
+ * Labels the regions of a map that units can move between, so that
+ * whether one cell can be reached from another is answered by
+ * comparing two numbers instead of searching.
+ *
+ * <p>A region is a set of passable cells connected by steps in the
+ * given directions.  Walkers' regions are made of cells that can be
+ * walked on and fliers' of cells that can be flown over.
+ *
+ * <p>The labels are kept up to date as the map changes rather than
+ * worked out again:
+ * <ul>
+ * <li>A cell that opens joins the regions around it into one.</li>
+ * <li>A cell that closes may cut its region in two.  The cells
+ *     around it are searched outward together, a step at a time
+ *     each, until they meet.  If one runs out of cells first, it has
+ *     been cut off and its cells get a new label, so the cost is
+ *     that of the smaller piece, not the whole region.</li>
+ * </ul>
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHConnectivityMap regions = new MHConnectivityMap(tileMap);
+ *     tileMap.getMapData().setConnectivityMap(regions);
+ *     ...
+ *     if (!regions.canReach(row, column, targetRow, targetColumn))
+ *         pickAnotherTarget();
+ * </pre>
+ *
+ * <p>The labels are updated when the map reports its changes, which
+ * is at the end of a batch started with <tt>MHMap.beginUpdate()</tt>.
+ * Until then they describe the map as it was before the batch.
+ *
+ * <p>Once a walkers' map is set with
+ * <tt>MHMap.setConnectivityMap()</tt>, path searches on the map give
+ * up at once on goals that can't be reached, instead of searching
+ * every cell that can.  A map for fliers can be kept up to date by
+ * adding it to the map's change listeners.
+ *
+ * <p>Searches made during a batch of changes don't give up early,
+ * since the regions may be out of date.
+ *
+ * <p>The map takes 12 bytes per cell.
+ */
+public class MHConnectivityMap implements MHMapChangeListener
+{
+    /** Region number of cells that can't be entered. */
+    public static final int NO_REGION = -1;
+
+    /** The map being labeled. */
+    private final MHTileMap map;
+
+    /** The directions in which units can step. */
+    private final MHTileMapDirection[] directions;
+
+    /** True for fliers, false for walkers. */
+    private final boolean flying;
+
+    /** Number of cells in the map. */
+    private final int size;
+
+    /** Label of each cell, or <tt>NO_REGION</tt>.  Labels that have
+     * been joined point at the same region in <tt>parents</tt>. */
+    private final int[] labels;
+
+    /** The label each label was joined to, or itself if it is a
+     * region's own label. */
+    private int[] parents = new int[64];
+
+    /** Number of cells in each region, by its own label. */
+    private int[] sizes = new int[64];
+
+    /** Number of labels handed out, and number of regions. */
+    private int numLabels, numRegions;
+
+    /** Cells stamped with the current mark have been reached by the
+     * search in progress, by the group in <tt>owners</tt>. */
+    private final int[] marks;
+    private final int[] owners;
+    private int mark = 0;
+
+    /** Cells reached by each group of a search, in order.  Each list
+     * doubles as the group's queue. */
+    private int[][] reached = new int[MHTileMapDirection.values().length][64];
+    private final int[] heads = new int[reached.length];
+    private final int[] tails = new int[reached.length];
+
+    /** The group each group has been joined to, as with labels. */
+    private final int[] groupParents = new int[reached.length];
+
+    /** Groups whose region has been cut off. */
+    private final boolean[] closed = new boolean[reached.length];
+
+    /** Passable cells around a cell that has closed. */
+    private final int[] seeds = new int[reached.length];
+
+    /** Scratch address for stepping to neighbors. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+
+
+    /****************************************************************
+     * Constructor.  Labels the regions for walkers that can step in
+     * any direction the map allows.
+     *
+     * @param map  The map to be labeled.
+     */
+    public MHConnectivityMap(final MHTileMap map)
+    {
+        this(map, map.getDirections(), false);
+    }
+
+
+    /****************************************************************
+     * Constructor.  Labels the regions.
+     *
+     * @param map         The map to be labeled.
+     * @param directions  The directions in which units can step.
+     * @param flying      True to label the cells that can be flown
+     *                    over, false for those that can be walked
+     *                    on.
+     */
+    public MHConnectivityMap(final MHTileMap map, final MHTileMapDirection[] directions,
+            final boolean flying)
+    {
+        this.map = map;
+        this.directions = directions;
+        this.flying = flying;
+
+        final MHMap data = map.getMapData();
+        size = data.getWidth() * data.getHeight();
+        labels = new int[size];
+        marks = new int[size];
+        owners = new int[size];
+
+        rebuild();
+    }
+
+
+    /****************************************************************
+     * Returns true if the regions are those of fliers.
+     */
+    public boolean isFlying()
+    {
+        return flying;
+    }
+
+
+    /****************************************************************
+     * Returns the number of the region containing a cell, or
+     * <tt>NO_REGION</tt> if the cell can't be entered or isn't in
+     * the map.  Region numbers can change whenever the map does.
+     */
+    public synchronized int getRegion(final int row, final int column)
+    {
+        if (!map.getMapData().isValidCell(row, column))
+            return NO_REGION;
+
+        final int label = labels[map.getMapData().getCellIndex(row, column)];
+        return (label < 0) ? NO_REGION : find(label);
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells in the region containing a cell,
+     * or 0 if the cell can't be entered.
+     */
+    public synchronized int getRegionSize(final int row, final int column)
+    {
+        final int region = getRegion(row, column);
+        return (region < 0) ? 0 : sizes[region];
+    }
+
+
+    /****************************************************************
+     * Returns the number of regions in the map.
+     */
+    public synchronized int getNumRegions()
+    {
+        return numRegions;
+    }
+
+
+    /****************************************************************
+     * Returns true if one cell can be reached from the other.  Both
+     * must be passable.
+     */
+    public synchronized boolean canReach(final int startRow, final int startColumn,
+            final int goalRow, final int goalColumn)
+    {
+        final int region = getRegion(startRow, startColumn);
+        return region >= 0 && region == getRegion(goalRow, goalColumn);
+    }
+
+
+    /****************************************************************
+     * Returns true if the regions show that a path search for a
+     * walker stepping in the given directions can't reach the goal.
+     * False means the search may reach it, or that the regions
+     * can't tell:  they are for fliers, the search may step in a
+     * direction they don't, the start can't be walked on, or the
+     * map is in the middle of a batch of changes that the regions
+     * haven't been told about yet.
+     */
+    public synchronized boolean isUnreachable(final int startRow, final int startColumn,
+            final int goalRow, final int goalColumn, final MHTileMapDirection[] searchDirections)
+    {
+        if (flying || map.getMapData().isUpdating())
+            return false;
+
+        for (int i = 0; i < searchDirections.length; i++)
+        {
+            if (!hasDirection(searchDirections[i]))
+                return false;
+        }
+
+        final int start = getRegion(startRow, startColumn);
+        return start >= 0 && start != getRegion(goalRow, goalColumn);
+    }
+
+
+    /****************************************************************
+     * Labels every region again from scratch.
+     */
+    public synchronized void rebuild()
+    {
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+
+        numLabels = 0;
+        numRegions = 0;
+        Arrays.fill(labels, NO_REGION);
+
+        int[] queue = reached[0];
+        for (int cell = 0; cell < size; cell++)
+        {
+            if (labels[cell] >= 0 || !isPassable(cell))
+                continue;
+
+            final int label = newLabel();
+            labels[cell] = label;
+            queue[0] = cell;
+            int head = 0, tail = 1;
+
+            while (head < tail)
+            {
+                final int current = queue[head++];
+
+                for (int d = 0; d < directions.length; d++)
+                {
+                    map.tileWalk(current / width, current % width, directions[d], neighbor);
+                    if (!data.isValidCell(neighbor.row, neighbor.column))
+                        continue;
+
+                    final int next = neighbor.row * width + neighbor.column;
+                    if (labels[next] >= 0 || !isPassable(next))
+                        continue;
+
+                    labels[next] = label;
+                    if (tail == queue.length)
+                        queue = Arrays.copyOf(queue, queue.length * 2);
+                    queue[tail++] = next;
+                }
+            }
+
+            sizes[label] = tail;
+        }
+
+        reached[0] = queue;
+    }
+
+
+    /****************************************************************
+     * Updates the labels of the cells that opened or closed.
+     */
+    public synchronized void mapChanged(final MHMapChangeEvent event)
+    {
+        if (flying ? !event.isFlyabilityChanged() : !event.isWalkabilityChanged())
+            return;
+
+        // Labels are never reused, so start again once there are
+        // plenty of them.
+        if (numLabels > 2 * size)
+        {
+            rebuild();
+            return;
+        }
+
+        final MHMap data = map.getMapData();
+        final int width = data.getWidth();
+        final int row0 = Math.max(0, event.getMinPassabilityRow());
+        final int column0 = Math.max(0, event.getMinPassabilityColumn());
+        final int row1 = Math.min(data.getHeight() - 1, event.getMaxPassabilityRow());
+        final int column1 = Math.min(width - 1, event.getMaxPassabilityColumn());
+
+        // Close cells one at a time, each split worked out before the
+        // next, so that no piece keeps the old label by way of a cell
+        // that has already gone.  Cells open afterwards, so that they
+        // aren't joined through cells that closed.
+        for (int row = row0; row <= row1; row++)
+        {
+            for (int column = column0; column <= column1; column++)
+            {
+                final int cell = row * width + column;
+                if (labels[cell] >= 0 && !isPassable(cell))
+                    close(cell);
+            }
+        }
+
+        for (int row = row0; row <= row1; row++)
+        {
+            for (int column = column0; column <= column1; column++)
+            {
+                final int cell = row * width + column;
+                if (labels[cell] < 0 && isPassable(cell))
+                    open(cell);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Puts a cell that opened in a region, joining the regions
+     * around it.
+     */
+    private void open(final int cell)
+    {
+        final int width = map.getMapData().getWidth();
+        int region = -1;
+
+        for (int d = 0; d < directions.length; d++)
+        {
+            final int next = getNeighbor(cell / width, cell % width, directions[d]);
+            if (next < 0 || next == cell)
+                continue;
+
+            final int other = find(labels[next]);
+            if (region < 0)
+                region = other;
+            else if (other != region)
+                region = join(region, other);
+        }
+
+        if (region < 0)
+            region = newLabel();
+
+        labels[cell] = region;
+        sizes[region]++;
+    }
+
+
+    /****************************************************************
+     * Finds out whether a cell that closed cut its region apart, and
+     * gives each piece that was cut off a label of its own.
+     */
+    private void close(final int cell)
+    {
+        final int width = map.getMapData().getWidth();
+
+        final int old = find(labels[cell]);
+        labels[cell] = NO_REGION;
+        if (--sizes[old] == 0)
+            numRegions--;
+
+        // The passable cells around the closed one.  Earlier cells
+        // closed by the same change may already have split them into
+        // several regions, so each region is checked on its own.
+        int numSeeds = 0;
+        for (int d = 0; d < directions.length; d++)
+        {
+            final int next = getNeighbor(cell / width, cell % width, directions[d]);
+            if (next < 0)
+                continue;
+
+            boolean seen = false;
+            for (int i = 0; i < numSeeds && !seen; i++)
+                seen = (seeds[i] == next);
+
+            if (!seen)
+                seeds[numSeeds++] = next;
+        }
+
+        for (int i = 0; i < numSeeds; i++)
+        {
+            if (seeds[i] < 0)
+                continue;
+
+            final int region = find(labels[seeds[i]]);
+            int numGroups = 0;
+            for (int j = i; j < numSeeds; j++)
+            {
+                if (seeds[j] >= 0 && find(labels[seeds[j]]) == region)
+                {
+                    reached[numGroups++][0] = seeds[j];
+                    seeds[j] = -1;
+                }
+            }
+
+            if (numGroups > 1)
+                split(numGroups, region);
+        }
+    }
+
+
+    /****************************************************************
+     * Searches outward from cells of a region that used to be joined
+     * through a cell that has closed, a cell at a time from each,
+     * until all but one have met or been cut off.  The cells are the
+     * first in <tt>reached</tt>.
+     */
+    private void split(final int numGroups, final int region)
+    {
+        final int width = map.getMapData().getWidth();
+
+        mark++;
+        if (mark == 0)
+        {
+            Arrays.fill(marks, 0);
+            mark = 1;
+        }
+
+        for (int g = 0; g < numGroups; g++)
+        {
+            heads[g] = 0;
+            tails[g] = 1;
+            groupParents[g] = g;
+            closed[g] = false;
+            marks[reached[g][0]] = mark;
+            owners[reached[g][0]] = g;
+        }
+
+        int open = numGroups;
+        boolean searching = true;
+        while (open > 1 && searching)
+        {
+            searching = false;
+
+            for (int g = 0; g < numGroups && open > 1; g++)
+            {
+                if (heads[g] == tails[g])
+                    continue;
+
+                searching = true;
+                final int current = reached[g][heads[g]++];
+
+                for (int d = 0; d < directions.length && open > 1; d++)
+                {
+                    final int next = getNeighbor(current / width, current % width, directions[d]);
+                    if (next < 0)
+                        continue;
+
+                    if (marks[next] != mark)
+                    {
+                        marks[next] = mark;
+                        owners[next] = g;
+                        if (tails[g] == reached[g].length)
+                            reached[g] = Arrays.copyOf(reached[g], tails[g] * 2);
+                        reached[g][tails[g]++] = next;
+                    }
+                    else
+                    {
+                        final int a = findGroup(g), b = findGroup(owners[next]);
+                        if (a != b)
+                        {
+                            groupParents[b] = a;
+                            open--;
+                        }
+                    }
+                }
+
+                if (open > 1 && isExhausted(findGroup(g), numGroups))
+                {
+                    cutOff(findGroup(g), numGroups, region);
+                    open--;
+                }
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Returns true if every group joined to a group has run out of
+     * cells to search.
+     */
+    private boolean isExhausted(final int group, final int numGroups)
+    {
+        if (closed[group])
+            return false;
+
+        for (int g = 0; g < numGroups; g++)
+        {
+            if (findGroup(g) == group && heads[g] < tails[g])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /****************************************************************
+     * Gives the cells reached by a group that has been cut off from
+     * its region a new label.
+     */
+    private void cutOff(final int group, final int numGroups, final int region)
+    {
+        final int label = newLabel();
+        int count = 0;
+
+        for (int g = 0; g < numGroups; g++)
+        {
+            if (findGroup(g) != group)
+                continue;
+
+            for (int i = 0; i < tails[g]; i++)
+                labels[reached[g][i]] = label;
+
+            count += tails[g];
+        }
+
+        closed[group] = true;
+        sizes[label] = count;
+        sizes[region] -= count;
+    }
+
+
+    /****************************************************************
+     * Returns the passable neighbor of a cell in a direction, or -1.
+     */
+    private int getNeighbor(final int row, final int column, final MHTileMapDirection direction)
+    {
+        map.tileWalk(row, column, direction, neighbor);
+        if (!map.getMapData().isValidCell(neighbor.row, neighbor.column))
+            return -1;
+
+        final int next = map.getMapData().getCellIndex(neighbor.row, neighbor.column);
+        return (labels[next] < 0) ? -1 : next;
+    }
+
+
+    private boolean isPassable(final int cell)
+    {
+        return flying ? map.getMapData().isFlyable(cell) : map.getMapData().isWalkable(cell);
+    }
+
+
+    private boolean hasDirection(final MHTileMapDirection direction)
+    {
+        if (direction == MHTileMapDirection.CENTER)
+            return true;
+
+        for (int d = 0; d < directions.length; d++)
+        {
+            if (directions[d] == direction)
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /****************************************************************
+     * Hands out a label for a new region.
+     */
+    private int newLabel()
+    {
+        if (numLabels == parents.length)
+        {
+            parents = Arrays.copyOf(parents, numLabels * 2);
+            sizes = Arrays.copyOf(sizes, numLabels * 2);
+        }
+
+        parents[numLabels] = numLabels;
+        sizes[numLabels] = 0;
+        numRegions++;
+
+        return numLabels++;
+    }
+
+
+    /****************************************************************
+     * Joins two regions and returns the label of the joined one.
+     * The smaller is joined to the larger.
+     */
+    private int join(final int a, final int b)
+    {
+        final int larger = (sizes[a] >= sizes[b]) ? a : b;
+        final int smaller = (larger == a) ? b : a;
+
+        parents[smaller] = larger;
+        sizes[larger] += sizes[smaller];
+        numRegions--;
+
+        return larger;
+    }
+
+
+    /****************************************************************
+     * Returns a region's own label, shortening the way there for
+     * next time.
+     */
+    private int find(int label)
+    {
+        while (parents[label] != label)
+        {
+            parents[label] = parents[parents[label]];
+            label = parents[label];
+        }
+
+        return label;
+    }
+
+
+    private int findGroup(int group)
+    {
+        while (groupParents[group] != group)
+            group = groupParents[group];
+
+        return group;
+    }
+}
@@ -0,0 +1,422 @@
+package mhframework.tilemap;
+
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import mhframework.MHActor;
+import mhframework.media.MHMipmapCache;
+
+
+/********************************************************************
+ * Keeps the free-moving (finely-placed) objects of an isometric map
+ * sorted in drawing order.
+ *
+ * <p>Every object belongs to the depth row of the cell under its
+ * base point.  A depth row is a row of cells that the renderer draws
+ * from left to right before moving down the screen, so drawing each
+ * row's objects right after the row's tiles puts objects in front of
+ * the walls behind them and behind the walls in front of them.
+ * Within a row, objects are kept in order of their base points from
+ * back to front.
+ *
+ * <p>Nothing is sorted per frame.  <tt>update()</tt> compares each
+ * object's base point with the one recorded for it and only moves
+ * the objects that have changed, usually by a step or two within
+ * their row or from one row to the next.
+ *
+ * <p>Use the fine object methods of <tt>MHIsometricMap</tt> rather
+ * than creating one of these directly.
+ */
+public class MHDepthBuckets
+{
+    /** The map the objects are placed in. */
+    private final MHIsometricMap map;
+
+    /** Objects in each depth row, from back to front. */
+    private MHDepthEntry[][] rows;
+
+    /** Number of objects in each depth row. */
+    private int[] sizes;
+
+    /** The map size the depth rows were allocated for. */
+    private int builtHeight, builtWidth;
+
+    /** Every object, for updating them all. */
+    private final ArrayList<MHDepthEntry> entries = new ArrayList<MHDepthEntry>();
+
+    /** Lookup from object to entry. */
+    private final IdentityHashMap<MHActor, MHDepthEntry> index =
+        new IdentityHashMap<MHActor, MHDepthEntry>();
+
+    /** Scratch address for finding an object's cell. */
+    private final MHMapCellAddress cell = new MHMapCellAddress();
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param map  The map the objects are placed in.
+     */
+    public MHDepthBuckets(final MHIsometricMap map)
+    {
+        this.map = map;
+
+        allocateRows();
+    }
+
+
+    /****************************************************************
+     * Adds an object.  Adding an object that is already present
+     * just updates it.
+     */
+    public void add(final MHActor actor)
+    {
+        if (index.containsKey(actor))
+        {
+            update(actor);
+            return;
+        }
+
+        validateRows();
+
+        final MHDepthEntry entry = new MHDepthEntry(actor);
+        locate(entry);
+        insert(entry);
+
+        entries.add(entry);
+        index.put(actor, entry);
+    }
+
+
+    /****************************************************************
+     * Removes an object.
+     */
+    public void remove(final MHActor actor)
+    {
+        final MHDepthEntry entry = index.remove(actor);
+        if (entry == null)
+            return;
+
+        delete(entry);
+        entries.remove(entry);
+    }
+
+
+    /****************************************************************
+     * Returns true if the object has been added.
+     */
+    public boolean contains(final MHActor actor)
+    {
+        return index.containsKey(actor);
+    }
+
+
+    /****************************************************************
+     * Moves an object to its proper place after it has moved.
+     *
+     * @return True if the object's place in the drawing order
+     *         changed.
+     */
+    public boolean update(final MHActor actor)
+    {
+        final MHDepthEntry entry = index.get(actor);
+        if (entry == null)
+            return false;
+
+        validateRows();
+
+        return update(entry);
+    }
+
+
+    /****************************************************************
+     * Moves every object that has moved to its proper place.  Call
+     * once per frame, after the objects have been advanced.
+     */
+    public void updateAll()
+    {
+        validateRows();
+
+        for (int i = 0; i < entries.size(); i++)
+            update(entries.get(i));
+    }
+
+
+    /****************************************************************
+     * Returns the number of objects.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+
+    /****************************************************************
+     * Returns the number of objects in a depth row.
+     */
+    public int getRowSize(final int depth)
+    {
+        validateRows();
+
+        if (depth < 0 || depth >= sizes.length)
+            return 0;
+
+        return sizes[depth];
+    }
+
+
+    /****************************************************************
+     * Returns an object in a depth row.
+     *
+     * @param depth  The depth row.
+     * @param i      A number from 0 (back) to
+     *               <tt>getRowSize(depth) - 1</tt> (front).
+     */
+    public MHActor getActor(final int depth, final int i)
+    {
+        validateRows();
+
+        return rows[depth][i].actor;
+    }
+
+
+    /****************************************************************
+     * Draws the objects in a depth row, from back to front.
+     *
+     * @param g     The graphics object on which we are rendering the
+     *              map.
+     * @param view  The map or view being drawn.
+     * @param depth The depth row.
+     */
+    public void renderRow(final Graphics2D g, final MHIsometricMap view, final int depth)
+    {
+        validateRows();
+
+        if (depth < 0 || depth >= sizes.length || sizes[depth] == 0)
+            return;
+
+        final int zoom = view.getZoomLevel();
+        final int anchorX = view.getScreenAnchor().x;
+        final int anchorY = view.getScreenAnchor().y;
+        final int screenX = (int) view.getScreenSpace().getX();
+        final int screenY = (int) view.getScreenSpace().getY();
+        final MHDepthEntry[] row = rows[depth];
+
+        for (int i = 0; i < sizes[depth]; i++)
+        {
+            final MHActor actor = row[i].actor;
+            final int x = (int) actor.getX() - anchorX;
+            final int y = (int) actor.getY() - anchorY;
+
+            if (zoom == 0)
+                actor.render(g, x + screenX, y + screenY);
+            else if (actor.getImage() != null)
+                g.drawImage(MHMipmapCache.getImage(actor.getImage(), zoom),
+                        (x >> zoom) + screenX, (y >> zoom) + screenY, null);
+        }
+    }
+
+
+    /****************************************************************
+     * Reallocates the depth rows if the map's size has changed, and
+     * sorts every object into them again.
+     */
+    private void validateRows()
+    {
+        final MHMap data = map.getMapData();
+        if (data.getHeight() != builtHeight || data.getWidth() != builtWidth)
+            reallocateRows();
+    }
+
+
+    /****************************************************************
+     * Does the work of <tt>validateRows()</tt>.  Synchronized in
+     * case several render threads notice the change at once.
+     */
+    private synchronized void reallocateRows()
+    {
+        final MHMap data = map.getMapData();
+        if (data.getHeight() == builtHeight && data.getWidth() == builtWidth)
+            return;
+
+        allocateRows();
+
+        // The depth rows are numbered differently now.
+        for (int i = 0; i < entries.size(); i++)
+        {
+            final MHDepthEntry entry = entries.get(i);
+            locate(entry);
+            insert(entry);
+        }
+    }
+
+
+    /****************************************************************
+     * Allocates empty depth rows for the map's current size.
+     */
+    private void allocateRows()
+    {
+        final MHMap data = map.getMapData();
+        final int n = map.getNumDepthRows();
+
+        rows = new MHDepthEntry[n][];
+        sizes = new int[n];
+        builtHeight = data.getHeight();
+        builtWidth = data.getWidth();
+    }
+
+
+    /****************************************************************
+     * Moves an entry to its proper place if it has moved.
+     */
+    private boolean update(final MHDepthEntry entry)
+    {
+        final int oldDepth = entry.depth;
+        final int oldBaseY = entry.baseY;
+
+        locate(entry);
+
+        if (entry.depth == oldDepth)
+        {
+            if (entry.baseY == oldBaseY)
+                return false;
+
+            return reorder(entry);
+        }
+
+        // Take it out of the old row, then put it in the new one.
+        final int newDepth = entry.depth;
+        entry.depth = oldDepth;
+        delete(entry);
+        entry.depth = newDepth;
+        insert(entry);
+
+        return true;
+    }
+
+
+    /****************************************************************
+     * Calculates an entry's base point and depth row.
+     */
+    private void locate(final MHDepthEntry entry)
+    {
+        final MHActor actor = entry.actor;
+
+        // The same base point as MHIsometricMap.calculateBasePoint().
+        final int baseX = (int) (actor.getX() + actor.getWidth() / 2);
+        final int baseY = (int) (actor.getY() + actor.getHeight() - MHIsoMouseMap.HEIGHT / 2);
+
+        map.mapWorld(baseX, baseY, cell);
+
+        final MHMap data = map.getMapData();
+        cell.row = Math.max(0, Math.min(data.getHeight() - 1, cell.row));
+        cell.column = Math.max(0, Math.min(data.getWidth() - 1, cell.column));
+
+        entry.baseY = baseY;
+        entry.depth = map.getDepthRow(cell.row, cell.column);
+    }
+
+
+    /****************************************************************
+     * Inserts an entry into its depth row in order of base point.
+     */
+    private void insert(final MHDepthEntry entry)
+    {
+        final int depth = entry.depth;
+
+        if (rows[depth] == null)
+            rows[depth] = new MHDepthEntry[4];
+        else if (sizes[depth] == rows[depth].length)
+        {
+            final MHDepthEntry[] bigger = new MHDepthEntry[sizes[depth] * 2];
+            System.arraycopy(rows[depth], 0, bigger, 0, sizes[depth]);
+            rows[depth] = bigger;
+        }
+
+        final MHDepthEntry[] row = rows[depth];
+
+        // Shift the objects in front of it forward by one.
+        int i = sizes[depth];
+        while (i > 0 && row[i - 1].baseY > entry.baseY)
+        {
+            row[i] = row[i - 1];
+            row[i].position = i;
+            i--;
+        }
+
+        row[i] = entry;
+        entry.position = i;
+        sizes[depth]++;
+    }
+
+
+    /****************************************************************
+     * Removes an entry from its depth row.
+     */
+    private void delete(final MHDepthEntry entry)
+    {
+        final int depth = entry.depth;
+        final MHDepthEntry[] row = rows[depth];
+
+        for (int i = entry.position; i < sizes[depth] - 1; i++)
+        {
+            row[i] = row[i + 1];
+            row[i].position = i;
+        }
+
+        sizes[depth]--;
+        row[sizes[depth]] = null;
+    }
+
+
+    /****************************************************************
+     * Restores the order of a depth row after an entry's base point
+     * has moved within it by swapping it with its neighbors.
+     */
+    private boolean reorder(final MHDepthEntry entry)
+    {
+        final MHDepthEntry[] row = rows[entry.depth];
+        final int size = sizes[entry.depth];
+        final int start = entry.position;
+        int i = start;
+
+        while (i > 0 && row[i - 1].baseY > entry.baseY)
+        {
+            row[i] = row[i - 1];
+            row[i].position = i;
+            i--;
+        }
+
+        while (i < size - 1 && row[i + 1].baseY < entry.baseY)
+        {
+            row[i] = row[i + 1];
+            row[i].position = i;
+            i++;
+        }
+
+        row[i] = entry;
+        entry.position = i;
+
+        return i != start;
+    }
+
+
+    /****************************************************************
+     * An object and the place it was last sorted into.
+     */
+    private static final class MHDepthEntry
+    {
+        final MHActor actor;
+
+        /** The depth row and position within it. */
+        int depth, position;
+
+        /** The y coordinate of the base point in world space. */
+        int baseY;
+
+        MHDepthEntry(final MHActor actor)
+        {
+            this.actor = actor;
+        }
+    }
+}
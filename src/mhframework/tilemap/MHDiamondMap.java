@@ -18,12 +18,43 @@ public class MHDiamondMap extends MHIsometricMap
     }
 
 
+    /****************************************************************
+     * Creates a diamond map for map data built in code.  See
+     * <tt>MHTileMap(MHMap)</tt>.
+     */
+    public MHDiamondMap(final MHMap data)
+    {
+        super(data);
+        screenAnchor = new Point((int)anchorSpace.getX(),
+                                 (int)anchorSpace.getY());
+    }
+
+
+    /****************************************************************
+     * Creates another view of an existing diamond map.  See
+     * <tt>MHIsometricMap(MHIsometricMap)</tt>.
+     */
+    public MHDiamondMap(final MHDiamondMap source)
+    {
+        super(source);
+    }
 
+
+    /****************************************************************
+     * Cells on the same horizontal line of the screen have the same
+     * sum of row and column.
+     */
     @Override
-    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction)
+    public int getDepthRow(final int row, final int column)
     {
-        final MHMapCellAddress destination = new MHMapCellAddress();
+        return row + column;
+    }
+
+
 
+    @Override
+    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction, final MHMapCellAddress destination)
+    {
         destination.row = row;
         destination.column = column;
 
@@ -74,14 +105,12 @@ public class MHDiamondMap extends MHIsometricMap
 
 
     @Override
-    public Point plotTile(final int row, final int column)
+    public Point plotTile(final int row, final int column, final Point out)
     {
-        int plotX, plotY;
-
-        plotX = (column - row) * (getTileWidth() / 2);
-        plotY = (column + row) * (getTileHeight() / 2);
+        out.x = (column - row) * (getTileWidth() / 2);
+        out.y = (column + row) * (getTileHeight() / 2);
 
-        return new Point(plotX, plotY);
+        return out;
     }
 
 
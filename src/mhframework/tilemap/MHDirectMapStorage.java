@@ -0,0 +1,347 @@
+package mhframework.tilemap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/********************************************************************
+ * Keeps a map's grids outside the Java heap, in a direct buffer or a
+ * memory-mapped file.  Very large maps then take up no heap space
+ * for their grids, so the garbage collector never has to scan them
+ * and the heap can stay small.
+ *
+ * <p>A mapped file can be opened read-only by several processes at
+ * once, for example game servers that all need the same map's
+ * passability.  The operating system keeps one copy of the file in
+ * memory for all of them.
+ *
+ * <p>The grids take 28 bytes per cell, so a single storage object
+ * holds at most about 76 million cells (an 8700 by 8700 map).
+ *
+ * <p>Usage:
+ * <pre>
+ *     // Write a loaded map out once...
+ *     MHDirectMapStorage file = MHDirectMapStorage.create(
+ *             new File("level1.grid"), map.getHeight(), map.getWidth());
+ *     file.copyFrom(map.getStorage());
+ *     file.flush();
+ *
+ *     // ...then share it.
+ *     MHMap shared = new MHMap(MHDirectMapStorage.open(
+ *             new File("level1.grid"), true), null);
+ * </pre>
+ */
+public class MHDirectMapStorage implements MHMapStorage
+{
+    /** Identifies a map storage file ("MHMS"). */
+    private static final int MAGIC = 0x4D484D53;
+
+    /** Format of map storage files. */
+    private static final int VERSION = 1;
+
+    /** Bytes before the first grid:  magic, version, height and
+     * width. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Bits of the passability flags. */
+    private static final byte WALKABLE = 1, FLYABLE = 2;
+
+    /** Dimensions of the grids. */
+    private final int height, width;
+
+    /** The grids. */
+    private final ByteBuffer buffer;
+
+    /** True if the grids can't be changed. */
+    private final boolean readOnly;
+
+    /** Offsets of the grids in the buffer. */
+    private final int tileOffset, flagOffset, costOffset, lightOffset;
+
+
+    /****************************************************************
+     * Constructor.  Allocates storage in a direct buffer.
+     *
+     * @param height  The number of rows.
+     * @param width   The number of columns.
+     */
+    public MHDirectMapStorage(final int height, final int width)
+    {
+        this(ByteBuffer.allocateDirect(getSize(height, width)), height, width, false);
+        initialize();
+    }
+
+
+    /****************************************************************
+     * Lays the grids out in a buffer.
+     */
+    private MHDirectMapStorage(final ByteBuffer buffer, final int height,
+                               final int width, final boolean readOnly)
+    {
+        this.buffer = buffer;
+        this.height = height;
+        this.width = width;
+        this.readOnly = readOnly;
+
+        final int cells = height * width;
+        tileOffset = HEADER_SIZE;
+        flagOffset = tileOffset + 2 * MHMapCell.NUM_LAYERS * cells;
+        costOffset = flagOffset + cells;
+        lightOffset = (costOffset + cells + 3) & ~3;
+    }
+
+
+    /****************************************************************
+     * Creates a map storage file and maps it into memory.  An
+     * existing file is overwritten.
+     *
+     * @param file    The file to create.
+     * @param height  The number of rows.
+     * @param width   The number of columns.
+     *
+     * @return The storage, which can be changed.
+     *
+     * @throws IOException if the file can't be created.
+     */
+    public static MHDirectMapStorage create(final File file, final int height,
+                                            final int width) throws IOException
+    {
+        final int size = getSize(height, width);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            raf.setLength(0);
+            raf.setLength(size);
+
+            final MappedByteBuffer buffer = raf.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, size);
+
+            final MHDirectMapStorage storage =
+                new MHDirectMapStorage(buffer, height, width, false);
+            storage.initialize();
+
+            return storage;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /****************************************************************
+     * Maps an existing map storage file into memory.
+     *
+     * @param file      The file to open.
+     * @param readOnly  True to open the file for reading only.
+     *                  Several processes may map the same file
+     *                  read-only at once.
+     *
+     * @return The storage.
+     *
+     * @throws IOException if the file can't be read or is not a map
+     *         storage file.
+     */
+    public static MHDirectMapStorage open(final File file, final boolean readOnly)
+        throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(readOnly
+                            ? FileChannel.MapMode.READ_ONLY
+                            : FileChannel.MapMode.READ_WRITE, 0, channel.size());
+
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                            || buffer.getInt(4) != VERSION)
+                throw new IOException("Not a map storage file:  " + file);
+
+            final int height = buffer.getInt(8);
+            final int width = buffer.getInt(12);
+
+            if (height < 0 || width < 0 || buffer.capacity() < getSize(height, width))
+                throw new IOException("Map storage file is damaged:  " + file);
+
+            return new MHDirectMapStorage(buffer, height, width, readOnly);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /****************************************************************
+     * Writes any changes to a mapped file back to the disk.  Does
+     * nothing for storage in a direct buffer.
+     */
+    public void flush()
+    {
+        if (buffer instanceof MappedByteBuffer && !readOnly)
+            ((MappedByteBuffer) buffer).force();
+    }
+
+
+    /****************************************************************
+     * Copies the tile ID, passability and light grids from other
+     * storage of the same size.
+     */
+    public void copyFrom(final MHMapStorage source)
+    {
+        if (readOnly)
+            return;
+
+        if (source.getHeight() != height || source.getWidth() != width)
+        {
+            System.err.println("ERROR:  Map storage sizes don't match.");
+            return;
+        }
+
+        final int cells = height * width;
+        for (int i = 0; i < cells; i++)
+        {
+            for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+                setTileID(layer, i, source.getTileID(layer, i));
+
+            setPassability(i, source.isWalkable(i), source.isFlyable(i),
+                            source.getMovementCost(i));
+
+            final int light = lightOffset + 12 * i;
+            buffer.putInt(light, source.getLight(i, RED));
+            buffer.putInt(light + 4, source.getLight(i, GREEN));
+            buffer.putInt(light + 8, source.getLight(i, BLUE));
+        }
+    }
+
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+
+    public int getTileID(final int layer, final int cellIndex)
+    {
+        return buffer.getShort(tileOffset + 2 * (layer * height * width + cellIndex));
+    }
+
+
+    public void setTileID(final int layer, final int cellIndex, final int tileID)
+    {
+        if (!readOnly)
+            buffer.putShort(tileOffset + 2 * (layer * height * width + cellIndex), (short) tileID);
+    }
+
+
+    public boolean isWalkable(final int cellIndex)
+    {
+        return (buffer.get(flagOffset + cellIndex) & WALKABLE) != 0;
+    }
+
+
+    public boolean isFlyable(final int cellIndex)
+    {
+        return (buffer.get(flagOffset + cellIndex) & FLYABLE) != 0;
+    }
+
+
+    public int getMovementCost(final int cellIndex)
+    {
+        return buffer.get(costOffset + cellIndex) & 0xFF;
+    }
+
+
+    public void setPassability(final int cellIndex, final boolean walk,
+                               final boolean fly, final int movementCost)
+    {
+        if (readOnly)
+            return;
+
+        buffer.put(flagOffset + cellIndex, (byte) ((walk ? WALKABLE : 0) | (fly ? FLYABLE : 0)));
+        buffer.put(costOffset + cellIndex, (byte) movementCost);
+    }
+
+
+    public int getLight(final int cellIndex, final int channel)
+    {
+        return buffer.getInt(lightOffset + 12 * cellIndex + 4 * channel);
+    }
+
+
+    public void addLight(final int cellIndex, final int red, final int green, final int blue)
+    {
+        if (readOnly)
+            return;
+
+        final int light = lightOffset + 12 * cellIndex;
+        buffer.putInt(light, buffer.getInt(light) + red);
+        buffer.putInt(light + 4, buffer.getInt(light + 4) + green);
+        buffer.putInt(light + 8, buffer.getInt(light + 8) + blue);
+    }
+
+
+    public void clearLight()
+    {
+        if (readOnly)
+            return;
+
+        final int end = lightOffset + 12 * height * width;
+        for (int i = lightOffset; i < end; i += 4)
+            buffer.putInt(i, 0);
+    }
+
+
+    /****************************************************************
+     * Returns the number of bytes needed for grids of the given
+     * size.
+     */
+    private static int getSize(final int height, final int width)
+    {
+        final long cells = (long) height * width;
+        final long size = ((HEADER_SIZE + (2L * MHMapCell.NUM_LAYERS + 2) * cells + 3) & ~3L)
+                        + 12 * cells;
+
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Map is too large for direct storage:  "
+                            + height + " x " + width);
+
+        return (int) size;
+    }
+
+
+    /****************************************************************
+     * Writes the header of new storage and empties every layer.
+     * The other grids start out as zeroes, which is impassable and
+     * unlit.
+     */
+    private void initialize()
+    {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, height);
+        buffer.putInt(12, width);
+
+        final int end = tileOffset + 2 * MHMapCell.NUM_LAYERS * height * width;
+        for (int i = tileOffset; i < end; i += 2)
+            buffer.putShort(i, (short) MHTileSetManager.NULL_TILE_ID);
+    }
+}
@@ -0,0 +1,174 @@
+package mhframework.tilemap;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.util.BitSet;
+import mhframework.MHActor;
+import mhframework.MHDataModel;
+import mhframework.media.MHImageGroup;
+
+
+/********************************************************************
+ * Keeps the floor and floor detail layers of an isometric map baked
+ * into chunk images, so that the ground under a view costs a few
+ * large image draws per frame instead of two tile draws per cell.
+ * The chunks are shared by every view of the map.
+ *
+ * <p>Only cells whose floor layers hold plain, unanimated tiles are
+ * baked.  The map draws the floor layers of any other cell tile by
+ * tile, as usual, and asks <tt>isCached()</tt> to tell them apart.
+ * Chunks are baked again when a floor layer of one of their cells
+ * changes.
+ *
+ * <p>Use <tt>MHIsometricMap.setGroundCached()</tt> rather than
+ * creating one of these directly.
+ */
+public class MHGroundCache extends MHChunkedOverlay implements MHMapChangeListener
+{
+    /** The last layer drawn from the cache.  Layers from 0 to this
+     * one are cached. */
+    public static final int LAST_LAYER = MHMapCell.FLOOR_DETAIL_LAYER;
+
+    /** Set bits mark cells whose floor layers are in the baked
+     * chunks. */
+    private final BitSet cached = new BitSet();
+
+    /** Height of the tallest floor tile image in the tile set. */
+    private final int maxImageHeight;
+
+
+    /****************************************************************
+     * Constructor.  The tile set should already be loaded.
+     *
+     * @param map  The map whose ground is to be cached.
+     */
+    public MHGroundCache(final MHIsometricMap map)
+    {
+        super(map);
+
+        int tallest = 0;
+        for (int layer = 0; layer <= LAST_LAYER; layer++)
+        {
+            final MHImageGroup group = MHDataModel.getTileSetManager().getTileImageGroup(layer);
+            if (group == null)
+                continue;
+
+            for (int tile = 0; tile < group.getNumSequences(); tile++)
+            {
+                final Image image = group.getImage(tile, 0);
+                if (image != null)
+                    tallest = Math.max(tallest, image.getHeight(null));
+            }
+        }
+        maxImageHeight = tallest;
+
+        map.getMapData().addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.
+     */
+    public void dispose()
+    {
+        map.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Returns true if the floor layers of a cell are drawn from the
+     * cache.  Only valid after the cache has been rendered for the
+     * current frame.
+     */
+    public boolean isCached(final int row, final int column)
+    {
+        return cached.get(row * map.getMapData().getWidth() + column);
+    }
+
+
+    /****************************************************************
+     * Bakes chunks again when the floor layers of their cells
+     * change.
+     */
+    public void mapChanged(final MHMapChangeEvent event)
+    {
+        if ((event.getLayers() & ((2 << LAST_LAYER) - 1)) != 0)
+            invalidate(event.getMinRow(), event.getMinColumn(),
+                    event.getMaxRow(), event.getMaxColumn());
+    }
+
+
+    @Override
+    protected int getCellOverhang()
+    {
+        return Math.max(0, maxImageHeight - map.getTileHeight());
+    }
+
+
+    /****************************************************************
+     * Draws the floor layers of a cell into a chunk image, or leaves
+     * them to be drawn live if they can't be cached.
+     */
+    @Override
+    protected void bakeCell(final Graphics2D g, final int row, final int column,
+            final int x, final int y)
+    {
+        final int index = row * map.getMapData().getWidth() + column;
+        final MHMapCell cell = map.getMapData().getMapCell(row, column);
+
+        if (!isCacheable(cell))
+        {
+            cached.clear(index);
+            return;
+        }
+
+        final int centerX = x + map.getTileWidth() / 2;
+        final int baseY = y + map.getTileHeight();
+
+        // Tiles overlap their neighbors' transparent corners, so they
+        // must be blended rather than copied.
+        g.setComposite(AlphaComposite.SrcOver);
+
+        for (int layer = 0; layer <= LAST_LAYER; layer++)
+        {
+            final MHActor tile = cell.getLayer(layer);
+            if (tile == null || tile.getImage() == null)
+                continue;
+
+            final Image image = tile.getImage();
+            g.drawImage(image, centerX - image.getWidth(null) / 2,
+                    baseY - image.getHeight(null), null);
+        }
+
+        cached.set(index);
+    }
+
+
+    /****************************************************************
+     * Returns true if every floor layer of a cell is empty or holds
+     * a plain tile with a single frame.
+     */
+    private boolean isCacheable(final MHMapCell cell)
+    {
+        if (cell == null)
+            return false;
+
+        for (int layer = 0; layer <= LAST_LAYER; layer++)
+        {
+            final MHActor actor = cell.getLayer(layer);
+            if (actor == null)
+                continue;
+
+            if (!(actor instanceof MHTileActor))
+                return false;
+
+            final MHTileActor tile = (MHTileActor) actor;
+            if (tile.getImageGroup() == null
+                    || tile.getImageGroup().getFrameCount(tile.getTileID()) > 1)
+                return false;
+        }
+
+        return true;
+    }
+}
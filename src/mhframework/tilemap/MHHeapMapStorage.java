@@ -0,0 +1,155 @@
+package mhframework.tilemap;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/********************************************************************
+ * Keeps a map's grids in ordinary arrays on the Java heap.  This is
+ * the storage a map uses unless it is given another.
+ *
+ * <p>The tile ID and light grids are only allocated once something
+ * is stored in them.
+ */
+public class MHHeapMapStorage implements MHMapStorage
+{
+    /** Dimensions of the grids. */
+    private final int height, width;
+
+    /** Set bits mark cells that can be walked on. */
+    private final BitSet walkable;
+
+    /** Set bits mark cells that can be flown over. */
+    private final BitSet flyable;
+
+    /** Cost of moving into each cell. */
+    private final byte[] movementCosts;
+
+    /** Tile IDs of each layer, or null for layers that are empty
+     * everywhere. */
+    private final short[][] tileIDs = new short[MHMapCell.NUM_LAYERS][];
+
+    /** Light falling on each cell, or null if there is none. */
+    private int[] red, green, blue;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param height  The number of rows.
+     * @param width   The number of columns.
+     */
+    public MHHeapMapStorage(final int height, final int width)
+    {
+        this.height = height;
+        this.width = width;
+
+        walkable = new BitSet(height * width);
+        flyable = new BitSet(height * width);
+        movementCosts = new byte[height * width];
+    }
+
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+
+    public boolean isReadOnly()
+    {
+        return false;
+    }
+
+
+    public int getTileID(final int layer, final int cellIndex)
+    {
+        if (tileIDs[layer] == null)
+            return MHTileSetManager.NULL_TILE_ID;
+
+        return tileIDs[layer][cellIndex];
+    }
+
+
+    public void setTileID(final int layer, final int cellIndex, final int tileID)
+    {
+        if (tileIDs[layer] == null)
+        {
+            if (tileID == MHTileSetManager.NULL_TILE_ID)
+                return;
+
+            tileIDs[layer] = new short[height * width];
+            Arrays.fill(tileIDs[layer], (short) MHTileSetManager.NULL_TILE_ID);
+        }
+
+        tileIDs[layer][cellIndex] = (short) tileID;
+    }
+
+
+    public boolean isWalkable(final int cellIndex)
+    {
+        return walkable.get(cellIndex);
+    }
+
+
+    public boolean isFlyable(final int cellIndex)
+    {
+        return flyable.get(cellIndex);
+    }
+
+
+    public int getMovementCost(final int cellIndex)
+    {
+        return movementCosts[cellIndex] & 0xFF;
+    }
+
+
+    public void setPassability(final int cellIndex, final boolean walk,
+                               final boolean fly, final int movementCost)
+    {
+        walkable.set(cellIndex, walk);
+        flyable.set(cellIndex, fly);
+        movementCosts[cellIndex] = (byte) movementCost;
+    }
+
+
+    public int getLight(final int cellIndex, final int channel)
+    {
+        if (red == null)
+            return 0;
+
+        switch (channel)
+        {
+            case RED:   return red[cellIndex];
+            case GREEN: return green[cellIndex];
+            default:    return blue[cellIndex];
+        }
+    }
+
+
+    public void addLight(final int cellIndex, final int r, final int g, final int b)
+    {
+        if (red == null)
+        {
+            red = new int[height * width];
+            green = new int[height * width];
+            blue = new int[height * width];
+        }
+
+        red[cellIndex] += r;
+        green[cellIndex] += g;
+        blue[cellIndex] += b;
+    }
+
+
+    public void clearLight()
+    {
+        red = green = blue = null;
+    }
+}
@@ -1,40 +1,375 @@
 package mhframework.tilemap;
 
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.geom.Rectangle2D;
 
 
 
 /********************************************************************
  * Handles the presentation of a hexagonal tile map.
+ *
+ * <p>The hexes are "pointy-topped" and every odd row is pushed half
+ * a tile to the right, so map files are laid out in ordinary rows
+ * and columns.  Distances are calculated by converting to axial
+ * coordinates, where <i>q</i> runs along the rows and <i>r</i> is
+ * the row itself.
+ *
+ * <p>A hex has no neighbor directly to its north or south, so
+ * walking NORTH, SOUTH or CENTER leaves the address unchanged.  Use
+ * <tt>getDirections()</tt> to get the six directions that do move.
  */
 public class MHHexMap extends MHIsometricMap
 {
+    /** The six directions in which a hex has neighbors. */
+    private static final MHTileMapDirection[] HEX_DIRECTIONS =
+    {
+        MHTileMapDirection.NORTHEAST, MHTileMapDirection.EAST,
+        MHTileMapDirection.SOUTHEAST, MHTileMapDirection.SOUTHWEST,
+        MHTileMapDirection.WEST,      MHTileMapDirection.NORTHWEST
+    };
+
+    /** Row offsets of the neighbors of a cell, indexed by row parity
+     * (0 for even rows, 1 for odd) and direction ordinal. */
+    private static final int[][] ROW_OFFSETS =
+    {
+        // NW, N, NE, E, C, W, SW, S, SE
+        { -1, 0, -1, 0, 0, 0, 1, 0, 1 },
+        { -1, 0, -1, 0, 0, 0, 1, 0, 1 }
+    };
+
+    /** Column offsets of the neighbors of a cell, indexed by row
+     * parity and direction ordinal. */
+    private static final int[][] COLUMN_OFFSETS =
+    {
+        // NW, N, NE, E, C,  W, SW, S, SE
+        { -1, 0,  0, 1, 0, -1, -1, 0, 0 },
+        {  0, 0,  1, 1, 0, -1,  0, 0, 1 }
+    };
+
+    /** Mouse map row offsets for one block of two rows, relative to
+     * the even row at the top of the block. */
+    private byte[] mouseRows;
 
-	public MHHexMap(final String filename,
+    /** Mouse map column offsets for one block of two rows. */
+    private byte[] mouseColumns;
+
+    /** The tile width the mouse map was built for. */
+    private int mouseMapWidth;
+
+
+    public MHHexMap(final String filename,
                                                final MHObjectFactory vendor)
     {
         super(filename, vendor);
+        screenAnchor = new Point((int)anchorSpace.getX(),
+                                 (int)anchorSpace.getY());
     }
 
 
+    /****************************************************************
+     * Creates another view of an existing hex map.  See
+     * <tt>MHIsometricMap(MHIsometricMap)</tt>.
+     */
+    public MHHexMap(final MHHexMap source)
+    {
+        super(source);
+    }
+
+
+    /****************************************************************
+     * Each row of a hex map is drawn as a horizontal line.
+     */
     @Override
-    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction)
+    public int getDepthRow(final int row, final int column)
     {
-    	return null;
+        return row;
     }
 
 
+    @Override
+    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction, final MHMapCellAddress out)
+    {
+        final int parity = row & 1;
+        final int d = direction.ordinal();
+
+        out.row = row + ROW_OFFSETS[parity][d];
+        out.column = column + COLUMN_OFFSETS[parity][d];
+
+        return out;
+    }
+
+
+    /****************************************************************
+     * Converts a world coordinate into a map coordinate by looking
+     * it up in a table covering one block of two rows.  Cell (0, 0)
+     * is plotted at the world origin.
+     */
 	@Override
-    public MHMapCellAddress mapMouse(final Point p)
+    public MHMapCellAddress mapWorld(final int worldX, final int worldY, final MHMapCellAddress out)
 	{
-		return null;
+        final int width = getTileWidth();
+        final int blockHeight = 2 * getRowHeight();
+
+        if (mouseRows == null || mouseMapWidth != width)
+            buildMouseMap();
+
+        // coarse coordinates -- which block are we in?
+        int blockColumn = worldX / width;
+        int blockRow = worldY / blockHeight;
+
+        // fine coordinates -- where are we within the block?
+        int fineX = worldX % width;
+        int fineY = worldY % blockHeight;
+
+        // adjust for negative fine coordinates
+        if (fineX < 0)
+        {
+            fineX += width;
+            blockColumn--;
+        }
+
+        if (fineY < 0)
+        {
+            fineY += blockHeight;
+            blockRow--;
+        }
+
+        final int i = fineY * width + fineX;
+        out.row = 2 * blockRow + mouseRows[i];
+        out.column = blockColumn + mouseColumns[i];
+
+		return out;
 	}
 
 
 	@Override
-    public Point plotTile(final int mapRow, final int mapCol)
+    public Point plotTile(final int mapRow, final int mapCol, final Point out)
 	{
-		return null;
+        final int width = getTileWidth();
+
+        out.x = mapCol * width + (mapRow & 1) * (width / 2);
+        out.y = mapRow * getRowHeight();
+
+		return out;
 	}
 
+
+    /****************************************************************
+     * Returns the vertical distance between the tops of two
+     * adjacent rows of hexes, which is three quarters of the tile
+     * height.
+     */
+    public int getRowHeight()
+    {
+        return getTileHeight() * 3 / 4;
+    }
+
+
+    /****************************************************************
+     * Returns the six directions in which a hex has neighbors.
+     */
+    @Override
+    public MHTileMapDirection[] getDirections()
+    {
+        return HEX_DIRECTIONS.clone();
+    }
+
+
+    /****************************************************************
+     * Returns the number of hexes between two cells.
+     */
+    @Override
+    public int getDistance(final int row1, final int column1,
+            final int row2, final int column2)
+    {
+        final int dq = getAxialQ(row1, column1) - getAxialQ(row2, column2);
+        final int dr = row1 - row2;
+
+        return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+    }
+
+
+    /****************************************************************
+     * Converts a map address into the <i>q</i> axial coordinate.
+     * The <i>r</i> axial coordinate is the row.
+     */
+    public static int getAxialQ(final int row, final int column)
+    {
+        return column - (row - (row & 1)) / 2;
+    }
+
+
+    /****************************************************************
+     * Converts axial coordinates back into a map column.
+     */
+    public static int getColumn(final int q, final int r)
+    {
+        return q + (r - (r & 1)) / 2;
+    }
+
+
+    /****************************************************************
+     * Renders the visible cells one row at a time.  Hex rows are
+     * straight, so the range of cells to draw can be calculated
+     * directly instead of being found with a tile walk.
+     */
+    @Override
+    protected boolean renderCells(final Graphics2D g, final int top,
+            final int bottom, final int firstLayer, final int lastLayer,
+            final Point cursor)
+    {
+        final MHPlotTable plots = getPlotTable();
+        final Point plotPoint = new Point();
+        boolean cursorDrawn = false;
+        final int width = getTileWidth();
+        final int rowHeight = getRowHeight();
+
+        // visible part of the world
+        final int left = screenToWorldX((int) screenSpace.getX());
+        final int right = screenToWorldX((int) (screenSpace.getX() + screenSpace.getWidth()));
+        final int upper = screenToWorldY(top);
+        final int lower = screenToWorldY(bottom);
+
+        // pad by a cell on every side for the row offsets and for
+        // images larger than the base tile
+        final int firstRow = Math.max(0, (upper - getTileHeight()) / rowHeight - 1);
+        final int lastRow = Math.min(getMapData().getHeight() - 1, lower / rowHeight + 1);
+        final int firstColumn = Math.max(0, left / width - 1);
+        final int lastColumn = Math.min(getMapData().getWidth() - 1, right / width + 1);
+
+        // Finely-placed objects are drawn with the walls.
+        final MHDepthBuckets objects = (firstLayer <= MHMapCell.WALL_LAYER
+                && lastLayer >= MHMapCell.WALL_LAYER ? fineObjects : null);
+
+        for (int row = firstRow; row <= lastRow; row++)
+        {
+            for (int column = firstColumn; column <= lastColumn; column++)
+            {
+                if (renderCell(g, plots, row, column, firstLayer, lastLayer,
+                        plotPoint, cursor))
+                    cursorDrawn = true;
+            }
+
+            if (objects != null)
+                objects.renderRow(g, this, row);
+        }
+
+        return cursorDrawn;
+    }
+
+
+    /****************************************************************
+     * Returns the outline of a hex whose upper-left corner is at
+     * (0, 0).
+     */
+    @Override
+    public Polygon getTileOutline()
+    {
+        final int w = getTileWidth();
+        final int h = getTileHeight();
+
+        return new Polygon(new int[] { w/2, w, w, w/2, 0, 0 },
+                           new int[] { 0, h/4, h*3/4, h, h*3/4, h/4 }, 6);
+    }
+
+
+    /****************************************************************
+     * Draws a hexagonal cursor.
+     */
+    @Override
+    protected void drawCursor(final Graphics g)
+    {
+        g.setColor(Color.GREEN);
+        final int w = (getTileWidth() >> getZoomLevel()) - 1;
+        final int h = (getTileHeight() >> getZoomLevel()) - 1;
+        final int x = cursorAnchor.x;
+        final int y = cursorAnchor.y;
+
+        g.drawLine(x+w/2, y,       x+w,   y+h/4);
+        g.drawLine(x+w,   y+h/4,   x+w,   y+h*3/4);
+        g.drawLine(x+w,   y+h*3/4, x+w/2, y+h);
+        g.drawLine(x+w/2, y+h,     x,     y+h*3/4);
+        g.drawLine(x,     y+h*3/4, x,     y+h/4);
+        g.drawLine(x,     y+h/4,   x+w/2, y);
+    }
+
+
+	/****************************************************************
+	 * Calculate the world space for this tile map.
+	 */
+    @Override
+    protected void calculateWorldSpace()
+    {
+        final int rows = getMapData().getHeight();
+        final int columns = getMapData().getWidth();
+        final int width = getTileWidth();
+
+        double w = columns * width;
+        if (rows > 1)
+            w += width / 2;
+
+        final double h = Math.max(0, rows - 1) * getRowHeight() + getTileHeight();
+
+        worldSpace = new Rectangle2D.Double(0.0, 0.0, w, h);
+    }
+
+
+    /****************************************************************
+     * Builds the mouse map.  The table covers a block one tile wide
+     * and two rows high whose upper-left corner is the plot point of
+     * an even-row cell.  Each pixel is assigned to the nearest hex
+     * center, with vertical distances stretched so that squashed
+     * hexes are measured as if they were regular.
+     */
+    private void buildMouseMap()
+    {
+        final int width = getTileWidth();
+        final int height = getTileHeight();
+        final int rowHeight = getRowHeight();
+        final int blockHeight = 2 * rowHeight;
+
+        // For a regular pointy-topped hex, the row height is
+        // sqrt(3)/2 times the tile width.
+        final double stretch = (width * Math.sqrt(3.0) / 2.0) / rowHeight;
+
+        final byte[] rows = new byte[width * blockHeight];
+        final byte[] columns = new byte[width * blockHeight];
+
+        for (int y = 0; y < blockHeight; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                double best = Double.MAX_VALUE;
+
+                // Candidates are the hexes in the rows above, within
+                // and below the block.
+                for (int r = -1; r <= 2; r++)
+                {
+                    for (int c = -1; c <= 1; c++)
+                    {
+                        final double cx = c * width + (r & 1) * (width / 2) + width / 2;
+                        final double cy = r * rowHeight + height / 2;
+                        final double dx = x - cx;
+                        final double dy = (y - cy) * stretch;
+                        final double d = dx * dx + dy * dy;
+
+                        if (d < best)
+                        {
+                            best = d;
+                            rows[y * width + x] = (byte) r;
+                            columns[y * width + x] = (byte) c;
+                        }
+                    }
+                }
+            }
+        }
+
+        mouseRows = rows;
+        mouseColumns = columns;
+        mouseMapWidth = width;
+    }
 }
@@ -5,11 +5,12 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Shape;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import mhframework.MHActor;
-import mhframework.MHDisplayModeChooser;
 import mhframework.MHPoint;
+import mhframework.media.MHMipmapCache;
 
 /********************************************************************
  * Abstract base class for deriving isometric tile maps.
@@ -18,17 +19,32 @@ import mhframework.MHPoint;
  */
 public abstract class MHIsometricMap extends MHTileMap
 {
+    /** Extra distance in pixels below a span of the screen in which
+     * tall tiles may have their bases and still reach into the span. */
+    public static final int TILE_OVERHANG = 128;
 
     protected MHIsoMouseMap mouseMap = new MHIsoMouseMap();
 
-    /** Hash for storing the finely-placed objects -- those whose
-     * positions are not constrained by the map grid. */
-    //private Hashtable<Integer, ArrayList<MHActor>> fineObjects;
+    /** The finely-placed objects -- those whose positions are not
+     * constrained by the map grid -- sorted in drawing order. */
+    protected MHDepthBuckets fineObjects;
     
     protected boolean cursorOn = false;
 
     protected boolean cursorFlasher = false;
 
+    /** Overlays drawn over the map's cells, such as lighting. */
+    private final ArrayList<MHChunkedOverlay> overlays = new ArrayList<MHChunkedOverlay>();
+
+    /** The overlay that shades the map with its light map. */
+    private MHChunkedOverlay lightOverlay;
+
+    /** The overlay that draws the fog of war. */
+    private MHChunkedOverlay fogOverlay;
+
+    /** Baked images of the floor layers, if they are cached. */
+    private MHGroundCache groundCache;
+
 
     /****************************************************************
      * Constructor.
@@ -50,26 +66,131 @@ public abstract class MHIsometricMap extends MHTileMap
         setCursorOn(true);
     }
 
-    
-    
-//    public void placeFineObject(MHActor object)
-//    {
-//        // Determine z-order.
-//        Point basePt = calculateBasePoint(object);
-//        MHMapCellAddress a = mapMouse(basePt);
-//        int z = a.row + a.column;
-//        
-//        // Put object into hashtable.
-//        if (fineObjects == null)
-//            fineObjects = new Hashtable<Integer, ArrayList<MHActor>>();
-//        
-//        if (!fineObjects.containsKey(z))
-//            fineObjects.put(z, new ArrayList<MHActor>());
-//        
-//        fineObjects.get(z).add(object);
-//    }
-    
-    
+
+    /****************************************************************
+     * Constructor.  Creates an isometric map for map data built in
+     * code.  See <tt>MHTileMap(MHMap)</tt>.
+     *
+     * @param data
+     *            The map data.
+     */
+    public MHIsometricMap(final MHMap data)
+    {
+        super(data);
+
+        setCursorOn(true);
+    }
+
+
+    /****************************************************************
+     * Constructor.  Creates another view of an existing isometric
+     * map.  Besides the map data, the view shares the source's
+     * overlays and ground cache, so chunks baked for one view are
+     * drawn by the other without being baked again.  The view
+     * should keep the same tile width as its source.
+     *
+     * @param source
+     *            The map to be viewed.
+     */
+    public MHIsometricMap(final MHIsometricMap source)
+    {
+        super(source);
+
+        overlays.addAll(source.overlays);
+        lightOverlay = source.lightOverlay;
+        fogOverlay = source.fogOverlay;
+        groundCache = source.groundCache;
+        fineObjects = source.getFineObjects();
+
+        screenAnchor = new Point(source.screenAnchor);
+
+        setCursorOn(source.isCursorOn());
+    }
+
+
+    /****************************************************************
+     * Adds a finely-placed object to the map.  Its position is its
+     * world space location, not a map cell, and it is drawn among
+     * the map's tiles in the proper isometric order.  Objects that
+     * move by themselves are kept in order by <tt>advance()</tt>;
+     * objects moved by other means should be passed to
+     * <tt>updateFineObject()</tt>.
+     *
+     * @param object
+     *            The object to be placed.
+     */
+    public void placeFineObject(final MHActor object)
+    {
+        getFineObjects().add(object);
+    }
+
+
+    /****************************************************************
+     * Removes a finely-placed object from the map.
+     */
+    public void removeFineObject(final MHActor object)
+    {
+        if (fineObjects != null)
+            fineObjects.remove(object);
+    }
+
+
+    /****************************************************************
+     * Moves a finely-placed object to its proper place in the
+     * drawing order after its location has been changed.
+     */
+    public void updateFineObject(final MHActor object)
+    {
+        if (fineObjects != null)
+            fineObjects.update(object);
+    }
+
+
+    /****************************************************************
+     * Returns the finely-placed objects in drawing order, creating
+     * the structure that holds them if there isn't one yet.
+     */
+    public MHDepthBuckets getFineObjects()
+    {
+        if (fineObjects == null)
+            fineObjects = new MHDepthBuckets(this);
+
+        return fineObjects;
+    }
+
+
+    /****************************************************************
+     * Returns the depth row of a map cell.  Cells in the same depth
+     * row are drawn together from left to right, and rows are drawn
+     * from the top of the screen to the bottom.  The cell need not
+     * be within the map.
+     *
+     * @param row
+     *            The row of the cell.
+     * @param column
+     *            The column of the cell.
+     *
+     * @return The depth row, counting from 0 at cell (0, 0).
+     */
+    public abstract int getDepthRow(int row, int column);
+
+
+    /****************************************************************
+     * Returns the number of depth rows covering the map.
+     */
+    public int getNumDepthRows()
+    {
+        final int lastRow = getMapData().getHeight() - 1;
+        final int lastColumn = getMapData().getWidth() - 1;
+
+        int max = Math.max(getDepthRow(0, 0), getDepthRow(lastRow, lastColumn));
+        max = Math.max(max, getDepthRow(0, lastColumn));
+        max = Math.max(max, getDepthRow(lastRow, 0));
+
+        return max + 1;
+    }
+
+
     public Point calculateBasePoint(MHActor actor)
     {
         Point p = new Point();
@@ -90,11 +211,15 @@ public abstract class MHIsometricMap extends MHTileMap
      * @param direction
      *            The direction in which to walk.
      *
-     * @return A point indicating the actor's new column and row
-     *         position after walking from its original position.
+     * @param out
+     *            The address in which to store the result.  It may
+     *            be the object the row and column were read from.
+     *
+     * @return The <i>out</i> parameter.
      */
+    @Override
     public abstract MHMapCellAddress tileWalk(int row, int column,
-            MHTileMapDirection direction);
+            MHTileMapDirection direction, MHMapCellAddress out);
 
 
     /****************************************************************
@@ -131,10 +256,27 @@ public abstract class MHIsometricMap extends MHTileMap
      *            The column of the map containing the actor (tile) to
      *            be plotted.
      *
-     * @return The pixel position at which the actor will be rendered.
+     * @param out
+     *            The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
      */
     @Override
-    public abstract Point plotTile(int row, int column);
+    public abstract Point plotTile(int row, int column, Point out);
+
+
+    /****************************************************************
+     * Finds the center of a cell's base tile in world space.
+     * Isometric maps plot their tiles in world space already.
+     */
+    @Override
+    public Point getCellCenter(final int row, final int column, final Point out)
+    {
+        plotTile(row, column, out);
+        out.translate(getTileWidth() / 2, getTileHeight() / 2);
+
+        return out;
+    }
 
 
     /****************************************************************
@@ -151,104 +293,94 @@ public abstract class MHIsometricMap extends MHTileMap
 
 
     /****************************************************************
-     * Converts a screen (mouse) coordinate into a map coordinate.
-     * Uses the five-step mouse mapping algorithm presented in the
-     * book <i>Isometric Game Programming with DirectX 7.0</i> by
-     * Ernest Pazera.
+     * Converts a world coordinate into a map coordinate.  Uses the
+     * five-step mouse mapping algorithm presented in the book
+     * <i>Isometric Game Programming with DirectX 7.0</i> by Ernest
+     * Pazera.  Step #1, converting screen coordinates to world
+     * coordinates, is done by <tt>mapMouse()</tt>.
      *
-     * @param mousePoint
-     *            A point representing a mouse coordinate.
+     * @param x
+     *            The x coordinate of a point in world space.
+     * @param y
+     *            The y coordinate of a point in world space.
+     * @param out
+     *            The address in which to store the result.
      *
-     * @return The address of the map cell containing the input mouse
-     *         coordinate.
+     * @return The <i>out</i> parameter.
      */
     @Override
-    public MHMapCellAddress mapMouse(final Point mousePoint)
+    public MHMapCellAddress mapWorld(final int x, final int y,
+            final MHMapCellAddress out)
     {
-
-        // ///////////////////////////////////////////////////////////
-        // Step #1: Convert Screen Coordinates to World Coordinates
-        // ///////////////////////////////////////////////////////////
-
-        final Point worldPoint = screenToWorld(mousePoint);
-
         // ///////////////////////////////////////////////////////////
         // Step #2: Subtract World Coordinates for the Upper Left of
         // the Map Position (0, 0)
         // ///////////////////////////////////////////////////////////
 
-        // calculate reference point -- Point relative to mouse map
-        final Point refPoint = plotTile(0, 0);
-
-        refPoint.x += refPoint.x;
-        refPoint.y += refPoint.y;
-
-        // subtract reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+        // reference point -- Point relative to mouse map
+        final MHPlotTable plots = getPlotTable();
+        int worldX = x - 2 * plots.getX(0, 0);
+        int worldY = y - 2 * plots.getY(0, 0);
 
         // ///////////////////////////////////////////////////////////
         // Step #3: Determine Mouse Map Coordinates
         // ///////////////////////////////////////////////////////////
 
         // coarse coordinates -- Estimate which cell we're near
-        final MHMapCellAddress mouseMapCoarse = new MHMapCellAddress();
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
+        int coarseColumn = worldX / MHIsoMouseMap.WIDTH;
+        int coarseRow = worldY / MHIsoMouseMap.HEIGHT;
 
         // fine coordinates -- Where are we relative to the coarse
         // cell?
-        final Point mouseMapFine = new Point();
-        mouseMapFine.x = worldPoint.x % MHIsoMouseMap.WIDTH;
-        mouseMapFine.y = worldPoint.y % MHIsoMouseMap.HEIGHT;
+        int fineX = worldX % MHIsoMouseMap.WIDTH;
+        int fineY = worldY % MHIsoMouseMap.HEIGHT;
 
         // adjust for negative fine coordinates
-        if (mouseMapFine.x < 0)
+        if (fineX < 0)
         {
-            mouseMapFine.x += MHIsoMouseMap.WIDTH;
-            mouseMapCoarse.column--;
+            fineX += MHIsoMouseMap.WIDTH;
+            coarseColumn--;
         }
 
-        if (mouseMapFine.y < 0)
+        if (fineY < 0)
         {
-            mouseMapFine.y += MHIsoMouseMap.HEIGHT;
-            mouseMapCoarse.row--;
+            fineY += MHIsoMouseMap.HEIGHT;
+            coarseRow--;
         }
 
-        MHMapCellAddress mapAddress = new MHMapCellAddress();
-        mapAddress.row = 0;
-        mapAddress.column = 0;
+        out.row = 0;
+        out.column = 0;
 
         // ///////////////////////////////////////////////////////////
         // Step #4: Perform a Coarse Tile Walk
         // ///////////////////////////////////////////////////////////
 
         // North
-        while (mouseMapCoarse.row < 0)
+        while (coarseRow < 0)
         {
-            mapAddress = tileWalk(mapAddress, MHTileMapDirection.NORTH);
-            mouseMapCoarse.row++;
+            tileWalk(out.row, out.column, MHTileMapDirection.NORTH, out);
+            coarseRow++;
         }
 
         // South
-        while (mouseMapCoarse.row > 0)
+        while (coarseRow > 0)
         {
-            mapAddress = tileWalk(mapAddress, MHTileMapDirection.SOUTH);
-            mouseMapCoarse.row--;
+            tileWalk(out.row, out.column, MHTileMapDirection.SOUTH, out);
+            coarseRow--;
         }
 
         // West
-        while (mouseMapCoarse.column < 0)
+        while (coarseColumn < 0)
         {
-            mapAddress = tileWalk(mapAddress, MHTileMapDirection.WEST);
-            mouseMapCoarse.column++;
+            tileWalk(out.row, out.column, MHTileMapDirection.WEST, out);
+            coarseColumn++;
         }
 
         // East
-        while (mouseMapCoarse.column > 0)
+        while (coarseColumn > 0)
         {
-            mapAddress = tileWalk(mapAddress, MHTileMapDirection.EAST);
-            mouseMapCoarse.column--;
+            tileWalk(out.row, out.column, MHTileMapDirection.EAST, out);
+            coarseColumn--;
         }
 
         // ///////////////////////////////////////////////////////////
@@ -257,36 +389,38 @@ public abstract class MHIsometricMap extends MHTileMap
 
         // Figure out which direction the fine coordinates indicate
         final MHTileMapDirection mouseMapDirection = mouseMap.getDirection(
-                mouseMapFine.x, mouseMapFine.y);
+                fineX, fineY);
 
         // Walk in the direction specified above
-        mapAddress = tileWalk(mapAddress, mouseMapDirection);
+        tileWalk(out.row, out.column, mouseMapDirection, out);
 
         // return map coordinate
-        return mapAddress;
+        return out;
     }
 
     
-    public void moveFineObject(MHActor object, int destRow, int destColumn)
+    /****************************************************************
+     * Moves a finely-placed object so that it stands in the middle
+     * of a map cell, placing it first if necessary.  Only the
+     * object's entry in the drawing order is touched; moving it
+     * costs the same no matter how many other objects there are.
+     *
+     * @param object
+     *            The object to be moved.
+     * @param destRow
+     *            The row of the destination cell.
+     * @param destColumn
+     *            The column of the destination cell.
+     */
+    public void moveFineObject(final MHActor object, final int destRow, final int destColumn)
     {
-        // Remove object from map.
-        MHMapCellAddress old = mapMouse(calculateBasePoint(object));
-        this.getMapData().getMapCell(old.row, old.column).setLayer(MHMapCell.WALL_LAYER, null);
+        final Point p = plotTile(destRow, destColumn, new Point());
 
-        // Insert object at new location.
-        this.getMapData().getMapCell(destRow, destColumn).setLayer(MHMapCell.WALL_LAYER, object);
-        
-        // Remove object from fine list.
-//        if (fineObjects != null && fineObjects.containsKey(old.row+old.column))
-//        {
-//            if (fineObjects.get(old.row + old.column).remove(object))
-//                System.out.println("Object removed: " + object.toString());
-//            else
-//                System.out.println("Object not found: " + object.toString());
-//        }
-        
-        // Re-insert object into fine list.
-//        this.placeFineObject(object);
+        // Put the base point at the center of the base tile.
+        object.setLocation(p.x + getTileWidth() / 2 - object.getWidth() / 2,
+                p.y + getTileHeight() / 2 - object.getHeight() + MHIsoMouseMap.HEIGHT / 2);
+
+        getFineObjects().add(object);
     }
 
     
@@ -316,7 +450,8 @@ public abstract class MHIsometricMap extends MHTileMap
 
         MHMapCell mapCell;
         MHActor tile;
-        Point ptTile;
+        final Point ptTile = new Point();
+        final Shape clip = clipToScreenSpace(g);
 
         for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
         {
@@ -325,7 +460,7 @@ public abstract class MHIsometricMap extends MHTileMap
                 for (int column = 0; column < getMapData().getWidth(); column++)
                 {
                     // Calculate the position of the image anchor
-                    ptTile = plotTile(row, column);
+                    plotCell(row, column, ptTile);
 
                     // Translate to the base tile's center point
                     ptTile.x += (getTileWidth() / 2);
@@ -347,9 +482,10 @@ public abstract class MHIsometricMap extends MHTileMap
                     ptTile.x -= tile.getImage().getWidth(null) / 2;
                     ptTile.y -= tile.getImage().getHeight(null);
 
-                    // Adjust for screen anchor to enable scrolling
-                    ptTile.x -= screenAnchor.x;
-                    ptTile.y -= screenAnchor.y;
+                    // Adjust for screen anchor to enable scrolling,
+                    // then move into the view's screen space
+                    ptTile.x += (int) screenSpace.getX() - screenAnchor.x;
+                    ptTile.y += (int) screenSpace.getY() - screenAnchor.y;
 
                     mapCell.render(g, layer, ptTile.x, ptTile.y);
 
@@ -403,6 +539,7 @@ public abstract class MHIsometricMap extends MHTileMap
             cursorFlasher = !cursorFlasher;
         }
 
+        g.setClip(clip);
     }
 
 
@@ -419,236 +556,275 @@ public abstract class MHIsometricMap extends MHTileMap
     @Override
     public void render(final Graphics2D g)
     {
-        MHMapCellAddress upperRight = new MHMapCellAddress(), 
-        upperLeft = new MHMapCellAddress(), 
-        lowerRight = new MHMapCellAddress(), 
-        lowerLeft = new MHMapCellAddress();
-        final MHMapCellAddress mouseMapCoarse = new MHMapCellAddress();
-        MHMapCellAddress mapAddress;
-        Point screenPoint, worldPoint, refPoint;
-
-        // ///////////////////////////////////////////////////////////
-        // //
-        // // Prepatory Stage
-        // //
-        // ///////////////////////////////////////////////////////////
-
-        // /////////////////////////////
-        // UPPER LEFT CORNER:
-        // /////////////////////////////
-
-        // screen point
-        screenPoint = new Point();
-        screenPoint.x = (int) screenSpace.getX();
-        screenPoint.y = (int) screenSpace.getY();
+        final Point cursor = new Point();
+        final Shape clip = clipToScreenSpace(g);
 
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
+        renderGround(g);
+        if (renderCells(g, getScreenTop(), getScreenBottom(), cursor))
+            cursorAnchor.setLocation(cursor);
 
-        // adjust by mouse map reference point
-        refPoint = plotTile(0, 0);
+        renderOverlays(g);
+        renderCursor(g);
 
-        refPoint.x += refPoint.x;
-        refPoint.y += refPoint.y;
+        g.setClip(clip);
+    }
 
-        // subtract reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
 
-        // Calculate coarse coordinates
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
+    /****************************************************************
+     * Returns the screen y coordinate of the top of the view.
+     */
+    protected int getScreenTop()
+    {
+        return (int) screenSpace.getY();
+    }
 
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-            mouseMapCoarse.column--;
 
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-            mouseMapCoarse.row--;
+    /****************************************************************
+     * Returns the screen y coordinate below which no cell whose
+     * tiles reach into the view can have its base, which is the
+     * bottom of the view plus <tt>TILE_OVERHANG</tt>.
+     */
+    protected int getScreenBottom()
+    {
+        return (int) (screenSpace.getY() + screenSpace.getHeight()) + TILE_OVERHANG;
+    }
 
-        // Initialize map address
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
 
-        upperLeft = new MHMapCellAddress();
-        upperLeft.row = mapAddress.row;
-        upperLeft.column = mapAddress.column;
+    /****************************************************************
+     * Renders every map cell whose base tile falls within the given
+     * vertical span of the screen.  The span should be extended by
+     * <tt>TILE_OVERHANG</tt> at the bottom so that tall tiles whose
+     * bases lie below the span are still drawn.
+     *
+     * <p>This method only reads the map, so it may be called from
+     * several threads at once as long as each one draws on its own
+     * Graphics object and passes its own <i>cursor</i> point.  The
+     * caller copies the cursor position into the map once every
+     * thread is done.  See <tt>MHParallelMapRenderer</tt>.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     * @param top
+     *            The screen y coordinate of the top of the span.
+     * @param bottom
+     *            The screen y coordinate of the bottom of the span.
+     * @param cursor
+     *            Receives the screen position of the cursor's cell if
+     *            it is drawn.
+     *
+     * @return True if the cursor's cell was drawn.
+     */
+    protected boolean renderCells(final Graphics2D g, final int top,
+            final int bottom, final Point cursor)
+    {
+        return renderCells(g, top, bottom, 0, MHMapCell.NUM_LAYERS - 1, cursor);
+    }
 
-        // Reset map point
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
 
-        upperLeft.row += mapAddress.row;
-        upperLeft.column += mapAddress.column;
+    /****************************************************************
+     * Renders a range of layers of every map cell whose base tile
+     * falls within the given vertical span of the screen.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     * @param top
+     *            The screen y coordinate of the top of the span.
+     * @param bottom
+     *            The screen y coordinate of the bottom of the span.
+     * @param firstLayer
+     *            The first layer to draw in each cell.
+     * @param lastLayer
+     *            The last layer to draw in each cell.
+     * @param cursor
+     *            Receives the screen position of the cursor's cell if
+     *            it is drawn.
+     *
+     * @return True if the cursor's cell was drawn.
+     */
+    protected boolean renderCells(final Graphics2D g, final int top,
+            final int bottom, final int firstLayer, final int lastLayer,
+            final Point cursor)
+    {
+        final MHMapCellAddress upperLeft = new MHMapCellAddress();
+        final MHMapCellAddress upperRight = new MHMapCellAddress();
+        final MHMapCellAddress lowerLeft = new MHMapCellAddress();
 
-        // /////////////////////////////
-        // UPPER RIGHT CORNER
-        // /////////////////////////////
+        findCorners(top, bottom, upperLeft, upperRight, lowerLeft);
 
-        // screen point
-        screenPoint.x = (int) screenSpace.getWidth() - 1;
-        screenPoint.y = (int) screenSpace.getY();
+        return renderWalk(g, upperLeft, upperRight, lowerLeft, firstLayer,
+                lastLayer, cursor);
+    }
 
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
 
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+    /****************************************************************
+     * Renders the selected layers of the map onto the sent Graphics
+     * object using an optimized algorithm.
+     * 
+     * NOTE:  This method renders one LAYER at a time.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     * @param flags
+     *            An array of flags indicating which layers are to be
+     *            rendered.  If the ground is cached, the floor and
+     *            floor detail layers are drawn together whenever
+     *            either is selected.  Finely-placed objects are
+     *            drawn with the wall layer.
+     */
+    public void render(final Graphics2D g, final boolean[] flags)
+    {
+        final Point cursor = new Point();
+        final Shape clip = clipToScreenSpace(g);
 
-        // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
+        if (flags[MHMapCell.FLOOR_LAYER] || flags[MHMapCell.FLOOR_DETAIL_LAYER])
+            renderGround(g);
 
-        // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
+        for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
         {
-            mouseMapCoarse.column--;
+            if (flags[layer] && renderCells(g, getScreenTop(), getScreenBottom(),
+                        layer, layer, cursor))
+                cursorAnchor.setLocation(cursor);
         }
 
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-        {
-            mouseMapCoarse.row--;
-        }
+        renderOverlays(g);
+        renderCursor(g);
 
-        // do eastward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
+        g.setClip(clip);
+    }
 
-        // assign ptmap to corner point
-        upperRight.row = mapAddress.row;
-        upperRight.column = mapAddress.column;
 
-        // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
+    /****************************************************************
+     * Prepatory stage of the optimized rendering algorithm.  Finds
+     * the map cells at the corners of the given span of the screen,
+     * then walks them one cell outward so that partially visible
+     * tiles along the edges are included.
+     *
+     * @param top
+     *            The screen y coordinate of the top of the span.
+     * @param bottom
+     *            The screen y coordinate of the bottom of the span.
+     * @param upperLeft
+     *            Receives the cell at the upper left corner.
+     * @param upperRight
+     *            Receives the cell at the upper right corner.
+     * @param lowerLeft
+     *            Receives the cell at the lower left corner.
+     */
+    protected void findCorners(final int top, final int bottom,
+            final MHMapCellAddress upperLeft,
+            final MHMapCellAddress upperRight,
+            final MHMapCellAddress lowerLeft)
+    {
+        final int left = (int) screenSpace.getX();
+        final int right = (int) (screenSpace.getX() + screenSpace.getWidth()) - 1;
 
-        // add mapAddress to corner point
-        upperRight.row += mapAddress.row;
-        upperRight.column += mapAddress.column;
+        findCorner(left, top, upperLeft);
+        findCorner(right, top, upperRight);
+        findCorner(left, bottom, lowerLeft);
 
-        // /////////////////////////////
-        // LOWER LEFT CORNER
-        // /////////////////////////////
+        // tilewalk from corners
+        tileWalk(upperLeft.row, upperLeft.column,
+                MHTileMapDirection.NORTHWEST, upperLeft);
+        tileWalk(upperRight.row, upperRight.column,
+                MHTileMapDirection.NORTHEAST, upperRight);
+        tileWalk(lowerLeft.row, lowerLeft.column,
+                MHTileMapDirection.SOUTHWEST, lowerLeft);
+    }
 
-        // screen point
-        screenPoint.x = (int) screenSpace.getX();
-        screenPoint.y = (int) screenSpace.getHeight() + 128;// - 1;
 
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
+    /****************************************************************
+     * Finds the map cell near a screen point by the coarse mouse map
+     * coordinates alone, as the rendering algorithm does for its
+     * corners.
+     *
+     * @param screenX  The x coordinate of the screen point.
+     * @param screenY  The y coordinate of the screen point.
+     * @param corner   Receives the address of the map cell.
+     */
+    private void findCorner(final int screenX, final int screenY,
+            final MHMapCellAddress corner)
+    {
+        final MHPlotTable plots = getPlotTable();
 
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+        // change into world coordinates, then subtract the mouse
+        // map reference point
+        final int worldX = screenToWorldX(screenX) - 2 * plots.getX(0, 0);
+        final int worldY = screenToWorldY(screenY) - 2 * plots.getY(0, 0);
 
         // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
+        int coarseColumn = worldX / MHIsoMouseMap.WIDTH;
+        int coarseRow = worldY / MHIsoMouseMap.HEIGHT;
 
         // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-            mouseMapCoarse.column--;
+        if (worldX % MHIsoMouseMap.WIDTH < 0)
+            coarseColumn--;
 
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-            mouseMapCoarse.row--;
+        if (worldY % MHIsoMouseMap.HEIGHT < 0)
+            coarseRow--;
 
         // do eastward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
-
-        // assign ptmap to corner point
-        lowerLeft.row = mapAddress.row;
-        lowerLeft.column = mapAddress.column;
+        tileWalk(0, 0, MHTileMapDirection.EAST, corner);
+        final int eastRow = corner.row;
+        final int eastColumn = corner.column;
 
         // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
-
-        // add ptmap to corner point
-        lowerLeft.row += mapAddress.row;
-        lowerLeft.column += mapAddress.column;
-
-        // /////////////////////////////
-        // LOWER RIGHT CORNER
-        // /////////////////////////////
-
-        // screen point
-        screenPoint.x = (int) screenSpace.getWidth() - 1;
-        screenPoint.y = (int) screenSpace.getHeight() + 128;// - 1;
-
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
-
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+        tileWalk(0, 0, MHTileMapDirection.SOUTH, corner);
 
-        // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
-
-        // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-        {
-            mouseMapCoarse.column--;
-
-        }
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-        {
-            mouseMapCoarse.row--;
-
-            // do eastward tilewalk
-        }
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
-
-        // assign mapAddress to corner point
-        lowerRight.row = mapAddress.row;
-        lowerRight.column = mapAddress.column;
-
-        // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
-
-        // add mapAddress to corner point
-        lowerRight.row += mapAddress.row;
-        lowerRight.column += mapAddress.column;
-
-        // tilewalk from corners
-        upperLeft = tileWalk(upperLeft, MHTileMapDirection.NORTHWEST);
-        upperRight = tileWalk(upperRight, MHTileMapDirection.NORTHEAST);
-        lowerLeft = tileWalk(lowerLeft, MHTileMapDirection.SOUTHWEST);
-        lowerRight = tileWalk(lowerRight, MHTileMapDirection.SOUTHEAST);
+        corner.row = eastRow * coarseColumn + corner.row * coarseRow;
+        corner.column = eastColumn * coarseColumn + corner.column * coarseRow;
+    }
 
-        // ///////////////////////////////////////////////////////////
-        // //
-        // // Rendering Loop
-        // //
-        // ///////////////////////////////////////////////////////////
 
-        MHMapCellAddress currentAddress = new MHMapCellAddress();
-        MHMapCellAddress startAddress = new MHMapCellAddress();
-        MHMapCellAddress endAddress = new MHMapCellAddress();
+    /****************************************************************
+     * Rendering loop of the optimized rendering algorithm.  Walks
+     * the rows of cells between the given corners and draws the
+     * given range of layers in each cell.  Nothing is allocated
+     * inside the loop.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     * @param upperLeft
+     *            The first cell of the first row.
+     * @param upperRight
+     *            The last cell of the first row.
+     * @param lowerLeft
+     *            The first cell of the last row.
+     * @param firstLayer
+     *            The first layer to draw in each cell.
+     * @param lastLayer
+     *            The last layer to draw in each cell.
+     * @param cursor
+     *            Receives the screen position of the cursor's cell if
+     *            it is drawn.
+     *
+     * @return True if the cursor's cell was drawn.
+     */
+    private boolean renderWalk(final Graphics2D g,
+            final MHMapCellAddress upperLeft,
+            final MHMapCellAddress upperRight,
+            final MHMapCellAddress lowerLeft,
+            final int firstLayer, final int lastLayer, final Point cursor)
+    {
+        final MHMapCellAddress currentAddress = new MHMapCellAddress();
+        final MHMapCellAddress startAddress = new MHMapCellAddress();
+        final MHMapCellAddress endAddress = new MHMapCellAddress();
+        final Point plotPoint = new Point();
+        boolean cursorDrawn = false;
         int rowCount = 0;
 
-        MHMapCell mapCell;
-        MHActor tile;
-
         // Variables used in rendering loop. Placed here to reduce
         // the number of method calls performed during rendering.
-        final MHMap mapData = getMapData();
-        final int mapWidth = mapData.getWidth();
-        final int mapHeight = mapData.getHeight();
-        final int tileWidth = getTileWidth();
-        final int tileHeight = getTileHeight();
+        final MHPlotTable plots = getPlotTable();
+        final int mapWidth = getMapData().getWidth();
+        final int mapHeight = getMapData().getHeight();
+
+        // Finely-placed objects are drawn with the walls.
+        final MHDepthBuckets objects = (firstLayer <= MHMapCell.WALL_LAYER
+                && lastLayer >= MHMapCell.WALL_LAYER ? fineObjects : null);
 
         // set up rows
         startAddress.row = upperLeft.row;
@@ -673,73 +849,10 @@ public abstract class MHIsometricMap extends MHTileMap
                         && currentAddress.column < mapWidth
                         && currentAddress.row < mapHeight)
                 {
-                    
-                    // start rendering loops
-                    for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
-                    {
-                        // valid, so render
-                        screenPoint = plotTile(currentAddress.row,
-                                currentAddress.column);
-
-                        // screenPoint =
-                        // worldToScreen(screenPoint);//world->screen
-
-                        // Translate to the base tile's center point
-                        screenPoint.x += (tileWidth / 2);
-                        screenPoint.y += tileHeight;
-
-                        // Get the map cell to be rendered
-                        mapCell = mapData.getMapCell(
-                                currentAddress.row,
-                                currentAddress.column);
-
-                        // Get the tile to be rendered
-                        tile = mapCell.getLayer(layer);
-                        if (tile != null)
-                        {
-                            Image tileImage = tile.getImage();
-
-                            if (tileImage != null)
-                            {
-                                // Calculate its position relative to
-                                // the base tile.
-                                screenPoint.x -= tileImage
-                                .getWidth(null) / 2;
-                                screenPoint.y -= tileImage
-                                .getHeight(null);
-
-                                // Adjust for screen anchor to enable
-                                // scrolling
-                                screenPoint.x -= screenAnchor.x;
-                                screenPoint.y -= screenAnchor.y;
-
-                                // Draw the tile
-                                mapCell.render(g, layer,
-                                        screenPoint.x,
-                                        screenPoint.y);
-                            } // If tileImage != null
-
-                                // if the current (row, column) is the
-                                // one selected by the
-                                // cursor, save its plot coordinates
-                                if (cursorAddress.row == currentAddress.row
-                                        && cursorAddress.column == currentAddress.column)
-                                {
-                                    cursorAnchor.x = screenPoint.x;
-                                    cursorAnchor.y = screenPoint.y
-                                    + tileImage
-                                    .getHeight(null)
-                                    - tileHeight;
-                                }
-                            } // if tile not null
-                        
-
-                        // Render fine objects.
-//                        if (layer == MHMapCell.ITEM_LAYER)
-//                            renderFineObjects(g, currentAddress.row + currentAddress.column);
-
-                        } // for layer...
-
+                    if (renderCell(g, plots, currentAddress.row,
+                            currentAddress.column, firstLayer, lastLayer,
+                            plotPoint, cursor))
+                        cursorDrawn = true;
                 } // if valid point
 
                 // check if at end of row. if we are, break out of
@@ -751,17 +864,21 @@ public abstract class MHIsometricMap extends MHTileMap
                 }
 
                 // walk east to next tile
-                currentAddress = tileWalk(currentAddress,
-                        MHTileMapDirection.EAST);
+                tileWalk(currentAddress.row, currentAddress.column,
+                        MHTileMapDirection.EAST, currentAddress);
             } // render a row
 
+            // draw the objects standing in the row
+            if (objects != null)
+                objects.renderRow(g, this,
+                        getDepthRow(startAddress.row, startAddress.column));
+
             // check to see if we are at the last row. if we are,
-            // break out of
-            // the loop
+            // we're done
             if (startAddress.column == lowerLeft.column
                     && startAddress.row == lowerLeft.row)
             {
-                break;
+                return cursorDrawn;
             }
 
             // move the row start and end points, based on the row
@@ -770,435 +887,283 @@ public abstract class MHIsometricMap extends MHTileMap
             {
                 // odd
                 // start moves SW, end moves SE
-                startAddress = tileWalk(startAddress,
-                        MHTileMapDirection.SOUTHWEST);
-                endAddress = tileWalk(endAddress, MHTileMapDirection.SOUTHEAST);
+                tileWalk(startAddress.row, startAddress.column,
+                        MHTileMapDirection.SOUTHWEST, startAddress);
+                tileWalk(endAddress.row, endAddress.column,
+                        MHTileMapDirection.SOUTHEAST, endAddress);
             }
             else
             {
                 // even
                 // start moves SE, end moves SW
-                startAddress = tileWalk(startAddress,
-                        MHTileMapDirection.SOUTHEAST);
-                endAddress = tileWalk(endAddress, MHTileMapDirection.SOUTHWEST);
+                tileWalk(startAddress.row, startAddress.column,
+                        MHTileMapDirection.SOUTHEAST, startAddress);
+                tileWalk(endAddress.row, endAddress.column,
+                        MHTileMapDirection.SOUTHWEST, endAddress);
             }
 
             // increase the row number
             rowCount++;
         }
-
-        // Misc. stuff
-        /*
-         * g.setColor(Color.BLACK); g.drawString("Screen:  (" +
-         * cursorPoint.x + ", " + cursorPoint.y + ")", 10, 30); Point
-         * wp = screenToWorld(cursorPoint); g.drawString("World:  (" +
-         * wp.x + ", " + wp.y + ")", 10, 50); g.drawString("Map:  (" +
-         * cursorAddress.row + ", " + cursorAddress.column + ")", 10,
-         * 70);
-         */
-
-        if (isCursorOn())
-        {
-            if (cursorFlasher)
-                drawCursor(g);
-
-            cursorFlasher = !cursorFlasher;
-        }
-
     }
 
 
     /****************************************************************
-     * Renders the selected layers of the map onto the sent Graphics
-     * object using an optimized algorithm.
-     * 
-     * NOTE:  This method renders one LAYER at a time.
+     * Draws a range of layers of a single map cell.
      *
      * @param g
      *            The graphics object on which we are rendering the
      *            map.
-     * @param flags
-     *            An array of flags indicating which layers are to be
-     *            rendered.
+     * @param plots
+     *            The plot tables for the current view.
+     * @param row
+     *            The row of the cell, which must be within the map.
+     * @param column
+     *            The column of the cell, which must be within the
+     *            map.
+     * @param firstLayer
+     *            The first layer to draw.
+     * @param lastLayer
+     *            The last layer to draw.
+     * @param plotPoint
+     *            A scratch point used for the cell's plot position.
+     * @param cursor
+     *            Receives the screen position of the cell's base tile
+     *            if the cell is the cursor's.
+     *
+     * @return True if the cell is the cursor's.
      */
-    public void render(final Graphics2D g, final boolean[] flags)
+    protected boolean renderCell(final Graphics2D g, final MHPlotTable plots,
+            final int row, final int column, final int firstLayer,
+            final int lastLayer, final Point plotPoint, final Point cursor)
     {
-        MHMapCellAddress upperRight = new MHMapCellAddress(), upperLeft = new MHMapCellAddress(), lowerRight = new MHMapCellAddress(), lowerLeft = new MHMapCellAddress();
-        final MHMapCellAddress mouseMapCoarse = new MHMapCellAddress();
-        MHMapCellAddress mapAddress;
-        Point screenPoint, worldPoint, refPoint;
-
-        // ///////////////////////////////////////////////////////////
-        // //
-        // // Prepatory Stage
-        // //
-        // ///////////////////////////////////////////////////////////
-
-        // /////////////////////////////
-        // UPPER LEFT CORNER:
-        // /////////////////////////////
-
-        // screen point
-        screenPoint = new Point();
-        screenPoint.x = (int) screenSpace.getX();
-        screenPoint.y = (int) screenSpace.getY();
-
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
-
-        // adjust by mouse map reference point
-        refPoint = plotTile(0, 0);
-
-        refPoint.x += refPoint.x;
-        refPoint.y += refPoint.y;
-
-        // subtract reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+        final MHMapCell mapCell = getMapData().getMapCell(row, column);
 
-        // Calculate coarse coordinates
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
+        if (mapCell == null)
+            return false;
 
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-            mouseMapCoarse.column--;
-
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-            mouseMapCoarse.row--;
+        final int tileHeight = getTileHeight();
+        final int zoom = getZoomLevel();
+        final int screenX = (int) screenSpace.getX();
+        final int screenY = (int) screenSpace.getY();
+
+        plots.plot(row, column, plotPoint);
+
+        // Translate to the base tile's center point and adjust for
+        // screen anchor to enable scrolling.  These are relative to
+        // the view's upper-left corner and not yet zoomed.
+        final int centerX = plotPoint.x + getTileWidth() / 2 - screenAnchor.x;
+        final int baseY = plotPoint.y + tileHeight - screenAnchor.y;
+
+        // if the current (row, column) is the one selected by the
+        // cursor, save its plot coordinates for the caller
+        final boolean isCursor = (cursorAddress.row == row
+                && cursorAddress.column == column);
+        if (isCursor)
+        {
+            cursor.x = ((centerX - getTileWidth() / 2) >> zoom) + screenX;
+            cursor.y = ((baseY - tileHeight) >> zoom) + screenY;
+        }
 
-        // Initialize map address
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
+        // Skip the layers that were drawn from the ground cache.
+        int first = firstLayer;
+        if (first <= MHGroundCache.LAST_LAYER && groundCache != null
+                && groundCache.isCached(row, column))
+            first = MHGroundCache.LAST_LAYER + 1;
 
-        upperLeft = new MHMapCellAddress();
-        upperLeft.row = mapAddress.row;
-        upperLeft.column = mapAddress.column;
+        for (int layer = first; layer <= lastLayer; layer++)
+        {
+            // Get the tile to be rendered
+            final MHActor tile = mapCell.getLayer(layer);
+            if (tile == null)
+                continue;
 
-        // Reset map point
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
+            final Image tileImage = tile.getImage();
+            if (tileImage == null)
+                continue;
 
-        upperLeft.row += mapAddress.row;
-        upperLeft.column += mapAddress.column;
+            // Draw the tile relative to the base tile
+            final int x = centerX - tileImage.getWidth(null) / 2;
+            final int y = baseY - tileImage.getHeight(null);
 
-        // /////////////////////////////
-        // UPPER RIGHT CORNER
-        // /////////////////////////////
+            if (zoom == 0)
+                mapCell.render(g, layer, x + screenX, y + screenY);
+            else
+                g.drawImage(MHMipmapCache.getImage(tileImage, zoom),
+                        (x >> zoom) + screenX, (y >> zoom) + screenY, null);
+        }
 
-        // screen point
-        screenPoint.x = (int) screenSpace.getWidth() - 1;
-        screenPoint.y = (int) screenSpace.getY();
+        return isCursor;
+    }
 
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
 
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+    /****************************************************************
+     * Draws the floor layers from the ground cache, if the ground is
+     * cached.  Must be called before the cells are rendered.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     */
+    protected void renderGround(final Graphics2D g)
+    {
+        if (groundCache != null)
+            groundCache.render(g, this);
+    }
 
-        // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
 
-        // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
+    /****************************************************************
+     * Turns caching of the floor layers on or off.  When it is on,
+     * the floor and floor detail tiles are baked into large images a
+     * chunk of cells at a time, and each frame draws a handful of
+     * chunk images instead of two tiles per cell.  Cells with
+     * animated floor tiles or interactive floor objects are still
+     * drawn tile by tile.
+     *
+     * <p>Turn caching on after the tile set has been loaded.  Views
+     * made from this map afterwards share its cache.
+     *
+     * @param cached
+     *            True to cache the floor layers.
+     */
+    public void setGroundCached(final boolean cached)
+    {
+        if (cached && groundCache == null)
         {
-            mouseMapCoarse.column--;
+            groundCache = new MHGroundCache(this);
         }
-
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
+        else if (!cached && groundCache != null)
         {
-            mouseMapCoarse.row--;
+            groundCache.dispose();
+            groundCache = null;
         }
+    }
 
-        // do eastward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
-
-        // assign ptmap to corner point
-        upperRight.row = mapAddress.row;
-        upperRight.column = mapAddress.column;
-
-        // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
-
-        // add mapAddress to corner point
-        upperRight.row += mapAddress.row;
-        upperRight.column += mapAddress.column;
-
-        // /////////////////////////////
-        // LOWER LEFT CORNER
-        // /////////////////////////////
-
-        // screen point
-        screenPoint.x = (int) screenSpace.getX();
-        screenPoint.y = (int) screenSpace.getHeight() - 1;
-
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
-
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
-
-        // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
-
-        // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-            mouseMapCoarse.column--;
-
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
-            mouseMapCoarse.row--;
-
-        // do eastward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
 
-        // assign ptmap to corner point
-        lowerLeft.row = mapAddress.row;
-        lowerLeft.column = mapAddress.column;
+    public boolean isGroundCached()
+    {
+        return groundCache != null;
+    }
 
-        // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
 
-        // add ptmap to corner point
-        lowerLeft.row += mapAddress.row;
-        lowerLeft.column += mapAddress.column;
+    /****************************************************************
+     * Draws the map's overlays, in the order they were added.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     */
+    protected void renderOverlays(final Graphics2D g)
+    {
+        for (int i = 0; i < overlays.size(); i++)
+            overlays.get(i).render(g, this);
+    }
 
-        // /////////////////////////////
-        // LOWER RIGHT CORNER
-        // /////////////////////////////
 
-        // screen point
-        screenPoint.x = (int) screenSpace.getWidth() - 1;
-        screenPoint.y = (int) screenSpace.getHeight() - 1;
+    /****************************************************************
+     * Adds an overlay to be drawn over the map's cells.
+     */
+    public void addOverlay(final MHChunkedOverlay overlay)
+    {
+        overlays.add(overlay);
+    }
 
-        // change into world coordinate
-        worldPoint = screenToWorld(screenPoint);
 
-        // adjust by mousemap reference point
-        worldPoint.x -= refPoint.x;
-        worldPoint.y -= refPoint.y;
+    /****************************************************************
+     * Removes an overlay from the map.
+     */
+    public void removeOverlay(final MHChunkedOverlay overlay)
+    {
+        overlays.remove(overlay);
+    }
 
-        // calculate coarse coordinates
-        mouseMapCoarse.row = worldPoint.y / MHIsoMouseMap.HEIGHT;
-        mouseMapCoarse.column = worldPoint.x / MHIsoMouseMap.WIDTH;
 
-        // adjust for negative remainders
-        if (worldPoint.x % MHIsoMouseMap.WIDTH < 0)
-        {
-            mouseMapCoarse.column--;
+    /****************************************************************
+     * Lights the map with the given light map, or turns lighting
+     * off if the light map is null.  The map is shaded by an overlay
+     * that is kept up to date as the lights change.
+     *
+     * @param lightMap
+     *            The light map, or null.
+     */
+    public void setLightMap(final MHLightMap lightMap)
+    {
+        final MHLightMap old = getMapData().getLightMap();
 
-        }
-        if (worldPoint.y % MHIsoMouseMap.HEIGHT < 0)
+        if (lightOverlay != null)
         {
-            mouseMapCoarse.row--;
-
-            // do eastward tilewalk
+            removeOverlay(lightOverlay);
+            if (old != null)
+                old.removeOverlay(lightOverlay);
+            lightOverlay = null;
         }
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.EAST);
-        mapAddress.row *= mouseMapCoarse.column;
-        mapAddress.column *= mouseMapCoarse.column;
-
-        // assign mapAddress to corner point
-        lowerRight.row = mapAddress.row;
-        lowerRight.column = mapAddress.column;
-
-        // do southward tilewalk
-        mapAddress = tileWalk(0, 0, MHTileMapDirection.SOUTH);
-        mapAddress.row *= mouseMapCoarse.row;
-        mapAddress.column *= mouseMapCoarse.row;
-
-        // add mapAddress to corner point
-        lowerRight.row += mapAddress.row;
-        lowerRight.column += mapAddress.column;
 
-        // tilewalk from corners
-        upperLeft = tileWalk(upperLeft, MHTileMapDirection.NORTHWEST);
-        upperRight = tileWalk(upperRight, MHTileMapDirection.NORTHEAST);
-        lowerLeft = tileWalk(lowerLeft, MHTileMapDirection.SOUTHWEST);
-        lowerRight = tileWalk(lowerRight, MHTileMapDirection.SOUTHEAST);
-
-        // ///////////////////////////////////////////////////////////
-        // //
-        // // Rendering Loop
-        // //
-        // ///////////////////////////////////////////////////////////
+        getMapData().setLightMap(lightMap);
 
-        MHMapCellAddress currentAddress = new MHMapCellAddress();
-        MHMapCellAddress startAddress = new MHMapCellAddress();
-        MHMapCellAddress endAddress = new MHMapCellAddress();
-        int rowCount = 0;
+        if (lightMap != null)
+        {
+            lightOverlay = lightMap.createOverlay(this);
+            addOverlay(lightOverlay);
+        }
+    }
 
-        MHMapCell mapCell;
-        MHActor tile;
 
-        // Variables used in rendering loop. Placed here to reduce
-        // the number of method calls performed during rendering.
-        final MHMap mapData = getMapData();
-        final int mapWidth = mapData.getWidth();
-        final int mapHeight = mapData.getHeight();
-        final int tileWidth = getTileWidth();
-        final int tileHeight = getTileHeight();
-        Image tileImage;
+    /****************************************************************
+     * Draws the fog of war for one team from the given visibility
+     * map, or turns the fog off if the visibility map is null.
+     * Cells the team has never seen are blacked out and explored
+     * cells it can't see now are darkened.
+     *
+     * @param visibilityMap
+     *            The visibility map, or null.
+     * @param team
+     *            The team whose view is shown.
+     */
+    public void setVisibilityMap(final MHVisibilityMap visibilityMap, final int team)
+    {
+        final MHVisibilityMap old = getMapData().getVisibilityMap();
 
-        // start rendering loops
-        for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+        if (fogOverlay != null)
         {
-            if (!flags[layer])
-                continue;
-
-            // set up rows
-            startAddress.row = upperLeft.row;
-            startAddress.column = upperLeft.column;
-
-            endAddress.row = upperRight.row;
-            endAddress.column = upperRight.column;
+            removeOverlay(fogOverlay);
+            if (old != null)
+                old.removeOverlay(fogOverlay);
+            fogOverlay = null;
+        }
 
-            for (;;)
-            {
-                // "infinite" loop for rows
-                // set current point to rowstart
-                currentAddress.row = startAddress.row;
-                currentAddress.column = startAddress.column;
+        getMapData().setVisibilityMap(visibilityMap);
 
-                // render a row of tiles
-                for (;;)
-                {
-                    // check for valid point. if valid, render
-                    if (currentAddress.column >= 0
-                            && currentAddress.row >= 0
-                            && currentAddress.column < mapWidth
-                            && currentAddress.row < mapHeight)
-                    {
-                        // valid, so render
-                        screenPoint = plotTile(currentAddress.row,
-                                currentAddress.column);
-
-                        // screenPoint =
-                        // worldToScreen(screenPoint);//world->screen
-
-                        // Translate to the base tile's center point
-                        screenPoint.x += (tileWidth / 2);
-                        screenPoint.y += tileHeight;
-
-                        // Get the map cell to be rendered
-                        mapCell = mapData.getMapCell(
-                                currentAddress.row,
-                                currentAddress.column);
-
-                        // Get the tile to be rendered
-                        tile = mapCell.getLayer(layer);
-                        if (tile != null)
-                        {
-                            tileImage = tile.getImage();
-
-                            if (tileImage != null)
-                            {
-                                // Calculate its position relative to
-                                // the base
-                                // tile.
-                                screenPoint.x -= tileImage
-                                .getWidth(null) / 2;
-                                screenPoint.y -= tileImage
-                                .getHeight(null);
-
-                                // Adjust for screen anchor to enable
-                                // scrolling
-                                screenPoint.x -= screenAnchor.x;
-                                screenPoint.y -= screenAnchor.y;
-
-                                // Draw the tile
-                                mapCell.render(g, layer,
-                                        screenPoint.x,
-                                        screenPoint.y);
-
-                                // if the current (row, column) is the
-                                // one selected by the
-                                // cursor, save its plot coordinates
-                                if (cursorAddress.row == currentAddress.row
-                                        && cursorAddress.column == currentAddress.column)
-                                {
-                                    cursorAnchor.x = screenPoint.x;
-                                    cursorAnchor.y = screenPoint.y
-                                    + tileImage
-                                    .getHeight(null)
-                                    - tileHeight;
-                                }
-                            } // if tile image not null
-                        } // if tile not null
-                    } // if valid point
-
-                    // Render fine objects.
-//                    if (layer == MHMapCell.ITEM_LAYER)
-//                        renderFineObjects(g, currentAddress.row + currentAddress.column);  
-                    
-                    // check if at end of row. if we are, break out of
-                    // inner loop
-                    if (currentAddress.column == endAddress.column
-                            && currentAddress.row == endAddress.row)
-                    {
-                        break;
-                    }
+        if (visibilityMap != null)
+        {
+            fogOverlay = visibilityMap.createOverlay(this, team);
+            addOverlay(fogOverlay);
+        }
+    }
 
-                    // walk east to next tile
-                    currentAddress = tileWalk(currentAddress,
-                            MHTileMapDirection.EAST);
-                } // render a row
 
-                // check to see if we are at the last row. if we are,
-                // break out of
-                // the loop
-                if (startAddress.column == lowerLeft.column
-                        && startAddress.row == lowerLeft.row)
-                {
-                    break;
-                }
+    /****************************************************************
+     * Returns the outline of a base tile whose upper-left corner is
+     * at (0, 0).  Overlays fill this shape for each cell.
+     */
+    public Polygon getTileOutline()
+    {
+        final int w = getTileWidth();
+        final int h = getTileHeight();
 
-                // move the row start and end points, based on the row
-                // number
-                if (rowCount % 2 != 0)
-                {
-                    // odd
-                    // start moves SW, end moves SE
-                    startAddress = tileWalk(startAddress,
-                            MHTileMapDirection.SOUTHWEST);
-                    endAddress = tileWalk(endAddress, MHTileMapDirection.SOUTHEAST);
-                }
-                else
-                {
-                    // even
-                    // start moves SE, end moves SW
-                    startAddress = tileWalk(startAddress,
-                            MHTileMapDirection.SOUTHEAST);
-                    endAddress = tileWalk(endAddress, MHTileMapDirection.SOUTHWEST);
-                }
+        return new Polygon(new int[] { w/2, w, w/2, 0 },
+                           new int[] { 0, h/2, h, h/2 }, 4);
+    }
 
-                // increase the row number
-                rowCount++;
-            }
-        } // for layer...
-
-        // Misc. stuff
-        /*
-         * g.setColor(Color.BLACK); g.drawString("Screen:  (" +
-         * cursorPoint.x + ", " + cursorPoint.y + ")", 10, 30); Point
-         * wp = screenToWorld(cursorPoint); g.drawString("World:  (" +
-         * wp.x + ", " + wp.y + ")", 10, 50); g.drawString("Map:  (" +
-         * cursorAddress.row + ", " + cursorAddress.column + ")", 10,
-         * 70);
-         */
 
+    /****************************************************************
+     * Draws the flashing cursor if the cursor is turned on.
+     *
+     * @param g
+     *            The graphics object on which we are rendering the
+     *            map.
+     */
+    protected void renderCursor(final Graphics2D g)
+    {
         if (isCursorOn())
         {
             if (cursorFlasher)
@@ -1206,35 +1171,17 @@ public abstract class MHIsometricMap extends MHTileMap
 
             cursorFlasher = !cursorFlasher;
         }
-
     }
 
 
-    /****************************************************************
-    *
-    */
-//    private void renderFineObjects(Graphics2D g, int z)
-//    {
-//        if (fineObjects != null && fineObjects.containsKey(z))
-//        {
-//            ArrayList<MHActor> list = fineObjects.get(z);
-//            for (MHActor actor : list)
-//            {
-//                int x = (int) (actor.getX() - screenAnchor.x);
-//                int y = (int) (actor.getY() - screenAnchor.y);
-//                actor.render(g, x, y);
-//            }
-//        }
-//    }
-    
     /****************************************************************
      *
      */
     protected void drawCursor(final Graphics g)
     {
         g.setColor(Color.GREEN);
-        final int w = getTileWidth();
-        final int h = getTileHeight() - 1;
+        final int w = getTileWidth() >> getZoomLevel();
+        final int h = (getTileHeight() >> getZoomLevel()) - 1;
         final int x = cursorAnchor.x;
         final int y = cursorAnchor.y;
 
@@ -1254,12 +1201,14 @@ public abstract class MHIsometricMap extends MHTileMap
     {
         super.advance();
 
+        if (fineObjects != null)
+            fineObjects.updateAll();
+
         cursorAddress = mapMouse(cursorPoint);
 
         clipCursorAddress();
 
-        cursorAnchor = plotTile(cursorAddress.row,
-                cursorAddress.column);
+        plotTile(cursorAddress.row, cursorAddress.column, cursorAnchor);
     }
 
 
@@ -1296,8 +1245,8 @@ public abstract class MHIsometricMap extends MHTileMap
     public void centerOn(int row, int column)
     {
         Point p = plotTile(row, column);
-        int width = MHDisplayModeChooser.getWidth();
-        int height = MHDisplayModeChooser.getHeight();// + MHIsoMouseMap.HEIGHT * 4;
+        int width = (int) screenSpace.getWidth() << getZoomLevel();
+        int height = (int) screenSpace.getHeight() << getZoomLevel();// + MHIsoMouseMap.HEIGHT * 4;
         int x = p.x - width/2 + MHIsoMouseMap.WIDTH/2;
         int y = p.y - height/2;
         setScreenAnchor(x, y);
@@ -1307,30 +1256,30 @@ public abstract class MHIsometricMap extends MHTileMap
 
     /****************************************************************
      * Looks in the finely-placed objects to see if there is one at
-     * the given coordinate.
+     * the given coordinate.  Only the objects in the cell's depth
+     * row are examined.
      * 
      * @param r
      * @param c
      * 
-     * @return
+     * @return True if an object's base point is in cell (r, c).
      */
-//    public boolean isObjectAt(int r, int c)
-//    {
-//        boolean b = false;
-//        
-//        if (fineObjects != null)
-//        {
-//            for (ArrayList<MHActor> actors : fineObjects.values())
-//            {
-//                for (MHActor actor : actors)
-//                {
-//                    MHMapCellAddress location = mapMouse(calculateBasePoint(actor));
-//                    if (location.row == r && location.column == c)
-//                        b = true;
-//                }
-//            }
-//        }
-//        
-//        return b;
-//    }
+    public boolean isObjectAt(final int r, final int c)
+    {
+        if (fineObjects == null)
+            return false;
+
+        final int depth = getDepthRow(r, c);
+        final MHMapCellAddress location = new MHMapCellAddress();
+
+        for (int i = 0; i < fineObjects.getRowSize(depth); i++)
+        {
+            final Point base = calculateBasePoint(fineObjects.getActor(depth, i));
+            mapWorld(base.x, base.y, location);
+            if (location.row == r && location.column == c)
+                return true;
+        }
+
+        return false;
+    }
 }
@@ -0,0 +1,501 @@
+package mhframework.tilemap;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/********************************************************************
+ * Keeps the amount of light falling on each cell of a map.
+ *
+ * <p>Each light source spreads its light with a flood fill that
+ * stops at cells that cannot be flown over, so walls cast shadows
+ * and light bends around corners through doorways.  The fill is
+ * remembered for each light, and the light map holds the sum of
+ * every light's contribution.  Changing a light only subtracts its
+ * old contribution and adds the new one:
+ * <ul>
+ *     <li>Flickering rescales the remembered fill.
+ *     <li>Moving a light or resizing it fills again from the new
+ *         position.
+ *     <li>Changing a wall fills again only the lights that could
+ *         reach it.
+ * </ul>
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHLightMap lights = new MHLightMap(map, new Color(40, 40, 60));
+ *     lights.addLight(new MHLightSource(10, 12, Color.ORANGE, 5, 0.3));
+ *     map.setLightMap(lights);
+ * </pre>
+ */
+public class MHLightMap implements MHMapChangeListener
+{
+    /** The tile map whose geometry is used for spreading light. */
+    private final MHTileMap tileMap;
+
+    /** The map data. */
+    private final MHMap map;
+
+    /** Dimensions of the map in cells. */
+    private final int height, width;
+
+    /** Sum of the light sources' contributions to each cell.  This
+     * is the map's own storage unless that is read-only. */
+    private final MHMapStorage lightGrid;
+
+    /** Light falling on every cell regardless of light sources. */
+    private Color ambient;
+
+    /** The light sources in the map. */
+    private final ArrayList<MHLightSource> lights = new ArrayList<MHLightSource>();
+
+    /** Overlays that must be told when the light changes. */
+    private final ArrayList<MHChunkedOverlay> overlays = new ArrayList<MHChunkedOverlay>();
+
+    /** Random numbers for flickering. */
+    private final Random random = new Random();
+
+    /** The directions in which light spreads from cell to cell. */
+    private final MHTileMapDirection[] directions;
+
+    /** Flood fill queue. */
+    private final int[] queue;
+
+    /** Number of steps from the light to each queued cell. */
+    private final int[] steps;
+
+    /** Cells holding the current stamp have been visited by the
+     * current flood fill. */
+    private final int[] visited;
+
+    /** Stamp for the current flood fill. */
+    private int stamp = 0;
+
+    /** Scratch objects for the flood fill. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+    private final Point origin = new Point(), plotPoint = new Point();
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param tileMap  The map to be lit.
+     * @param ambient  Light falling on every cell regardless of the
+     *                 light sources.
+     */
+    public MHLightMap(final MHTileMap tileMap, final Color ambient)
+    {
+        this.tileMap = tileMap;
+        this.map = tileMap.getMapData();
+        this.ambient = ambient;
+
+        height = map.getHeight();
+        width = map.getWidth();
+
+        if (map.getStorage().isReadOnly())
+            lightGrid = new MHHeapMapStorage(height, width);
+        else
+            lightGrid = map.getStorage();
+
+        // Clear any light left by a previous light map.
+        lightGrid.clearLight();
+
+        final int size = height * width;
+        queue = new int[size];
+        steps = new int[size];
+        visited = new int[size];
+
+        directions = tileMap.getDirections();
+    }
+
+
+    /****************************************************************
+     * Adds a light source to the map.
+     */
+    public void addLight(final MHLightSource light)
+    {
+        if (light.owner != null)
+            light.owner.removeLight(light);
+
+        light.owner = this;
+        light.appliedScale = 256;
+        lights.add(light);
+
+        floodLight(light);
+    }
+
+
+    /****************************************************************
+     * Removes a light source from the map.
+     */
+    public void removeLight(final MHLightSource light)
+    {
+        if (light.owner != this)
+            return;
+
+        removeContribution(light);
+        lights.remove(light);
+        light.owner = null;
+    }
+
+
+    /****************************************************************
+     * Returns the number of light sources in the map.
+     */
+    public int getNumLights()
+    {
+        return lights.size();
+    }
+
+
+    /****************************************************************
+     * Returns a light source by index.
+     */
+    public MHLightSource getLight(final int index)
+    {
+        return lights.get(index);
+    }
+
+
+    /****************************************************************
+     * Sets the light falling on every cell regardless of the light
+     * sources.
+     */
+    public void setAmbientLight(final Color ambient)
+    {
+        this.ambient = ambient;
+
+        for (int i = 0; i < overlays.size(); i++)
+            overlays.get(i).invalidateAll();
+    }
+
+
+    public Color getAmbientLight()
+    {
+        return ambient;
+    }
+
+
+    /****************************************************************
+     * Returns the light falling on a cell.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     *
+     * @return The light as an RGB value.
+     */
+    public int getLight(final int row, final int column)
+    {
+        final int index = row * width + column;
+
+        final int r = Math.min(255, ambient.getRed() + lightGrid.getLight(index, MHMapStorage.RED));
+        final int g = Math.min(255, ambient.getGreen() + lightGrid.getLight(index, MHMapStorage.GREEN));
+        final int b = Math.min(255, ambient.getBlue() + lightGrid.getLight(index, MHMapStorage.BLUE));
+
+        return (r << 16) | (g << 8) | b;
+    }
+
+
+    /****************************************************************
+     * Flickers the lights.  Call once per frame.
+     */
+    public void advance()
+    {
+        for (int i = 0; i < lights.size(); i++)
+        {
+            final MHLightSource light = lights.get(i);
+
+            if (light.getFlicker() <= 0.0 || --light.flickerTimer > 0)
+                continue;
+
+            light.flickerTimer = light.getFlickerDelay();
+
+            final int scale = 256 - (int) (256 * light.getFlicker() * random.nextDouble());
+            if (scale != light.appliedScale)
+            {
+                applyContribution(light, -1, light.appliedScale);
+                applyContribution(light, 1, scale);
+                light.appliedScale = scale;
+                invalidate(light);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Called when a cell's ability to block light may have changed.
+     * Fills again every light that could reach the cell.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     */
+    public void wallChanged(final int row, final int column)
+    {
+        wallsChanged(row, column, row, column);
+    }
+
+
+    /****************************************************************
+     * Called when the ability of a rectangle of cells to block light
+     * may have changed.  Fills again every light that could reach
+     * the rectangle, once no matter how many cells changed.
+     *
+     * @param minRow     The first row of the rectangle.
+     * @param minColumn  The first column of the rectangle.
+     * @param maxRow     The last row of the rectangle.
+     * @param maxColumn  The last column of the rectangle.
+     */
+    public void wallsChanged(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        for (int i = 0; i < lights.size(); i++)
+        {
+            final MHLightSource light = lights.get(i);
+            final int reach = getMaxSteps(light);
+
+            if (light.row + reach >= minRow && light.row - reach <= maxRow
+                    && light.column + reach >= minColumn
+                    && light.column - reach <= maxColumn)
+            {
+                removeContribution(light);
+                floodLight(light);
+            }
+        }
+    }
+
+
+    /****************************************************************
+     * Fills the lights again when cells start or stop blocking
+     * light.
+     */
+    public void mapChanged(final MHMapChangeEvent event)
+    {
+        if (event.isFlyabilityChanged())
+            wallsChanged(event.getMinPassabilityRow(), event.getMinPassabilityColumn(),
+                    event.getMaxPassabilityRow(), event.getMaxPassabilityColumn());
+    }
+
+
+    /****************************************************************
+     * Creates an overlay that shades an isometric map with this
+     * light map.  Cells in full white light are left untouched;
+     * darker cells are shaded and colored light tints them.
+     *
+     * @param isoMap  The map to be shaded.
+     *
+     * @return The new overlay.
+     */
+    public MHChunkedOverlay createOverlay(final MHIsometricMap isoMap)
+    {
+        final MHChunkedOverlay overlay = new MHChunkedOverlay(isoMap)
+        {
+            @Override
+            protected int getCellColor(final int row, final int column)
+            {
+                final int light = getLight(row, column);
+                final int r = (light >> 16) & 0xFF;
+                final int g = (light >> 8) & 0xFF;
+                final int b = light & 0xFF;
+                final int brightness = (r + g + b) / 3;
+
+                return ((255 - brightness) << 24)
+                     | ((r * brightness / 255) << 16)
+                     | ((g * brightness / 255) << 8)
+                     |  (b * brightness / 255);
+            }
+        };
+
+        overlays.add(overlay);
+
+        return overlay;
+    }
+
+
+    /****************************************************************
+     * Stops telling an overlay about changes in the light.
+     */
+    public void removeOverlay(final MHChunkedOverlay overlay)
+    {
+        overlays.remove(overlay);
+    }
+
+
+    /****************************************************************
+     * Spreads a light over the map and adds its contribution.
+     */
+    void floodLight(final MHLightSource light)
+    {
+        light.numCells = 0;
+
+        if (!map.isValidCell(light.row, light.column))
+            return;
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(visited, 0);
+            stamp = 1;
+        }
+
+        final int maxSteps = getMaxSteps(light);
+
+        // Distances are measured between plot positions, with the
+        // vertical distance stretched so tiles count as square.
+        final int tileWidth = tileMap.getTileWidth();
+        final double stretch = (double) tileWidth / tileMap.getTileHeight();
+        final double reach = (light.getRadius() + 1) * tileWidth;
+
+        tileMap.plotTile(light.row, light.column, origin);
+
+        int head = 0, tail = 0;
+        final int start = light.row * width + light.column;
+        queue[tail++] = start;
+        steps[start] = 0;
+        visited[start] = stamp;
+
+        light.minRow = light.maxRow = light.row;
+        light.minColumn = light.maxColumn = light.column;
+
+        while (head < tail)
+        {
+            final int index = queue[head++];
+            final int row = index / width;
+            final int column = index % width;
+
+            tileMap.plotTile(row, column, plotPoint);
+            final double dx = plotPoint.x - origin.x;
+            final double dy = (plotPoint.y - origin.y) * stretch;
+            final int level = (int) (256 * (reach - Math.sqrt(dx * dx + dy * dy)) / reach);
+
+            if (level <= 0)
+                continue;
+
+            addCell(light, index, level);
+
+            if (row < light.minRow) light.minRow = row;
+            if (row > light.maxRow) light.maxRow = row;
+            if (column < light.minColumn) light.minColumn = column;
+            if (column > light.maxColumn) light.maxColumn = column;
+
+            // Walls are lit, but light doesn't pass through them.
+            if (index != start && !map.isFlyable(index))
+                continue;
+
+            if (steps[index] >= maxSteps)
+                continue;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                tileMap.tileWalk(row, column, directions[d], neighbor);
+
+                if (!map.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                final int next = neighbor.row * width + neighbor.column;
+                if (visited[next] == stamp)
+                    continue;
+
+                visited[next] = stamp;
+                steps[next] = steps[index] + 1;
+                queue[tail++] = next;
+            }
+        }
+
+        applyContribution(light, 1, light.appliedScale);
+        invalidate(light);
+    }
+
+
+    /****************************************************************
+     * Subtracts a light's contribution from the map.
+     */
+    void removeContribution(final MHLightSource light)
+    {
+        applyContribution(light, -1, light.appliedScale);
+        invalidate(light);
+    }
+
+
+    /****************************************************************
+     * Adds a light's contribution to the map at the given scale.
+     */
+    void addContribution(final MHLightSource light, final int scale)
+    {
+        applyContribution(light, 1, scale);
+        light.appliedScale = scale;
+        invalidate(light);
+    }
+
+
+    /****************************************************************
+     * Adds or subtracts a light's contribution.  The same integer
+     * arithmetic is used both ways, so subtracting exactly undoes
+     * adding.
+     */
+    private void applyContribution(final MHLightSource light, final int sign, final int scale)
+    {
+        final int r = light.getColor().getRed() * scale;
+        final int g = light.getColor().getGreen() * scale;
+        final int b = light.getColor().getBlue() * scale;
+
+        for (int i = 0; i < light.numCells; i++)
+        {
+            final int index = light.cells[i];
+            final int level = light.levels[i];
+
+            lightGrid.addLight(index, sign * ((r * level) >> 16),
+                            sign * ((g * level) >> 16), sign * ((b * level) >> 16));
+        }
+    }
+
+
+    /****************************************************************
+     * Records a cell reached by a light, growing its arrays if
+     * necessary.
+     */
+    private void addCell(final MHLightSource light, final int index, final int level)
+    {
+        if (light.numCells == light.cells.length)
+        {
+            final int size = Math.max(16, light.cells.length * 2);
+            final int[] cells = new int[size];
+            final int[] levels = new int[size];
+            System.arraycopy(light.cells, 0, cells, 0, light.numCells);
+            System.arraycopy(light.levels, 0, levels, 0, light.numCells);
+            light.cells = cells;
+            light.levels = levels;
+        }
+
+        light.cells[light.numCells] = index;
+        light.levels[light.numCells] = level;
+        light.numCells++;
+    }
+
+
+    /****************************************************************
+     * Returns the greatest number of steps a light's flood fill may
+     * take.  Staggered and hex rows are half a tile apart, so this
+     * is twice the radius.
+     */
+    private int getMaxSteps(final MHLightSource light)
+    {
+        return 2 * light.getRadius() + 1;
+    }
+
+
+    /****************************************************************
+     * Tells the overlays that the cells reached by a light have
+     * changed.
+     */
+    private void invalidate(final MHLightSource light)
+    {
+        if (light.numCells == 0)
+            return;
+
+        for (int i = 0; i < overlays.size(); i++)
+            overlays.get(i).invalidate(light.minRow, light.minColumn,
+                    light.maxRow, light.maxColumn);
+    }
+}
@@ -0,0 +1,197 @@
+package mhframework.tilemap;
+
+import java.awt.Color;
+
+
+/********************************************************************
+ * A colored light placed on a map cell.  Lights are added to an
+ * <tt>MHLightMap</tt>, which spreads their light over the
+ * surrounding cells.
+ *
+ * <p>A light may flicker, in which case its brightness is chosen at
+ * random between <tt>1 - flicker</tt> and full strength every few
+ * frames.  Flickering only rescales the light's existing spread, so
+ * it is much cheaper than moving the light.
+ */
+public class MHLightSource
+{
+    /** The map the light has been added to, if any. */
+    MHLightMap owner;
+
+    /** The light's position. */
+    int row, column;
+
+    /** The light's color. */
+    private Color color;
+
+    /** Distance in tiles the light reaches. */
+    private int radius;
+
+    /** Fraction of the light's brightness that flickering can take
+     * away, from 0.0 (steady) to 1.0. */
+    private double flicker = 0.0;
+
+    /** Number of frames between changes in a flickering light's
+     * brightness. */
+    private int flickerDelay = 3;
+
+    /** Frames left until the next flicker. */
+    int flickerTimer = 0;
+
+    /** Brightness scale currently applied to the map, from 0 to
+     * 256. */
+    int appliedScale = 0;
+
+    /** Indices of the cells the light reaches. */
+    int[] cells = new int[0];
+
+    /** Strength of the light in each of those cells, from 0 to
+     * 256. */
+    int[] levels = new int[0];
+
+    /** Number of entries used in <tt>cells</tt> and
+     * <tt>levels</tt>. */
+    int numCells = 0;
+
+    /** Bounds of the cells the light reaches. */
+    int minRow, minColumn, maxRow, maxColumn;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param row     The row of the cell containing the light.
+     * @param column  The column of the cell containing the light.
+     * @param color   The light's color.
+     * @param radius  The distance in tiles the light reaches.
+     */
+    public MHLightSource(final int row, final int column, final Color color, final int radius)
+    {
+        this.row = row;
+        this.column = column;
+        this.color = color;
+        this.radius = Math.max(0, radius);
+    }
+
+
+    /****************************************************************
+     * Constructor for a flickering light.
+     *
+     * @param row      The row of the cell containing the light.
+     * @param column   The column of the cell containing the light.
+     * @param color    The light's color.
+     * @param radius   The distance in tiles the light reaches.
+     * @param flicker  The fraction of the light's brightness that
+     *                 flickering can take away.
+     */
+    public MHLightSource(final int row, final int column, final Color color, final int radius, final double flicker)
+    {
+        this(row, column, color, radius);
+        setFlicker(flicker);
+    }
+
+
+    /****************************************************************
+     * Moves the light to a different cell.
+     */
+    public void setPosition(final int row, final int column)
+    {
+        if (row == this.row && column == this.column)
+            return;
+
+        if (owner != null)
+            owner.removeContribution(this);
+
+        this.row = row;
+        this.column = column;
+
+        if (owner != null)
+            owner.floodLight(this);
+    }
+
+
+    /****************************************************************
+     * Changes the light's color.
+     */
+    public void setColor(final Color color)
+    {
+        if (owner != null)
+            owner.removeContribution(this);
+
+        this.color = color;
+
+        if (owner != null)
+            owner.addContribution(this, appliedScale);
+    }
+
+
+    /****************************************************************
+     * Changes the distance in tiles the light reaches.
+     */
+    public void setRadius(final int radius)
+    {
+        if (owner != null)
+            owner.removeContribution(this);
+
+        this.radius = Math.max(0, radius);
+
+        if (owner != null)
+            owner.floodLight(this);
+    }
+
+
+    /****************************************************************
+     * Sets the fraction of the light's brightness that flickering
+     * can take away, from 0.0 (steady) to 1.0.
+     */
+    public void setFlicker(final double flicker)
+    {
+        this.flicker = Math.max(0.0, Math.min(1.0, flicker));
+    }
+
+
+    /****************************************************************
+     * Sets the number of frames between changes in a flickering
+     * light's brightness.
+     */
+    public void setFlickerDelay(final int frames)
+    {
+        flickerDelay = Math.max(1, frames);
+    }
+
+
+    public int getRow()
+    {
+        return row;
+    }
+
+
+    public int getColumn()
+    {
+        return column;
+    }
+
+
+    public Color getColor()
+    {
+        return color;
+    }
+
+
+    public int getRadius()
+    {
+        return radius;
+    }
+
+
+    public double getFlicker()
+    {
+        return flicker;
+    }
+
+
+    public int getFlickerDelay()
+    {
+        return flickerDelay;
+    }
+}
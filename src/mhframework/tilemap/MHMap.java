@@ -6,6 +6,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import mhframework.MHActor;
 import mhframework.MHDataModel;
 
@@ -78,9 +83,24 @@ import mhframework.MHDataModel;
  */
 public class MHMap
 {
-    /** Array for storing the map data. */
+    /** Movement cost recorded for cells that cannot be walked on. */
+    public static final byte IMPASSABLE = 0;
+
+    /** Movement cost recorded for ordinary walkable cells. */
+    public static final byte DEFAULT_MOVEMENT_COST = 1;
+
+    /** Array for storing the map data.  Rows are allocated when
+     * their first cell is created. */
     private MHMapCell mapGrid[][];
 
+    /** Dimensions of the map in cells. */
+    private int mapHeight, mapWidth;
+
+    /** Tile IDs, passability and light of each cell.  The tile IDs
+     * and passability are kept up to date as the cells' layers
+     * change. */
+    private MHMapStorage storage;
+
     /** Info about the map file to be loaded into this map object. */
     private static MHMapFileInfo info;
 
@@ -88,6 +108,38 @@ public class MHMap
      * game universe. */
     private final MHObjectFactory objectVendor;
 
+    /** Actors in the map that animate on their own, as opposed to
+     * tile actors, which share their tile's animation clock. */
+    private final ArrayList<MHActor> actors = new ArrayList<MHActor>();
+
+    /** Copy of the actor list used while advancing the actors, so
+     * actors can add or remove themselves as they advance. */
+    private MHActor[] advancingActors = new MHActor[0];
+
+    /** Flag indicating that the actor list has changed since it was
+     * last copied. */
+    private boolean actorsChanged = false;
+
+    /** Light falling on the map's cells, if the map is lit. */
+    private MHLightMap lightMap;
+
+    /** Field of view and fog of war, if the map has any. */
+    private MHVisibilityMap visibilityMap;
+
+    /** Regions walkers can move between, if they have been
+     * labeled. */
+    private MHConnectivityMap connectivityMap;
+
+    /** Objects to be told when the map changes. */
+    private final ArrayList<MHMapChangeListener> changeListeners = new ArrayList<MHMapChangeListener>();
+
+    /** Changes made since the last change event was sent. */
+    private MHMapChangeEvent pendingChanges = new MHMapChangeEvent(this);
+
+    /** Number of calls to <tt>beginUpdate()</tt> that have not yet
+     * been matched by calls to <tt>endUpdate()</tt>. */
+    private int updateDepth = 0;
+
 
    /****************************************************************
     * Constructor that creates a map with the given number of rows
@@ -103,7 +155,7 @@ public class MHMap
     public MHMap(final int mapHeight, final int mapWidth, final MHObjectFactory vendor)
     {
         objectVendor = vendor;
-        mapGrid = new MHMapCell[mapHeight][mapWidth];
+        allocateGrid(mapHeight, mapWidth);
     }
 
 
@@ -121,6 +173,31 @@ public class MHMap
     }
 
 
+   /****************************************************************
+    * Constructor that creates a map whose grids are kept in the
+    * given storage, such as a map storage file shared with other
+    * processes.  The map starts out with no cells, but its tile
+    * IDs and passability are those in the storage.
+    *
+    * <p>If the storage is read-only, cells may still be added for
+    * display, but they don't change the map's tile IDs or
+    * passability.  A map file loaded later is loaded into the
+    * storage if it is writable and the right size.
+    *
+    * @param storage  The storage for the map's grids.
+    * @param vendor   The object vendor, or null if the map has no
+    *                 special objects.
+    */
+    public MHMap(final MHMapStorage storage, final MHObjectFactory vendor)
+    {
+        objectVendor = vendor;
+        this.storage = storage;
+        mapHeight = storage.getHeight();
+        mapWidth = storage.getWidth();
+        mapGrid = new MHMapCell[mapHeight][];
+    }
+
+
     /****************************************************************
      * Loads all the data files listed in the given file name.
      * This method assumes that the image groups (MHImageGroup
@@ -128,105 +205,282 @@ public class MHMap
      * manager (MHTileSetManager), and that specialized objects have
      * taken the responsibility for acquiring their own image groups.
      *
+     * <p>The tile set is loaded while the layer files are parsed, each
+     * on its own worker thread.  Once the tile set is ready, the
+     * objects for each layer are created on worker threads as well,
+     * so the object vendor may be called from several threads at
+     * once, though only from one thread per layer.  The objects are
+     * then placed in the map on the calling thread in layer, row,
+     * and column order, so the result is the same as loading the
+     * layers one at a time.
+     *
      * @param filename The name of the map file to be loaded.
      */
     public void loadMapFile(final String filename)
     {
         info = retrieveMapFileInfo(filename);
 
-        mapGrid = new MHMapCell[info.height][info.width];
+        allocateGrid(info.height, info.width);
 
-        MHDataModel.getTileSetManager().loadTileSet(info.tileSetId);
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors());
 
-        for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+        try
         {
-            int row = 0, col = 0;
+            // Start loading the tile set and reading the layer files.
+            final Future<?> tileSet = pool.submit(new Runnable()
+            {
+                public void run()
+                {
+                    MHDataModel.getTileSetManager().loadTileSet(info.tileSetId);
+                }
+            });
 
-            // Select the data file for the current layer
-            final String layerFile = chooseLayerFile(layer);
+            final ArrayList<Future<int[][]>> tileIDs =
+                new ArrayList<Future<int[][]>>(MHMapCell.NUM_LAYERS);
+            for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+                tileIDs.add(pool.submit(new MHLayerParser(chooseLayerFile(layer))));
 
+            // The tile actors need the tile set's image groups.
+            await(tileSet);
+
+            final ArrayList<Future<MHActor[][]>> objects =
+                new ArrayList<Future<MHActor[][]>>(MHMapCell.NUM_LAYERS);
+            for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+                objects.add(pool.submit(new MHLayerBuilder(layer, await(tileIDs.get(layer)))));
+
+            // Report the whole map as one change.
+            beginUpdate();
             try
             {
-                final RandomAccessFile file = new RandomAccessFile(
-                                layerFile, "r");
-
-                for (row = 0; row < info.height; row++)
+                for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
                 {
-                    // Read line of data from file
-                    final String line = file.readLine();
-
-                    // The data files should be tab-delimited.
-                    final String[] dataRow = line.trim().split("\t");
-
-                    // dataRow.length and info.width should be equal
-                    // only if every cell is accounted for in the
-                    // data file
-                    // NOTE: This will fail if any layer is larger
-                    // than the floor layer!
-                    // Possible solution: Examine ALL the data files
-                    // when getting the map's metrics.
-                    for (col = 0; col < dataRow.length; col++)
-                    {
-                        int tileID = MHTileSetManager.NULL_TILE_ID;
-                        MHMapCellAddress currentCell = new MHMapCellAddress();
-                        currentCell.row = row;
-                        currentCell.column = col;
+                    final MHActor[][] tiles = await(objects.get(layer));
+                    if (tiles == null)
+                        continue;
 
-                        // Convert the input tile ID into an integer
-                        try
-                        {
-                            tileID = Integer.parseInt(dataRow[col]);
-                        }
-                        catch (final NumberFormatException nfe)
+                    final int[][] ids = await(tileIDs.get(layer));
+
+                    for (int row = 0; row < info.height; row++)
+                    {
+                        for (int col = 0; col < info.width; col++)
                         {
-                            tileID = MHTileSetManager.NULL_TILE_ID;
+                            // A null row means the file ended early.
+                            if (tiles[row] == null)
+                                break;
+
+                            // Only cells listed in the data file
+                            // have a map cell.
+                            if (col >= tiles[row].length)
+                                break;
+
+                            final MHActor tile = tiles[row][col];
+                            getOrCreateCell(row, col).setLayer(layer, tile);
+
+                            // Special objects don't know which tile
+                            // they came from.
+                            if (tile != null && !(tile instanceof MHTileActor))
+                                storage.setTileID(layer, getCellIndex(row, col), ids[row][col]);
                         }
+                    }
+                } // for (layer...)
+            }
+            finally
+            {
+                endUpdate();
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    } // loadMapFile
 
-                        // If there is no map cell at our current
-                        // position in the map, make one.
-                        if (mapGrid[row][col] == null)
-                            mapGrid[row][col] = new MHMapCell();
 
-                        // Create actor object for current tile
-                        MHActor tile = null;
+    /****************************************************************
+     * Waits for a worker thread to finish and returns its result, or
+     * null if it failed.
+     */
+    private static <T> T await(final Future<T> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final ExecutionException e)
+        {
+            System.err.println("ERROR:  Could not load map data:  " + e.getCause());
+        }
+
+        return null;
+    }
+
 
-                        // 999 indicates a null tile
-                        if (tileID < MHTileSetManager.MHTileSet.MAX_TILES
-                                        && tileID != MHTileSetManager.NULL_TILE_ID)
+    /****************************************************************
+     * Reads the tile IDs from one layer file on a worker thread.
+     * Rows hold as many IDs as the file lists, and rows past the end
+     * of the file are null.
+     */
+    private class MHLayerParser implements Callable<int[][]>
+    {
+        private final String layerFile;
+
+        MHLayerParser(final String layerFile)
+        {
+            this.layerFile = layerFile;
+        }
+
+        public int[][] call()
+        {
+            final int[][] tileIDs = new int[info.height][];
+
+            try
+            {
+                final RandomAccessFile file = new RandomAccessFile(layerFile, "r");
+
+                try
+                {
+                    for (int row = 0; row < info.height; row++)
+                    {
+                        // Read line of data from file
+                        final String line = file.readLine();
+                        if (line == null)
+                            break;
+
+                        // The data files should be tab-delimited.
+                        // NOTE: Cells beyond the width of the map
+                        // are ignored.
+                        final String[] dataRow = line.trim().split("\t");
+                        final int[] ids = new int[Math.min(dataRow.length, info.width)];
+
+                        for (int col = 0; col < ids.length; col++)
                         {
-                            // Instantiate special objects based on
-                            // the layer and tile ID.
-                            tile = objectVendor.getObject(layer, tileID, currentCell);
-
-                            // If the object vendor returned null,
-                            // we have to make the tile object
-                            // ourselves.
-                            if (tile == null)
+                            // Convert the input tile ID into an integer
+                            try
+                            {
+                                ids[col] = Integer.parseInt(dataRow[col]);
+                            }
+                            catch (final NumberFormatException nfe)
                             {
-                                tile = new MHActor();
-                                tile.setImageGroup(MHDataModel.getTileSetManager().getTileImageGroup(layer));
-                                // For a tile actor, the animation
-                                // sequence is the tile ID since
-                                // that's what determines
-                                // which image is displayed.
-                                tile.setAnimationSequence(tileID);
+                                ids[col] = MHTileSetManager.NULL_TILE_ID;
                             }
                         }
 
-                        // assign tile object to map cell field
-                        mapGrid[row][col].setLayer(layer, tile);
-
-                    } // for (col...
-                } // for (row...
-            } // try
+                        tileIDs[row] = ids;
+                    }
+                }
+                finally
+                {
+                    file.close();
+                }
+            }
             catch (final EOFException eofe)
             {
             }
             catch (final IOException ioe)
             {
             }
-        } // for (layer...)
-    } // loadMapFile
+
+            return tileIDs;
+        }
+    }
+
+
+    /****************************************************************
+     * Creates the objects for one layer on a worker thread.
+     */
+    private class MHLayerBuilder implements Callable<MHActor[][]>
+    {
+        private final int layer;
+        private final int[][] tileIDs;
+
+        MHLayerBuilder(final int layer, final int[][] tileIDs)
+        {
+            this.layer = layer;
+            this.tileIDs = tileIDs;
+        }
+
+        public MHActor[][] call()
+        {
+            if (tileIDs == null)
+                return null;
+
+            final MHActor[][] tiles = new MHActor[tileIDs.length][];
+
+            for (int row = 0; row < tileIDs.length; row++)
+            {
+                if (tileIDs[row] == null)
+                    break;
+
+                tiles[row] = new MHActor[tileIDs[row].length];
+
+                for (int col = 0; col < tileIDs[row].length; col++)
+                {
+                    final int tileID = tileIDs[row][col];
+
+                    // 999 indicates a null tile
+                    if (tileID >= MHTileSetManager.MHTileSet.MAX_TILES
+                                    || tileID == MHTileSetManager.NULL_TILE_ID)
+                        continue;
+
+                    final MHMapCellAddress currentCell = new MHMapCellAddress();
+                    currentCell.row = row;
+                    currentCell.column = col;
+
+                    // Instantiate special objects based on the layer
+                    // and tile ID.
+                    MHActor tile = (objectVendor == null) ? null
+                                    : objectVendor.getObject(layer, tileID, currentCell);
+
+                    // If there is no object vendor or it returned
+                    // null, we have to make the tile object ourselves.
+                    if (tile == null)
+                        tile = new MHTileActor(layer, tileID);
+
+                    tiles[row][col] = tile;
+                }
+            }
+
+            return tiles;
+        }
+    }
+
+
+    /****************************************************************
+     * Creates an empty map grid and the storage that goes with it.
+     * The map's current storage is kept if it is writable and the
+     * right size.
+     */
+    private void allocateGrid(final int height, final int width)
+    {
+        mapHeight = height;
+        mapWidth = width;
+        mapGrid = new MHMapCell[height][];
+
+        if (storage == null || storage.isReadOnly()
+                        || storage.getHeight() != height || storage.getWidth() != width)
+            storage = new MHHeapMapStorage(height, width);
+    }
+
+
+    /****************************************************************
+     * Returns the map cell at the given coordinates, creating it if
+     * there is none.
+     */
+    private MHMapCell getOrCreateCell(final int row, final int column)
+    {
+        if (mapGrid[row] == null)
+            mapGrid[row] = new MHMapCell[mapWidth];
+
+        if (mapGrid[row][column] == null)
+            mapGrid[row][column] = new MHMapCell(this, row, column);
+
+        return mapGrid[row][column];
+    }
 
 
 
@@ -236,12 +490,15 @@ public class MHMap
          */
         public MHMapCell getMapCell(int row, int column)
         {
-            if (row >= mapGrid.length)
-                row = mapGrid.length - 1;
+            if (row >= mapHeight)
+                row = mapHeight - 1;
             
-            if (column >= mapGrid[row].length)
-                column = mapGrid[row].length - 1;
+            if (column >= mapWidth)
+                column = mapWidth - 1;
                 
+            if (mapGrid[row] == null)
+                return null;
+
             return mapGrid[row][column];
         }
 
@@ -251,7 +508,7 @@ public class MHMap
          */
     public int getHeight()
     {
-        return info.height;
+        return mapHeight;
     }
 
 
@@ -260,7 +517,7 @@ public class MHMap
          */
     public int getWidth()
     {
-        return info.width;
+        return mapWidth;
     }
 
 
@@ -491,23 +748,422 @@ public class MHMap
     } // getMapFileInfo
 
 
+    /****************************************************************
+     * Advances every actor in the map that animates on its own.
+     * Ordinary tiles are not advanced here; their animations are
+     * driven by <tt>MHTileSetManager.advanceAnimations()</tt>.
+     */
+    public void advanceActors()
+    {
+        if (actorsChanged)
+        {
+            advancingActors = actors.toArray(advancingActors);
+            actorsChanged = false;
+        }
+
+        for (int i = 0; i < advancingActors.length && advancingActors[i] != null; i++)
+            advancingActors[i].advance();
+    }
+
+
+    /****************************************************************
+     * Called by a map cell whenever one of its layers changes.
+     */
+    void layerChanged(final int row, final int column, final int layer,
+                      final MHActor oldActor, final MHActor newActor)
+    {
+        if (oldActor != null && !(oldActor instanceof MHTileActor))
+        {
+            actors.remove(oldActor);
+            actorsChanged = true;
+        }
+
+        if (newActor != null && !(newActor instanceof MHTileActor))
+        {
+            actors.add(newActor);
+            actorsChanged = true;
+        }
+
+        pendingChanges.addChange(row, column, layer);
+
+        // Special objects keep the tile ID they were loaded with.
+        if (newActor == null)
+            storage.setTileID(layer, getCellIndex(row, column), MHTileSetManager.NULL_TILE_ID);
+        else if (newActor instanceof MHTileActor)
+            storage.setTileID(layer, getCellIndex(row, column), ((MHTileActor) newActor).getTileID());
+
+        updatePassability(row, column);
+
+        if (updateDepth == 0)
+            fireMapChanged();
+    }
+
+
+    /****************************************************************
+     * Changes a layer of a map cell, creating the cell if there is
+     * none.  Changing a layer through the cell itself has the same
+     * effect.
+     *
+     * <p>Every change is reported to the map's change listeners.  To
+     * change many cells at once, call <tt>beginUpdate()</tt> first
+     * and <tt>endUpdate()</tt> afterwards so that the listeners are
+     * told about them all in one event.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     * @param layer   The layer to change.
+     * @param actor   The new contents of the layer, or null to empty
+     *                it.
+     */
+    public void setLayer(final int row, final int column, final int layer, final MHActor actor)
+    {
+        if (!isValidCell(row, column))
+        {
+            System.err.println("ERROR:  Cell (" + row + ", " + column + ") is not in the map.");
+            return;
+        }
+
+        if (actor == null && getMapCell(row, column) == null)
+            return;
+
+        getOrCreateCell(row, column).setLayer(layer, actor);
+    }
+
+
+    /****************************************************************
+     * Starts a batch of changes.  Changes made before the matching
+     * call to <tt>endUpdate()</tt> are reported in a single change
+     * event.  Batches may be nested; the event is sent when the
+     * outermost batch ends.
+     *
+     * <p>The passability grids are always kept up to date, even in
+     * the middle of a batch.
+     */
+    public void beginUpdate()
+    {
+        updateDepth++;
+    }
+
+
+    /****************************************************************
+     * Ends a batch of changes started by <tt>beginUpdate()</tt>.
+     */
+    public void endUpdate()
+    {
+        if (updateDepth == 0)
+        {
+            System.err.println("ERROR:  MHMap.endUpdate() called without beginUpdate().");
+            return;
+        }
+
+        if (--updateDepth == 0)
+            fireMapChanged();
+    }
+
+
+    /****************************************************************
+     * Returns true if a batch of changes is in progress.
+     */
+    public boolean isUpdating()
+    {
+        return updateDepth > 0;
+    }
+
+
+    /****************************************************************
+     * Adds an object to be told whenever the map changes.
+     */
+    public void addChangeListener(final MHMapChangeListener listener)
+    {
+        if (!changeListeners.contains(listener))
+            changeListeners.add(listener);
+    }
+
+
+    /****************************************************************
+     * Stops telling an object about changes to the map.
+     */
+    public void removeChangeListener(final MHMapChangeListener listener)
+    {
+        changeListeners.remove(listener);
+    }
+
+
+    /****************************************************************
+     * Sends the pending changes to the change listeners, if there
+     * are any.
+     */
+    private void fireMapChanged()
+    {
+        if (pendingChanges.isEmpty())
+            return;
+
+        final MHMapChangeEvent event = pendingChanges;
+        pendingChanges = new MHMapChangeEvent(this);
+
+        for (int i = 0; i < changeListeners.size(); i++)
+            changeListeners.get(i).mapChanged(event);
+    }
+
+
+    /****************************************************************
+     * Recalculates the passability grid entries for a single cell
+     * and records any change in the pending change event.  A cell
+     * that stays walkable keeps its movement cost; one that becomes
+     * walkable starts at <tt>DEFAULT_MOVEMENT_COST</tt>.  Read-only
+     * storage keeps its passability.
+     */
+    private void updatePassability(final int row, final int column)
+    {
+        if (storage.isReadOnly())
+            return;
+
+        final MHMapCell cell = getMapCell(row, column);
+        final int index = row * mapWidth + column;
+
+        final boolean couldWalk = storage.isWalkable(index);
+        final boolean couldFly = storage.isFlyable(index);
+        final boolean walk = (cell != null && cell.canWalkOn());
+        final boolean fly = (cell != null && cell.canFlyOver());
+
+        final int cost;
+        if (!walk)
+            cost = IMPASSABLE;
+        else if (couldWalk)
+            cost = storage.getMovementCost(index);
+        else
+            cost = DEFAULT_MOVEMENT_COST;
+
+        storage.setPassability(index, walk, fly, cost);
+
+        if (walk != couldWalk || fly != couldFly)
+            pendingChanges.addPassabilityChange(row, column, walk != couldWalk, fly != couldFly);
+    }
+
+
+    /****************************************************************
+     * Returns the light map for this map, or null if the map is not
+     * lit.
+     */
+    public MHLightMap getLightMap()
+    {
+        return lightMap;
+    }
+
+
+    /****************************************************************
+     * Sets the light map for this map.  The light map is added to
+     * the map's change listeners so that it is told whenever cells
+     * start or stop blocking light.
+     */
+    public void setLightMap(final MHLightMap lightMap)
+    {
+        if (this.lightMap != null)
+            removeChangeListener(this.lightMap);
+
+        this.lightMap = lightMap;
+
+        if (lightMap != null)
+            addChangeListener(lightMap);
+    }
+
+
+    /****************************************************************
+     * Returns the visibility map for this map, or null if there is
+     * none.
+     */
+    public MHVisibilityMap getVisibilityMap()
+    {
+        return visibilityMap;
+    }
+
+
+    /****************************************************************
+     * Sets the visibility map for this map.  The visibility map is
+     * added to the map's change listeners so that it is told
+     * whenever cells start or stop blocking sight.
+     */
+    public void setVisibilityMap(final MHVisibilityMap visibilityMap)
+    {
+        if (this.visibilityMap != null)
+            removeChangeListener(this.visibilityMap);
+
+        this.visibilityMap = visibilityMap;
+
+        if (visibilityMap != null)
+            addChangeListener(visibilityMap);
+    }
+
+
+    /****************************************************************
+     * Returns the regions walkers can move between, or null if they
+     * haven't been labeled.
+     */
+    public MHConnectivityMap getConnectivityMap()
+    {
+        return connectivityMap;
+    }
+
+
+    /****************************************************************
+     * Sets the regions walkers can move between.  The connectivity
+     * map is added to the map's change listeners so that it is told
+     * whenever cells start or stop being walkable, and path searches
+     * on the map use it to give up at once on goals that can't be
+     * reached.
+     */
+    public void setConnectivityMap(final MHConnectivityMap connectivityMap)
+    {
+        if (this.connectivityMap != null)
+            removeChangeListener(this.connectivityMap);
+
+        this.connectivityMap = connectivityMap;
+
+        if (connectivityMap != null)
+            addChangeListener(connectivityMap);
+    }
+
+
+    /****************************************************************
+     * Returns the storage holding the map's tile IDs, passability
+     * and light.
+     */
+    public MHMapStorage getStorage()
+    {
+        return storage;
+    }
+
+
+    /****************************************************************
+     * Returns the tile ID in a layer of a cell, or
+     * <tt>MHTileSetManager.NULL_TILE_ID</tt> if the layer is empty
+     * or the cell isn't in the map.  This needs no map cell, so it
+     * works on maps that share read-only storage.
+     */
+    public int getTileID(final int row, final int column, final int layer)
+    {
+        if (!isValidCell(row, column))
+            return MHTileSetManager.NULL_TILE_ID;
+
+        return storage.getTileID(layer, row * mapWidth + column);
+    }
+
+
+    /****************************************************************
+     * Returns true if the given cell exists and can be walked on.
+     * This is a single lookup in a precomputed grid.
+     */
     public boolean canWalkOn(int row, int column)
     {
-        if (isValidCell(row, column))
+        return isValidCell(row, column) && storage.isWalkable(row * mapWidth + column);
+    }
+
+
+    /****************************************************************
+     * Returns true if the given cell exists and can be flown over.
+     * This is a single lookup in a precomputed grid.
+     */
+    public boolean canFlyOver(int row, int column)
+    {
+        return isValidCell(row, column) && storage.isFlyable(row * mapWidth + column);
+    }
+
+
+    /****************************************************************
+     * Returns the cost of moving into the given cell, or
+     * <tt>IMPASSABLE</tt> if the cell can't be walked on.
+     */
+    public int getMovementCost(int row, int column)
+    {
+        if (!isValidCell(row, column))
+            return IMPASSABLE;
+
+        return storage.getMovementCost(row * mapWidth + column);
+    }
+
+
+    /****************************************************************
+     * Sets the cost of moving into a walkable cell, from 1 to 255.
+     * The cost lasts until the cell stops being walkable; if it
+     * becomes walkable again it goes back to
+     * <tt>DEFAULT_MOVEMENT_COST</tt>.  Cells that can't be walked on
+     * are left alone.  The change is reported to the change
+     * listeners like a change of passability.
+     */
+    public void setMovementCost(final int row, final int column, final int cost)
+    {
+        if (!isValidCell(row, column))
         {
-            if (mapGrid[row][column].canWalkOn())
-                return true;
+            System.err.println("ERROR:  MHMap.setMovementCost(" + row + ", " + column
+                    + ") is not on the map.");
+            return;
         }
-        
-        return false;
+
+        if (cost < 1 || cost > 255)
+        {
+            System.err.println("ERROR:  MHMap.setMovementCost(" + row + ", " + column
+                    + "):  " + cost + " is not a cost from 1 to 255.");
+            return;
+        }
+
+        final int index = row * mapWidth + column;
+        if (storage.isReadOnly() || !storage.isWalkable(index)
+                || storage.getMovementCost(index) == cost)
+            return;
+
+        storage.setPassability(index, true, storage.isFlyable(index), cost);
+        pendingChanges.addMovementCostChange(row, column);
+
+        if (updateDepth == 0)
+            fireMapChanged();
+    }
+
+
+    /****************************************************************
+     * Returns the index of a cell in the precomputed grids.  Cell
+     * indices run from zero to <tt>getWidth() * getHeight() - 1</tt>
+     * in row-major order.
+     */
+    public int getCellIndex(int row, int column)
+    {
+        return row * mapWidth + column;
     }
-    
+
+
+    /****************************************************************
+     * Returns true if the cell at the given index can be walked on.
+     * The index is not validated.
+     */
+    public boolean isWalkable(int cellIndex)
+    {
+        return storage.isWalkable(cellIndex);
+    }
+
+
+    /****************************************************************
+     * Returns true if the cell at the given index can be flown over.
+     * The index is not validated.
+     */
+    public boolean isFlyable(int cellIndex)
+    {
+        return storage.isFlyable(cellIndex);
+    }
+
+
+    /****************************************************************
+     * Returns the cost of moving into the cell at the given index.
+     * The index is not validated.
+     */
+    public int getMovementCost(int cellIndex)
+    {
+        return storage.getMovementCost(cellIndex);
+    }
+
+
         public boolean isValidCell(int row, int column)
         {
             return (row >= 0 && column >= 0 && 
-                    row < mapGrid.length && 
-                    column < mapGrid[row].length);
+                    row < mapHeight && 
+                    column < mapWidth);
         }
 }
-
-
@@ -26,18 +26,42 @@ public class MHMapCell implements MHRenderable
 
     private final MHActor[] layers;
 
+    /** The map containing this cell, or null if it is not in a map. */
+    private final MHMap map;
+
+    /** This cell's position in its map. */
+    private final int row, column;
+
 	/****************************************************************
 	 * Constructor.
 	 */
 	public MHMapCell()
+	{
+	   this(null, 0, 0);
+	}
+
+
+	/****************************************************************
+	 * Constructor for a cell that belongs to a map.  The map is told
+	 * whenever one of the cell's layers changes.
+	 */
+	MHMapCell(final MHMap map, final int row, final int column)
 	{
 	   layers = new MHActor[NUM_LAYERS];
+	   this.map = map;
+	   this.row = row;
+	   this.column = column;
 	}
 
 
     public void setLayer(final int layer, final MHActor actor)
     {
+        final MHActor old = layers[layer];
+
         layers[layer] = actor;
+
+        if (map != null)
+            map.layerChanged(row, column, layer, old, actor);
     }
 
 
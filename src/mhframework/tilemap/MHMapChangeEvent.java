@@ -0,0 +1,249 @@
+package mhframework.tilemap;
+
+
+/********************************************************************
+ * Describes a batch of changes to a map.  Rather than listing every
+ * cell, an event holds the smallest rectangle of cells containing
+ * the changes, the layers that changed, and a second rectangle
+ * containing the cells whose passability or movement cost changed.
+ * Listeners rebuild whatever they derive from the cells inside the
+ * rectangles.
+ */
+public class MHMapChangeEvent
+{
+    /** The map that changed. */
+    private final MHMap map;
+
+    /** Bounds of the changed cells. */
+    private int minRow, minColumn, maxRow, maxColumn;
+
+    /** Bounds of the cells whose passability changed. */
+    private int minPassRow, minPassColumn, maxPassRow, maxPassColumn;
+
+    /** Bit <i>n</i> is set if layer <i>n</i> changed somewhere. */
+    private int layers;
+
+    /** Flags indicating which kinds of passability changed. */
+    private boolean walkabilityChanged, flyabilityChanged;
+
+    /** Flag indicating that the cost of walking on a cell changed. */
+    private boolean movementCostChanged;
+
+    /** Number of layer changes in the batch. */
+    private int numChanges;
+
+
+    /****************************************************************
+     * Constructor for an empty event.
+     */
+    MHMapChangeEvent(final MHMap map)
+    {
+        this.map = map;
+
+        minRow = minColumn = minPassRow = minPassColumn = Integer.MAX_VALUE;
+        maxRow = maxColumn = maxPassRow = maxPassColumn = Integer.MIN_VALUE;
+    }
+
+
+    /****************************************************************
+     * Records a change to a layer of a cell.
+     */
+    void addChange(final int row, final int column, final int layer)
+    {
+        minRow = Math.min(minRow, row);
+        minColumn = Math.min(minColumn, column);
+        maxRow = Math.max(maxRow, row);
+        maxColumn = Math.max(maxColumn, column);
+
+        layers |= 1 << layer;
+        numChanges++;
+    }
+
+
+    /****************************************************************
+     * Records a change to the passability of a cell.
+     */
+    void addPassabilityChange(final int row, final int column,
+            final boolean walk, final boolean fly)
+    {
+        minPassRow = Math.min(minPassRow, row);
+        minPassColumn = Math.min(minPassColumn, column);
+        maxPassRow = Math.max(maxPassRow, row);
+        maxPassColumn = Math.max(maxPassColumn, column);
+
+        walkabilityChanged |= walk;
+        flyabilityChanged |= fly;
+    }
+
+
+    /****************************************************************
+     * Records a change to the movement cost of a cell that stays
+     * walkable.
+     */
+    void addMovementCostChange(final int row, final int column)
+    {
+        addPassabilityChange(row, column, false, false);
+        movementCostChanged = true;
+    }
+
+
+    /****************************************************************
+     * Returns true if nothing has been recorded.
+     */
+    boolean isEmpty()
+    {
+        return numChanges == 0 && !movementCostChanged;
+    }
+
+
+    /****************************************************************
+     * Returns the map that changed.
+     */
+    public MHMap getMap()
+    {
+        return map;
+    }
+
+
+    public int getMinRow()
+    {
+        return minRow;
+    }
+
+
+    public int getMinColumn()
+    {
+        return minColumn;
+    }
+
+
+    public int getMaxRow()
+    {
+        return maxRow;
+    }
+
+
+    public int getMaxColumn()
+    {
+        return maxColumn;
+    }
+
+
+    /****************************************************************
+     * Returns the number of layer changes reported by this event.
+     * A cell whose layer was changed twice counts twice.
+     */
+    public int getNumChanges()
+    {
+        return numChanges;
+    }
+
+
+    /****************************************************************
+     * Returns true if the given layer changed in any cell.
+     */
+    public boolean isLayerChanged(final int layer)
+    {
+        return (layers & (1 << layer)) != 0;
+    }
+
+
+    /****************************************************************
+     * Returns a mask with bit <i>n</i> set if layer <i>n</i>
+     * changed.
+     */
+    public int getLayers()
+    {
+        return layers;
+    }
+
+
+    /****************************************************************
+     * Returns true if the rectangle of changed cells overlaps the
+     * given rectangle.
+     */
+    public boolean intersects(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        return this.minRow <= maxRow && this.maxRow >= minRow
+            && this.minColumn <= maxColumn && this.maxColumn >= minColumn;
+    }
+
+
+    /****************************************************************
+     * Returns true if any cell became walkable or stopped being
+     * walkable.
+     */
+    public boolean isWalkabilityChanged()
+    {
+        return walkabilityChanged;
+    }
+
+
+    /****************************************************************
+     * Returns true if any cell started or stopped blocking light,
+     * sight and flight.
+     */
+    public boolean isFlyabilityChanged()
+    {
+        return flyabilityChanged;
+    }
+
+
+    /****************************************************************
+     * Returns true if the movement cost of any walkable cell was
+     * changed with <tt>MHMap.setMovementCost</tt>.  Cells that
+     * became walkable or stopped being walkable are reported by
+     * <tt>isWalkabilityChanged</tt> instead.
+     */
+    public boolean isMovementCostChanged()
+    {
+        return movementCostChanged;
+    }
+
+
+    public int getMinPassabilityRow()
+    {
+        return minPassRow;
+    }
+
+
+    public int getMinPassabilityColumn()
+    {
+        return minPassColumn;
+    }
+
+
+    public int getMaxPassabilityRow()
+    {
+        return maxPassRow;
+    }
+
+
+    public int getMaxPassabilityColumn()
+    {
+        return maxPassColumn;
+    }
+
+
+    /****************************************************************
+     * Returns true if the rectangle of cells whose passability
+     * changed overlaps the given rectangle.
+     */
+    public boolean passabilityIntersects(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        return minPassRow <= maxRow && maxPassRow >= minRow
+            && minPassColumn <= maxColumn && maxPassColumn >= minColumn;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return "MHMapChangeEvent[" + numChanges + " changes in (" + minRow + ", " + minColumn
+            + ")-(" + maxRow + ", " + maxColumn + "), layers=0x" + Integer.toHexString(layers)
+            + ", walk=" + walkabilityChanged + ", fly=" + flyabilityChanged
+            + ", cost=" + movementCostChanged + "]";
+    }
+}
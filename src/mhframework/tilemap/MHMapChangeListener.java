@@ -0,0 +1,21 @@
+package mhframework.tilemap;
+
+
+/********************************************************************
+ * Interface for objects that keep data derived from a map, such as
+ * light maps, baked images and path caches, and must be told when
+ * the map changes.  Listeners are added with
+ * <tt>MHMap.addChangeListener()</tt>.
+ */
+public interface MHMapChangeListener
+{
+    /****************************************************************
+     * Called after one or more map cells have changed.  Edits made
+     * between <tt>MHMap.beginUpdate()</tt> and
+     * <tt>MHMap.endUpdate()</tt> are reported together in a single
+     * event when the update ends.
+     *
+     * @param event  Describes the cells that changed.
+     */
+    public void mapChanged(MHMapChangeEvent event);
+}
@@ -0,0 +1,112 @@
+package mhframework.tilemap;
+
+
+/********************************************************************
+ * Holds the per-cell grids of a map:  the tile ID in each layer, the
+ * passability grids that path finders read, and the light falling on
+ * each cell.
+ *
+ * <p>Cells are given by their index, <tt>row * width + column</tt>,
+ * as returned by <tt>MHMap.getCellIndex()</tt>.  Indices are not
+ * validated.
+ *
+ * <p>Two implementations are provided.  <tt>MHHeapMapStorage</tt>
+ * keeps the grids in ordinary arrays and is what a map uses unless
+ * it is told otherwise.  <tt>MHDirectMapStorage</tt> keeps them
+ * outside the Java heap, optionally in a memory-mapped file that
+ * several processes can share.
+ */
+public interface MHMapStorage
+{
+    /** Light channels for <tt>getLight()</tt>. */
+    public static final int RED = 0, GREEN = 1, BLUE = 2;
+
+
+    /****************************************************************
+     * Returns the number of rows in the grids.
+     */
+    public abstract int getHeight();
+
+
+    /****************************************************************
+     * Returns the number of columns in the grids.
+     */
+    public abstract int getWidth();
+
+
+    /****************************************************************
+     * Returns true if the grids can't be changed.  The set and add
+     * methods of read-only storage do nothing.
+     */
+    public abstract boolean isReadOnly();
+
+
+    /****************************************************************
+     * Returns the tile ID in a layer of a cell, or
+     * <tt>MHTileSetManager.NULL_TILE_ID</tt> if the layer is empty.
+     */
+    public abstract int getTileID(int layer, int cellIndex);
+
+
+    /****************************************************************
+     * Records the tile ID in a layer of a cell.
+     */
+    public abstract void setTileID(int layer, int cellIndex, int tileID);
+
+
+    /****************************************************************
+     * Returns true if the cell can be walked on.
+     */
+    public abstract boolean isWalkable(int cellIndex);
+
+
+    /****************************************************************
+     * Returns true if the cell can be flown over.
+     */
+    public abstract boolean isFlyable(int cellIndex);
+
+
+    /****************************************************************
+     * Returns the cost of moving into the cell, or
+     * <tt>MHMap.IMPASSABLE</tt>.
+     */
+    public abstract int getMovementCost(int cellIndex);
+
+
+    /****************************************************************
+     * Records the passability of a cell.
+     *
+     * @param cellIndex     The index of the cell.
+     * @param walkable      True if the cell can be walked on.
+     * @param flyable       True if the cell can be flown over.
+     * @param movementCost  The cost of moving into the cell, from 0
+     *                      to 255.
+     */
+    public abstract void setPassability(int cellIndex, boolean walkable,
+                                        boolean flyable, int movementCost);
+
+
+    /****************************************************************
+     * Returns the sum of the light sources' contributions to one
+     * channel of the light falling on a cell.  The sum is not
+     * clamped.
+     *
+     * @param cellIndex  The index of the cell.
+     * @param channel    <tt>RED</tt>, <tt>GREEN</tt> or
+     *                   <tt>BLUE</tt>.
+     */
+    public abstract int getLight(int cellIndex, int channel);
+
+
+    /****************************************************************
+     * Adds to the light falling on a cell.  The amounts may be
+     * negative to take light away.
+     */
+    public abstract void addLight(int cellIndex, int red, int green, int blue);
+
+
+    /****************************************************************
+     * Sets the light falling on every cell to zero.
+     */
+    public abstract void clearLight();
+}
@@ -0,0 +1,193 @@
+package mhframework.tilemap;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import mhframework.MHActor;
+import mhframework.media.MHMipmapCache;
+
+
+/********************************************************************
+ * A small overview of a whole tile map.
+ *
+ * <p>The minimap keeps an image with one pixel per map cell, colored
+ * with the average color of the cell's top-most solid tile.  The
+ * image is built once and then only the pixels of cells that change
+ * are redrawn, so drawing the minimap costs a single scaled
+ * image draw per frame no matter how large the map is.  The part of
+ * the map currently in view is outlined on top of it.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHMiniMap miniMap = new MHMiniMap(tileMap);
+ *     ...
+ *     miniMap.render(g, 10, 10, 160, 160);
+ * </pre>
+ */
+public class MHMiniMap implements MHMapChangeListener
+{
+    /** Layers whose tiles color the minimap, in order of priority. */
+    private static final int[] COLOR_LAYERS =
+    {
+        MHMapCell.WALL_LAYER,
+        MHMapCell.OBSTACLE_LAYER,
+        MHMapCell.FLOOR_LAYER
+    };
+
+    /** Bits for the layers in <tt>COLOR_LAYERS</tt>. */
+    private static final int COLOR_LAYER_MASK = (1 << MHMapCell.WALL_LAYER)
+        | (1 << MHMapCell.OBSTACLE_LAYER) | (1 << MHMapCell.FLOOR_LAYER);
+
+    /** The tile map being shown. */
+    private final MHTileMap tileMap;
+
+    /** One pixel per map cell. */
+    private final BufferedImage image;
+
+    /** Color of the outline around the part of the map in view. */
+    private Color viewColor = Color.WHITE;
+
+    /** Scratch objects for outlining the view. */
+    private final MHMapCellAddress corner = new MHMapCellAddress();
+    private final int[] viewX = new int[4], viewY = new int[4];
+
+
+    /****************************************************************
+     * Constructor.  Builds the minimap image and starts listening
+     * for changes to the map.
+     *
+     * @param tileMap  The tile map to be shown.
+     */
+    public MHMiniMap(final MHTileMap tileMap)
+    {
+        this.tileMap = tileMap;
+
+        final MHMap map = tileMap.getMapData();
+        image = new BufferedImage(map.getWidth(), map.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+        for (int row = 0; row < map.getHeight(); row++)
+            for (int column = 0; column < map.getWidth(); column++)
+                image.setRGB(column, row, getCellColor(row, column));
+
+        map.addChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Stops listening for changes to the map.  Call this when the
+     * minimap is no longer needed.
+     */
+    public void dispose()
+    {
+        tileMap.getMapData().removeChangeListener(this);
+    }
+
+
+    /****************************************************************
+     * Updates the pixels for the cells that have changed.
+     */
+    public void mapChanged(final MHMapChangeEvent event)
+    {
+        if ((event.getLayers() & COLOR_LAYER_MASK) == 0)
+            return;
+
+        for (int row = event.getMinRow(); row <= event.getMaxRow(); row++)
+            for (int column = event.getMinColumn(); column <= event.getMaxColumn(); column++)
+                image.setRGB(column, row, getCellColor(row, column));
+    }
+
+
+    /****************************************************************
+     * Draws the minimap, with the part of the map in view outlined.
+     *
+     * @param g       The graphics object on which to draw.
+     * @param x       The left edge of the minimap on screen.
+     * @param y       The top edge of the minimap on screen.
+     * @param width   The width of the minimap on screen.
+     * @param height  The height of the minimap on screen.
+     */
+    public void render(final Graphics2D g, final int x, final int y,
+                       final int width, final int height)
+    {
+        g.drawImage(image, x, y, width, height, null);
+
+        // Outline the view by mapping the corners of the screen
+        // space to cells.
+        final Rectangle2D screen = tileMap.getScreenSpace();
+        final int left = (int) screen.getX();
+        final int top = (int) screen.getY();
+        final int right = left + (int) screen.getWidth() - 1;
+        final int bottom = top + (int) screen.getHeight() - 1;
+
+        plotView(0, left, top, x, y, width, height);
+        plotView(1, right, top, x, y, width, height);
+        plotView(2, right, bottom, x, y, width, height);
+        plotView(3, left, bottom, x, y, width, height);
+
+        final Rectangle clip = g.getClipBounds();
+        g.clipRect(x, y, width, height);
+        g.setColor(viewColor);
+        g.drawPolygon(viewX, viewY, 4);
+        g.setClip(clip);
+    }
+
+
+    /****************************************************************
+     * Sets the color of the outline around the part of the map in
+     * view.
+     */
+    public void setViewColor(final Color color)
+    {
+        viewColor = color;
+    }
+
+
+    public Color getViewColor()
+    {
+        return viewColor;
+    }
+
+
+    /****************************************************************
+     * Returns the color of a cell's pixel.  Subclasses may override
+     * this to color cells differently, for example to mark units or
+     * objectives.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     *
+     * @return The color as an RGB value.
+     */
+    protected int getCellColor(final int row, final int column)
+    {
+        final MHMapCell cell = tileMap.getMapData().getMapCell(row, column);
+        if (cell == null)
+            return 0;
+
+        for (int i = 0; i < COLOR_LAYERS.length; i++)
+        {
+            final MHActor actor = cell.getLayer(COLOR_LAYERS[i]);
+            if (actor != null && actor.getImage() != null)
+                return MHMipmapCache.getAverageColor(actor.getImage());
+        }
+
+        return 0;
+    }
+
+
+    /****************************************************************
+     * Maps a screen point to a cell and stores the cell's position
+     * on the minimap as a corner of the view outline.
+     */
+    private void plotView(final int i, final int screenX, final int screenY,
+                          final int x, final int y, final int width, final int height)
+    {
+        tileMap.mapMouse(screenX, screenY, corner);
+
+        final MHMap map = tileMap.getMapData();
+        viewX[i] = x + (int) ((corner.column + 0.5) * width / map.getWidth());
+        viewY[i] = y + (int) ((corner.row + 0.5) * height / map.getHeight());
+    }
+}
@@ -0,0 +1,137 @@
+package mhframework.tilemap;
+
+
+/********************************************************************
+ * Something on the map that can see, such as a unit or a watch
+ * tower.  Observers are added to an <tt>MHVisibilityMap</tt>, which
+ * works out which cells each of them can see and merges the results
+ * for each team.
+ *
+ * <p>An observer's field of view is only recalculated after it has
+ * moved, its sight radius has changed, or a cell within its sight
+ * radius has started or stopped blocking sight.
+ */
+public class MHObserver
+{
+    /** The visibility map the observer has been added to, if any. */
+    MHVisibilityMap owner;
+
+    /** The team the observer belongs to. */
+    private final int team;
+
+    /** The observer's position. */
+    int row, column;
+
+    /** Distance in cells the observer can see. */
+    int radius;
+
+    /** Flag indicating the field of view must be recalculated. */
+    boolean dirty = true;
+
+    /** Indices of the cells the observer can see. */
+    int[] cells = new int[0];
+
+    /** Number of entries used in <tt>cells</tt>. */
+    int numCells = 0;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param team    The team the observer belongs to.
+     * @param row     The row of the observer's cell.
+     * @param column  The column of the observer's cell.
+     * @param radius  The distance in cells the observer can see.
+     */
+    public MHObserver(final int team, final int row, final int column, final int radius)
+    {
+        this.team = team;
+        this.row = row;
+        this.column = column;
+        this.radius = Math.max(0, radius);
+    }
+
+
+    /****************************************************************
+     * Moves the observer to a different cell.
+     */
+    public void setPosition(final int row, final int column)
+    {
+        if (row == this.row && column == this.column)
+            return;
+
+        this.row = row;
+        this.column = column;
+        invalidate();
+    }
+
+
+    /****************************************************************
+     * Changes the distance in cells the observer can see.
+     */
+    public void setRadius(final int radius)
+    {
+        this.radius = Math.max(0, radius);
+        invalidate();
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells the observer can see.
+     */
+    public int getNumVisibleCells()
+    {
+        if (owner != null)
+            owner.update();
+
+        return numCells;
+    }
+
+
+    /****************************************************************
+     * Returns the index (<tt>row * width + column</tt>) of one of
+     * the cells the observer can see.
+     *
+     * @param i  A number from 0 to <tt>getNumVisibleCells() - 1</tt>.
+     */
+    public int getVisibleCell(final int i)
+    {
+        return cells[i];
+    }
+
+
+    public int getTeam()
+    {
+        return team;
+    }
+
+
+    public int getRow()
+    {
+        return row;
+    }
+
+
+    public int getColumn()
+    {
+        return column;
+    }
+
+
+    public int getRadius()
+    {
+        return radius;
+    }
+
+
+    /****************************************************************
+     * Marks the field of view as needing to be recalculated.
+     */
+    void invalidate()
+    {
+        dirty = true;
+
+        if (owner != null)
+            owner.observerChanged();
+    }
+}
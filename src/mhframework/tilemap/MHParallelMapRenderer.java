@@ -0,0 +1,268 @@
+package mhframework.tilemap;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/********************************************************************
+ * Renders an isometric map on several threads at once.  The visible
+ * screen space is split into horizontal bands, and each band is
+ * rendered into its own off-screen image by a worker thread.  When
+ * all of the bands are finished, they are drawn onto the screen
+ * from top to bottom.
+ *
+ * <p>Each band renders every cell whose tiles could reach into it,
+ * including tall tiles whose bases lie below the band, so tiles
+ * that straddle a band boundary are drawn partly in each band and
+ * the seams are invisible.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHParallelMapRenderer renderer = new MHParallelMapRenderer(map);
+ *     ...
+ *     renderer.render(g);  // Instead of map.render(g)
+ *     ...
+ *     renderer.shutdown(); // When the map is no longer needed
+ * </pre>
+ *
+ * <p><b>Note:</b>  The map and its actors must not be modified
+ * while <tt>render()</tt> is running.
+ */
+public class MHParallelMapRenderer
+{
+    /** The map being rendered. */
+    private final MHIsometricMap map;
+
+    /** Worker threads for rendering the bands. */
+    private final ExecutorService workers;
+
+    /** One task per band.  Band 0 is rendered on the calling thread. */
+    private final BandTask[] tasks;
+
+    /** Off-screen images for the bands. */
+    private final BufferedImage[] bands;
+
+    /** Screen y coordinate of the top of each band. */
+    private final int[] bandTops;
+
+    /** Screen x coordinate of the left edge of the bands. */
+    private int bandLeft;
+
+    /** Height of a single band in pixels. */
+    private int bandHeight;
+
+
+    /****************************************************************
+     * Constructor.  Creates one band for each available processor.
+     *
+     * @param map  The map to be rendered.
+     */
+    public MHParallelMapRenderer(final MHIsometricMap map)
+    {
+        this(map, Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param map       The map to be rendered.
+     * @param numBands  The number of horizontal bands into which the
+     *                  screen space is divided.
+     */
+    public MHParallelMapRenderer(final MHIsometricMap map, final int numBands)
+    {
+        this.map = map;
+
+        final int n = Math.max(1, numBands);
+
+        tasks = new BandTask[n];
+        bands = new BufferedImage[n];
+        bandTops = new int[n];
+
+        for (int i = 0; i < n; i++)
+            tasks[i] = new BandTask(i);
+
+        workers = Executors.newFixedThreadPool(Math.max(1, n - 1), new ThreadFactory()
+        {
+            private int count = 0;
+
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r, "MHParallelMapRenderer-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /****************************************************************
+     * Renders the map onto the sent Graphics object.
+     *
+     * @param g  The graphics object on which we are rendering the
+     *           map.
+     */
+    public void render(final Graphics2D g)
+    {
+        final Rectangle2D screen = map.getScreenSpace();
+        final int width = (int) screen.getWidth();
+        final int height = (int) screen.getHeight();
+
+        if (width <= 0 || height <= 0)
+            return;
+
+        prepareBands((int) screen.getX(), (int) screen.getY(), width, height);
+
+        final Shape clip = map.clipToScreenSpace(g);
+
+        // The ground cache is baked here, before the workers read it.
+        map.renderGround(g);
+
+        // Hand bands 1..n-1 to the workers and render band 0 here.
+        final List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 1; i < tasks.length; i++)
+            results.add(workers.submit(tasks[i]));
+
+        tasks[0].call();
+
+        for (final Future<Object> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                g.setClip(clip);
+                return;
+            }
+            catch (final ExecutionException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        // Only the band that drew the cursor's cell knows where it
+        // is.  The map is updated here, now that the workers are
+        // done with it.
+        for (int i = 0; i < tasks.length; i++)
+        {
+            if (tasks[i].cursorDrawn)
+                map.cursorAnchor.setLocation(tasks[i].cursor);
+        }
+
+        // Composite the bands from top to bottom.
+        for (int i = 0; i < bands.length; i++)
+            g.drawImage(bands[i], bandLeft, bandTops[i], null);
+
+        map.renderOverlays(g);
+        map.renderCursor(g);
+
+        g.setClip(clip);
+    }
+
+
+    /****************************************************************
+     * Stops the worker threads.  The renderer cannot be used after
+     * this method has been called.
+     */
+    public void shutdown()
+    {
+        workers.shutdown();
+    }
+
+
+    /****************************************************************
+     * Returns the number of bands the screen is divided into.
+     */
+    public int getNumBands()
+    {
+        return tasks.length;
+    }
+
+
+    /****************************************************************
+     * Calculates the band positions and makes sure the band images
+     * are large enough for the current screen space.
+     */
+    private void prepareBands(final int x, final int y, final int width, final int height)
+    {
+        final int h = (height + bands.length - 1) / bands.length;
+
+        for (int i = 0; i < bands.length; i++)
+        {
+            if (bands[i] == null || bands[i].getWidth() != width || bands[i].getHeight() != h)
+                bands[i] = new BufferedImage(width, h, BufferedImage.TYPE_INT_ARGB_PRE);
+
+            bandTops[i] = y + i * h;
+        }
+
+        bandLeft = x;
+        bandHeight = h;
+    }
+
+
+    /****************************************************************
+     * Renders a single band of the screen into its off-screen image.
+     */
+    private class BandTask implements Callable<Object>
+    {
+        private final int index;
+
+        /** Screen position of the cursor's cell, if this band drew
+         * it in the last frame. */
+        private final Point cursor = new Point();
+        private boolean cursorDrawn;
+
+        BandTask(final int index)
+        {
+            this.index = index;
+        }
+
+        public Object call()
+        {
+            final BufferedImage image = bands[index];
+            final int top = bandTops[index];
+            final Graphics2D bg = image.createGraphics();
+            cursorDrawn = false;
+
+            try
+            {
+                // Clear whatever was rendered in the previous frame.
+                final Composite c = bg.getComposite();
+                bg.setComposite(AlphaComposite.Clear);
+                bg.fillRect(0, 0, image.getWidth(), image.getHeight());
+                bg.setComposite(c);
+
+                // Band images are in screen coordinates offset by
+                // the band's upper-left corner.
+                bg.translate(-bandLeft, -top);
+                bg.clipRect(bandLeft, top, image.getWidth(), bandHeight);
+
+                cursorDrawn = map.renderCells(bg, top,
+                        top + bandHeight + MHIsometricMap.TILE_OVERHANG, cursor);
+            }
+            finally
+            {
+                bg.dispose();
+            }
+
+            return null;
+        }
+    }
+}
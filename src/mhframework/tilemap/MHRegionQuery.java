@@ -0,0 +1,419 @@
+package mhframework.tilemap;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+
+/********************************************************************
+ * Finds the cells in a region of a tile map, such as the cells
+ * within a radius of a cell or along a line between two cells.
+ *
+ * <p>Every query stores its result as a list of cell indices (see
+ * <tt>MHMap.getCellIndex()</tt>) in a buffer that is reused by the
+ * next query, so once the buffer has grown to fit the largest
+ * region no objects are created.  Only cells inside the map are
+ * listed, and no cell is listed twice.
+ *
+ * <p>Regions are found with the map's own neighbors, step
+ * distances and cell positions, so the same query works on
+ * rectangular, diamond, staggered and hexagonal maps.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHRegionQuery query = new MHRegionQuery(tileMap);
+ *     int n = query.selectRadius(row, column, 3.0);
+ *     int[] cells = query.getCells();
+ *     for (int i = 0; i < n; i++)
+ *         damage(cells[i]);
+ * </pre>
+ *
+ * <p>A query object is not thread safe.  Give each thread its own.
+ */
+public class MHRegionQuery
+{
+    /** Kinds of region found by spreading out from a cell. */
+    private static final int RADIUS = 0, DIAMOND = 1, WALK = 2, FLY = 3;
+
+    /** The tile map being searched. */
+    private final MHTileMap tileMap;
+
+    /** Indices of the cells in the last region found. */
+    private int[] cells = new int[64];
+
+    /** Number of cells in the last region found. */
+    private int count;
+
+    /** Cells marked with the current stamp have been listed. */
+    private int[] seen = new int[0];
+
+    /** Stamp for the current query. */
+    private int stamp = 0;
+
+    /** The cell a region is spreading from. */
+    private int centerRow, centerColumn;
+
+    /** Scratch objects for walking and plotting cells. */
+    private final MHMapCellAddress neighbor = new MHMapCellAddress();
+    private final Point origin = new Point(), point = new Point();
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param tileMap  The tile map to be searched.
+     */
+    public MHRegionQuery(final MHTileMap tileMap)
+    {
+        this.tileMap = tileMap;
+    }
+
+
+    /****************************************************************
+     * Returns the number of cells in the last region found.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+
+    /****************************************************************
+     * Returns the indices of the cells in the last region found.
+     * Only the first <tt>getCount()</tt> entries are valid, and the
+     * array is reused by the next query.
+     */
+    public int[] getCells()
+    {
+        return cells;
+    }
+
+
+    /****************************************************************
+     * Returns the row of a cell in the last region found.
+     *
+     * @param i  A number from 0 to <tt>getCount() - 1</tt>.
+     */
+    public int getRow(final int i)
+    {
+        return cells[i] / tileMap.getMapData().getWidth();
+    }
+
+
+    /****************************************************************
+     * Returns the column of a cell in the last region found.
+     *
+     * @param i  A number from 0 to <tt>getCount() - 1</tt>.
+     */
+    public int getColumn(final int i)
+    {
+        return cells[i] % tileMap.getMapData().getWidth();
+    }
+
+
+    /****************************************************************
+     * Finds the cells in a rectangle of rows and columns, in
+     * row-major order.  The rectangle is clipped to the map.
+     *
+     * @param minRow     The first row of the rectangle.
+     * @param minColumn  The first column of the rectangle.
+     * @param maxRow     The last row of the rectangle.
+     * @param maxColumn  The last column of the rectangle.
+     *
+     * @return The number of cells found.
+     */
+    public int selectRectangle(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        final MHMap map = tileMap.getMapData();
+        final int r0 = Math.max(0, minRow);
+        final int c0 = Math.max(0, minColumn);
+        final int r1 = Math.min(map.getHeight() - 1, maxRow);
+        final int c1 = Math.min(map.getWidth() - 1, maxColumn);
+
+        count = 0;
+        if (r1 < r0 || c1 < c0)
+            return 0;
+
+        ensureCapacity((r1 - r0 + 1) * (c1 - c0 + 1));
+
+        for (int row = r0; row <= r1; row++)
+            for (int column = c0; column <= c1; column++)
+                cells[count++] = map.getCellIndex(row, column);
+
+        return count;
+    }
+
+
+    /****************************************************************
+     * Finds the cells whose centers are within a radius of a cell's
+     * center, nearest first.  The radius is measured on screen in
+     * tile widths across and tile heights down, so the region looks
+     * round in every layout.
+     *
+     * @param row     The row of the center cell.
+     * @param column  The column of the center cell.
+     * @param radius  The radius in tiles.
+     *
+     * @return The number of cells found.
+     */
+    public int selectRadius(final int row, final int column, final double radius)
+    {
+        return spread(row, column, RADIUS, radius);
+    }
+
+
+    /****************************************************************
+     * Finds the cells within a number of steps of a cell, as
+     * measured by the map's <tt>getDistance()</tt> method, nearest
+     * first.  On a rectangular map this is a diamond of cells; on a
+     * hexagonal map it is a hexagon.
+     *
+     * @param row       The row of the center cell.
+     * @param column    The column of the center cell.
+     * @param distance  The greatest number of steps.
+     *
+     * @return The number of cells found.
+     */
+    public int selectDiamond(final int row, final int column, final int distance)
+    {
+        return spread(row, column, DIAMOND, distance);
+    }
+
+
+    /****************************************************************
+     * Finds the cells that can be reached from a cell in a number
+     * of steps without crossing an impassable cell, nearest first.
+     * The starting cell is included only if it is passable.
+     *
+     * @param row       The row of the starting cell.
+     * @param column    The column of the starting cell.
+     * @param maxSteps  The greatest number of steps, or
+     *                  <tt>Integer.MAX_VALUE</tt> for no limit.
+     * @param flying    True to use flyability rather than
+     *                  walkability to decide which cells are
+     *                  passable.
+     *
+     * @return The number of cells found.
+     */
+    public int selectFlood(final int row, final int column,
+            final int maxSteps, final boolean flying)
+    {
+        return spread(row, column, flying ? FLY : WALK, maxSteps);
+    }
+
+
+    /****************************************************************
+     * Finds the cells along a line between the centers of two
+     * cells, in order from the first cell to the second.  Each cell
+     * is a neighbor of the one before it.  At each step the line
+     * moves to the neighbor nearer the end whose center lies closest
+     * to the line.  On a rectangular map these are the cells
+     * Bresenham's algorithm finds, except where the line passes
+     * exactly between two cells and either would do.
+     *
+     * @param row1     The row of the first cell.
+     * @param column1  The column of the first cell.
+     * @param row2     The row of the last cell.
+     * @param column2  The column of the last cell.
+     *
+     * @return The number of cells found.
+     */
+    public int selectLine(final int row1, final int column1,
+            final int row2, final int column2)
+    {
+        final MHMap map = tileMap.getMapData();
+        final MHTileMapDirection[] directions = tileMap.getDirections();
+
+        count = 0;
+        if (!map.isValidCell(row1, column1) || !map.isValidCell(row2, column2))
+            return 0;
+
+        tileMap.getCellCenter(row1, column1, origin);
+        final long startX = origin.x, startY = origin.y;
+        tileMap.getCellCenter(row2, column2, origin);
+        final long endX = origin.x, endY = origin.y;
+        final long lineX = endX - startX, lineY = endY - startY;
+
+        int row = row1, column = column1;
+        long distance = (startX - endX) * (startX - endX) + (startY - endY) * (startY - endY);
+        add(map.getCellIndex(row, column));
+
+        while (row != row2 || column != column2)
+        {
+            int bestRow = -1, bestColumn = -1;
+            long bestOffset = Long.MAX_VALUE, bestDistance = distance;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                tileMap.tileWalk(row, column, directions[d], neighbor);
+                if (!map.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                tileMap.getCellCenter(neighbor.row, neighbor.column, point);
+                final long dx = point.x - endX, dy = point.y - endY;
+                final long toEnd = dx * dx + dy * dy;
+
+                // Never step away from the end.
+                if (toEnd >= distance)
+                    continue;
+
+                // Distance from the line, scaled by its length.
+                final long offset = Math.abs((point.x - startX) * lineY - (point.y - startY) * lineX);
+
+                if (offset < bestOffset || (offset == bestOffset && toEnd < bestDistance))
+                {
+                    bestRow = neighbor.row;
+                    bestColumn = neighbor.column;
+                    bestOffset = offset;
+                    bestDistance = toEnd;
+                }
+            }
+
+            if (bestRow < 0)
+                break;
+
+            row = bestRow;
+            column = bestColumn;
+            distance = bestDistance;
+            add(map.getCellIndex(row, column));
+        }
+
+        return count;
+    }
+
+
+    /****************************************************************
+     * Lists the cells of a region by spreading out from a cell one
+     * step at a time.  The list doubles as the queue of cells whose
+     * neighbors are still to be visited.
+     */
+    private int spread(final int row, final int column, final int kind, final double limit)
+    {
+        final MHMap map = tileMap.getMapData();
+        final MHTileMapDirection[] directions = tileMap.getDirections();
+        final int width = map.getWidth();
+
+        count = 0;
+        if (!map.isValidCell(row, column) || limit < 0)
+            return 0;
+
+        centerRow = row;
+        centerColumn = column;
+        tileMap.getCellCenter(row, column, origin);
+
+        nextStamp();
+
+        final int start = map.getCellIndex(row, column);
+        if (!isInRegion(start, row, column, kind, limit))
+            return 0;
+
+        seen[start] = stamp;
+        add(start);
+
+        // Cells before levelEnd are no more than steps away.
+        int head = 0, steps = 0, levelEnd = count;
+
+        while (head < count)
+        {
+            if (head == levelEnd)
+            {
+                steps++;
+                levelEnd = count;
+            }
+
+            // Flooding stops at the step limit.
+            if (kind >= WALK && steps >= limit)
+                break;
+
+            final int index = cells[head++];
+            final int r = index / width, c = index % width;
+
+            for (int d = 0; d < directions.length; d++)
+            {
+                tileMap.tileWalk(r, c, directions[d], neighbor);
+                if (!map.isValidCell(neighbor.row, neighbor.column))
+                    continue;
+
+                final int next = map.getCellIndex(neighbor.row, neighbor.column);
+                if (seen[next] == stamp)
+                    continue;
+
+                seen[next] = stamp;
+
+                if (isInRegion(next, neighbor.row, neighbor.column, kind, limit))
+                    add(next);
+            }
+        }
+
+        return count;
+    }
+
+
+    /****************************************************************
+     * Returns true if a cell belongs to the region being spread.
+     */
+    private boolean isInRegion(final int index, final int row, final int column,
+            final int kind, final double limit)
+    {
+        final MHMap map = tileMap.getMapData();
+
+        switch (kind)
+        {
+            case RADIUS:
+                tileMap.getCellCenter(row, column, point);
+                final double dx = (point.x - origin.x) / (double) tileMap.getTileWidth();
+                final double dy = (point.y - origin.y) / (double) tileMap.getTileHeight();
+                return dx * dx + dy * dy <= limit * limit;
+            case DIAMOND:
+                return tileMap.getDistance(centerRow, centerColumn, row, column) <= limit;
+            case WALK:
+                return map.isWalkable(index);
+            default:
+                return map.isFlyable(index);
+        }
+    }
+
+
+    /****************************************************************
+     * Starts a new query, making sure the stamps cover every cell.
+     */
+    private void nextStamp()
+    {
+        final MHMap map = tileMap.getMapData();
+        final int size = map.getWidth() * map.getHeight();
+
+        if (seen.length != size)
+        {
+            seen = new int[size];
+            stamp = 0;
+        }
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+    }
+
+
+    /****************************************************************
+     * Adds a cell to the region.
+     */
+    private void add(final int index)
+    {
+        if (count == cells.length)
+            cells = Arrays.copyOf(cells, count * 2);
+
+        cells[count++] = index;
+    }
+
+
+    /****************************************************************
+     * Makes sure the buffer can hold a number of cells.
+     */
+    private void ensureCapacity(final int size)
+    {
+        if (cells.length < size)
+            cells = Arrays.copyOf(cells, Integer.highestOneBit(size) * 2);
+    }
+}
@@ -0,0 +1,215 @@
+package mhframework.tilemap;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import mhframework.MHActor;
+
+
+/********************************************************************
+ * Draws two views of one isometric map side by side, the way a split
+ * screen game would, without opening a window.  The second view sits
+ * halfway across the screen and is zoomed out, so its tiles, its
+ * free-moving objects and its cursor must all be moved into its own
+ * screen space.
+ *
+ * <p>Each view is first drawn by itself onto a blank screen to show
+ * that it draws inside its screen space and nowhere else.  Then both
+ * are drawn together, and the picture can be saved for a look.
+ *
+ * <p>Usage:
+ * <pre>
+ *     java mhframework.tilemap.MHSplitViewDemo [image.png]
+ * </pre>
+ *
+ * The program exits with status 1 if either view draws nothing in
+ * its own space or draws anything outside it.
+ */
+public class MHSplitViewDemo
+{
+    /** Size of the whole screen. */
+    private static final int SCREEN_WIDTH = 800, SCREEN_HEIGHT = 480;
+
+    /** Size of the map in cells. */
+    private static final int MAP_SIZE = 24;
+
+    /** Color of the screen before anything is drawn. */
+    private static final int BACKGROUND = 0xFFFF00FF;
+
+
+    public static void main(final String[] args) throws IOException
+    {
+        final MHMap data = createMap();
+
+        final MHDiamondMap left = new MHDiamondMap(data);
+        left.setScreenSpace(0, 0, SCREEN_WIDTH / 2, SCREEN_HEIGHT);
+        left.centerOn(MAP_SIZE / 2, MAP_SIZE / 2);
+        left.setCursorOn(false);
+
+        final MHDiamondMap right = new MHDiamondMap(left);
+        right.setScreenSpace(SCREEN_WIDTH / 2, 0, SCREEN_WIDTH / 2, SCREEN_HEIGHT);
+        right.setZoomLevel(1);
+        right.centerOn(MAP_SIZE / 2, MAP_SIZE / 2);
+        right.setCursorOn(false);
+
+        // A free-moving object in the middle of the map.
+        left.moveFineObject(createActor(createBlock(Color.RED)), MAP_SIZE / 2, MAP_SIZE / 2);
+
+        final boolean leftOK = check("Left view", left);
+        final boolean rightOK = check("Right view", right);
+
+        if (args.length > 0)
+        {
+            final BufferedImage screen = createScreen();
+            final Graphics2D g = screen.createGraphics();
+            left.render(g);
+            right.render(g);
+            g.dispose();
+
+            ImageIO.write(screen, "png", new File(args[0]));
+            System.out.println("Wrote " + args[0]);
+        }
+
+        if (!leftOK || !rightOK)
+            System.exit(1);
+    }
+
+
+    /****************************************************************
+     * Draws a view by itself and counts the pixels it drew inside and
+     * outside its screen space.
+     *
+     * @return True if the view drew inside its space and only there.
+     */
+    private static boolean check(final String name, final MHIsometricMap view)
+    {
+        final BufferedImage screen = createScreen();
+        final Graphics2D g = screen.createGraphics();
+        view.render(g);
+        g.dispose();
+
+        final Rectangle space = view.getScreenSpace().getBounds();
+        int inside = 0, outside = 0;
+
+        for (int y = 0; y < screen.getHeight(); y++)
+        {
+            for (int x = 0; x < screen.getWidth(); x++)
+            {
+                if (screen.getRGB(x, y) == BACKGROUND)
+                    continue;
+
+                if (space.contains(x, y))
+                    inside++;
+                else
+                    outside++;
+            }
+        }
+
+        final boolean ok = (inside > 0 && outside == 0);
+        System.out.println(name + " at (" + space.x + ", " + space.y + "):  "
+                + inside + " pixels drawn inside, " + outside + " outside"
+                + (ok ? "" : "  <-- WRONG"));
+
+        return ok;
+    }
+
+
+    private static BufferedImage createScreen()
+    {
+        final BufferedImage screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT,
+                BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = screen.createGraphics();
+        g.setColor(new Color(BACKGROUND, true));
+        g.fillRect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+        g.dispose();
+
+        return screen;
+    }
+
+
+    /****************************************************************
+     * Builds a checkered map with a wall around its edge.
+     */
+    private static MHMap createMap()
+    {
+        final MHMap data = new MHMap(MAP_SIZE, MAP_SIZE, null);
+        final MHActor light = createActor(createFloor(new Color(0x90C060)));
+        final MHActor dark = createActor(createFloor(new Color(0x608040)));
+        final MHActor wall = createActor(createBlock(Color.GRAY));
+
+        for (int row = 0; row < MAP_SIZE; row++)
+        {
+            for (int column = 0; column < MAP_SIZE; column++)
+            {
+                data.setLayer(row, column, MHMapCell.FLOOR_LAYER,
+                        ((row + column) % 2 == 0) ? light : dark);
+
+                if (row == 0 || column == 0 || row == MAP_SIZE - 1 || column == MAP_SIZE - 1)
+                    data.setLayer(row, column, MHMapCell.WALL_LAYER, wall);
+            }
+        }
+
+        return data;
+    }
+
+
+    /****************************************************************
+     * Makes an actor that always shows the same image.  Image groups
+     * register their images with the media tracker, which needs a
+     * window, so this demo doesn't use them.
+     */
+    private static MHActor createActor(final Image image)
+    {
+        return new MHActor()
+        {
+            @Override
+            public Image getImage()
+            {
+                return image;
+            }
+        };
+    }
+
+
+    /****************************************************************
+     * Makes a base tile image filled with the given color.
+     */
+    private static Image createFloor(final Color color)
+    {
+        final int w = MHIsoMouseMap.WIDTH;
+        final int h = MHIsoMouseMap.HEIGHT;
+        final BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+
+        g.setColor(color);
+        g.fillPolygon(new Polygon(new int[] { w/2, w, w/2, 0 },
+                                  new int[] { 0, h/2, h, h/2 }, 4));
+        g.dispose();
+
+        return image;
+    }
+
+
+    /****************************************************************
+     * Makes a block one tile wide and as tall as it is wide, for walls
+     * and objects that stand up from the floor.
+     */
+    private static Image createBlock(final Color color)
+    {
+        final int w = MHIsoMouseMap.WIDTH;
+        final BufferedImage image = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = image.createGraphics();
+
+        g.setColor(color);
+        g.fillRect(w / 4, 0, w / 2, w);
+        g.dispose();
+
+        return image;
+    }
+}
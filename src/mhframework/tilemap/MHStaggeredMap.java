@@ -44,12 +44,34 @@ public class MHStaggeredMap extends MHIsometricMap
 
 
     /****************************************************************
+     * Creates another view of an existing staggered map.  See
+     * <tt>MHIsometricMap(MHIsometricMap)</tt>.
+     */
+    public MHStaggeredMap(final MHStaggeredMap source)
+    {
+        super(source);
+
+        flatEdges = source.flatEdges;
+
+        calculateAnchorSpace();
+    }
+
+
+    /****************************************************************
+     * Each row of a staggered map is drawn as a horizontal line.
      */
     @Override
-    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction)
+    public int getDepthRow(final int row, final int column)
     {
-		final MHMapCellAddress destination = new MHMapCellAddress();
+        return row;
+    }
 
+
+    /****************************************************************
+     */
+    @Override
+    public MHMapCellAddress tileWalk(final int row, final int column, final MHTileMapDirection direction, final MHMapCellAddress destination)
+    {
 		destination.row = row;
 	    destination.column = column;
 
@@ -103,18 +125,16 @@ public class MHStaggeredMap extends MHIsometricMap
      * Plots the upper-left anchor point of a base tile image.
      */
     @Override
-    public Point plotTile(final int mapRow, final int mapCol)
+    public Point plotTile(final int mapRow, final int mapCol, final Point out)
     {
-		int plotX, plotY;
-
 		final int width = getTileWidth();
 		final int height = getTileHeight();
 
 		// calculate pixel position for the map position given
-		plotX = mapCol * width + (mapRow & 1) * (width / 2);
-		plotY = mapRow * (height / 2);
+		out.x = mapCol * width + (mapRow & 1) * (width / 2);
+		out.y = mapRow * (height / 2);
 
-		return new Point(plotX, plotY);
+		return out;
     }
 
 
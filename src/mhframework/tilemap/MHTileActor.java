@@ -0,0 +1,94 @@
+package mhframework.tilemap;
+
+import java.awt.Image;
+import mhframework.MHActor;
+import mhframework.MHDataModel;
+
+
+/********************************************************************
+ * An ordinary, non-interactive tile in a map cell.  Tile actors do
+ * not keep their own animation state.  Instead, every tile actor
+ * showing the same tile reads its current frame from a single clock
+ * kept by the tile set manager, so a map containing thousands of
+ * copies of an animated water tile only advances one animation.
+ *
+ * <p>Objects that need their own animation timing (doors, switches,
+ * etc.) should be ordinary <tt>MHActor</tt> objects supplied by the
+ * map's object factory.
+ */
+public class MHTileActor extends MHActor
+{
+    /** The map layer this tile belongs to. */
+    private final int layer;
+
+    /** The ID of this tile within its layer of the tile set. */
+    private final int tileID;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param layer   The map layer this tile belongs to.
+     * @param tileID  The ID of the tile within its layer.
+     */
+    public MHTileActor(final int layer, final int tileID)
+    {
+        this.layer = layer;
+        this.tileID = tileID;
+
+        setImageGroup(MHDataModel.getTileSetManager().getTileImageGroup(layer));
+
+        // For a tile actor, the animation sequence is the tile ID
+        // since that's what determines which image is displayed.
+        setAnimationSequence(tileID);
+    }
+
+
+    /****************************************************************
+     * Returns the image for the tile's current shared animation
+     * frame.
+     */
+    @Override
+    public Image getImage()
+    {
+        return MHDataModel.getTileSetManager().getCurrentTileImage(layer, tileID);
+    }
+
+
+    /****************************************************************
+     * Returns the tile's current shared animation frame number.
+     */
+    @Override
+    public int getFrameNumber()
+    {
+        return MHDataModel.getTileSetManager().getCurrentFrame(layer, tileID);
+    }
+
+
+    /****************************************************************
+     * Does nothing.  Tile animations are advanced by
+     * <tt>MHTileSetManager.advanceAnimations()</tt>.
+     */
+    @Override
+    public void advance()
+    {
+    }
+
+
+    /****************************************************************
+     * Returns the map layer this tile belongs to.
+     */
+    public int getLayer()
+    {
+        return layer;
+    }
+
+
+    /****************************************************************
+     * Returns the ID of this tile within its layer of the tile set.
+     */
+    public int getTileID()
+    {
+        return tileID;
+    }
+}
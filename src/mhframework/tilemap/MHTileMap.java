@@ -2,12 +2,14 @@ package mhframework.tilemap;
 
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Shape;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Rectangle2D;
 import mhframework.MHActor;
 import mhframework.MHDisplayModeChooser;
 import mhframework.MHPoint;
 import mhframework.MHRenderable;
+import mhframework.media.MHMipmapCache;
 
 /********************************************************************
  * Base class for deriving tile-based map objects.  It may be used by
@@ -54,6 +56,17 @@ public class MHTileMap implements MHRenderable
 
     private boolean mouseScroll = false;
 
+    /** Precomputed plot offsets for the current view. */
+    private volatile MHPlotTable plotTable;
+
+    /** Number of times the view is halved in size.  0 is full
+     * size. */
+    private int zoomLevel = 0;
+
+    /** Flag indicating that this map advances the shared map data.
+     * False for views made from another map. */
+    private final boolean ownsMapData;
+
 
     ////////////////////////////
     ////      Methods       ////
@@ -72,6 +85,7 @@ public class MHTileMap implements MHRenderable
     public MHTileMap(final String filename, final MHObjectFactory vendor)
     {
         mapData = new MHMap(filename, vendor);
+        ownsMapData = true;
 
         // set a default tile width
         setTileWidth(128);
@@ -81,6 +95,52 @@ public class MHTileMap implements MHRenderable
     }
 
 
+    /****************************************************************
+     * Constructor.  Creates another view of an existing tile map,
+     * for split screens, picture-in-picture and the like.  The view
+     * shares the source's map data and tile set rather than loading
+     * its own copy, but it has its own screen space, scroll position
+     * and cursor.  It starts out showing the same area as the
+     * source; call <tt>setScreenSpace()</tt> to place it on screen.
+     *
+     * <p>Only the source advances the shared map data, so calling
+     * <tt>advance()</tt> on both doesn't make actors and lights run
+     * at double speed.
+     *
+     * @param source  The tile map to be viewed.
+     */
+    public MHTileMap(final MHTileMap source)
+    {
+        mapData = source.mapData;
+        ownsMapData = false;
+
+        setTileWidth(source.getTileWidth());
+        setZoomLevel(source.getZoomLevel());
+
+        setScreenSpace((int) source.screenSpace.getX(), (int) source.screenSpace.getY(),
+                (int) source.screenSpace.getWidth(), (int) source.screenSpace.getHeight());
+    }
+
+
+    /****************************************************************
+     * Constructor.  Creates a tile map for map data built in code,
+     * such as generated levels and test maps, rather than loaded
+     * from a map file.  No display is needed, so the map can be
+     * used by tools that never open a window.  Its screen space is
+     * empty; call <tt>setScreenSpace()</tt> to place it on screen.
+     *
+     * @param data  The map data.
+     */
+    public MHTileMap(final MHMap data)
+    {
+        mapData = data;
+        ownsMapData = true;
+
+        setTileWidth(128);
+        setScreenSpace(0, 0, 0, 0);
+    }
+
+
     /****************************************************************
      * Tile plotter.  Converts map coordinates to screen coordinates.
      *
@@ -97,16 +157,102 @@ public class MHTileMap implements MHRenderable
      */
     public Point plotTile(final int mapRow, final int mapCol)
     {
-        Point plotPoint;
+        return plotTile(mapRow, mapCol, new Point());
+    }
+
 
-                // Calculate world coordinates
+    /****************************************************************
+     * Tile plotter.  Converts map coordinates to screen coordinates
+     * and stores them in a point supplied by the caller so that no
+     * objects are created.
+     *
+     * @param mapRow  The row of the map whose pixel position is
+     *                 being calculated.
+     * @param mapCol  The column of the map whose pixel position is
+     *                 being calculated.
+     * @param out     The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public Point plotTile(final int mapRow, final int mapCol, final Point out)
+    {
+        // Calculate world coordinates
         final int x = mapCol * getTileWidth();
         final int y = mapRow * getTileHeight();
 
-                // Convert world coordinates to screen coordinates
-                plotPoint = worldToScreen(new MHPoint(x, y));
+        // Convert world coordinates to screen coordinates
+        return worldToScreen(x, y, out);
+    }
+
+
+    /****************************************************************
+     * Looks up the result of <tt>plotTile()</tt> in the map's
+     * precomputed row and column offset tables.  This is the method
+     * to use inside rendering loops.
+     *
+     * <p>The tables assume that the plot position of a cell is the
+     * sum of an offset that depends only on its row and one that
+     * depends only on its column, which is true of the rectangular
+     * and isometric layouts in this package.  They are rebuilt
+     * automatically whenever the tile size, zoom level or map size
+     * changes.  Scrolling only moves their origin.
+     *
+     * @param mapRow  The row of the map cell.
+     * @param mapCol  The column of the map cell.
+     * @param out     The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public Point plotCell(final int mapRow, final int mapCol, final Point out)
+    {
+        return getPlotTable().plot(mapRow, mapCol, out);
+    }
+
+
+    /****************************************************************
+     * Finds the center of a cell's base tile in world space, where
+     * it doesn't depend on the scroll position or zoom level.
+     *
+     * @param mapRow  The row of the map cell.
+     * @param mapCol  The column of the map cell.
+     * @param out     The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public Point getCellCenter(final int mapRow, final int mapCol, final Point out)
+    {
+        out.x = mapCol * getTileWidth() + getTileWidth() / 2;
+        out.y = mapRow * getTileHeight() + getTileHeight() / 2;
+
+        return out;
+    }
+
 
-                return plotPoint;
+    /****************************************************************
+     * Returns the plot offset tables for the current view, building
+     * a new set if the current one is out of date.  If the view has
+     * only been scrolled or moved on screen, the current offsets are
+     * kept and only the origin is moved.
+     *
+     * Tables are never modified once built, so a table returned here
+     * may be used by several rendering threads at once.
+     */
+    protected MHPlotTable getPlotTable()
+    {
+        MHPlotTable table = plotTable;
+
+        if (table == null || !table.isCurrent(this))
+        {
+            table = new MHPlotTable(this);
+            plotTable = table;
+        }
+        else if (!table.isPlacedFor(this))
+        {
+            table = new MHPlotTable(table, this);
+            plotTable = table;
+        }
+
+        return table;
     }
 
     
@@ -166,17 +312,46 @@ public class MHTileMap implements MHRenderable
      */
     public Point screenToWorld(final Point screen)
     {
-                final Point world = (Point) screen.clone();
+        return screenToWorld(screen.x, screen.y, new Point());
+    }
 
-        // translate into plotspace coordinates
-        world.x -= (int) screenSpace.getX();
-        world.y -= (int) screenSpace.getY();
 
+    /****************************************************************
+     * Convert screen coordinates to world coordinates without
+     * creating any objects.
+     *
+     * @param x    The x coordinate of a point in screen space.
+     * @param y    The y coordinate of a point in screen space.
+     * @param out  The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public Point screenToWorld(final int x, final int y, final Point out)
+    {
+        out.x = screenToWorldX(x);
+        out.y = screenToWorldY(y);
+
+        return out;
+    }
+
+
+    /****************************************************************
+     * Converts a screen x coordinate to a world x coordinate.
+     */
+    protected int screenToWorldX(final int x)
+    {
+        // translate into plotspace coordinates, undo the zoom, then
         // translate into world coordinates
-                world.x += screenAnchor.x;
-                world.y += screenAnchor.y;
+        return ((x - (int) screenSpace.getX()) << zoomLevel) + screenAnchor.x;
+    }
+
 
-        return world;
+    /****************************************************************
+     * Converts a screen y coordinate to a world y coordinate.
+     */
+    protected int screenToWorldY(final int y)
+    {
+        return ((y - (int) screenSpace.getY()) << zoomLevel) + screenAnchor.y;
     }
 
 
@@ -188,18 +363,37 @@ public class MHTileMap implements MHRenderable
      * @return A point in screen space.
      */
     public Point worldToScreen(final MHPoint location)
+    {
+        return worldToScreen(location.getX(), location.getY(), new Point());
+    }
+
+
+    /****************************************************************
+     * Convert world coordinates to screen coordinates without
+     * creating any objects.
+     *
+     * @param x    The x coordinate of a point in world space.
+     * @param y    The y coordinate of a point in world space.
+     * @param out  The point in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public Point worldToScreen(final double x, final double y, final Point out)
     {
         int screenX, screenY;
 
         // translate into plotspace coordinates
-        screenX = (int)(location.getX() - screenAnchor.x);
-        screenY = (int)(location.getY() - screenAnchor.y);
+        screenX = (int)(x - screenAnchor.x) >> zoomLevel;
+        screenY = (int)(y - screenAnchor.y) >> zoomLevel;
 
         // translate into screen coordinates
-            screenX += screenSpace.getX();
-            screenY += screenSpace.getY();
+        screenX += screenSpace.getX();
+        screenY += screenSpace.getY();
 
-        return new Point(screenX, screenY);
+        out.x = screenX;
+        out.y = screenY;
+
+        return out;
     }
 
 
@@ -353,27 +547,56 @@ public class MHTileMap implements MHRenderable
      * @return  The address of the map cell containing the mouse
      *           cursor.
      */
-    public MHMapCellAddress mapMouse(Point mousePoint)
+    public MHMapCellAddress mapMouse(final Point mousePoint)
+    {
+        return mapMouse(mousePoint.x, mousePoint.y, new MHMapCellAddress());
+    }
+
+
+    /****************************************************************
+     * Converts mouse coordinates into a map cell address without
+     * creating any objects.
+     *
+     * @param mouseX  The x coordinate of the mouse cursor on screen.
+     * @param mouseY  The y coordinate of the mouse cursor on screen.
+     * @param out     The address in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public MHMapCellAddress mapMouse(final int mouseX, final int mouseY,
+            final MHMapCellAddress out)
     {
-        final MHMapCellAddress mapPoint = new MHMapCellAddress();
-        final Point refPoint = plotTile(0,0);
+        return mapWorld(screenToWorldX(mouseX), screenToWorldY(mouseY), out);
+    }
 
-        //convert from screen to world
-        mousePoint = screenToWorld(mousePoint);
 
-        // calculate reference point
-        refPoint.translate( (int) screenSpace.getX(),
-                            (int) screenSpace.getY() );
+    /****************************************************************
+     * Finds the map cell containing a point in world space, without
+     * creating any objects.
+     *
+     * @param worldX  The x coordinate of the point in world space.
+     * @param worldY  The y coordinate of the point in world space.
+     * @param out     The address in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public MHMapCellAddress mapWorld(final int worldX, final int worldY,
+            final MHMapCellAddress out)
+    {
+        // Cell (0, 0) is at the world origin, so no reference point
+        // is needed.
+        out.column = worldX / getTileWidth();
+        out.row = worldY / getTileHeight();
 
-        //subtract reference point
-        mousePoint.translate( (int) -refPoint.getX(),
-                              (int) -refPoint.getY() );
+        // adjust for negative remainders
+        if (worldX % getTileWidth() < 0)
+            out.column--;
 
-        mapPoint.column=(int)(mousePoint.getX()/mapData.getWidth());
-        mapPoint.row=(int)(mousePoint.getY()/mapData.getHeight());
+        if (worldY % getTileHeight() < 0)
+            out.row--;
 
         //return map coordinate
-        return(mapPoint);
+        return out;
     }
 
 
@@ -408,16 +631,20 @@ public class MHTileMap implements MHRenderable
 
         public void advance()
         {
-            for (int row = 0; row < mapData.getHeight(); row++)
-                for (int col = 0; col < mapData.getWidth(); col++)
-                    for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
-                    {
-                        MHActor a = mapData.getMapCell(row, col).getLayer(layer);
-                        if (a != null)
-                        {
-                            a.advance();
-                        }
-                    }
+            if (ownsMapData)
+            {
+                // Tiles share one animation clock per tile type,
+                // which the screen manager advances once per update
+                // for every map.  Only the actors that animate on
+                // their own are advanced here.
+                mapData.advanceActors();
+
+                if (mapData.getLightMap() != null)
+                    mapData.getLightMap().advance();
+
+                if (mapData.getVisibilityMap() != null)
+                    mapData.getVisibilityMap().update();
+            }
             
                 if (isScreenCoordinate(cursorPoint) && mouseScroll)
                 {
@@ -451,6 +678,25 @@ public class MHTileMap implements MHRenderable
         }
 
 
+    /****************************************************************
+     * Narrows the clip of a graphics object to the screen space, so
+     * that a view can't draw over whatever is around it.
+     *
+     * @param g  The graphics object on which the map is rendered.
+     *
+     * @return The clip to be restored when the view is finished.
+     */
+    protected Shape clipToScreenSpace(final Graphics2D g)
+    {
+        final Shape clip = g.getClip();
+
+        g.clipRect((int) screenSpace.getX(), (int) screenSpace.getY(),
+                (int) screenSpace.getWidth(), (int) screenSpace.getHeight());
+
+        return clip;
+    }
+
+
         /****************************************************************
          * Performs validation on the cursor's map cell address to ensure
          * that it is within the bounds of the map.
@@ -501,24 +747,55 @@ public class MHTileMap implements MHRenderable
      * @return A point indicating the actor's new column and row
      *         position after walking from its original position.
      */
-    public MHMapCellAddress tileWalk(int row, int column,
-            MHTileMapDirection direction)
+    public MHMapCellAddress tileWalk(final int row, final int column,
+            final MHTileMapDirection direction)
     {
-        MHMapCellAddress a = new MHMapCellAddress(row, column);
-        
+        return tileWalk(row, column, direction, new MHMapCellAddress());
+    }
+
+
+    /****************************************************************
+     * Calculates the next map position to which an actor would walk
+     * if it were in position (<i>row</i>, <i>column</i>) and
+     * traveled in the direction specified by <i>direction</i>,
+     * storing the result in an address supplied by the caller.
+     *
+     * <p>The output address may be the same object the row and
+     * column were read from, so a walk can be advanced in place:
+     * <pre>
+     *     tileWalk(a.row, a.column, MHTileMapDirection.EAST, a);
+     * </pre>
+     *
+     * @param row
+     *            The actor's current row position.
+     * @param column
+     *            The actor's current column position.
+     * @param direction
+     *            The direction in which to walk.
+     * @param out
+     *            The address in which to store the result.
+     *
+     * @return The <i>out</i> parameter.
+     */
+    public MHMapCellAddress tileWalk(final int row, final int column,
+            final MHTileMapDirection direction, final MHMapCellAddress out)
+    {
+        out.row = row;
+        out.column = column;
+
         switch (direction)
         {
-            case NORTH:     a.row--;             break;
-            case NORTHEAST: a.row--; a.column++; break;
-            case EAST:               a.column++; break;
-            case SOUTHEAST: a.row++; a.column++; break;
-            case SOUTH:     a.row++;             break;
-            case SOUTHWEST: a.row++; a.column--; break;
-            case WEST:               a.column--; break;
-            case NORTHWEST: a.row--; a.column--; break;
+            case NORTH:     out.row--;               break;
+            case NORTHEAST: out.row--; out.column++; break;
+            case EAST:                 out.column++; break;
+            case SOUTHEAST: out.row++; out.column++; break;
+            case SOUTH:     out.row++;               break;
+            case SOUTHWEST: out.row++; out.column--; break;
+            case WEST:                 out.column--; break;
+            case NORTHWEST: out.row--; out.column--; break;
         }
-        
-        return a;
+
+        return out;
     }
 
 
@@ -540,6 +817,40 @@ public class MHTileMap implements MHRenderable
     {
         return tileWalk(origin.row, origin.column, direction);
     }
+
+
+    /****************************************************************
+     * Returns the directions in which an actor can step from one
+     * cell of this map to a neighboring cell.
+     *
+     * @return An array of the map's step directions.
+     */
+    public MHTileMapDirection[] getDirections()
+    {
+        return MHTileMapDirection.values();
+    }
+
+
+    /****************************************************************
+     * Returns the number of steps between two map cells if there
+     * were nothing in the way.  Path finders use this as their
+     * estimate of the remaining distance to the goal.
+     *
+     * This version returns the Manhattan distance.  Maps whose cells
+     * are not arranged in a square grid must override it.
+     *
+     * @param row1     The row of the first cell.
+     * @param column1  The column of the first cell.
+     * @param row2     The row of the second cell.
+     * @param column2  The column of the second cell.
+     *
+     * @return The distance between the two cells.
+     */
+    public int getDistance(final int row1, final int column1,
+            final int row2, final int column2)
+    {
+        return Math.abs(row1 - row2) + Math.abs(column1 - column2);
+    }
         /**
          * Returns the screenSpace.
          * @return Rectangle2D
@@ -563,6 +874,31 @@ public class MHTileMap implements MHRenderable
                 return screenAnchor;
         }
 
+        /****************************************************************
+         * Returns the number of times the view is halved in size.
+         * 0 is full size, 1 is half size, and so on.
+         */
+        public int getZoomLevel()
+        {
+            return zoomLevel;
+        }
+
+
+        /****************************************************************
+         * Zooms the view out.  Isometric maps draw zoomed-out tiles
+         * from pre-shrunk copies kept by <tt>MHMipmapCache</tt>, so
+         * zooming out costs no more per tile than full size does.
+         *
+         * @param level  The number of times the view is halved in
+         *               size, from 0 (full size) to
+         *               <tt>MHMipmapCache.MAX_LEVEL</tt>.
+         */
+        public void setZoomLevel(final int level)
+        {
+            zoomLevel = Math.max(0, Math.min(MHMipmapCache.MAX_LEVEL, level));
+        }
+
+
         /**
          * Sets the screenAnchor.
          * @param screenAnchor The screenAnchor to set
@@ -604,5 +940,156 @@ public class MHTileMap implements MHRenderable
                 this.cursorPoint = cursorPoint;
         }
 
-}
 
+
+    /****************************************************************
+     * Per-row and per-column plot offsets for a tile map.  The plot
+     * position of cell (<i>row</i>, <i>column</i>) is
+     * <tt>originX + rowX[row] + columnX[column]</tt>,
+     * <tt>originY + rowY[row] + columnY[column]</tt>, where the
+     * origin is the plot position of cell (0, 0).
+     *
+     * <p>The offsets don't depend on the scroll position or where the
+     * view is on screen, so a table for a scrolled view shares the
+     * offset arrays of the one before it and only has an origin of
+     * its own.
+     */
+    protected static final class MHPlotTable
+    {
+        private final int[] rowX, rowY, columnX, columnY;
+
+        /** Plot position of cell (0, 0). */
+        private final int originX, originY;
+
+        /** The values the offsets were built for. */
+        private final int tileWidth, tileHeight, zoomLevel;
+
+        /** The values the origin was found for. */
+        private final int anchorX, anchorY, screenX, screenY;
+
+
+        /************************************************************
+         * Builds the tables for the current state of the given map.
+         */
+        MHPlotTable(final MHTileMap map)
+        {
+            final int rows = map.getMapData().getHeight();
+            final int columns = map.getMapData().getWidth();
+            final Point p = new Point();
+
+            tileWidth = map.getTileWidth();
+            tileHeight = map.getTileHeight();
+            zoomLevel = map.zoomLevel;
+            anchorX = map.screenAnchor.x;
+            anchorY = map.screenAnchor.y;
+            screenX = (int) map.screenSpace.getX();
+            screenY = (int) map.screenSpace.getY();
+
+            map.plotTile(0, 0, p);
+            originX = p.x;
+            originY = p.y;
+
+            rowX = new int[rows];
+            rowY = new int[rows];
+            columnX = new int[columns];
+            columnY = new int[columns];
+
+            for (int column = 0; column < columns; column++)
+            {
+                map.plotTile(0, column, p);
+                columnX[column] = p.x - originX;
+                columnY[column] = p.y - originY;
+            }
+
+            for (int row = 0; row < rows; row++)
+            {
+                map.plotTile(row, 0, p);
+                rowX[row] = p.x - originX;
+                rowY[row] = p.y - originY;
+            }
+        }
+
+
+        /************************************************************
+         * Moves the origin of a table to suit the current scroll
+         * position and screen space of the given map.  The new table
+         * shares the old one's offsets.
+         */
+        MHPlotTable(final MHPlotTable table, final MHTileMap map)
+        {
+            final Point p = map.plotTile(0, 0, new Point());
+
+            rowX = table.rowX;
+            rowY = table.rowY;
+            columnX = table.columnX;
+            columnY = table.columnY;
+            tileWidth = table.tileWidth;
+            tileHeight = table.tileHeight;
+            zoomLevel = table.zoomLevel;
+
+            anchorX = map.screenAnchor.x;
+            anchorY = map.screenAnchor.y;
+            screenX = (int) map.screenSpace.getX();
+            screenY = (int) map.screenSpace.getY();
+            originX = p.x;
+            originY = p.y;
+        }
+
+
+        /************************************************************
+         * Returns true if the table's offsets still match the given
+         * map.
+         */
+        boolean isCurrent(final MHTileMap map)
+        {
+            return rowX.length == map.getMapData().getHeight()
+                && columnX.length == map.getMapData().getWidth()
+                && tileWidth == map.getTileWidth()
+                && tileHeight == map.getTileHeight()
+                && zoomLevel == map.zoomLevel;
+        }
+
+
+        /************************************************************
+         * Returns true if the table's origin still matches the given
+         * map's scroll position and screen space.
+         */
+        boolean isPlacedFor(final MHTileMap map)
+        {
+            return anchorX == map.screenAnchor.x
+                && anchorY == map.screenAnchor.y
+                && screenX == (int) map.screenSpace.getX()
+                && screenY == (int) map.screenSpace.getY();
+        }
+
+
+        /************************************************************
+         * Returns the x coordinate of a map cell's plot position.
+         */
+        int getX(final int row, final int column)
+        {
+            return originX + rowX[row] + columnX[column];
+        }
+
+
+        /************************************************************
+         * Returns the y coordinate of a map cell's plot position.
+         */
+        int getY(final int row, final int column)
+        {
+            return originY + rowY[row] + columnY[column];
+        }
+
+
+        /************************************************************
+         * Stores the plot position of a map cell in <i>out</i>.
+         * The cell must lie within the map.
+         */
+        Point plot(final int row, final int column, final Point out)
+        {
+            out.x = originX + rowX[row] + columnX[column];
+            out.y = originY + rowY[row] + columnY[column];
+            return out;
+        }
+    }
+}
@@ -4,7 +4,19 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
 import mhframework.media.MHImageGroup;
+import mhframework.media.MHMipmapCache;
 import mhframework.media.MHResourceManager;
 
 /********************************************************************
@@ -61,8 +73,18 @@ public class MHTileSetManager
 
     public static final String TILE_SET_DIRECTORY = "images/";
 
+    /** File name prefixes for the tiles in each layer, indexed by
+     * the layer constants in MHMapCell. */
+    private static final String[] LAYER_PREFIXES = {"F", "L", "I", "O", "W", "D", "C"};
+
+    /** Supported tile image extensions in order of preference. */
+    private static final String[] IMAGE_EXTENSIONS = {".gif", ".png", ".jpg"};
+
     private static MHTileSet tileSet;
 
+    /** Tile sets that have already been loaded, keyed by number. */
+    private static final Hashtable<Integer, MHTileSet> tileSetCache = new Hashtable<Integer, MHTileSet>();
+
     /****************************************************************
      * Constructor.
      */
@@ -81,7 +103,10 @@ public class MHTileSetManager
 
 
     /****************************************************************
-     * Loads the tile set specified by the given tile set number.
+     * Loads the tile set specified by the given tile set number.  The
+     * tile images are found with a single listing of the tile
+     * directory and decoded in parallel.  Tile sets are cached once
+     * loaded, so loading the same tile set again is instant.
      *
      * @param tileSetNumber  The number of the tile set to be loaded.
      */
@@ -93,71 +118,159 @@ public class MHTileSetManager
             return;
         }
 
+        final MHTileSet cached = tileSetCache.get(tileSetNumber);
+        if (cached != null)
+        {
+            tileSet = cached;
+            return;
+        }
+
         tileSet = new MHTileSet(tileSetNumber);
 
-        loadTiles(tileSetNumber, "F", MHMapCell.FLOOR_LAYER);
-        loadTiles(tileSetNumber, "L", MHMapCell.FLOOR_DETAIL_LAYER);
-        loadTiles(tileSetNumber, "I", MHMapCell.ITEM_LAYER);
-        loadTiles(tileSetNumber, "O", MHMapCell.OBSTACLE_LAYER);
-        loadTiles(tileSetNumber, "W", MHMapCell.WALL_LAYER);
-        loadTiles(tileSetNumber, "D", MHMapCell.WALL_DETAIL_LAYER);
-        loadTiles(tileSetNumber, "C", MHMapCell.CEILING_LAYER);
+        decodeTiles(findTiles(tileSetNumber));
+
+        tileSet.findAnimatedTiles();
+
+        tileSetCache.put(tileSetNumber, tileSet);
     }
 
 
-    private void loadTiles(final int currentSet, String tilePrefix, final int layerIndex)
+    /****************************************************************
+     * Removes all tile sets from the cache except the current one.
+     */
+    public void clearCache()
     {
-        if (twoCharFormat(currentSet).equals("  "))
-            return;
+        tileSetCache.clear();
 
-        tilePrefix += twoCharFormat(currentSet);
+        if (tileSet != null)
+            tileSetCache.put(tileSet.getTileSetID(), tileSet);
+    }
+
+
+    /****************************************************************
+     * Returns the list of tile images in a tile set.  The tile
+     * directory is listed once and the list is worked out from the
+     * listing in memory, without looking at the files themselves.
+     */
+    private ArrayList<MHTileEntry> findTiles(final int tileSetNumber)
+    {
+        final String[] list = new File(TILE_SET_DIRECTORY).list();
+
+        return scanDirectory(tileSetNumber, (list == null ? new String[0] : list));
+    }
+
+
+    /****************************************************************
+     * Builds the list of tile images in a tile set from a single
+     * listing of the tile directory.  Tiles must be numbered
+     * consecutively from 000, and so must their animation frames.
+     */
+    private ArrayList<MHTileEntry> scanDirectory(final int tileSetNumber, final String[] list)
+    {
+        final ArrayList<MHTileEntry> entries = new ArrayList<MHTileEntry>();
+        final HashSet<String> files = new HashSet<String>(Arrays.asList(list));
 
-        // loop for individual tiles
-        for (int i = 0; i < MHTileSet.MAX_TILES-1; i++)
+        for (int layer = 0; layer < LAYER_PREFIXES.length; layer++)
         {
-            final String filebase = tilePrefix + threeCharFormat(i);
+            final String tilePrefix = LAYER_PREFIXES[layer] + twoCharFormat(tileSetNumber);
 
-            // loop for animation frames
-            for (int frame = 0; frame < MHTileSet.MAX_FRAMES; frame++)
+            // loop for individual tiles
+            for (int i = 0; i < MHTileSet.MAX_TILES-1; i++)
             {
-                String filename = findNextFile(filebase + twoCharFormat(frame));
-
-                final File tileFile = new File(TILE_SET_DIRECTORY+filename);
+                final String filebase = tilePrefix + threeCharFormat(i);
+                boolean tileFound = false;
 
-                // If file exists...
-                if (tileFile.exists())
+                // loop for animation frames
+                for (int frame = 0; frame < MHTileSet.MAX_FRAMES; frame++)
                 {
-                    // Assign it to proper layer in tileset
-                    tileSet.addTile(layerIndex, i, filename);
+                    final String filename = findFile(files, filebase + twoCharFormat(frame));
+
+                    if (filename == null)
+                        break;
+
+                    entries.add(new MHTileEntry(layer, i, filename));
+                    tileFound = true;
                 }
-                else
-                {
-                    if (frame == 0)
-                        return;
+
+                if (!tileFound)
                     break;
-                }
             }
         }
+
+        return entries;
     }
 
-    
-    private String findNextFile(String filebase)
+
+    /****************************************************************
+     * Finds the file name for a tile image, preferring GIF, then
+     * PNG, then JPG.  Returns null if there is no such file.
+     */
+    private String findFile(final HashSet<String> files, final String filebase)
     {
-        // See if the file exists as a GIF.
-        String filename = filebase + ".gif";
-        File tileFile = new File(TILE_SET_DIRECTORY+filename);
-        if (tileFile.exists())
-            return filename;
-        
-        // See if the file exists as a PNG.
-        filename = filebase + ".png";
-        tileFile = new File(TILE_SET_DIRECTORY+filename);
-        if (tileFile.exists())
-            return filename;
-
-        // No GIF or PNG, so let's guess JPG and let the calling code figure it out.
-        filename = filebase + ".jpg";
-        return filename;
+        for (final String extension : IMAGE_EXTENSIONS)
+        {
+            final String filename = filebase + extension;
+            if (files.contains(filename))
+                return filename;
+        }
+
+        return null;
+    }
+
+
+    /****************************************************************
+     * Decodes the listed tile images on a pool of worker threads and
+     * adds them to the current tile set in list order.
+     */
+    private void decodeTiles(final ArrayList<MHTileEntry> entries)
+    {
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors());
+
+        try
+        {
+            final ArrayList<Future<Image>> images = new ArrayList<Future<Image>>(entries.size());
+
+            for (final MHTileEntry entry : entries)
+                images.add(pool.submit(new MHTileDecoder(entry)));
+
+            for (int i = 0; i < entries.size(); i++)
+            {
+                final MHTileEntry entry = entries.get(i);
+                Image image = null;
+
+                try
+                {
+                    image = images.get(i).get();
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (final ExecutionException e)
+                {
+                    image = null;
+                }
+
+                // If the worker couldn't decode it, fall back on the
+                // resource manager, which can also find images in
+                // JAR files.
+                if (image == null)
+                {
+                    tileSet.addTile(entry.layer, entry.tileNum, entry.fileName);
+                }
+                else
+                {
+                    MHResourceManager.getMediaTracker().addImage(image,
+                                    MHResourceManager.getMediaTracker().getImageCount()+1);
+                    tileSet.addTile(entry.layer, entry.tileNum, image);
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
     }
 
 
@@ -183,6 +296,69 @@ public class MHTileSetManager
     }
 
 
+    /****************************************************************
+     * Returns the image for the current animation frame of a tile.
+     * All of the map cells showing the same tile share a single
+     * animation clock, which is advanced by
+     * <tt>advanceAnimations()</tt>.
+     */
+    public Image getCurrentTileImage(final int layer, final int tileNum)
+    {
+        if (tileSet == null) return null;
+
+        return getTileImage(layer, tileNum, tileSet.getCurrentFrame(layer, tileNum));
+    }
+
+
+    /****************************************************************
+     * Returns the current animation frame number of a tile.
+     */
+    public int getCurrentFrame(final int layer, final int tileNum)
+    {
+        if (tileSet == null) return 0;
+
+        return tileSet.getCurrentFrame(layer, tileNum);
+    }
+
+
+    /****************************************************************
+     * Advances the shared animation clock of every animated tile in
+     * the current tile set.  <tt>MHScreenManager.advance()</tt> calls
+     * this once per update, so tile maps must not; programs that run
+     * their own loop should call it once per update themselves.  Its
+     * cost depends on the number of animated tile types, not on the
+     * number of map cells.
+     */
+    public void advanceAnimations()
+    {
+        if (tileSet != null)
+            tileSet.advanceAnimations();
+    }
+
+
+    /****************************************************************
+     * Shrinks every tile image in the current tile set ahead of time
+     * for drawing zoomed out, so that the first frame drawn at a new
+     * zoom level doesn't stall.
+     *
+     * @param level  The most zoomed-out level that will be used.
+     */
+    public void prepareMipmaps(final int level)
+    {
+        if (tileSet == null) return;
+
+        for (int layer = 0; layer < MHMapCell.NUM_LAYERS; layer++)
+        {
+            final MHImageGroup group = tileSet.getLayer(layer);
+            if (group == null) continue;
+
+            for (int tile = 0; tile < group.getNumSequences(); tile++)
+                for (int frame = 0; frame < group.getFrameCount(tile); frame++)
+                    MHMipmapCache.prepare(group.getImage(tile, frame), level);
+        }
+    }
+
+
     /****************************************************************
      * Returns the image group for a layer of tiles.
      */
@@ -192,7 +368,7 @@ public class MHTileSetManager
     }
 
 
-    private String twoCharFormat(final int number)
+    private static String twoCharFormat(final int number)
     {
         final StringBuffer twoChars = new StringBuffer();
 
@@ -206,7 +382,7 @@ public class MHTileSetManager
     }
 
 
-    private String threeCharFormat(final int number)
+    private static String threeCharFormat(final int number)
     {
         final StringBuffer threeChars = new StringBuffer();
 
@@ -254,6 +430,24 @@ public class MHTileSetManager
          */
         private final MHImageGroup[] layers;
 
+        /**
+         * Current animation frame of each tile, indexed by layer and
+         * tile number.
+         */
+        private final int[][] frames;
+
+        /**
+         * Animation timer of each tile, indexed by layer and tile
+         * number.
+         */
+        private final int[][] timers;
+
+        /**
+         * Every tile with more than one frame, encoded as
+         * <tt>layer * MAX_TILES + tileNum</tt>.
+         */
+        private int[] animatedTiles = new int[0];
+
 
 
         /****************************************************************
@@ -265,6 +459,8 @@ public class MHTileSetManager
         {
             tileSetID = setID;
             layers = new MHImageGroup[MHMapCell.NUM_LAYERS];
+            frames = new int[MHMapCell.NUM_LAYERS][MAX_TILES];
+            timers = new int[MHMapCell.NUM_LAYERS][MAX_TILES];
         }
 
 
@@ -278,6 +474,23 @@ public class MHTileSetManager
          *                       tile's image.
          */
         public void addTile(final int layerIndex, final int tileNum, final String imageFileName)
+        {
+            final Image tileImage = MHResourceManager.loadImage(TILE_SET_DIRECTORY+imageFileName);
+
+            addTile(layerIndex, tileNum, prepareTile(layerIndex, tileImage));
+        }
+
+
+        /****************************************************************
+         * Adds a new tile to this tile set.
+         *
+         * @param layerIndex    Which layer the tile belongs to.  (See
+         *                       constants.)
+         * @param tileNum       The number of the tile being added.
+         * @param tileImage     The tile's image, already prepared by
+         *                       <tt>prepareTile()</tt>.
+         */
+        public void addTile(final int layerIndex, final int tileNum, final Image tileImage)
         {
             if (layers[layerIndex] == null)
                 layers[layerIndex] = new MHImageGroup();
@@ -285,20 +498,27 @@ public class MHTileSetManager
             if (!layers[layerIndex].sequenceExists(tileNum))
                 layers[layerIndex].addSequence(tileNum);
 
-            Image tileImage = MHResourceManager.loadImage(TILE_SET_DIRECTORY+imageFileName);
+            layers[layerIndex].addFrame(tileNum, tileImage, 0);
+        }
+
 
+        /****************************************************************
+         * Applies any transformations a freshly loaded tile image
+         * needs before it can be added to a layer.
+         */
+        static Image prepareTile(final int layerIndex, final Image tileImage)
+        {
             // Transform tiles here.
-            if (layerIndex == MHMapCell.FLOOR_LAYER)
+            if (layerIndex == MHMapCell.FLOOR_LAYER && tileImage != null)
             {
                 // If tile is not correct dimensions, assume it needs to be transformed.
                 if (tileImage.getWidth(null) != MHIsoMouseMap.WIDTH)
                 {
-                    tileImage = transformFloorTile(tileImage);
+                    return transformFloorTile(tileImage);
                 }
             }
 
-            layers[layerIndex].addFrame(tileNum, tileImage, 0);
-
+            return tileImage;
         }
 
 
@@ -307,7 +527,7 @@ public class MHTileSetManager
          * @param image
          * @return
          */
-        private Image transformFloorTile(final Image image)
+        private static Image transformFloorTile(final Image image)
         {
             final int w = MHIsoMouseMap.WIDTH;
             final int h = MHIsoMouseMap.HEIGHT;
@@ -330,6 +550,81 @@ public class MHTileSetManager
         }
 
 
+        /****************************************************************
+         * Builds the list of tiles that have more than one animation
+         * frame.  Called after all of the tiles have been loaded.
+         */
+        void findAnimatedTiles()
+        {
+            int count = 0;
+            int[] found = new int[16];
+
+            for (int layer = 0; layer < layers.length; layer++)
+            {
+                if (layers[layer] == null)
+                    continue;
+
+                final int numTiles = Math.min(MAX_TILES, layers[layer].getNumSequences());
+                for (int tile = 0; tile < numTiles; tile++)
+                {
+                    if (layers[layer].getFrameCount(tile) > 1)
+                    {
+                        if (count == found.length)
+                        {
+                            final int[] bigger = new int[count * 2];
+                            System.arraycopy(found, 0, bigger, 0, count);
+                            found = bigger;
+                        }
+
+                        found[count++] = layer * MAX_TILES + tile;
+                    }
+                }
+            }
+
+            animatedTiles = new int[count];
+            System.arraycopy(found, 0, animatedTiles, 0, count);
+        }
+
+
+        /****************************************************************
+         * Advances the animation clock of each animated tile using the
+         * same timing rules as <tt>MHActor.advance()</tt>.
+         */
+        void advanceAnimations()
+        {
+            for (final int key : animatedTiles)
+            {
+                final int layer = key / MAX_TILES;
+                final int tile = key % MAX_TILES;
+                final MHImageGroup group = layers[layer];
+
+                timers[layer][tile]++;
+
+                if (timers[layer][tile] > group.getDuration(tile, frames[layer][tile]))
+                {
+                    timers[layer][tile] = 0;
+
+                    if (frames[layer][tile] < group.getFrameCount(tile) - 1)
+                        frames[layer][tile]++;
+                    else
+                        frames[layer][tile] = 0;
+                }
+            }
+        }
+
+
+        /****************************************************************
+         * Returns the current animation frame of a tile.
+         */
+        int getCurrentFrame(final int layer, final int tileNum)
+        {
+            if (layer < 0 || layer >= frames.length || tileNum < 0 || tileNum >= MAX_TILES)
+                return 0;
+
+            return frames[layer][tileNum];
+        }
+
+
         /****************************************************************
          * Returns the tile set ID.
          *
@@ -366,5 +661,48 @@ public class MHTileSetManager
     } // class MHTileSet
 
 
+    /****************************************************************
+     * One tile image found in the tile directory.
+     */
+    private static class MHTileEntry
+    {
+        final int layer;
+        final int tileNum;
+        final String fileName;
+
+        MHTileEntry(final int layer, final int tileNum, final String fileName)
+        {
+            this.layer = layer;
+            this.tileNum = tileNum;
+            this.fileName = fileName;
+        }
+    }
+
+
+    /****************************************************************
+     * Decodes a single tile image on a worker thread.  Returns null
+     * if the image can't be read directly from the tile directory.
+     */
+    private static class MHTileDecoder implements Callable<Image>
+    {
+        private final MHTileEntry entry;
+
+        MHTileDecoder(final MHTileEntry entry)
+        {
+            this.entry = entry;
+        }
+
+        public Image call() throws IOException
+        {
+            final Image image = ImageIO.read(new File(TILE_SET_DIRECTORY + entry.fileName));
+
+            if (image == null)
+                return null;
+
+            return MHTileSet.prepareTile(entry.layer, image);
+        }
+    }
+
+
 
 } // class MHTileSetManager
@@ -0,0 +1,543 @@
+package mhframework.tilemap;
+
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/********************************************************************
+ * Field of view and fog of war for a map.
+ *
+ * <p>Each observer's field of view is found by recursive
+ * shadowcasting over the map grid.  Cells that cannot be flown over
+ * block sight.  The result is cached, and it is only recalculated
+ * after the observer moves or a cell within its sight radius starts
+ * or stops blocking sight.
+ *
+ * <p>For each team the visibility map keeps a count of how many of
+ * the team's observers can see each cell.  These counts are merged
+ * into two bit sets per team:
+ * <ul>
+ *     <li>The <i>visible</i> set holds the cells the team can see
+ *         now.
+ *     <li>The <i>explored</i> set holds every cell the team has
+ *         ever seen.
+ * </ul>
+ * Moving an observer adjusts only the counts of the cells that it
+ * saw before and sees now.
+ *
+ * <p>Shadowcasting works on the row and column grid of the map data.
+ * That grid matches the screen geometry of rectangular and diamond
+ * maps.
+ *
+ * <p>Usage:
+ * <pre>
+ *     MHVisibilityMap fog = new MHVisibilityMap(map.getMapData(), 2);
+ *     MHObserver scout = new MHObserver(0, 10, 12, 8);
+ *     fog.addObserver(scout);
+ *     map.setVisibilityMap(fog, 0);  // Show team 0's view
+ *     ...
+ *     scout.setPosition(11, 12);
+ * </pre>
+ */
+public class MHVisibilityMap implements MHMapChangeListener
+{
+    /** Octant transformation multipliers for shadowcasting. */
+    private static final int[] XX = { 1,  0,  0, -1, -1,  0,  0,  1 };
+    private static final int[] XY = { 0,  1, -1,  0,  0, -1,  1,  0 };
+    private static final int[] YX = { 0,  1,  1,  0,  0, -1, -1,  0 };
+    private static final int[] YY = { 1,  0,  0,  1, -1,  0,  0, -1 };
+
+    /** Fog color for cells the team has never seen. */
+    public static final int UNSEEN_COLOR = 0xFF000000;
+
+    /** Fog color for cells the team has seen before but can't see
+     * now. */
+    public static final int EXPLORED_COLOR = 0xA0000000;
+
+    /** The map data. */
+    private final MHMap map;
+
+    /** Dimensions of the map in cells. */
+    private final int height, width;
+
+    /** The observers in the map. */
+    private final ArrayList<MHObserver> observers = new ArrayList<MHObserver>();
+
+    /** Number of each team's observers that can see each cell. */
+    private final int[][] counts;
+
+    /** Cells each team can see now. */
+    private final BitSet[] visible;
+
+    /** Cells each team has ever seen. */
+    private final BitSet[] explored;
+
+    /** Fog overlays that must be told when visibility changes. */
+    private final ArrayList<MHFogOverlay> overlays = new ArrayList<MHFogOverlay>();
+
+    /** Flag indicating that at least one observer must be updated. */
+    private boolean changed = false;
+
+    /** Cells seen by the field of view being calculated. */
+    private int[] fovCells = new int[64];
+
+    /** Number of entries used in <tt>fovCells</tt>. */
+    private int fovCount;
+
+    /** Cells holding the current stamp have already been added to
+     * the field of view being calculated. */
+    private final int[] seen;
+
+    /** Stamp for the field of view being calculated. */
+    private int stamp = 0;
+
+
+    /****************************************************************
+     * Constructor.
+     *
+     * @param map       The map data.
+     * @param numTeams  The number of teams.  Teams are numbered from
+     *                  0 to <tt>numTeams - 1</tt>.
+     */
+    public MHVisibilityMap(final MHMap map, final int numTeams)
+    {
+        this.map = map;
+        height = map.getHeight();
+        width = map.getWidth();
+
+        final int size = height * width;
+        seen = new int[size];
+        counts = new int[numTeams][size];
+        visible = new BitSet[numTeams];
+        explored = new BitSet[numTeams];
+
+        for (int t = 0; t < numTeams; t++)
+        {
+            visible[t] = new BitSet(size);
+            explored[t] = new BitSet(size);
+        }
+    }
+
+
+    /****************************************************************
+     * Adds an observer to the map.
+     */
+    public void addObserver(final MHObserver observer)
+    {
+        if (observer.owner != null)
+            observer.owner.removeObserver(observer);
+
+        observer.owner = this;
+        observer.numCells = 0;
+        observers.add(observer);
+        observer.invalidate();
+    }
+
+
+    /****************************************************************
+     * Removes an observer from the map.  Its team stops seeing the
+     * cells that only it could see.
+     */
+    public void removeObserver(final MHObserver observer)
+    {
+        if (observer.owner != this)
+            return;
+
+        final int team = observer.getTeam();
+        for (int i = 0; i < observer.numCells; i++)
+            decrement(team, observer.cells[i]);
+
+        observer.numCells = 0;
+        observers.remove(observer);
+        observer.owner = null;
+    }
+
+
+    /****************************************************************
+     * Returns true if any of a team's observers can see a cell.
+     */
+    public boolean isVisible(final int team, final int row, final int column)
+    {
+        update();
+        return visible[team].get(row * width + column);
+    }
+
+
+    /****************************************************************
+     * Returns true if a team has ever seen a cell.
+     */
+    public boolean isExplored(final int team, final int row, final int column)
+    {
+        update();
+        return explored[team].get(row * width + column);
+    }
+
+
+    /****************************************************************
+     * Returns the cells a team can see, indexed by
+     * <tt>row * width + column</tt>.  The set belongs to the
+     * visibility map and must not be modified.
+     */
+    public BitSet getVisibleCells(final int team)
+    {
+        update();
+        return visible[team];
+    }
+
+
+    /****************************************************************
+     * Returns the cells a team has ever seen.  The set belongs to
+     * the visibility map and must not be modified.
+     */
+    public BitSet getExploredCells(final int team)
+    {
+        update();
+        return explored[team];
+    }
+
+
+    /****************************************************************
+     * Forgets everything a team has explored apart from what it can
+     * see now.
+     */
+    public void resetExplored(final int team)
+    {
+        update();
+        explored[team].clear();
+        explored[team].or(visible[team]);
+
+        for (int i = 0; i < overlays.size(); i++)
+            if (overlays.get(i).team == team)
+                overlays.get(i).invalidateAll();
+    }
+
+
+    /****************************************************************
+     * Returns the number of teams.
+     */
+    public int getNumTeams()
+    {
+        return visible.length;
+    }
+
+
+    /****************************************************************
+     * Called when a cell's ability to block sight may have changed.
+     * Marks every observer that could see the cell for updating.
+     *
+     * @param row     The row of the cell.
+     * @param column  The column of the cell.
+     */
+    public void wallChanged(final int row, final int column)
+    {
+        wallsChanged(row, column, row, column);
+    }
+
+
+    /****************************************************************
+     * Called when the ability of a rectangle of cells to block sight
+     * may have changed.  Marks every observer that could see into
+     * the rectangle for updating.
+     *
+     * @param minRow     The first row of the rectangle.
+     * @param minColumn  The first column of the rectangle.
+     * @param maxRow     The last row of the rectangle.
+     * @param maxColumn  The last column of the rectangle.
+     */
+    public void wallsChanged(final int minRow, final int minColumn,
+            final int maxRow, final int maxColumn)
+    {
+        for (int i = 0; i < observers.size(); i++)
+        {
+            final MHObserver o = observers.get(i);
+
+            if (o.row + o.radius >= minRow && o.row - o.radius <= maxRow
+                    && o.column + o.radius >= minColumn
+                    && o.column - o.radius <= maxColumn)
+                o.invalidate();
+        }
+    }
+
+
+    /****************************************************************
+     * Marks the affected observers for updating when cells start or
+     * stop blocking sight.
+     */
+    public void mapChanged(final MHMapChangeEvent event)
+    {
+        if (event.isFlyabilityChanged())
+            wallsChanged(event.getMinPassabilityRow(), event.getMinPassabilityColumn(),
+                    event.getMaxPassabilityRow(), event.getMaxPassabilityColumn());
+    }
+
+
+    /****************************************************************
+     * Recalculates the field of view of every observer that has
+     * moved or been affected by a wall change, and updates the teams'
+     * visibility.  This is called automatically by the query
+     * methods and by the tile map's <tt>advance()</tt>.
+     */
+    public void update()
+    {
+        if (!changed)
+            return;
+
+        changed = false;
+
+        for (int i = 0; i < observers.size(); i++)
+        {
+            final MHObserver o = observers.get(i);
+
+            if (!o.dirty)
+                continue;
+
+            o.dirty = false;
+
+            computeFieldOfView(o);
+
+            // Count the new cells before uncounting the old ones so
+            // that cells seen both times never drop out of sight.
+            final int team = o.getTeam();
+            for (int c = 0; c < fovCount; c++)
+                increment(team, fovCells[c]);
+
+            for (int c = 0; c < o.numCells; c++)
+                decrement(team, o.cells[c]);
+
+            if (o.cells.length < fovCount)
+                o.cells = new int[fovCells.length];
+
+            System.arraycopy(fovCells, 0, o.cells, 0, fovCount);
+            o.numCells = fovCount;
+        }
+    }
+
+
+    /****************************************************************
+     * Creates an overlay that draws a team's fog of war over an
+     * isometric map.  Cells the team can see are left untouched,
+     * explored cells are darkened and unseen cells are blacked out.
+     *
+     * @param isoMap  The map to be drawn over.
+     * @param team    The team whose view is shown.
+     *
+     * @return The new overlay.
+     */
+    public MHChunkedOverlay createOverlay(final MHIsometricMap isoMap, final int team)
+    {
+        final MHFogOverlay overlay = new MHFogOverlay(isoMap, team);
+        overlays.add(overlay);
+        return overlay;
+    }
+
+
+    /****************************************************************
+     * Stops telling an overlay about changes in visibility.
+     */
+    public void removeOverlay(final MHChunkedOverlay overlay)
+    {
+        overlays.remove(overlay);
+    }
+
+
+    /****************************************************************
+     * Called by an observer whose field of view must be
+     * recalculated.
+     */
+    void observerChanged()
+    {
+        changed = true;
+    }
+
+
+    /****************************************************************
+     * Calculates an observer's field of view into
+     * <tt>fovCells</tt>.
+     */
+    private void computeFieldOfView(final MHObserver o)
+    {
+        fovCount = 0;
+
+        if (!map.isValidCell(o.row, o.column))
+            return;
+
+        if (++stamp == Integer.MAX_VALUE)
+        {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+
+        addVisible(o.row * width + o.column);
+
+        for (int octant = 0; octant < 8; octant++)
+            castLight(o.column, o.row, 1, 1.0, 0.0, o.radius,
+                    XX[octant], XY[octant], YX[octant], YY[octant]);
+    }
+
+
+    /****************************************************************
+     * Recursive shadowcasting for one octant.  Scans rows of cells
+     * moving away from the observer between the given slopes, and
+     * starts a new scan beyond each run of blocking cells.
+     */
+    private void castLight(final int cx, final int cy, final int firstRow,
+            double start, final double end, final int radius,
+            final int xx, final int xy, final int yx, final int yy)
+    {
+        if (start < end)
+            return;
+
+        final int radiusSquared = radius * radius;
+        double newStart = 0.0;
+
+        for (int j = firstRow; j <= radius; j++)
+        {
+            int dx = -j - 1;
+            final int dy = -j;
+            boolean blocked = false;
+
+            while (dx <= 0)
+            {
+                dx++;
+
+                final int x = cx + dx * xx + dy * xy;
+                final int y = cy + dx * yx + dy * yy;
+                final double leftSlope = (dx - 0.5) / (dy + 0.5);
+                final double rightSlope = (dx + 0.5) / (dy - 0.5);
+
+                if (start < rightSlope)
+                    continue;
+                else if (end > leftSlope)
+                    break;
+
+                final boolean inside = (x >= 0 && y >= 0 && x < width && y < height);
+                final int index = y * width + x;
+
+                if (inside && dx * dx + dy * dy <= radiusSquared)
+                    addVisible(index);
+
+                // Cells off the edge of the map block sight.
+                final boolean opaque = !inside || !map.isFlyable(index);
+
+                if (blocked)
+                {
+                    if (opaque)
+                    {
+                        newStart = rightSlope;
+                        continue;
+                    }
+
+                    blocked = false;
+                    start = newStart;
+                }
+                else if (opaque && j < radius)
+                {
+                    blocked = true;
+                    castLight(cx, cy, j + 1, start, leftSlope, radius, xx, xy, yx, yy);
+                    newStart = rightSlope;
+                }
+            }
+
+            if (blocked)
+                break;
+        }
+    }
+
+
+    /****************************************************************
+     * Adds a cell to the field of view being calculated, unless it
+     * is already there.
+     */
+    private void addVisible(final int index)
+    {
+        if (seen[index] == stamp)
+            return;
+
+        seen[index] = stamp;
+
+        if (fovCount == fovCells.length)
+            fovCells = Arrays.copyOf(fovCells, fovCount * 2);
+
+        fovCells[fovCount++] = index;
+    }
+
+
+    /****************************************************************
+     * Counts one more of a team's observers as seeing a cell.
+     */
+    private void increment(final int team, final int index)
+    {
+        if (counts[team][index]++ == 0)
+        {
+            visible[team].set(index);
+            explored[team].set(index);
+            cellChanged(team, index);
+        }
+    }
+
+
+    /****************************************************************
+     * Counts one fewer of a team's observers as seeing a cell.
+     */
+    private void decrement(final int team, final int index)
+    {
+        if (--counts[team][index] == 0)
+        {
+            visible[team].clear(index);
+            cellChanged(team, index);
+        }
+    }
+
+
+    /****************************************************************
+     * Tells a team's overlays that a cell has changed.
+     */
+    private void cellChanged(final int team, final int index)
+    {
+        for (int i = 0; i < overlays.size(); i++)
+        {
+            final MHFogOverlay overlay = overlays.get(i);
+
+            if (overlay.team == team)
+                overlay.invalidate(index / width, index % width);
+        }
+    }
+
+
+    /****************************************************************
+     * Draws one team's fog of war.
+     */
+    private class MHFogOverlay extends MHChunkedOverlay
+    {
+        private final int team;
+
+        MHFogOverlay(final MHIsometricMap isoMap, final int team)
+        {
+            super(isoMap);
+            this.team = team;
+        }
+
+        @Override
+        public void render(final Graphics2D g, final MHIsometricMap view)
+        {
+            update();
+            super.render(g, view);
+        }
+
+        @Override
+        protected int getCellColor(final int row, final int column)
+        {
+            final int index = row * width + column;
+
+            if (visible[team].get(index))
+                return 0;
+
+            if (explored[team].get(index))
+                return EXPLORED_COLOR;
+
+            return UNSEEN_COLOR;
+        }
+    }
+}